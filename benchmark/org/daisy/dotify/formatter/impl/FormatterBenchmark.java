@@ -0,0 +1,123 @@
+package org.daisy.dotify.formatter.impl;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+
+import org.daisy.dotify.api.formatter.FormatterConfiguration;
+import org.daisy.dotify.api.formatter.FormatterException;
+import org.daisy.dotify.api.obfl.ObflParserException;
+import org.daisy.dotify.api.obfl.ObflParserFactoryMaker;
+import org.daisy.dotify.api.obfl.ObflParserFactoryService;
+import org.daisy.dotify.api.translator.BrailleTranslatorFactoryMaker;
+import org.daisy.dotify.api.translator.BrailleTranslatorFactoryMakerService;
+import org.daisy.dotify.api.translator.TextBorderFactoryMaker;
+import org.daisy.dotify.api.translator.TextBorderFactoryMakerService;
+import org.daisy.dotify.api.translator.TranslatorType;
+import org.daisy.dotify.formatter.impl.common.Volume;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Benchmarks parsing of OBFL and the layout of the parsed result into volumes.
+ * The input is generated by {@link SyntheticObfl}.</p>
+ *
+ * <p>The volume benchmark includes the pagination and the volume splitting, but not
+ * the writing of the result.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FormatterBenchmark {
+	@Param({"10", "500", "5000"})
+	int pages;
+
+	@Param({"1", "30"})
+	int volumes;
+
+	private String obfl;
+	private XMLInputFactory inFactory;
+	private ObflParserFactoryService parserFactory;
+	private BrailleTranslatorFactoryMakerService translatorFactory;
+	private TextBorderFactoryMakerService borderFactory;
+	private FormatterConfiguration config;
+
+	/**
+	 * Generates the input and creates the factories.
+	 */
+	@Setup(Level.Trial)
+	public void setup() {
+		obfl = SyntheticObfl.generate(pages, Math.min(volumes, Math.max(1, pages/2)));
+		// configured like the layout engine factory
+		inFactory = XMLInputFactory.newInstance();
+		inFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		inFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		inFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		inFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		parserFactory = ObflParserFactoryMaker.newInstance().getFactory();
+		translatorFactory = BrailleTranslatorFactoryMaker.newInstance();
+		borderFactory = TextBorderFactoryMaker.newInstance();
+		config = new FormatterConfiguration.Builder("sv-SE", TranslatorType.UNCONTRACTED.toString()).build();
+	}
+
+	/**
+	 * Provides a freshly parsed input for each invocation, since the volumes
+	 * can only be produced once for each formatter.
+	 */
+	@State(Scope.Thread)
+	public static class Parsed {
+		FormatterImpl formatter;
+
+		/**
+		 * Parses the input.
+		 * @param b the benchmark state
+		 * @throws XMLStreamException if the input cannot be read
+		 * @throws FormatterException if the input cannot be formatted
+		 * @throws ObflParserException if the input cannot be parsed
+		 */
+		@Setup(Level.Invocation)
+		public void setup(FormatterBenchmark b) throws XMLStreamException, FormatterException, ObflParserException {
+			formatter = b.parse();
+		}
+	}
+
+	/**
+	 * Parses the input.
+	 * @return the formatter with the parsed input
+	 * @throws XMLStreamException if the input cannot be read
+	 * @throws FormatterException if the input cannot be formatted
+	 * @throws ObflParserException if the input cannot be parsed
+	 */
+	@Benchmark
+	public FormatterImpl parse() throws XMLStreamException, FormatterException, ObflParserException {
+		FormatterImpl formatter = new FormatterImpl(translatorFactory, borderFactory, config);
+		parserFactory.newObflParser().parse(inFactory.createXMLEventReader(new StringReader(obfl)), formatter);
+		return formatter;
+	}
+
+	/**
+	 * Lays out the parsed input into volumes.
+	 * @param parsed the parsed input
+	 * @return the volumes
+	 */
+	@Benchmark
+	public Iterable<? extends Volume> volumes(Parsed parsed) {
+		return parsed.formatter.getVolumes();
+	}
+
+}
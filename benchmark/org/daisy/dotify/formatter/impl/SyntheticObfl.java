@@ -0,0 +1,114 @@
+package org.daisy.dotify.formatter.impl;
+
+import java.util.Random;
+
+/**
+ * <p>Generates OBFL documents of a configurable size for benchmarking. The documents
+ * contain a single body sequence with chapters of plain text, a table of contents
+ * with one entry per chapter and a volume template that displays the table of contents
+ * at the beginning of each volume.</p>
+ *
+ * <p>The size is approximate. The number of characters is estimated from the number of
+ * pages and the maximum number of sheets in a volume is estimated from the number of
+ * volumes. The same arguments always produce the same document.</p>
+ */
+public final class SyntheticObfl {
+	/**
+	 * The page width of the generated documents.
+	 */
+	public static final int PAGE_WIDTH = 40;
+	/**
+	 * The page height of the generated documents.
+	 */
+	public static final int PAGE_HEIGHT = 29;
+	// the number of characters that fits on a page, roughly
+	private static final int CHARS_PER_PAGE = 900;
+	private static final int PAGES_PER_CHAPTER = 10;
+	private static final String[] WORDS = {
+		"the", "formatter", "breaks", "text", "into", "rows", "and", "pages", "of", "braille",
+		"volume", "table", "contents", "sequence", "block", "margin", "paragraph", "a", "is",
+		"translation", "hyphenation", "with", "reference", "number", "chapter", "in", "each"
+	};
+
+	private SyntheticObfl() {}
+
+	/**
+	 * Generates a document.
+	 * @param pages the approximate number of pages
+	 * @param volumes the approximate number of volumes
+	 * @return the OBFL document
+	 */
+	public static String generate(int pages, int volumes) {
+		Random r = new Random(pages * 31L + volumes);
+		int chapters = Math.max(1, pages / PAGES_PER_CHAPTER);
+		int charsPerChapter = pages * CHARS_PER_PAGE / chapters;
+		// duplex, with some room for the table of contents
+		int sheetsInVolume = (pages + 1) / 2 / volumes + 1 + chapters / volumes / 20 + 2;
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		sb.append("<obfl version=\"2011-1\" xml:lang=\"sv-SE\" xmlns=\"http://www.daisy.org/ns/2011/obfl\">\n");
+		sb.append("<layout-master name=\"main\" page-width=\"").append(PAGE_WIDTH)
+			.append("\" page-height=\"").append(PAGE_HEIGHT)
+			.append("\" inner-margin=\"0\" outer-margin=\"0\" row-spacing=\"1\" duplex=\"true\">\n");
+		sb.append("<default-template><header><field><string value=\"\"/></field>"
+				+ "<field><current-page number-format=\"default\"/></field></header><footer/></default-template>\n");
+		sb.append("</layout-master>\n");
+
+		sb.append("<table-of-contents name=\"toc\">\n");
+		for (int i=1; i<=chapters; i++) {
+			sb.append("<toc-entry ref-id=\"ch").append(i).append("\">Chapter ").append(i)
+				.append(" <leader position=\"100%\" align=\"right\" pattern=\" \"/><page-number ref-id=\"ch")
+				.append(i).append("\"/></toc-entry>\n");
+		}
+		sb.append("</table-of-contents>\n");
+
+		sb.append("<volume-template sheets-in-volume-max=\"").append(sheetsInVolume).append("\" use-when=\"(= 1 1)\">\n");
+		sb.append("<pre-content><toc-sequence toc=\"toc\" range=\"volume\" master=\"main\">"
+				+ "<on-toc-start><block>Contents</block></on-toc-start></toc-sequence></pre-content>\n");
+		sb.append("<post-content/>\n");
+		sb.append("</volume-template>\n");
+
+		sb.append("<sequence master=\"main\">\n");
+		for (int i=1; i<=chapters; i++) {
+			sb.append("<block id=\"ch").append(i).append("\" keep-with-next=\"1\" margin-top=\"1\">Chapter ")
+				.append(i).append("</block>\n");
+			int chars = 0;
+			while (chars<charsPerChapter) {
+				sb.append("<block first-line-indent=\"2\">");
+				chars += appendParagraph(sb, r);
+				sb.append("</block>\n");
+			}
+		}
+		sb.append("</sequence>\n");
+		sb.append("</obfl>\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Appends a paragraph of 30 to 90 words.
+	 * @param sb the builder to append to
+	 * @param r the source of randomness
+	 * @return the number of characters appended
+	 */
+	public static int appendParagraph(StringBuilder sb, Random r) {
+		int start = sb.length();
+		int words = 30 + r.nextInt(60);
+		for (int i=0; i<words; i++) {
+			if (i>0) {
+				sb.append(' ');
+			}
+			String w = WORDS[r.nextInt(WORDS.length)];
+			if (i==0) {
+				sb.append(Character.toUpperCase(w.charAt(0))).append(w, 1, w.length());
+			} else {
+				sb.append(w);
+			}
+			if (r.nextInt(10)==0) {
+				sb.append(' ').append(r.nextInt(1000));
+			}
+		}
+		sb.append('.');
+		return sb.length()-start;
+	}
+}
@@ -0,0 +1,113 @@
+package org.daisy.dotify.formatter.impl.obfl;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+
+import org.daisy.dotify.api.formatter.Formatter;
+import org.daisy.dotify.api.formatter.FormatterConfiguration;
+import org.daisy.dotify.api.formatter.FormatterFactory;
+import org.daisy.dotify.api.formatter.FormatterFactoryMaker;
+import org.daisy.dotify.api.obfl.ObflParserException;
+import org.daisy.dotify.api.obfl.ObflParserFactoryMaker;
+import org.daisy.dotify.api.translator.TranslatorType;
+import org.daisy.dotify.formatter.impl.SyntheticObfl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * <p>Compares reading OBFL with an event reader and {@link OBFLWsNormalizer} to
+ * reading it with a stream reader and {@link OBFLStreamReader}. The input is
+ * generated by {@link SyntheticObfl}.</p>
+ *
+ * <p>The <code>read</code> benchmark only reads the normalized events, while
+ * the <code>parse</code> benchmark also parses them into a formatter. Run with
+ * <code>-prof gc</code> to compare the allocation rates.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObflParserBenchmark {
+	@Param({"500", "5000"})
+	int pages;
+
+	@Param({"event", "stream"})
+	String reader;
+
+	private byte[] obfl;
+	private XMLInputFactory inFactory;
+	private XMLEventFactory eventFactory;
+	private ObflParserFactoryImpl parserFactory;
+	private FormatterFactory formatterFactory;
+	private FormatterConfiguration config;
+
+	/**
+	 * Generates the input and creates the factories.
+	 */
+	@Setup(Level.Trial)
+	public void setup() {
+		obfl = SyntheticObfl.generate(pages, 1).getBytes(StandardCharsets.UTF_8);
+		// configured like the parser factory
+		inFactory = XMLInputFactory.newInstance();
+		inFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		inFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		inFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		inFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		eventFactory = XMLEventFactory.newInstance();
+		parserFactory = (ObflParserFactoryImpl)ObflParserFactoryMaker.newInstance().getFactory();
+		parserFactory.setUsingStreamReader("stream".equals(reader));
+		formatterFactory = FormatterFactoryMaker.newInstance().getFactory();
+		config = new FormatterConfiguration.Builder("sv-SE", TranslatorType.UNCONTRACTED.toString()).build();
+	}
+
+	/**
+	 * Reads the normalized events of the input.
+	 * @param bh the black hole
+	 * @throws XMLStreamException if the input cannot be read
+	 */
+	@Benchmark
+	public void read(Blackhole bh) throws XMLStreamException {
+		XMLEventIterator input;
+		if ("stream".equals(reader)) {
+			input = new OBFLStreamReader(inFactory.createXMLStreamReader(new ByteArrayInputStream(obfl)), eventFactory, true);
+		} else {
+			input = new OBFLWsNormalizer(inFactory.createXMLEventReader(new ByteArrayInputStream(obfl)), eventFactory);
+		}
+		while (input.hasNext()) {
+			bh.consume(input.nextEvent());
+		}
+		input.close();
+	}
+
+	/**
+	 * Parses the input.
+	 * @return the formatter with the parsed input
+	 * @throws ObflParserException if the input cannot be parsed
+	 */
+	@Benchmark
+	public Formatter parse() throws ObflParserException {
+		Formatter formatter = formatterFactory.newFormatter(config.getLocale(), config.getTranslationMode());
+		formatter.setConfiguration(config);
+		((ObflParserImpl)parserFactory.newObflParser()).parse(new ByteArrayInputStream(obfl), formatter);
+		return formatter;
+	}
+
+}
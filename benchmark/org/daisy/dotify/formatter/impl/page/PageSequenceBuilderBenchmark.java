@@ -0,0 +1,125 @@
+package org.daisy.dotify.formatter.impl.page;
+
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.daisy.dotify.api.formatter.BlockProperties;
+import org.daisy.dotify.api.formatter.CurrentPageField;
+import org.daisy.dotify.api.formatter.FieldList;
+import org.daisy.dotify.api.formatter.FormatterConfiguration;
+import org.daisy.dotify.api.formatter.LayoutMasterProperties;
+import org.daisy.dotify.api.formatter.NumeralStyle;
+import org.daisy.dotify.api.formatter.SequenceProperties;
+import org.daisy.dotify.api.formatter.StringField;
+import org.daisy.dotify.api.formatter.TextProperties;
+import org.daisy.dotify.api.translator.BrailleTranslatorFactoryMaker;
+import org.daisy.dotify.api.translator.TextBorderFactoryMaker;
+import org.daisy.dotify.api.translator.TranslatorType;
+import org.daisy.dotify.formatter.impl.SyntheticObfl;
+import org.daisy.dotify.formatter.impl.common.TranslationCache;
+import org.daisy.dotify.formatter.impl.core.FormatterContext;
+import org.daisy.dotify.formatter.impl.core.LayoutMaster;
+import org.daisy.dotify.formatter.impl.core.PaginatorException;
+import org.daisy.dotify.formatter.impl.search.BlockAddress;
+import org.daisy.dotify.formatter.impl.search.BlockLineLocation;
+import org.daisy.dotify.formatter.impl.search.CrossReferenceHandler;
+import org.daisy.dotify.formatter.impl.search.DefaultContext;
+import org.daisy.dotify.formatter.impl.search.DocumentSpace;
+import org.daisy.dotify.formatter.impl.search.SequenceId;
+import org.daisy.dotify.formatter.impl.search.Space;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * <p>Benchmarks the pagination of a single sequence of text blocks with
+ * {@link PageSequenceBuilder2#nextPage(int, boolean, Optional, boolean, boolean)},
+ * without volumes.</p>
+ *
+ * <p>The sequence is created anew and the shared translation cache is cleared
+ * before each invocation, so that the result includes the translation of the text
+ * in the same way as the first pagination of a document.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PageSequenceBuilderBenchmark {
+	// the number of characters that fits on a page, roughly
+	private static final int CHARS_PER_PAGE = 900;
+
+	@Param({"10", "500", "5000"})
+	int pages;
+
+	private FormatterContext context;
+	private LayoutMaster master;
+	private BlockSequence seq;
+
+	/**
+	 * Creates the context and the layout master.
+	 */
+	@Setup(Level.Trial)
+	public void setup() {
+		context = new FormatterContext(
+				BrailleTranslatorFactoryMaker.newInstance(),
+				TextBorderFactoryMaker.newInstance(),
+				new FormatterConfiguration.Builder("sv-SE", TranslatorType.UNCONTRACTED.toString()).build()
+		);
+		master = new LayoutMaster(context,
+				new LayoutMasterProperties.Builder(SyntheticObfl.PAGE_WIDTH, SyntheticObfl.PAGE_HEIGHT).duplex(true).build());
+		master.newTemplate(null).addToHeader(
+				new FieldList.Builder(Arrays.asList(new StringField(""), new CurrentPageField(NumeralStyle.DEFAULT))).build());
+	}
+
+	/**
+	 * Creates the block sequence.
+	 */
+	@Setup(Level.Invocation)
+	public void setupInvocation() {
+		TranslationCache.getSharedInstance().clear();
+		seq = new BlockSequence(context, new SequenceProperties.Builder("main").build(), master);
+		TextProperties tp = new TextProperties.Builder("sv-SE").build();
+		Random r = new Random(pages);
+		int chars = 0;
+		while (chars<pages*CHARS_PER_PAGE) {
+			StringBuilder sb = new StringBuilder();
+			chars += SyntheticObfl.appendParagraph(sb, r);
+			seq.startBlock(new BlockProperties.Builder().firstLineIndent(2).build());
+			seq.addChars(sb, tp);
+			seq.endBlock();
+		}
+	}
+
+	/**
+	 * Paginates the sequence.
+	 * @param bh the black hole
+	 * @throws PaginatorException if the pagination fails
+	 */
+	@Benchmark
+	public void nextPage(Blackhole bh) throws PaginatorException {
+		PageSequenceBuilder2 psb = new PageSequenceBuilder2(0, master, 0, seq, context,
+				new DefaultContext.Builder(new CrossReferenceHandler()).space(Space.BODY).build(),
+				new SequenceId(1, new DocumentSpace(Space.BODY, null), 0),
+				new BlockLineLocation(new BlockAddress(-1, -1), -1));
+		boolean first = true;
+		while (psb.hasNext()) {
+			bh.consume(psb.nextPage(0, false, Optional.empty(), false, first));
+			first = false;
+		}
+	}
+
+}
@@ -0,0 +1,111 @@
+package org.daisy.dotify.formatter.impl.row;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.daisy.dotify.api.formatter.FormatterConfiguration;
+import org.daisy.dotify.api.formatter.TextProperties;
+import org.daisy.dotify.api.translator.BrailleTranslatorFactoryMaker;
+import org.daisy.dotify.api.translator.TranslatorType;
+import org.daisy.dotify.formatter.impl.SyntheticObfl;
+import org.daisy.dotify.formatter.impl.common.TranslationCache;
+import org.daisy.dotify.formatter.impl.core.FormatterContext;
+import org.daisy.dotify.formatter.impl.segment.Segment;
+import org.daisy.dotify.formatter.impl.segment.TextSegment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * <p>Benchmarks the production of rows from the segments of a block.</p>
+ *
+ * <p>The <code>translateAndBreak</code> benchmark uses new segments and an empty
+ * translation cache for each invocation, and therefore includes the translation.
+ * The <code>breakOnly</code> benchmark reuses segments that have already been
+ * translated.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentProcessorBenchmark {
+	@Param({"1", "10", "100"})
+	int paragraphs;
+
+	private final RowDataProperties rdp = new RowDataProperties.Builder().build();
+	private final TextProperties tp = new TextProperties.Builder("sv-SE").build();
+	private FormatterContext context;
+	private List<String> text;
+	private List<Segment> translated;
+
+	/**
+	 * Creates the context and the text.
+	 */
+	@Setup(Level.Trial)
+	public void setup() {
+		context = new FormatterContext(BrailleTranslatorFactoryMaker.newInstance(), null,
+				new FormatterConfiguration.Builder("sv-SE", TranslatorType.UNCONTRACTED.toString()).build());
+		Random r = new Random(paragraphs);
+		text = new ArrayList<>();
+		for (int i=0; i<paragraphs; i++) {
+			StringBuilder sb = new StringBuilder();
+			SyntheticObfl.appendParagraph(sb, r);
+			text.add(sb.append(' ').toString());
+		}
+		translated = newSegments();
+		rows(translated, null);
+	}
+
+	private List<Segment> newSegments() {
+		List<Segment> segments = new ArrayList<>();
+		for (String t : text) {
+			segments.add(new TextSegment(t, tp, true));
+		}
+		return segments;
+	}
+
+	private void rows(List<Segment> segments, Blackhole bh) {
+		SegmentProcessor sp = new SegmentProcessor("", segments, SyntheticObfl.PAGE_WIDTH, null, null,
+				SyntheticObfl.PAGE_WIDTH, rdp.getMargins(), context, rdp);
+		while (sp.hasMoreData()) {
+			RowImpl r = sp.getNext(LineProperties.DEFAULT).orElse(null);
+			if (bh!=null) {
+				bh.consume(r);
+			}
+		}
+	}
+
+	/**
+	 * Translates new segments and breaks the result into rows.
+	 * @param bh the black hole
+	 */
+	@Benchmark
+	public void translateAndBreak(Blackhole bh) {
+		TranslationCache.getSharedInstance().clear();
+		rows(newSegments(), bh);
+	}
+
+	/**
+	 * Breaks translated segments into rows.
+	 * @param bh the black hole
+	 */
+	@Benchmark
+	public void breakOnly(Blackhole bh) {
+		rows(translated, bh);
+	}
+
+}
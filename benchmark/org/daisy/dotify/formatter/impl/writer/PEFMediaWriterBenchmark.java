@@ -0,0 +1,135 @@
+package org.daisy.dotify.formatter.impl.writer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.daisy.dotify.api.writer.PagedMediaWriter;
+import org.daisy.dotify.api.writer.PagedMediaWriterException;
+import org.daisy.dotify.api.writer.SectionProperties;
+import org.daisy.dotify.formatter.impl.SyntheticObfl;
+import org.daisy.dotify.formatter.impl.row.RowImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Benchmarks the output of pages with the {@link PEFMediaWriter}. The output
+ * is discarded.</p>
+ *
+ * <p>The writer is selected with the <code>writer</code> parameter:</p>
+ * <ul>
+ * <li><code>baseline</code>: the unbuffered writer, see {@link BaselinePEFMediaWriter}</li>
+ * <li><code>buffered</code>: the current writer</li>
+ * <li><code>gzip</code>: the current writer, with compressed output</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PEFMediaWriterBenchmark {
+	private static final int ROWS = SyntheticObfl.PAGE_HEIGHT - 1;
+	private static final SectionProperties SECTION = new SectionProperties() {
+		@Override
+		public int getPageWidth() {
+			return SyntheticObfl.PAGE_WIDTH;
+		}
+		@Override
+		public int getPageHeight() {
+			return SyntheticObfl.PAGE_HEIGHT;
+		}
+		@Override
+		public float getRowSpacing() {
+			return 1;
+		}
+		@Override
+		public boolean duplex() {
+			return true;
+		}
+	};
+
+	@Param({"10", "500", "5000"})
+	int pages;
+
+	@Param({"1", "30"})
+	int volumes;
+
+	@Param({"baseline", "buffered", "gzip"})
+	String writer;
+
+	private List<RowImpl> rows;
+
+	/**
+	 * Creates the rows to write.
+	 */
+	@Setup(Level.Trial)
+	public void setup() {
+		Random r = new Random(0);
+		rows = new ArrayList<>();
+		for (int i=0; i<ROWS*2; i++) {
+			StringBuilder sb = new StringBuilder();
+			int len = r.nextInt(SyntheticObfl.PAGE_WIDTH + 1);
+			for (int j=0; j<len; j++) {
+				sb.append((char)(0x2800 + r.nextInt(64)));
+			}
+			rows.add(new RowImpl.Builder(sb.toString()).build());
+		}
+	}
+
+	/**
+	 * Writes the pages.
+	 * @throws PagedMediaWriterException if the writer cannot be opened
+	 * @throws IOException if the writer cannot be closed
+	 */
+	@Benchmark
+	public void write() throws PagedMediaWriterException, IOException {
+		Properties p = new Properties();
+		PagedMediaWriter w;
+		if ("baseline".equals(writer)) {
+			w = new BaselinePEFMediaWriter(p);
+		} else {
+			p.put(PEFMediaWriter.GZIP_PROPERTY, "gzip".equals(writer));
+			w = new PEFMediaWriter(p);
+		}
+		w.prepare(new ArrayList<>());
+		w.open(new OutputStream() {
+			@Override
+			public void write(int b) {
+				// discard
+			}
+			@Override
+			public void write(byte[] b, int off, int len) {
+				// discard
+			}
+		});
+		int pagesInVolume = (pages + volumes - 1) / volumes;
+		for (int i=0; i<pages; i++) {
+			if (i%pagesInVolume==0) {
+				w.newVolume(SECTION);
+				w.newSection(SECTION);
+			}
+			w.newPage();
+			for (int j=0; j<ROWS; j++) {
+				w.newRow(rows.get((i%2)*ROWS + j));
+			}
+		}
+		w.close();
+	}
+
+}
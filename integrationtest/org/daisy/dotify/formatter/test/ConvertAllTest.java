@@ -0,0 +1,74 @@
+package org.daisy.dotify.formatter.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.transform.stream.StreamSource;
+
+import org.daisy.braille.utils.pef.PEFFileCompare;
+import org.daisy.dotify.api.formatter.FormatterConfiguration;
+import org.daisy.dotify.api.translator.TranslatorType;
+import org.daisy.dotify.api.writer.MediaTypes;
+import org.daisy.dotify.api.writer.PagedMediaWriterConfigurationException;
+import org.daisy.dotify.api.writer.PagedMediaWriterFactoryMaker;
+import org.daisy.dotify.formatter.impl.engine.ConversionJob;
+import org.daisy.dotify.formatter.impl.engine.LayoutEngineFactoryImpl;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class ConvertAllTest {
+	private static final String[][] FILES = {
+			{"resource-files/xml-data/xml-data-input.obfl", "resource-files/xml-data/xml-data-expected.pef"},
+			{"resource-files/xml-data/xml-data2-input.obfl", "resource-files/xml-data/xml-data2-expected.pef"},
+			{"resource-files/xml-data/xml-data-in-block-input.obfl", "resource-files/xml-data/xml-data-in-block-expected.pef"},
+			{"resource-files/dp2/manual-volume-breaking-toc-input.obfl", "resource-files/dp2/manual-volume-breaking-toc-expected.pef"}
+	};
+
+	@Test
+	public void testConvertAll() throws Exception {
+		LayoutEngineFactoryImpl factory = new LayoutEngineFactoryImpl();
+		factory.setCreatedWithSPI();
+		List<ConversionJob> jobs = new ArrayList<>();
+		List<ByteArrayOutputStream> outputs = new ArrayList<>();
+		List<String> expected = new ArrayList<>();
+		for (int i=0; i<3; i++) {
+			for (String[] f : FILES) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				jobs.add(new ConversionJob(this.getClass().getResourceAsStream(f[0]), out));
+				outputs.add(out);
+				expected.add(f[1]);
+			}
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Void>> result = factory.convertAll(
+					FormatterConfiguration.with("sv-SE", TranslatorType.UNCONTRACTED.toString()).build(),
+					()->{
+						try {
+							return PagedMediaWriterFactoryMaker.newInstance().newPagedMediaWriter(MediaTypes.PEF_MEDIA_TYPE);
+						} catch (PagedMediaWriterConfigurationException e) {
+							throw new IllegalStateException(e);
+						}
+					}, jobs, executor);
+			for (Future<Void> f : result) {
+				f.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		for (int i=0; i<jobs.size(); i++) {
+			PEFFileCompare cmp = new PEFFileCompare();
+			cmp.compare(new StreamSource(this.getClass().getResourceAsStream(expected.get(i))),
+					new StreamSource(new ByteArrayInputStream(outputs.get(i).toByteArray())));
+			assertEquals("Binary compare is equal", -1, cmp.getPos());
+		}
+	}
+
+}
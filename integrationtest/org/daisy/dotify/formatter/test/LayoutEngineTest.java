@@ -81,6 +81,11 @@ public class LayoutEngineTest extends AbstractFormatterEngineTest {
 		testPEF("resource-files/obfl-input-content-items-fallback3.obfl", "resource-files/obfl-content-items-fallback3-expected.pef", false);
 	}
 	
+	@Test
+	public void testLayoutEngingeContentItemsFallbackInSecondSequence() throws LayoutEngineException, IOException, PagedMediaWriterConfigurationException {
+		testPEF("resource-files/obfl-input-content-items-fallback4.obfl", "resource-files/obfl-content-items-fallback4-expected.pef", false);
+	}
+	
 	@Test (expected = RuntimeException.class)
 	public void testLayoutEngineContentItemsNoFallback() throws LayoutEngineException, IOException, PagedMediaWriterConfigurationException {
 		testPEF("resource-files/obfl-input-content-items-no-fallback.obfl", null, false);
@@ -1,7 +1,10 @@
 package org.daisy.dotify.formatter.impl;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Objects;
 import java.util.Stack;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -20,11 +23,17 @@ import org.daisy.dotify.api.formatter.VolumeTemplateProperties;
 import org.daisy.dotify.api.translator.BrailleTranslatorFactoryMakerService;
 import org.daisy.dotify.api.translator.TextBorderFactoryMakerService;
 import org.daisy.dotify.api.writer.PagedMediaWriter;
+import org.daisy.dotify.formatter.impl.common.LayoutCache;
+import org.daisy.dotify.formatter.impl.common.TranslationCache;
 import org.daisy.dotify.formatter.impl.common.Volume;
+import org.daisy.dotify.formatter.impl.common.VolumeSpool;
 import org.daisy.dotify.formatter.impl.common.WriterHandler;
+import org.daisy.dotify.formatter.impl.core.BlockPrerenderer;
+import org.daisy.dotify.formatter.impl.core.ContentCollectionImpl;
+import org.daisy.dotify.formatter.impl.core.PaginatorException;
 import org.daisy.dotify.formatter.impl.page.BlockSequence;
 import org.daisy.dotify.formatter.impl.page.RestartPaginationException;
-import org.daisy.dotify.formatter.impl.sheet.VolumeImpl;
+import org.daisy.dotify.formatter.impl.sheet.VolumeSplitterType;
 import org.daisy.dotify.formatter.impl.volume.VolumeTemplate;
 
 
@@ -41,7 +50,19 @@ import org.daisy.dotify.formatter.impl.volume.VolumeTemplate;
  *
  * @author Joel Håkansson
  */
-class FormatterImpl implements Formatter {
+public class FormatterImpl implements Formatter, AutoCloseable {
+	/**
+	 * The name of the system property that specifies the default {@link VolumeSplitterType},
+	 * for example <code>optimal</code>. The {@link FormatterConfiguration} is defined by the API,
+	 * so it doesn't have room for this option.
+	 */
+	static final String VOLUME_SPLITTER_PROPERTY = "org.daisy.dotify.formatter.impl.volumeSplitter";
+	/**
+	 * The name of the system property that enables prerendering of blocks while the
+	 * input is parsed, see {@link PrerenderPipeline}. The value should be <code>true</code>
+	 * or <code>false</code>.
+	 */
+	static final String PIPELINE_PROPERTY = "org.daisy.dotify.formatter.impl.pipeline";
 
 	private final Stack<VolumeTemplate> volumeTemplates;
 	private final Logger logger;
@@ -50,6 +71,12 @@ class FormatterImpl implements Formatter {
 	private final Stack<BlockSequence> blocks;
 	
 	private final LazyFormatterContext context;
+	private VolumeSplitterType splitterType;
+	private boolean pipelined;
+	private int pipelineThreads;
+	private PrerenderPipeline pipeline;
+	private VolumeProvider volumeProvider;
+	private int parallelism;
 
 	/**
 	 * Creates a new formatter.
@@ -75,6 +102,85 @@ class FormatterImpl implements Formatter {
 		this.volumeTemplates = new Stack<>();
 		
 		this.logger = Logger.getLogger(this.getClass().getCanonicalName());
+		this.splitterType = getDefaultVolumeSplitterType(logger);
+		this.pipelined = Boolean.getBoolean(PIPELINE_PROPERTY);
+		this.pipelineThreads = -1;
+		this.pipeline = null;
+		this.volumeProvider = null;
+		this.parallelism = -1;
+	}
+
+	private static VolumeSplitterType getDefaultVolumeSplitterType(Logger logger) {
+		String value = System.getProperty(VOLUME_SPLITTER_PROPERTY);
+		if (value!=null) {
+			try {
+				return VolumeSplitterType.valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+			} catch (IllegalArgumentException e) {
+				logger.warning("Unknown volume splitter: " + value);
+			}
+		}
+		return VolumeSplitterType.EVEN_SIZE;
+	}
+
+	/**
+	 * Sets the type of volume splitter to use.
+	 * @param splitterType the type of volume splitter
+	 */
+	void setVolumeSplitterType(VolumeSplitterType splitterType) {
+		this.splitterType = Objects.requireNonNull(splitterType);
+	}
+
+	/**
+	 * Sets whether or not blocks should be prerendered while the input is
+	 * parsed. This must be set before the first sequence is added.
+	 * @param value true if blocks should be prerendered while parsing, false otherwise
+	 */
+	void setPipelined(boolean value) {
+		this.pipelined = value;
+	}
+
+	/**
+	 * Sets the number of threads to use for prerendering blocks while the input
+	 * is parsed. By default, this is the number of available processors minus one.
+	 * This must be set before the first sequence is added.
+	 * @param threads the number of threads, 0 to disable the pipeline, or -1 for the default
+	 */
+	public void setPipelineThreads(int threads) {
+		this.pipelineThreads = threads;
+	}
+
+	/**
+	 * Gets the pipeline that prerenders blocks while the input is parsed.
+	 * @return the pipeline, or null if blocks aren't prerendered while parsing
+	 */
+	PrerenderPipeline getPipeline() {
+		return pipeline;
+	}
+
+	/**
+	 * Gets the volume provider that was used the last time the volumes were laid out.
+	 * @return the volume provider, or null if the volumes haven't been laid out
+	 */
+	VolumeProvider getVolumeProvider() {
+		return volumeProvider;
+	}
+
+	/**
+	 * Gets the prerenderer that lays out blocks concurrently.
+	 * @return the prerenderer
+	 */
+	BlockPrerenderer getPrerenderer() {
+		return context.getFormatterContext().getPrerenderer();
+	}
+
+	/**
+	 * Sets the number of threads to use for prerendering blocks before the first
+	 * iteration and for rendering table cells. By default, this is the number of
+	 * available processors, or 0 if there is only one.
+	 * @param threads the number of threads, 0 to do all work on the calling thread, or -1 for the default
+	 */
+	public void setParallelism(int threads) {
+		this.parallelism = threads;
 	}
 	
 
@@ -97,6 +203,19 @@ class FormatterImpl implements Formatter {
 		unopened = false;
 		BlockSequence currentSequence = new BlockSequence(context.getFormatterContext(), p, context.getFormatterContext().getMasters().get(p.getMasterName()));
 		blocks.push(currentSequence);
+		if (pipelined) {
+			if (pipeline==null) {
+				int threads = pipelineThreads<0?PrerenderPipeline.getDefaultThreadCount():pipelineThreads;
+				if (threads>0) {
+					pipeline = new PrerenderPipeline(context.getFormatterContext(), threads);
+				} else {
+					pipelined = false;
+				}
+			}
+			if (pipeline!=null) {
+				pipeline.startSequence(currentSequence);
+			}
+		}
 		return currentSequence;
 	}
 
@@ -130,17 +249,60 @@ class FormatterImpl implements Formatter {
 	@Override
 	public void write(PagedMediaWriter writer) {
 		unopened = false;
-		try (WriterHandler wh = new WriterHandler(writer)) {
-			wh.write(getVolumes());
+		try (WriterHandler wh = new WriterHandler(writer); VolumeSpool spool = new VolumeSpool()) {
+			wh.write(getVolumes(spool));
+		} catch (UncheckedIOException e) {
+			throw new PaginatorException("Failed to spool volumes.", e.getCause());
 		} catch (IOException e) {
 			logger.log(Level.WARNING, "Failed to close resource.", e);
+		} finally {
+			// the threads are started again if the formatter is written again
+			context.getFormatterContext().getPrerenderer().shutdown();
 		}
 	}
 
-	private Iterable<? extends Volume> getVolumes() {
-		VolumeProvider volumeProvider = new VolumeProvider(blocks, volumeTemplates, context);
+	/**
+	 * Stops the work that is done in the background while the input is parsed,
+	 * and the threads that are used for laying out blocks concurrently.
+	 * This is only needed if the formatter is abandoned before it is written,
+	 * for example because the input could not be parsed.
+	 */
+	@Override
+	public void close() {
+		unopened = false;
+		if (pipeline!=null) {
+			pipeline.shutdown();
+		}
+		context.getFormatterContext().getPrerenderer().shutdown();
+	}
 
-		ArrayList<VolumeImpl> ret;
+	Iterable<? extends Volume> getVolumes() {
+		return getVolumes(null);
+	}
+
+	/**
+	 * Lays out the volumes.
+	 * @param spool the spool where the contents of the volumes should be kept, or null
+	 * to keep the volumes in memory
+	 * @return the volumes
+	 */
+	Iterable<? extends Volume> getVolumes(VolumeSpool spool) {
+		volumeProvider = new VolumeProvider(blocks, volumeTemplates, context);
+		volumeProvider.setSpool(spool);
+		volumeProvider.setVolumeSplitterType(splitterType);
+		if (pipeline!=null) {
+			pipeline.finish();
+			volumeProvider.setPrerendered(true);
+		}
+		context.getFormatterContext().setParallelism(parallelism);
+		LayoutCache layoutCache = context.getFormatterContext().getLayoutCache();
+		long hits = layoutCache!=null?layoutCache.getHitCount():0;
+		long misses = layoutCache!=null?layoutCache.getMissCount():0;
+		TranslationCache translationCache = context.getFormatterContext().getTranslationCache();
+		long translationHits = translationCache!=null?translationCache.getHitCount():0;
+		long translationMisses = translationCache!=null?translationCache.getMissCount():0;
+
+		ArrayList<Volume> ret;
 
 		/*
 		 * Inside this loop a result is created. The volume provider does all the work, and this loop
@@ -174,6 +336,13 @@ class FormatterImpl implements Formatter {
 	
 				if (volumeProvider.done()) {
 					//everything fits
+					if (layoutCache!=null) {
+						logLayoutCache(layoutCache, layoutCache.getHitCount()-hits, layoutCache.getMissCount()-misses);
+					}
+					if (translationCache!=null) {
+						logTranslationCache(translationCache, translationCache.getHitCount()-translationHits, translationCache.getMissCount()-translationMisses);
+					}
+					logCollections(j);
 					return ret;
 				}
 
@@ -185,6 +354,37 @@ class FormatterImpl implements Formatter {
 		throw new RuntimeException("Failed to complete volume division.");
 	}
 
+	private void logLayoutCache(LayoutCache layoutCache, long hits, long misses) {
+		if (logger.isLoggable(Level.INFO)) {
+			long total = hits + misses;
+			logger.info(String.format(Locale.ROOT, "Layout cache: %d hits, %d misses (%.1f%% hit rate). %s",
+					hits, misses, total==0?0:hits*100d/total, layoutCache));
+		}
+	}
+
+	private void logTranslationCache(TranslationCache translationCache, long hits, long misses) {
+		if (logger.isLoggable(Level.FINE)) {
+			long total = hits + misses;
+			// a shared cache may also have been used by other formatters in the meantime
+			logger.fine(String.format(Locale.ROOT, "Translation cache: %d hits, %d misses (%.1f%% hit rate). %s",
+					hits, misses, total==0?0:hits*100d/total, translationCache));
+		}
+	}
+
+	private void logCollections(int iterations) {
+		if (logger.isLoggable(Level.FINE)) {
+			long hits = 0;
+			long misses = 0;
+			for (ContentCollectionImpl c : context.getFormatterContext().getCollections().values()) {
+				hits += c.getHitCount();
+				misses += c.getMissCount();
+			}
+			long total = hits + misses;
+			logger.fine(String.format(Locale.ROOT, "Collection items: %d reused, %d rendered (%.1f%% hit rate) in %d iterations.",
+					hits, misses, total==0?0:hits*100d/total, iterations));
+		}
+	}
+
 	@Override
 	public TransitionBuilder getTransitionBuilder() {
 		return context.getFormatterContext().getTransitionBuilder();
@@ -0,0 +1,276 @@
+package org.daisy.dotify.formatter.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.daisy.dotify.formatter.impl.core.Block;
+import org.daisy.dotify.formatter.impl.core.BlockPrerenderer;
+import org.daisy.dotify.formatter.impl.core.FormatterContext;
+import org.daisy.dotify.formatter.impl.page.BlockSequence;
+
+/**
+ * <p>Prerenders blocks while the input is still being parsed, so that the time
+ * spent on parsing and on laying out the blocks overlap. See {@link BlockPrerenderer}
+ * for details on prerendering.</p>
+ *
+ * <p>The parser adds blocks to a {@link BlockSequence} one at a time. When a block has
+ * been added, the contents of the preceding blocks are complete. These blocks are
+ * handed over to the worker threads in chunks. If the workers fall behind, the parser
+ * waits until a chunk has been prerendered. The remaining blocks of a sequence are
+ * handed over when the next sequence starts, or when the parsing is finished.</p>
+ *
+ * <p>The workers only read the parts of a block that are complete when the block is
+ * handed over, see {@link Block#prerender(org.daisy.dotify.formatter.impl.core.BlockContext)}.
+ * Handing over a chunk, and waiting for the workers in {@link #finish()}, makes the
+ * changes of one side visible to the other.</p>
+ *
+ * <p>The worker threads are started when the first chunk is handed over. They end
+ * when the pipeline is finished or shut down, or when they have been idle for a while,
+ * so that no threads are left behind if the formatter is abandoned, for example
+ * because the input could not be parsed.</p>
+ *
+ * <p>Blocks that are missed, for example because they were removed and replaced
+ * while parsing a dynamic layout, are simply laid out during pagination.</p>
+ */
+class PrerenderPipeline {
+	private static final Logger logger = Logger.getLogger(PrerenderPipeline.class.getCanonicalName());
+	// the number of blocks in each chunk
+	private static final int CHUNK_SIZE = 50;
+	// the number of chunks that can be handed over before they are prerendered
+	private static final int QUEUE_SIZE = 64;
+	// the number of seconds that an idle worker waits for more blocks before it ends
+	private static final long KEEP_ALIVE = 10;
+	private final BlockPrerenderer prerenderer;
+	private final int threads;
+	private final Semaphore permits;
+	private ThreadPoolExecutor executor;
+	// the number of blocks that have been handed over
+	private int count;
+	private BlockSequence current;
+	// the number of blocks in the current sequence that have been handed over
+	private int offset;
+	private boolean finished;
+	private boolean failed;
+	private long waiting;
+
+	/**
+	 * Creates a new pipeline. The worker threads are started when they are needed.
+	 * @param context the formatter context to use as a model for the contexts
+	 * 			of the threads
+	 * @param threads the number of worker threads
+	 * @throws IllegalArgumentException if the number of threads is less than 1
+	 */
+	PrerenderPipeline(FormatterContext context, int threads) {
+		if (threads<1) {
+			throw new IllegalArgumentException("Number of threads: " + threads);
+		}
+		this.prerenderer = context.getPrerenderer();
+		this.threads = threads;
+		this.permits = new Semaphore(QUEUE_SIZE);
+		this.executor = null;
+		this.count = 0;
+		this.current = null;
+		this.offset = 0;
+		this.finished = false;
+		this.failed = false;
+		this.waiting = 0;
+	}
+
+	/**
+	 * Gets the number of threads to use for a pipeline on this machine.
+	 * @return the number of worker threads, or 0 if a pipeline isn't useful
+	 */
+	static int getDefaultThreadCount() {
+		// one processor is used by the parser
+		return Runtime.getRuntime().availableProcessors()-1;
+	}
+
+	private ThreadPoolExecutor getExecutor() {
+		if (executor==null) {
+			AtomicInteger n = new AtomicInteger();
+			executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r->{
+				Thread t = new Thread(r, "prerender-" + n.incrementAndGet());
+				// the pipeline must not keep the application alive
+				t.setDaemon(true);
+				return t;
+			});
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	private void work(List<Block> blocks, int flowWidth) {
+		try {
+			for (Block b : blocks) {
+				if (Thread.currentThread().isInterrupted()) {
+					// the pipeline has been shut down
+					return;
+				}
+				try {
+					prerenderer.prerender(b, flowWidth);
+				} catch (RuntimeException e) {
+					logger.log(Level.FINE, "Failed to prerender block.", e);
+				}
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Starts a new sequence. The remaining blocks of the previous sequence are
+	 * handed over to the workers.
+	 * @param seq the new sequence
+	 */
+	void startSequence(BlockSequence seq) {
+		if (finished) {
+			return;
+		}
+		endSequence();
+		current = seq;
+		offset = 0;
+		seq.setBlockListener(this::blockAdded);
+	}
+
+	private void blockAdded(BlockSequence seq) {
+		if (seq!=current) {
+			return;
+		}
+		// the last block is still open
+		int complete = seq.size()-1;
+		if (complete-offset>=CHUNK_SIZE) {
+			handOver(complete);
+		}
+	}
+
+	private void endSequence() {
+		if (current!=null) {
+			current.setBlockListener(null);
+			handOver(current.size());
+			current = null;
+		}
+	}
+
+	private void handOver(int end) {
+		// blocks may have been removed since the last time
+		offset = Math.min(offset, end);
+		if (end>offset && !failed) {
+			List<Block> blocks = new ArrayList<>(current.subList(offset, end));
+			int flowWidth = VolumeProvider.getFlowWidth(current);
+			if (put(()->work(blocks, flowWidth))) {
+				count += end-offset;
+			}
+		}
+		offset = end;
+	}
+
+	private boolean put(Runnable task) {
+		long t0 = System.nanoTime();
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			// blocks that are not prerendered are laid out during pagination
+			failed = true;
+			return false;
+		} finally {
+			waiting += System.nanoTime()-t0;
+		}
+		try {
+			getExecutor().execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			failed = true;
+			return false;
+		}
+	}
+
+	/**
+	 * Hands over the remaining blocks and waits for the workers to finish.
+	 * This method has no effect if the pipeline has already finished.
+	 */
+	void finish() {
+		if (finished) {
+			return;
+		}
+		endSequence();
+		finished = true;
+		long t0 = System.currentTimeMillis();
+		if (executor!=null) {
+			executor.shutdown();
+			try {
+				while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+					// keep waiting, the blocks are still being prerendered
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				executor.shutdownNow();
+			}
+		}
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("Handed over " + count + " blocks to " + threads + " threads while parsing. "
+					+ "The parser waited " + waiting/1000000 + " ms, the layout waited "
+					+ (System.currentTimeMillis()-t0) + " ms.");
+		}
+	}
+
+	/**
+	 * Stops the workers. Blocks that haven't been prerendered are discarded. This is used when the result of the parsing
+	 * will not be laid out. This method has no effect if the pipeline has
+	 * already finished.
+	 */
+	void shutdown() {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		if (current!=null) {
+			current.setBlockListener(null);
+			current = null;
+		}
+		if (executor!=null) {
+			executor.shutdownNow();
+			try {
+				// the workers stop after the block that they are prerendering
+				executor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of blocks that have been handed over to the workers.
+	 * @return the number of blocks
+	 */
+	int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns true if worker threads have been started.
+	 * @return true if worker threads have been started, false otherwise
+	 */
+	boolean isStarted() {
+		return executor!=null;
+	}
+
+	/**
+	 * Returns true if the pipeline has finished or has been shut down, and all
+	 * worker threads have ended.
+	 * @return true if the worker threads have ended, false otherwise
+	 */
+	boolean isTerminated() {
+		return finished && (executor==null || executor.isTerminated());
+	}
+
+}
@@ -1,8 +1,10 @@
 package org.daisy.dotify.formatter.impl;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Stack;
 import java.util.logging.Level;
@@ -15,13 +17,21 @@ import org.daisy.dotify.common.splitter.SplitPointDataSource;
 import org.daisy.dotify.common.splitter.SplitPointHandler;
 import org.daisy.dotify.common.splitter.SplitPointSpecification;
 import org.daisy.dotify.common.splitter.StandardSplitOption;
+import org.daisy.dotify.formatter.impl.common.FrozenVolume;
+import org.daisy.dotify.formatter.impl.common.Volume;
+import org.daisy.dotify.formatter.impl.common.VolumeSpool;
+import org.daisy.dotify.formatter.impl.core.BlockPrerenderer;
+import org.daisy.dotify.formatter.impl.core.LayoutMaster;
 import org.daisy.dotify.formatter.impl.core.PaginatorException;
 import org.daisy.dotify.formatter.impl.page.BlockSequence;
 import org.daisy.dotify.formatter.impl.page.PageImpl;
 import org.daisy.dotify.formatter.impl.page.RestartPaginationException;
 import org.daisy.dotify.formatter.impl.search.AnchorData;
 import org.daisy.dotify.formatter.impl.search.CrossReferenceHandler;
+import org.daisy.dotify.formatter.impl.search.CrossReferenceJournal;
+import org.daisy.dotify.formatter.impl.search.CrossReferenceLog;
 import org.daisy.dotify.formatter.impl.search.DefaultContext;
+import org.daisy.dotify.formatter.impl.search.IterationReport;
 import org.daisy.dotify.formatter.impl.search.Space;
 import org.daisy.dotify.formatter.impl.search.VolumeKeepPriority;
 import org.daisy.dotify.formatter.impl.sheet.PageCounter;
@@ -32,6 +42,7 @@ import org.daisy.dotify.formatter.impl.sheet.SheetGroup;
 import org.daisy.dotify.formatter.impl.sheet.SheetGroupManager;
 import org.daisy.dotify.formatter.impl.sheet.SplitterLimit;
 import org.daisy.dotify.formatter.impl.sheet.VolumeImpl;
+import org.daisy.dotify.formatter.impl.sheet.VolumeSplitterType;
 import org.daisy.dotify.formatter.impl.volume.VolumeSequence;
 import org.daisy.dotify.formatter.impl.volume.VolumeTemplate;
 
@@ -57,12 +68,35 @@ import org.daisy.dotify.formatter.impl.volume.VolumeTemplate;
  * <p>One {@link PageCounter} is created for the body of the whole document, and one for every pre-
  * or post-content of every volume.</p>
  *
+ * <p>Volumes are laid out incrementally. While a volume is laid out, the interactions with the
+ * {@link CrossReferenceHandler} are recorded in a {@link CrossReferenceLog}, and the state of the
+ * {@link SheetGroupManager} is saved when the volume is done. In the next iteration, a volume is
+ * reused if all volumes before it were reused, the information it read from the {@link
+ * CrossReferenceHandler} is unchanged and the target size of the volume is the same. The log is
+ * then replayed instead of laying out the volume again. Layout resumes from the first volume that
+ * cannot be reused.</p>
+ *
+ * <p>The pre- and post-content of a volume is reused in the same way, even if the volume
+ * itself cannot be reused. The interactions with the {@link CrossReferenceHandler} while the
+ * content is paginated are recorded in a separate log, and the resulting sheets are reused if
+ * the information is unchanged. Since the rows of a page are finished when they are produced,
+ * the interactions while producing the rows are recorded as well. They are validated when the
+ * volume has been laid out. If they have changed, the content is laid out again in another
+ * iteration.</p>
+ *
+ * <p>The rows of a volume are produced as soon as the volume has been laid out, and only a
+ * {@link FrozenVolume} is kept, or, if a {@link VolumeSpool} is set, the contents in the spool.
+ * Since the result of the last iteration is only accepted if nothing that was read has changed,
+ * the rows are the same as if they had been produced after the last iteration.</p>
+ *
  * @author Joel Håkansson
  *
  */
 public class VolumeProvider {
 	private static final Logger logger = Logger.getLogger(VolumeProvider.class.getCanonicalName());
 	private static final int DEFAULT_SPLITTER_MAX = 50;
+	// the number of blocks that makes it worthwhile to prerender
+	private static final int MIN_PRERENDER_BLOCKS = 100;
 	private final List<BlockSequence> blocks;
 	private final CrossReferenceHandler crh;
 	private SheetGroupManager groups;
@@ -72,6 +106,17 @@ public class VolumeProvider {
 	private int currentVolumeNumber=0;
 	private boolean init = false;
 	private int j = 1;
+	private final List<VolumeLayout> layouts;
+	// the pre- and post-content of each volume from the previous iterations
+	private final Map<Integer, ContentLayout> preContents;
+	private final Map<Integer, ContentLayout> postContents;
+	private long contentHits = 0;
+	private long contentMisses = 0;
+	private SheetGroupManager.Checkpoint pending = null;
+	private boolean completed = false;
+	private boolean prerendered = false;
+	private VolumeSpool spool = null;
+	private VolumeSplitterType splitterType = VolumeSplitterType.EVEN_SIZE;
 	
 	private final SplitterLimit splitterLimit;
     private final Stack<VolumeTemplate> volumeTemplates;
@@ -101,6 +146,103 @@ public class VolumeProvider {
 		this.volumeTemplates = volumeTemplates;
 		this.context = context;
 		this.volSplitter = new SplitPointHandler<>();
+		this.layouts = new ArrayList<>();
+		this.preContents = new HashMap<>();
+		this.postContents = new HashMap<>();
+	}
+	
+	/**
+	 * Provides the result of laying out a volume, together with the information
+	 * needed to determine if the result can be reused in the next iteration.
+	 */
+	private static class VolumeLayout {
+		private final Volume volume;
+		private final CrossReferenceLog log;
+		private final VolumeTarget target;
+		private final SheetGroupManager.Checkpoint checkpoint;
+		private final int pageIndex;
+		
+		private VolumeLayout(Volume volume, CrossReferenceLog log, VolumeTarget target, SheetGroupManager.Checkpoint checkpoint, int pageIndex) {
+			this.volume = volume;
+			this.log = log;
+			this.target = target;
+			this.checkpoint = checkpoint;
+			this.pageIndex = pageIndex;
+		}
+	}
+	
+	/**
+	 * Provides the result of paginating the pre- or post-content of a volume, together
+	 * with the information needed to determine if the result can be reused. Once the
+	 * rows have been produced, the sheets are replaced by a {@link FrozenVolume}, so
+	 * that only the rows are kept between iterations.
+	 */
+	private static class ContentLayout {
+		// the sheets, or null if the contents have been frozen
+		private List<Sheet> sheets;
+		// the frozen contents, or null if the rows haven't been produced
+		private FrozenVolume frozen;
+		private final int sheetCount;
+		private final List<String> identifiers;
+		private final List<AnchorData> anchors;
+		private final CrossReferenceLog log;
+		// the interactions while producing the rows, or null if the rows haven't been produced
+		private CrossReferenceLog rowsLog;
+
+		private ContentLayout(List<Sheet> sheets, CrossReferenceLog log) {
+			this.sheets = sheets;
+			this.frozen = null;
+			this.sheetCount = sheets.size();
+			this.identifiers = new ArrayList<>();
+			this.anchors = new ArrayList<>();
+			for (Sheet ps : sheets) {
+				for (PageImpl p : ps.getPages()) {
+					identifiers.addAll(p.getIdentifiers());
+					if (p.getAnchors().size()>0) {
+						anchors.add(new AnchorData(p.getAnchors(), p.getPageNumber()));
+					}
+				}
+			}
+			this.log = log;
+			this.rowsLog = null;
+		}
+
+		private SectionBuilder newSectionBuilder() {
+			SectionBuilder sb = new SectionBuilder();
+			if (frozen!=null) {
+				sb.addSections(frozen.getSections(), sheetCount);
+			} else {
+				for (Sheet ps : sheets) {
+					sb.addSheet(ps);
+				}
+			}
+			return sb;
+		}
+
+		private void freeze() {
+			SectionBuilder sb = newSectionBuilder();
+			frozen = new FrozenVolume(()->sb.getSections());
+			sheets = null;
+		}
+	}
+
+	/**
+	 * Provides the size constraints that the volume splitter of the current group places on a volume.
+	 */
+	private static class VolumeTarget {
+		private final int volumeCount;
+		private final boolean lastInGroup;
+		private final int sheetsInVolume;
+		
+		private VolumeTarget(SheetGroupManager groups) {
+			this.volumeCount = groups.currentGroup().getSplitter().getVolumeCount();
+			this.lastInGroup = groups.lastInGroup();
+			this.sheetsInVolume = lastInGroup?-1:groups.sheetsInCurrentVolume();
+		}
+		
+		private boolean isSame(VolumeTarget other) {
+			return volumeCount==other.volumeCount && lastInGroup==other.lastInGroup && sheetsInVolume==other.sheetsInVolume;
+		}
 	}
 		
 	/**
@@ -108,15 +250,19 @@ public class VolumeProvider {
 	 * @throws RestartPaginationException
 	 */
 	void prepare() {
+		if (!prerendered) {
+			prerender();
+			prerendered = true;
+		}
 		if (!init) {
-			groups = new SheetGroupManager(splitterLimit);
+			groups = new SheetGroupManager(splitterLimit, splitterType);
 			// make a preliminary calculation based on a contents only
 			Iterable<SheetDataSource> allUnits = prepareToPaginateWithVolumeGroups(blocks, new DefaultContext.Builder(crh).space(Space.BODY).build());
 			int volCount = 0;
 			for (SheetDataSource data : allUnits) {
 				SheetGroup g = groups.add();
 				g.setUnits(data);
-				g.getSplitter().updateSheetCount(data.getRemaining().size(), data.getRemaining().size());
+				g.initSplitter();
 				volCount += g.getSplitter().getVolumeCount();
 			}
 			crh.setVolumeCount(volCount);
@@ -133,14 +279,132 @@ public class VolumeProvider {
 		currentVolumeNumber=0;
 
 		groups.resetAll();
+		crh.stopLog();
+		pending = null;
+		if (!completed) {
+			// the previous iteration was interrupted, the results cannot be trusted
+			discard(layouts);
+		}
+		completed = false;
 	}
 	
+	/**
+	 * Lays out the blocks that do not depend on the pagination on the threads of
+	 * the prerenderer of the formatter context, if there are enough of them.
+	 */
+	private void prerender() {
+		BlockPrerenderer p = context.getFormatterContext().getPrerenderer();
+		if (p.getParallelism()<1) {
+			return;
+		}
+		for (BlockSequence bs : blocks) {
+			p.add(bs, getFlowWidth(bs));
+		}
+		int size = p.size();
+		if (size<MIN_PRERENDER_BLOCKS) {
+			p.clear();
+			return;
+		}
+		long t0 = System.currentTimeMillis();
+		p.run();
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("Prerendered " + size + " blocks on " + p.getParallelism() + " threads in " + (System.currentTimeMillis()-t0) + " ms");
+		}
+	}
+
+	/**
+	 * Gets the flow width to use when prerendering the blocks of a sequence.
+	 * @param bs the sequence
+	 * @return the flow width
+	 */
+	static int getFlowWidth(BlockSequence bs) {
+		LayoutMaster master = bs.getLayoutMaster();
+		return master.getFlowWidth() - master.getTemplate(1).getTotalMarginRegionWidth();
+	}
+
+	/**
+	 * Sets whether or not the blocks have already been prerendered, for example
+	 * by a {@link PrerenderPipeline}. If so, they are not prerendered again
+	 * before the first iteration.
+	 * @param value true if the blocks have been prerendered, false otherwise
+	 */
+	void setPrerendered(boolean value) {
+		this.prerendered = value;
+	}
+
+	/**
+	 * Sets the spool where the contents of each volume is kept once the volume
+	 * has been laid out. If no spool is set, the volumes are kept in memory
+	 * as {@link FrozenVolume}s.
+	 * @param spool the spool, or null
+	 */
+	void setSpool(VolumeSpool spool) {
+		this.spool = spool;
+	}
+
+	/**
+	 * Sets the type of volume splitter to use. The type must be set before
+	 * the first call to {@link #prepare()}.
+	 * @param splitterType the type of volume splitter
+	 */
+	void setVolumeSplitterType(VolumeSplitterType splitterType) {
+		this.splitterType = splitterType;
+	}
+
 	/**
 	 * @return returns the next volume
 	 * @throws RestartPaginationException if pagination should be restarted
 	 */
-	VolumeImpl nextVolume() {
+	Volume nextVolume() {
 		currentVolumeNumber++;
+		VolumeTarget target = new VolumeTarget(groups);
+		if (layouts.size()>=currentVolumeNumber) {
+			VolumeLayout l = layouts.get(currentVolumeNumber-1);
+			if (l.target.isSame(target) && l.log.isValid()) {
+				l.log.replay();
+				groups.restorePosition(l.checkpoint);
+				pageIndex = l.pageIndex;
+				pending = l.checkpoint;
+				if (logger.isLoggable(Level.FINE)) {
+					logger.fine("Reusing volume " + currentVolumeNumber + " (" + l.log.size() + " log entries)");
+				}
+				return l.volume;
+			}
+			discard(layouts.subList(currentVolumeNumber-1, layouts.size()));
+		}
+		if (pending!=null) {
+			groups.restoreUnits(pending);
+			pending = null;
+		}
+		CrossReferenceLog log = crh.startLog();
+		// The rows are produced while the log is active, so that the markers that are
+		// referenced by headers and footers are verified before the volume is reused.
+		Volume volume = new FrozenVolume(layoutVolume());
+		if (spool!=null) {
+			volume = spool.add(volume);
+		}
+		crh.stopLog();
+		if (layouts.size()==currentVolumeNumber-1) {
+			layouts.add(new VolumeLayout(volume, log, target, groups.newCheckpoint(), pageIndex));
+		}
+		return volume;
+	}
+	
+	/**
+	 * Removes volume layouts that can no longer be reused. The volumes are released
+	 * from the spool, since they aren't part of the result.
+	 * @param discarded the layouts to remove
+	 */
+	private void discard(List<VolumeLayout> discarded) {
+		if (spool!=null) {
+			for (VolumeLayout l : discarded) {
+				spool.release(l.volume);
+			}
+		}
+		discarded.clear();
+	}
+
+	private VolumeImpl layoutVolume() {
 		VolumeImpl volume = new VolumeImpl(crh.getOverhead(currentVolumeNumber));
 		ArrayList<AnchorData> ad = new ArrayList<>();
 		volume.setPreVolData(updateVolumeContents(currentVolumeNumber, ad, true));
@@ -156,6 +420,8 @@ public class VolumeProvider {
 		//crh.setPagesInVolume(i, value);
 		crh.setAnchorData(currentVolumeNumber, ad);
 		crh.setOverhead(currentVolumeNumber, volume.getOverhead());
+		updateRows(preContents, currentVolumeNumber);
+		updateRows(postContents, currentVolumeNumber);
 		return volume;
 
 	}
@@ -198,19 +464,27 @@ public class VolumeProvider {
 		SplitPoint<Sheet, SheetDataSource> sp;
 
 		// The data is consumed two times. Once to find the optimal break point ("find" function),
-		// and once to do the actual split at that position ("split" function). We only record the
-		// changes made to the CrossReferenceHandler during the second pass. Note that although no
-		// changes are made to the CrossReferenceHandler, it can still become dirty if some info
-		// that is requested is not available.
-		crh.setReadOnly();
+		// and once to do the actual split at that position ("split" function). The changes made
+		// to the CrossReferenceHandler during the first pass are recorded in a journal instead of
+		// being applied. The sheets produced by the first pass are then reused by the second pass,
+		// up to the last sheet of the volume, which must be produced again. The part of the journal
+		// that corresponds to the reused sheets is replayed at that point.
 		SheetDataSource data = groups.currentGroup().getUnits();
 		data.setCurrentVolumeNumber(volumeNumber);
 		SheetDataSource copySource = new SheetDataSource(data);
-		SplitPointSpecification spec = volSplitter.find(splitterMax-overhead, 
-				copySource, 
-				cost, StandardSplitOption.ALLOW_FORCE);
-		crh.setReadWrite();
+		SplitPointSpecification spec;
+		CrossReferenceJournal journal = crh.startJournal();
+		try {
+			copySource.startPreview(journal);
+			spec = volSplitter.find(splitterMax-overhead, 
+					copySource, 
+					cost, StandardSplitOption.ALLOW_FORCE);
+		} finally {
+			crh.stopJournal();
+		}
+		data.usePreview(copySource);
 		sp = volSplitter.split(spec, data);
+		data.usePreview(null);
 		/*
 			sp = volSplitter.split(splitterMax-overhead, 
 					groups.currentGroup().getUnits(),
@@ -218,6 +492,7 @@ public class VolumeProvider {
 		*/
 		groups.currentGroup().setUnits(sp.getTail());
 		List<Sheet> contents = sp.getHead();
+		groups.recordVolume(overhead, contents);
 		int pageCount = Sheet.countPages(contents);
 		crh.commitPageDetails();
 		crh.setVolumeScope(volumeNumber, pageIndex, pageIndex+pageCount);
@@ -241,39 +516,100 @@ public class VolumeProvider {
 	}
 	
 	private SectionBuilder updateVolumeContents(int volumeNumber, ArrayList<AnchorData> ad, boolean pre) {
+		Map<Integer, ContentLayout> contents = pre?preContents:postContents;
+		try {
+			ContentLayout l = contents.get(volumeNumber);
+			if (l!=null && l.log.isValid()) {
+				// the template and the content were selected based on the information in the log
+				crh.replayLog(l.log);
+				contentHits++;
+				if (logger.isLoggable(Level.FINE)) {
+					logger.fine("Reusing " + (pre?"pre":"post") + "-content of volume " + volumeNumber + " (" + l.log.size() + " log entries)");
+				}
+			} else {
+				contentMisses++;
+				contents.remove(volumeNumber);
+				CrossReferenceLog log = crh.startNestedLog();
+				List<Sheet> sheets;
+				try {
+					sheets = paginateVolumeContents(volumeNumber, pre);
+				} finally {
+					crh.stopNestedLog(log);
+				}
+				l = new ContentLayout(sheets, log);
+				if (log.isReusable()) {
+					contents.put(volumeNumber, l);
+				}
+			}
+			for (String id : l.identifiers) {
+				crh.setVolumeNumber(id, volumeNumber);
+			}
+			ad.addAll(l.anchors);
+			return l.newSectionBuilder();
+		} catch (PaginatorException e) {
+			return null;
+		}
+	}
+
+	private List<Sheet> paginateVolumeContents(int volumeNumber, boolean pre) throws PaginatorException {
 		DefaultContext c = new DefaultContext.Builder(crh)
 						.currentVolume(volumeNumber)
 						.space(pre?Space.PRE_CONTENT:Space.POST_CONTENT)
 						.build();
-		try {
-			ArrayList<BlockSequence> ib = new ArrayList<>();
-			for (VolumeTemplate t : volumeTemplates) {
-				if (t.appliesTo(c)) {
-					for (VolumeSequence seq : (pre?t.getPreVolumeContent():t.getPostVolumeContent())) {
-						BlockSequence s = seq.getBlockSequence(context.getFormatterContext(), c, crh);
-						if (s!=null) {
-							ib.add(s);
-						}
+		ArrayList<BlockSequence> ib = new ArrayList<>();
+		for (VolumeTemplate t : volumeTemplates) {
+			if (t.appliesTo(c)) {
+				for (VolumeSequence seq : (pre?t.getPreVolumeContent():t.getPostVolumeContent())) {
+					BlockSequence s = seq.getBlockSequence(context.getFormatterContext(), c, crh);
+					if (s!=null) {
+						ib.add(s);
 					}
-					break;
 				}
+				break;
 			}
-			List<Sheet> ret = prepareToPaginatePrePostVolumeContent(ib, c).getRemaining();
-			SectionBuilder sb = new SectionBuilder();
-			for (Sheet ps : ret) {
-				for (PageImpl p : ps.getPages()) {
-					for (String id : p.getIdentifiers()) {
-						crh.setVolumeNumber(id, volumeNumber);
-					}
-					if (p.getAnchors().size()>0) {
-						ad.add(new AnchorData(p.getAnchors(), p.getPageNumber()));
+		}
+		return prepareToPaginatePrePostVolumeContent(ib, c).getRemaining();
+	}
+
+	/**
+	 * Produces the rows of the pre- or post-content of a volume, if it can be
+	 * reused, so that the information read while doing so can be recorded. If the
+	 * rows have already been produced in a previous iteration, the information
+	 * is validated instead. If it has changed, the rows cannot be used and
+	 * another iteration is needed.
+	 * @param contents the pre- or post-contents
+	 * @param volumeNumber the volume number
+	 */
+	private void updateRows(Map<Integer, ContentLayout> contents, int volumeNumber) {
+		ContentLayout l = contents.get(volumeNumber);
+		if (l==null) {
+			return;
+		}
+		if (l.rowsLog==null) {
+			CrossReferenceLog log = crh.startNestedLog();
+			try {
+				for (Sheet s : l.sheets) {
+					for (PageImpl p : s.getPages()) {
+						p.getRows();
 					}
 				}
-				sb.addSheet(ps);
+			} finally {
+				crh.stopNestedLog(log);
+			}
+			if (log.isReusable()) {
+				l.rowsLog = log;
+				l.freeze();
+			} else {
+				contents.remove(volumeNumber);
+			}
+		} else {
+			boolean valid = l.rowsLog.isValid();
+			// the log of the volume must include the information that the rows depend on
+			crh.replayLog(l.rowsLog);
+			if (!valid) {
+				contents.remove(volumeNumber);
+				crh.setDirty(true);
 			}
-			return sb;
-		} catch (PaginatorException e) {
-			return null;
 		}
 	}
 	
@@ -341,6 +677,11 @@ public class VolumeProvider {
 	 * @return returns true if the volumes can be accepted, false otherwise  
 	 */
 	boolean done() {
+		if (pending!=null) {
+			groups.restoreUnits(pending);
+			pending = null;
+		}
+		completed = true;
 		if (groups.hasNext() && logger.isLoggable(Level.FINE)) {
 			logger.fine("There is more content (sheets: " + groups.countRemainingSheets() + ", pages: " + groups.countRemainingPages() + ")");
 		}
@@ -354,8 +695,15 @@ public class VolumeProvider {
 		crh.setSheetsInDocument(groups.countTotalSheets());
 		//crh.setPagesInDocument(value);
 		if (!crh.isDirty() && !groups.hasNext()) {
+			layouts.clear();
 			return true;
 		} else {
+			if (logger.isLoggable(Level.FINE)) {
+				IterationReport report = crh.getIterationReport();
+				logger.fine("Iteration " + j + ": " + report.getEntries().size() + " dirty key(s)"
+						+ (groups.hasNext()?", content left":"")
+						+ (report.isEmpty()?"":" (" + report.getSummary(5) + ")"));
+			}
 			crh.setDirty(false);
 			logger.info("Things didn't add up, running another iteration (" + j + ")");
 		}
@@ -367,4 +715,22 @@ public class VolumeProvider {
 		return crh.getVolumeCount();
 	}
 
+	/**
+	 * Gets the number of times that the pre- or post-content of a volume
+	 * from a previous iteration could be reused.
+	 * @return the number of hits
+	 */
+	public long getContentHitCount() {
+		return contentHits;
+	}
+
+	/**
+	 * Gets the number of times that the pre- or post-content of a volume
+	 * had to be laid out.
+	 * @return the number of misses
+	 */
+	public long getContentMissCount() {
+		return contentMisses;
+	}
+
 }
@@ -1,10 +1,24 @@
 package org.daisy.dotify.formatter.impl.common;
 
+import java.io.InputStream;
+
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.URIResolver;
+import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathFactory;
 
 import org.daisy.dotify.api.formatter.FormatterFactory;
@@ -12,9 +26,18 @@ import org.daisy.dotify.api.obfl.ExpressionFactory;
 import org.daisy.dotify.api.translator.TextBorderFactoryMakerService;
 
 /**
- * Provides a factory manager that can be used in OSGi as well as in SPI contexts.
+ * <p>Provides a factory manager that can be used in OSGi as well as in SPI contexts.
  * The factory manager maintains a reference to all factory implementations needed
- * by this bundle.
+ * by this bundle.</p>
+ *
+ * <p>The XML factories are not required to be thread safe. Since a factory manager
+ * is shared by all parsers and engines created by the same factory, the objects
+ * that are created by the XML factories should be created with the methods of this
+ * class, for example {@link #newDocumentBuilder()}, rather than with the factories
+ * directly. These methods synchronize on the factory, whereas the objects that
+ * they return are only used by the caller. For the same reason, the xml event
+ * factory of this manager should not be used for creating events, see
+ * {@link #newXMLEventFactory()}.</p>
  * @author Joel Håkansson
  */
 public class FactoryManager {
@@ -169,4 +192,93 @@ public class FactoryManager {
 		this.transformerFactory = transformerFactory;
 	}
 
+	/**
+	 * Creates a new xml event factory. An xml event factory has a location that is
+	 * set on the events that it creates, so the xml event factory of this manager cannot
+	 * be used by several parsers at once. Instead, each parser should create events
+	 * with a factory of its own, which is returned by this method.
+	 * @return returns a new xml event factory
+	 */
+	public XMLEventFactory newXMLEventFactory() {
+		return XMLEventFactory.newInstance();
+	}
+
+	/**
+	 * Creates a new event reader using the xml input factory of this manager.
+	 * @param in the input stream
+	 * @return returns a new event reader
+	 * @throws XMLStreamException if the reader cannot be created
+	 */
+	public XMLEventReader createXMLEventReader(InputStream in) throws XMLStreamException {
+		synchronized (xmlInputFactory) {
+			return xmlInputFactory.createXMLEventReader(in);
+		}
+	}
+
+	/**
+	 * Creates a new stream reader using the xml input factory of this manager.
+	 * @param in the input stream
+	 * @return returns a new stream reader
+	 * @throws XMLStreamException if the reader cannot be created
+	 */
+	public XMLStreamReader createXMLStreamReader(InputStream in) throws XMLStreamException {
+		synchronized (xmlInputFactory) {
+			return xmlInputFactory.createXMLStreamReader(in);
+		}
+	}
+
+	/**
+	 * Creates a new event writer using the xml output factory of this manager.
+	 * @param result the result
+	 * @return returns a new event writer
+	 * @throws XMLStreamException if the writer cannot be created
+	 */
+	public XMLEventWriter createXMLEventWriter(Result result) throws XMLStreamException {
+		synchronized (xmlOutputFactory) {
+			return xmlOutputFactory.createXMLEventWriter(result);
+		}
+	}
+
+	/**
+	 * Creates a new document builder using the document builder factory of this manager.
+	 * @return returns a new document builder
+	 * @throws ParserConfigurationException if the builder cannot be created
+	 */
+	public DocumentBuilder newDocumentBuilder() throws ParserConfigurationException {
+		synchronized (documentBuilderFactory) {
+			return documentBuilderFactory.newDocumentBuilder();
+		}
+	}
+
+	/**
+	 * Creates a new xpath using the xpath factory of this manager.
+	 * @return returns a new xpath
+	 */
+	public XPath newXPath() {
+		synchronized (xpathFactory) {
+			return xpathFactory.newXPath();
+		}
+	}
+
+	/**
+	 * Compiles a stylesheet using the transformer factory of this manager. The
+	 * uri resolver of the transformer factory is only replaced while the stylesheet
+	 * is compiled.
+	 * @param source the stylesheet
+	 * @param resolver the uri resolver to use when compiling the stylesheet
+	 * @return returns the compiled stylesheet
+	 * @throws TransformerConfigurationException if the stylesheet cannot be compiled
+	 */
+	public Templates newTemplates(Source source, URIResolver resolver) throws TransformerConfigurationException {
+		synchronized (transformerFactory) {
+			URIResolver current = transformerFactory.getURIResolver();
+			transformerFactory.setURIResolver(resolver);
+			try {
+				return transformerFactory.newTemplates(source);
+			} finally {
+				transformerFactory.setURIResolver(current);
+			}
+		}
+	}
+
 }
@@ -1,6 +1,8 @@
 package org.daisy.dotify.formatter.impl.common;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.daisy.dotify.api.formatter.FormatterConfiguration;
@@ -18,14 +20,22 @@ public class FormatterCoreContext {
 	private final BrailleTranslatorFactoryMakerService translatorFactory;
 	private final char spaceChar;
 	private final Map<String, BrailleTranslator> cache;
+	private final TranslationCache translationCache;
+	private final LayoutCache layoutCache;
 
 	protected FormatterCoreContext(BrailleTranslatorFactoryMakerService translatorFactory, TextBorderFactoryMakerService tbf, FormatterConfiguration config) {
+		this(translatorFactory, tbf, config, TranslationCache.getDefaultInstance());
+	}
+
+	protected FormatterCoreContext(BrailleTranslatorFactoryMakerService translatorFactory, TextBorderFactoryMakerService tbf, FormatterConfiguration config, TranslationCache translationCache) {
 		this.tbf = tbf;
 		this.config = config;
 		this.translatorFactory = translatorFactory;
 		this.cache = new HashMap<>();
+		this.translationCache = translationCache;
+		this.layoutCache = LayoutCache.getDefaultInstance();
 		try {
-			this.translator = translatorFactory.newTranslator(config.getLocale(), config.getTranslationMode());
+			this.translator = newTranslator(translatorFactory, config.getLocale(), config.getTranslationMode());
 			cache.put(config.getTranslationMode(), translator);
 		} catch (TranslatorConfigurationException e) {
 			throw new IllegalArgumentException(e);
@@ -40,6 +50,14 @@ public class FormatterCoreContext {
 		}
 	}
 
+	private static BrailleTranslator newTranslator(BrailleTranslatorFactoryMakerService translatorFactory, String locale, String mode) throws TranslatorConfigurationException {
+		// Contexts may be created on different threads (see BlockPrerenderer), but the factory
+		// isn't required to be thread safe.
+		synchronized (translatorFactory) {
+			return translatorFactory.newTranslator(locale, mode);
+		}
+	}
+
 	public String getTranslatorMode() {
 		return config.getTranslationMode();
 	}
@@ -55,7 +73,7 @@ public class FormatterCoreContext {
 		BrailleTranslator ret = cache.get(mode);
 		if (ret==null) {
 			try {
-				ret = translatorFactory.newTranslator(getConfiguration().getLocale(), mode);
+				ret = newTranslator(translatorFactory, getConfiguration().getLocale(), mode);
 			} catch (TranslatorConfigurationException e) {
 				throw new IllegalArgumentException(e);
 			}
@@ -64,6 +82,37 @@ public class FormatterCoreContext {
 		return ret;
 	}
 
+	/**
+	 * Gets a key that identifies the translator for the specified mode. Translators
+	 * with equal keys produce the same results, also if they belong to different
+	 * contexts.
+	 * @param mode the translation mode, or null for the default translator
+	 * @return the key
+	 */
+	public List<Object> getTranslatorKey(String mode) {
+		return Arrays.asList(translatorFactory, config.getLocale(), mode==null?config.getTranslationMode():mode);
+	}
+
+	/**
+	 * Gets the cache to use for translation results.
+	 * @return the translation cache, or null if no translation cache is used
+	 */
+	public TranslationCache getTranslationCache() {
+		return translationCache;
+	}
+
+	/**
+	 * Gets the cache to use for the rows of blocks.
+	 * @return the layout cache, or null if no layout cache is used
+	 */
+	public LayoutCache getLayoutCache() {
+		return layoutCache;
+	}
+
+	public BrailleTranslatorFactoryMakerService getTranslatorFactory() {
+		return translatorFactory;
+	}
+
 	public TextBorderFactoryMakerService getTextBorderFactoryMakerService() {
 		return tbf;
 	}
@@ -0,0 +1,174 @@
+package org.daisy.dotify.formatter.impl.common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.List;
+
+import org.daisy.dotify.api.writer.Row;
+
+/**
+ * <p>Provides a compact representation of a finished page, in other words a page
+ * whose rows will not change. Only the information that is needed by a
+ * {@link WriterHandler} is kept.</p>
+ *
+ * <p>The characters of all rows are stored in a single array, together with the
+ * offset of each row. The row spacing is only stored if at least one row
+ * has a row spacing. The {@link Row} objects returned by {@link #getRows()}
+ * are created when they are requested. Pages without rows share the same
+ * empty arrays.</p>
+ */
+public final class FrozenPage implements Page {
+	private static final char[] NO_CHARS = new char[0];
+	private static final int[] NO_ROWS = new int[]{0};
+	private final char[] chars;
+	private final int[] offsets;
+	// the row spacing of each row (NaN if not set), or null if no row has a row spacing
+	private final float[] rowSpacing;
+
+	/**
+	 * Creates a new frozen page with the contents of the specified page.
+	 * @param page the page
+	 */
+	public FrozenPage(Page page) {
+		List<? extends Row> rows = page.getRows();
+		if (rows.isEmpty()) {
+			this.chars = NO_CHARS;
+			this.offsets = NO_ROWS;
+			this.rowSpacing = null;
+			return;
+		}
+		this.offsets = new int[rows.size()+1];
+		int length = 0;
+		float[] spacing = null;
+		for (int i=0; i<rows.size(); i++) {
+			Row r = rows.get(i);
+			length += r.getChars().length();
+			offsets[i+1] = length;
+			if (r.getRowSpacing()!=null) {
+				if (spacing==null) {
+					spacing = newRowSpacing(rows.size());
+				}
+				spacing[i] = r.getRowSpacing();
+			}
+		}
+		this.chars = new char[length];
+		for (int i=0; i<rows.size(); i++) {
+			String s = rows.get(i).getChars();
+			s.getChars(0, s.length(), chars, offsets[i]);
+		}
+		this.rowSpacing = spacing;
+	}
+
+	private FrozenPage(char[] chars, int[] offsets, float[] rowSpacing) {
+		this.chars = chars;
+		this.offsets = offsets;
+		this.rowSpacing = rowSpacing;
+	}
+
+	/**
+	 * Writes this page to the specified output.
+	 * @param out the output
+	 * @throws IOException if an I/O error occurs
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(offsets.length-1);
+		out.writeInt(chars.length);
+		for (int i=1; i<offsets.length; i++) {
+			out.writeInt(offsets[i]);
+		}
+		out.writeBoolean(rowSpacing!=null);
+		if (rowSpacing!=null) {
+			for (float f : rowSpacing) {
+				out.writeFloat(f);
+			}
+		}
+		for (char c : chars) {
+			out.writeChar(c);
+		}
+	}
+
+	/**
+	 * Reads a page that was written with {@link #write(DataOutputStream)}.
+	 * @param in the input
+	 * @return the page
+	 * @throws IOException if an I/O error occurs
+	 */
+	static FrozenPage read(DataInputStream in) throws IOException {
+		int rows = in.readInt();
+		int length = in.readInt();
+		if (rows==0) {
+			in.readBoolean();
+			return new FrozenPage(NO_CHARS, NO_ROWS, null);
+		}
+		char[] chars = new char[length];
+		int[] offsets = new int[rows+1];
+		for (int i=1; i<offsets.length; i++) {
+			offsets[i] = in.readInt();
+		}
+		float[] rowSpacing = null;
+		if (in.readBoolean()) {
+			rowSpacing = new float[rows];
+			for (int i=0; i<rows; i++) {
+				rowSpacing[i] = in.readFloat();
+			}
+		}
+		for (int i=0; i<chars.length; i++) {
+			chars[i] = in.readChar();
+		}
+		return new FrozenPage(chars, offsets, rowSpacing);
+	}
+
+	private static float[] newRowSpacing(int rows) {
+		float[] ret = new float[rows];
+		for (int i=0; i<rows; i++) {
+			ret[i] = Float.NaN;
+		}
+		return ret;
+	}
+
+	@Override
+	public List<? extends Row> getRows() {
+		if (offsets.length==1) {
+			return Collections.emptyList();
+		}
+		return new AbstractList<Row>() {
+			@Override
+			public Row get(int index) {
+				if (index<0 || index>=size()) {
+					throw new IndexOutOfBoundsException("" + index);
+				}
+				String s = new String(chars, offsets[index], offsets[index+1]-offsets[index]);
+				Float f = rowSpacing==null || Float.isNaN(rowSpacing[index])?null:rowSpacing[index];
+				return new FrozenRow(s, f);
+			}
+
+			@Override
+			public int size() {
+				return offsets.length-1;
+			}
+		};
+	}
+
+	private static class FrozenRow implements Row {
+		private final String chars;
+		private final Float rowSpacing;
+
+		private FrozenRow(String chars, Float rowSpacing) {
+			this.chars = chars;
+			this.rowSpacing = rowSpacing;
+		}
+
+		@Override
+		public String getChars() {
+			return chars;
+		}
+
+		@Override
+		public Float getRowSpacing() {
+			return rowSpacing;
+		}
+	}
+}
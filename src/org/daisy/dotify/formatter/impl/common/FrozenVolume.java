@@ -0,0 +1,140 @@
+package org.daisy.dotify.formatter.impl.common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.daisy.dotify.api.writer.SectionProperties;
+
+/**
+ * <p>Provides a compact representation of a finished volume, where every page
+ * is a {@link FrozenPage}. The section properties are shared with the original
+ * volume.</p>
+ */
+public final class FrozenVolume implements Volume {
+	private final List<Section> sections;
+
+	/**
+	 * Creates a new frozen volume with the contents of the specified volume.
+	 * The rows of every page are produced in the process.
+	 * @param volume the volume
+	 */
+	public FrozenVolume(Volume volume) {
+		List<Section> s = new ArrayList<>();
+		for (Section section : volume.getSections()) {
+			List<FrozenPage> pages = new ArrayList<>(section.getPages().size());
+			for (Page p : section.getPages()) {
+				pages.add(p instanceof FrozenPage?(FrozenPage)p:new FrozenPage(p));
+			}
+			s.add(new FrozenSection(section.getSectionProperties(), pages));
+		}
+		this.sections = Collections.unmodifiableList(s);
+	}
+
+	private FrozenVolume(List<Section> sections) {
+		this.sections = sections;
+	}
+
+	@Override
+	public Iterable<? extends Section> getSections() {
+		return sections;
+	}
+
+	/**
+	 * Writes this volume to the specified output.
+	 * @param out the output
+	 * @throws IOException if an I/O error occurs
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(sections.size());
+		for (Section s : sections) {
+			SectionProperties p = s.getSectionProperties();
+			out.writeInt(p.getPageWidth());
+			out.writeInt(p.getPageHeight());
+			out.writeFloat(p.getRowSpacing());
+			out.writeBoolean(p.duplex());
+			out.writeInt(s.getPages().size());
+			for (Page page : s.getPages()) {
+				((FrozenPage)page).write(out);
+			}
+		}
+	}
+
+	/**
+	 * Reads a volume that was written with {@link #write(DataOutputStream)}.
+	 * @param in the input
+	 * @return the volume
+	 * @throws IOException if an I/O error occurs
+	 */
+	static FrozenVolume read(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<Section> sections = new ArrayList<>(count);
+		for (int i=0; i<count; i++) {
+			SectionProperties props = new FrozenSectionProperties(in.readInt(), in.readInt(), in.readFloat(), in.readBoolean());
+			int pageCount = in.readInt();
+			List<FrozenPage> pages = new ArrayList<>(pageCount);
+			for (int j=0; j<pageCount; j++) {
+				pages.add(FrozenPage.read(in));
+			}
+			sections.add(new FrozenSection(props, pages));
+		}
+		return new FrozenVolume(Collections.unmodifiableList(sections));
+	}
+
+	private static class FrozenSection implements Section {
+		private final SectionProperties props;
+		private final List<FrozenPage> pages;
+
+		private FrozenSection(SectionProperties props, List<FrozenPage> pages) {
+			this.props = props;
+			this.pages = Collections.unmodifiableList(pages);
+		}
+
+		@Override
+		public SectionProperties getSectionProperties() {
+			return props;
+		}
+
+		@Override
+		public List<? extends Page> getPages() {
+			return pages;
+		}
+	}
+
+	private static class FrozenSectionProperties implements SectionProperties {
+		private final int pageWidth;
+		private final int pageHeight;
+		private final float rowSpacing;
+		private final boolean duplex;
+
+		private FrozenSectionProperties(int pageWidth, int pageHeight, float rowSpacing, boolean duplex) {
+			this.pageWidth = pageWidth;
+			this.pageHeight = pageHeight;
+			this.rowSpacing = rowSpacing;
+			this.duplex = duplex;
+		}
+
+		@Override
+		public int getPageWidth() {
+			return pageWidth;
+		}
+
+		@Override
+		public int getPageHeight() {
+			return pageHeight;
+		}
+
+		@Override
+		public float getRowSpacing() {
+			return rowSpacing;
+		}
+
+		@Override
+		public boolean duplex() {
+			return duplex;
+		}
+	}
+}
@@ -0,0 +1,369 @@
+package org.daisy.dotify.formatter.impl.common;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Provides a cache of layout results that is kept in a local directory, so that
+ * it can be used by later runs. This is useful when the same documents are formatted
+ * repeatedly with small changes, since most of the content is then laid out exactly
+ * as before.</p>
+ *
+ * <p>The cache doesn't interpret the data. Each entry is stored in its own file, named
+ * after the key. The key must therefore be a stable identifier of everything that the
+ * data depends on, typically a hash, and only consist of characters that are valid in
+ * a file name.</p>
+ *
+ * <p>The size of the cache is limited by the total size of the files. When the limit
+ * is exceeded, the least recently used entries are removed. The last modified time
+ * of a file is updated the first time the entry is used, so that the order is kept
+ * between runs. Recently used entries are also kept in memory, up to a limit.</p>
+ *
+ * <p>The cache is disabled by default. It is enabled by setting the system property
+ * {@value #DIRECTORY_PROPERTY} to the path of the directory to use. The maximum size,
+ * in bytes, can be set with {@value #MAX_SIZE_PROPERTY}.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public final class LayoutCache {
+	/**
+	 * The name of the system property that specifies the directory of the layout cache.
+	 */
+	public static final String DIRECTORY_PROPERTY = "org.daisy.dotify.formatter.impl.layoutCache";
+	/**
+	 * The name of the system property that specifies the maximum size of the layout cache, in bytes.
+	 */
+	public static final String MAX_SIZE_PROPERTY = "org.daisy.dotify.formatter.impl.layoutCache.maxSize";
+	/**
+	 * The default maximum size, in bytes.
+	 */
+	public static final long DEFAULT_MAX_SIZE = 100000000;
+	private static final Logger logger = Logger.getLogger(LayoutCache.class.getCanonicalName());
+	private static final String SUFFIX = ".layout";
+	// the maximum total size of the entries that are kept in memory
+	private static final long MAX_MEMORY_SIZE = 10000000;
+	private static final Map<Path, LayoutCache> INSTANCES = new ConcurrentHashMap<>();
+	private final Path dir;
+	private final long maxSize;
+	// the size of each entry, in order of use
+	private final LinkedHashMap<String, Long> entries;
+	// recently used entries, in order of use
+	private final LinkedHashMap<String, byte[]> memory;
+	// the keys of the entries that have been used by this instance
+	private final Set<String> used;
+	private long size;
+	private long memorySize;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Creates a new layout cache in the specified directory. Entries that are
+	 * already in the directory are part of the cache.
+	 * @param dir the directory
+	 * @param maxSize the maximum total size of the entries, in bytes
+	 * @throws IOException if the directory cannot be created or read
+	 * @throws IllegalArgumentException if max size is negative
+	 */
+	public LayoutCache(Path dir, long maxSize) throws IOException {
+		if (maxSize<0) {
+			throw new IllegalArgumentException("Negative value: " + maxSize);
+		}
+		this.dir = Files.createDirectories(dir);
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+		this.memory = new LinkedHashMap<>(16, 0.75f, true);
+		this.used = new HashSet<>();
+		this.size = 0;
+		this.memorySize = 0;
+		Map<Path, BasicFileAttributes> existing = new HashMap<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this.dir, "*" + SUFFIX)) {
+			for (Path f : files) {
+				existing.put(f, Files.readAttributes(f, BasicFileAttributes.class));
+			}
+		}
+		List<Path> files = new ArrayList<>(existing.keySet());
+		// least recently used first
+		files.sort((f1, f2)->existing.get(f1).lastModifiedTime().compareTo(existing.get(f2).lastModifiedTime()));
+		for (Path f : files) {
+			long length = existing.get(f).size();
+			entries.put(toKey(f), length);
+			size += length;
+		}
+		evict();
+	}
+
+	/**
+	 * Gets the layout cache specified by the system properties. Formatters that
+	 * use the same directory share the same instance.
+	 * @return the layout cache, or null if the layout cache isn't enabled or cannot be used
+	 */
+	public static LayoutCache getDefaultInstance() {
+		String dir = System.getProperty(DIRECTORY_PROPERTY);
+		if (dir==null || dir.isEmpty()) {
+			return null;
+		}
+		Path path = Paths.get(dir).toAbsolutePath().normalize();
+		LayoutCache ret = INSTANCES.get(path);
+		if (ret==null) {
+			long max = DEFAULT_MAX_SIZE;
+			String value = System.getProperty(MAX_SIZE_PROPERTY);
+			if (value!=null) {
+				try {
+					max = Long.parseLong(value.trim());
+				} catch (NumberFormatException e) {
+					logger.warning("Invalid layout cache size: " + value);
+				}
+			}
+			try {
+				ret = new LayoutCache(path, max);
+			} catch (IOException | IllegalArgumentException e) {
+				logger.log(Level.WARNING, "Failed to open layout cache: " + path, e);
+				return null;
+			}
+			LayoutCache prv = INSTANCES.putIfAbsent(path, ret);
+			if (prv!=null) {
+				ret = prv;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets the data for the specified key. The returned array must not be modified.
+	 * @param key the key
+	 * @return the data, or null if the key isn't in the cache
+	 */
+	public byte[] get(String key) {
+		boolean touch;
+		synchronized (this) {
+			if (entries.get(key)==null) {
+				misses++;
+				return null;
+			}
+			byte[] ret = memory.get(key);
+			if (ret!=null) {
+				hits++;
+				return ret;
+			}
+			touch = used.add(key);
+		}
+		Path f = toPath(key);
+		try {
+			byte[] ret = Files.readAllBytes(f);
+			if (touch) {
+				Files.setLastModifiedTime(f, FileTime.fromMillis(System.currentTimeMillis()));
+			}
+			synchronized (this) {
+				hits++;
+				remember(key, ret);
+			}
+			return ret;
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Failed to read layout cache entry.", e);
+			synchronized (this) {
+				misses++;
+				remove(key);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Returns true if the specified key is in the cache. This doesn't
+	 * affect the order of the entries.
+	 * @param key the key
+	 * @return true if the key is in the cache, false otherwise
+	 */
+	public synchronized boolean containsKey(String key) {
+		return entries.containsKey(key);
+	}
+
+	/**
+	 * Adds data to the cache. Data that is larger than the maximum
+	 * size of the cache is ignored.
+	 * @param key the key
+	 * @param data the data
+	 */
+	public void put(String key, byte[] data) {
+		if (data.length>maxSize) {
+			return;
+		}
+		Path f = toPath(key);
+		try {
+			// write to a temporary file first, so that a partially written entry is never read
+			Path tmp = Files.createTempFile(dir, key, ".tmp");
+			try {
+				Files.write(tmp, data);
+				Files.move(tmp, f, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Failed to write layout cache entry.", e);
+			return;
+		}
+		synchronized (this) {
+			Long old = entries.put(key, (long)data.length);
+			if (old!=null) {
+				size -= old;
+			}
+			size += data.length;
+			used.add(key);
+			remember(key, data);
+			evict();
+		}
+	}
+
+	private synchronized void remember(String key, byte[] data) {
+		byte[] old = memory.put(key, data);
+		if (old!=null) {
+			memorySize -= old.length;
+		}
+		memorySize += data.length;
+		Iterator<byte[]> i = memory.values().iterator();
+		while (memorySize>MAX_MEMORY_SIZE && i.hasNext()) {
+			memorySize -= i.next().length;
+			i.remove();
+		}
+	}
+
+	private synchronized void evict() {
+		Iterator<Map.Entry<String, Long>> i = entries.entrySet().iterator();
+		while (size>maxSize && i.hasNext()) {
+			Map.Entry<String, Long> e = i.next();
+			size -= e.getValue();
+			i.remove();
+			byte[] data = memory.remove(e.getKey());
+			if (data!=null) {
+				memorySize -= data.length;
+			}
+			evictions++;
+			delete(e.getKey());
+		}
+	}
+
+	private void remove(String key) {
+		Long old = entries.remove(key);
+		if (old!=null) {
+			size -= old;
+		}
+		byte[] data = memory.remove(key);
+		if (data!=null) {
+			memorySize -= data.length;
+		}
+	}
+
+	private void delete(String key) {
+		try {
+			Files.deleteIfExists(toPath(key));
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Failed to delete layout cache entry.", e);
+		}
+	}
+
+	private Path toPath(String key) {
+		return dir.resolve(key + SUFFIX);
+	}
+
+	private static String toKey(Path f) {
+		String name = f.getFileName().toString();
+		return name.substring(0, name.length()-SUFFIX.length());
+	}
+
+	/**
+	 * Removes all entries from the cache. The counters are not affected.
+	 */
+	public synchronized void clear() {
+		for (String key : entries.keySet()) {
+			delete(key);
+		}
+		entries.clear();
+		memory.clear();
+		size = 0;
+		memorySize = 0;
+	}
+
+	/**
+	 * Gets the directory of the cache.
+	 * @return the directory
+	 */
+	public Path getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * Gets the number of requests that were served from the cache.
+	 * @return the number of hits
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of requests for keys that were not in the cache.
+	 * @return the number of misses
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * Gets the share of the requests that were served from the cache.
+	 * @return the hit rate, between 0 and 1, or 0 if there have been no requests
+	 */
+	public synchronized double getHitRate() {
+		long total = hits + misses;
+		return total==0?0:hits/(double)total;
+	}
+
+	/**
+	 * Gets the number of entries that have been removed to keep the
+	 * cache within its limit.
+	 * @return the number of evictions
+	 */
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * Gets the number of entries in the cache.
+	 * @return the number of entries
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Gets the total size of the entries in the cache, in bytes.
+	 * @return the size
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "LayoutCache [dir=" + dir + ", size=" + entries.size() + ", bytes=" + size + ", hits=" + hits
+				+ ", misses=" + misses + ", hitRate=" + String.format(Locale.ROOT, "%.1f%%", getHitRate()*100)
+				+ ", evictions=" + evictions + "]";
+	}
+}
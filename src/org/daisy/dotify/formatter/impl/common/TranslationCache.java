@@ -0,0 +1,295 @@
+package org.daisy.dotify.formatter.impl.common;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.daisy.dotify.api.translator.BrailleTranslatorResult;
+import org.daisy.dotify.api.translator.TranslationException;
+
+/**
+ * <p>Provides a bounded cache of translation results. Since translating is
+ * expensive and the same text is often translated many times, both during
+ * the layout of a document and between documents, results are stored
+ * under a key that identifies the translator and everything that the
+ * translator has access to.</p>
+ *
+ * <p>The size of the cache is limited by the total weight of the entries,
+ * where the weight is supplied when a result is added. When the limit is
+ * exceeded, the least recently used entries are removed. A part of the key
+ * can be shared by several entries, for example the text of a paragraph that
+ * is the context of the translation of each of its parts. The weight of a
+ * shared part is counted once, for as long as an entry that uses it is in
+ * the cache.</p>
+ *
+ * <p>Results are copied when they are added and when they are returned,
+ * since a {@link BrailleTranslatorResult} is consumed when it is used.</p>
+ *
+ * <p>By default, a single cache is shared by all formatters in the JVM. This is
+ * controlled with the system property {@value #SCOPE_PROPERTY}, which can be set to
+ * <code>shared</code>, <code>formatter</code> (one cache per formatter) or
+ * <code>none</code>. The maximum weight can be set with {@value #MAX_WEIGHT_PROPERTY}.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public final class TranslationCache {
+	/**
+	 * The name of the system property that specifies the scope of the translation cache.
+	 */
+	public static final String SCOPE_PROPERTY = "org.daisy.dotify.formatter.impl.translationCache";
+	/**
+	 * The name of the system property that specifies the maximum weight of a translation cache.
+	 */
+	public static final String MAX_WEIGHT_PROPERTY = "org.daisy.dotify.formatter.impl.translationCache.maxWeight";
+	/**
+	 * The default maximum weight.
+	 */
+	public static final long DEFAULT_MAX_WEIGHT = 1000000;
+	private static final Logger logger = Logger.getLogger(TranslationCache.class.getCanonicalName());
+	private static TranslationCache shared = null;
+	private final long maxWeight;
+	private final LinkedHashMap<Object, Entry> entries;
+	private final Map<Object, SharedPart> parts;
+	private long weight;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Provides a translation that is performed when the result is not
+	 * in the cache.
+	 */
+	@FunctionalInterface
+	public interface Translation {
+		/**
+		 * Translates.
+		 * @return the result
+		 * @throws TranslationException if the translation fails
+		 */
+		BrailleTranslatorResult translate() throws TranslationException;
+	}
+
+	private static class Entry {
+		private final BrailleTranslatorResult result;
+		private final int weight;
+		private final Object part;
+		private final int partWeight;
+
+		private Entry(BrailleTranslatorResult result, int weight, Object part, int partWeight) {
+			this.result = result;
+			this.weight = weight;
+			this.part = part;
+			this.partWeight = partWeight;
+		}
+	}
+
+	private static class SharedPart {
+		private final int weight;
+		private int entries;
+
+		private SharedPart(int weight) {
+			this.weight = weight;
+			this.entries = 0;
+		}
+	}
+
+	/**
+	 * Creates a new empty cache.
+	 * @param maxWeight the maximum total weight of the entries
+	 * @throws IllegalArgumentException if max weight is negative
+	 */
+	public TranslationCache(long maxWeight) {
+		if (maxWeight<0) {
+			throw new IllegalArgumentException("Negative value: " + maxWeight);
+		}
+		this.maxWeight = maxWeight;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+		this.parts = new HashMap<>();
+	}
+
+	/**
+	 * Gets the cache shared by all formatter instances in this JVM.
+	 * @return the shared cache
+	 */
+	public static synchronized TranslationCache getSharedInstance() {
+		if (shared==null) {
+			shared = new TranslationCache(getDefaultMaxWeight());
+		}
+		return shared;
+	}
+
+	/**
+	 * Gets the translation cache to use for a new formatter, as specified by
+	 * the system properties.
+	 * @return the translation cache, or null if no translation cache should be used
+	 */
+	public static TranslationCache getDefaultInstance() {
+		String scope = System.getProperty(SCOPE_PROPERTY, "shared").trim();
+		switch (scope) {
+			case "none":
+				return null;
+			case "formatter":
+				return new TranslationCache(getDefaultMaxWeight());
+			case "shared":
+				return getSharedInstance();
+			default:
+				logger.warning("Unknown translation cache scope: " + scope);
+				return getSharedInstance();
+		}
+	}
+
+	private static long getDefaultMaxWeight() {
+		String value = System.getProperty(MAX_WEIGHT_PROPERTY);
+		if (value!=null) {
+			try {
+				long ret = Long.parseLong(value.trim());
+				if (ret>=0) {
+					return ret;
+				}
+			} catch (NumberFormatException e) {
+				// warning below
+			}
+			logger.warning("Invalid translation cache weight: " + value);
+		}
+		return DEFAULT_MAX_WEIGHT;
+	}
+
+	/**
+	 * Gets the result for the specified key, or translates and adds the result
+	 * to the cache if it isn't available.
+	 * @param key the key, which must identify the translator and everything used by the translator
+	 * @param weight the weight of the entry, typically the number of characters to translate
+	 * @param translation the translation to use if the result is not in the cache
+	 * @return a new result
+	 * @throws TranslationException if the translation fails
+	 */
+	public BrailleTranslatorResult translate(Object key, int weight, Translation translation) throws TranslationException {
+		return translate(key, weight, null, 0, translation);
+	}
+
+	/**
+	 * Gets the result for the specified key, or translates and adds the result
+	 * to the cache if it isn't available.
+	 * @param key the key, which must identify the translator and everything used by the translator
+	 * @param weight the weight of the entry, typically the number of characters to translate
+	 * @param part a part of the key that is shared by several entries, or null
+	 * @param partWeight the weight of the shared part, which is only counted once for
+	 * 			all entries that share it
+	 * @param translation the translation to use if the result is not in the cache
+	 * @return a new result
+	 * @throws TranslationException if the translation fails
+	 */
+	public BrailleTranslatorResult translate(Object key, int weight, Object part, int partWeight, Translation translation) throws TranslationException {
+		synchronized (this) {
+			Entry e = entries.get(key);
+			if (e!=null) {
+				hits++;
+				return e.result.copy();
+			}
+			misses++;
+		}
+		// translate without holding the lock
+		BrailleTranslatorResult ret = translation.translate();
+		if ((long)weight+partWeight<=maxWeight) {
+			put(key, new Entry(ret.copy(), weight, part, partWeight));
+		}
+		return ret;
+	}
+
+	private synchronized void put(Object key, Entry e) {
+		Entry old = entries.put(key, e);
+		if (old!=null) {
+			remove(old);
+		}
+		weight += e.weight;
+		if (e.part!=null) {
+			SharedPart p = parts.computeIfAbsent(e.part, k->new SharedPart(e.partWeight));
+			if (p.entries==0) {
+				weight += p.weight;
+			}
+			p.entries++;
+		}
+		Iterator<Entry> i = entries.values().iterator();
+		while (weight>maxWeight && i.hasNext()) {
+			Entry r = i.next();
+			i.remove();
+			remove(r);
+			evictions++;
+		}
+	}
+
+	/**
+	 * Subtracts the weight of an entry that has been removed, including the
+	 * weight of its shared part if no other entry uses it.
+	 * @param e the entry
+	 */
+	private void remove(Entry e) {
+		weight -= e.weight;
+		if (e.part!=null) {
+			SharedPart p = parts.get(e.part);
+			p.entries--;
+			if (p.entries==0) {
+				weight -= p.weight;
+				parts.remove(e.part);
+			}
+		}
+	}
+
+	/**
+	 * Removes all entries from the cache. The counters are not affected.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		parts.clear();
+		weight = 0;
+	}
+
+	/**
+	 * Gets the number of requests that were served from the cache.
+	 * @return the number of hits
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of requests that required a translation.
+	 * @return the number of misses
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * Gets the number of entries that have been removed to keep the
+	 * cache within its limit.
+	 * @return the number of evictions
+	 */
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * Gets the number of entries in the cache.
+	 * @return the number of entries
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Gets the total weight of the entries in the cache.
+	 * @return the weight
+	 */
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "TranslationCache [size=" + entries.size() + ", weight=" + weight + ", hits=" + hits
+				+ ", misses=" + misses + ", evictions=" + evictions + "]";
+	}
+}
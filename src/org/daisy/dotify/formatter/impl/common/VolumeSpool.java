@@ -0,0 +1,308 @@
+package org.daisy.dotify.formatter.impl.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Provides a place where the contents of volumes can be kept until they
+ * are written. This is useful when volumes must be kept until the layout of the
+ * whole document is complete, since it means that only the volume that is being
+ * written needs to be in memory, regardless of the size of the document.</p>
+ *
+ * <p>The volumes are kept as {@link FrozenVolume}s, in other words only the
+ * information that is needed by a {@link WriterHandler} is kept. The serialized
+ * volumes are kept in memory until their total size exceeds a limit (see
+ * {@link #MEMORY_LIMIT_PROPERTY}). After that, volumes are written to a temporary
+ * file, which is created when it's first needed. Small documents therefore never
+ * touch the file system.</p>
+ *
+ * <p>When a volume is discarded, it should be released (see {@link #release(Volume)}),
+ * so that its space can be reused by other volumes. If the space is at the end of
+ * the file, the file is truncated.</p>
+ *
+ * <p>The temporary file is deleted when the spool is closed. After that, the
+ * volumes returned by the spool can no longer be read.</p>
+ */
+public class VolumeSpool implements Closeable {
+	/**
+	 * The name of the system property that sets the number of bytes of serialized
+	 * volumes to keep in memory before volumes are written to a temporary file.
+	 */
+	public static final String MEMORY_LIMIT_PROPERTY = "org.daisy.dotify.formatter.impl.volumeSpool.memoryLimit";
+	/**
+	 * The default memory limit.
+	 */
+	public static final long DEFAULT_MEMORY_LIMIT = 32*1024*1024;
+	private static final Logger logger = Logger.getLogger(VolumeSpool.class.getCanonicalName());
+	private final long memoryLimit;
+	// free regions of the file, by position
+	private final TreeMap<Long, Integer> free;
+	private long memorySize;
+	private Path file;
+	private FileChannel channel;
+	private boolean fileFailed;
+	private long size;
+
+	/**
+	 * Creates a new volume spool with the memory limit set by {@link #MEMORY_LIMIT_PROPERTY},
+	 * or the default memory limit.
+	 */
+	public VolumeSpool() {
+		this(getDefaultMemoryLimit());
+	}
+
+	/**
+	 * Creates a new volume spool with the specified memory limit.
+	 * @param memoryLimit the number of bytes of serialized volumes to keep in memory
+	 */
+	public VolumeSpool(long memoryLimit) {
+		this.memoryLimit = memoryLimit;
+		this.free = new TreeMap<>();
+		this.memorySize = 0;
+		this.file = null;
+		this.channel = null;
+		this.fileFailed = false;
+		this.size = 0;
+	}
+
+	private static long getDefaultMemoryLimit() {
+		String value = System.getProperty(MEMORY_LIMIT_PROPERTY);
+		if (value!=null) {
+			try {
+				return Long.parseLong(value);
+			} catch (NumberFormatException e) {
+				logger.warning("Invalid value for " + MEMORY_LIMIT_PROPERTY + ": " + value);
+			}
+		}
+		return DEFAULT_MEMORY_LIMIT;
+	}
+
+	/**
+	 * Writes the contents of a volume to the spool.
+	 * @param volume the volume
+	 * @return a volume that reads its contents from the spool
+	 * @throws UncheckedIOException if the volume cannot be written
+	 */
+	public Volume add(Volume volume) {
+		FrozenVolume frozen = volume instanceof FrozenVolume?(FrozenVolume)volume:new FrozenVolume(volume);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			frozen.write(out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		byte[] data = bytes.toByteArray();
+		if (memorySize + data.length <= memoryLimit || !openFile()) {
+			memorySize += data.length;
+			return new SpooledVolume(data);
+		}
+		long position = allocate(data.length);
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, position + buffer.position());
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return new SpooledVolume(position, data.length);
+	}
+
+	/**
+	 * Releases a volume returned by this spool, so that its space can be reused.
+	 * The volume can no longer be read. Volumes that weren't returned by this spool,
+	 * or that have already been released, are ignored.
+	 * @param volume the volume
+	 * @throws UncheckedIOException if the file cannot be truncated
+	 */
+	public void release(Volume volume) {
+		if (!(volume instanceof SpooledVolume)) {
+			return;
+		}
+		SpooledVolume v = (SpooledVolume)volume;
+		if (v.getSpool()!=this || v.released) {
+			return;
+		}
+		v.released = true;
+		if (v.data!=null) {
+			memorySize -= v.data.length;
+			v.data = null;
+		} else {
+			free(v.position, v.length);
+		}
+	}
+
+	/**
+	 * Gets the number of bytes of serialized volumes that are kept in memory.
+	 * @return the number of bytes
+	 */
+	long getMemorySize() {
+		return memorySize;
+	}
+
+	/**
+	 * Gets the size of the temporary file.
+	 * @return the size in bytes, or 0 if the file hasn't been created
+	 */
+	long getFileSize() {
+		return size;
+	}
+
+	private boolean openFile() {
+		if (channel!=null) {
+			return true;
+		} else if (fileFailed) {
+			return false;
+		}
+		try {
+			file = Files.createTempFile("volume", ".tmp");
+			channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			return true;
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to create volume spool. Volumes are kept in memory.", e);
+			fileFailed = true;
+			deleteFile();
+			return false;
+		}
+	}
+
+	private long allocate(int length) {
+		Iterator<Map.Entry<Long, Integer>> it = free.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, Integer> e = it.next();
+			if (e.getValue()>=length) {
+				long position = e.getKey();
+				it.remove();
+				if (e.getValue()>length) {
+					free.put(position + length, e.getValue() - length);
+				}
+				return position;
+			}
+		}
+		long position = size;
+		size += length;
+		return position;
+	}
+
+	private void free(long position, int length) {
+		Map.Entry<Long, Integer> before = free.lowerEntry(position);
+		if (before!=null && before.getKey() + before.getValue() == position) {
+			free.remove(before.getKey());
+			position = before.getKey();
+			length += before.getValue();
+		}
+		Integer after = free.remove(position + length);
+		if (after!=null) {
+			length += after;
+		}
+		if (position + length == size) {
+			size = position;
+			try {
+				channel.truncate(size);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		} else {
+			free.put(position, length);
+		}
+	}
+
+	private FrozenVolume read(long position, int length) {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		try {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position())<0) {
+					throw new IOException("Unexpected end of file.");
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return read(buffer.array());
+	}
+
+	private static FrozenVolume read(byte[] data) {
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+			return FrozenVolume.read(in);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void deleteFile() {
+		try {
+			if (file!=null) {
+				Files.deleteIfExists(file);
+			}
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Failed to delete " + file, e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (channel!=null) {
+				channel.close();
+			}
+		} finally {
+			channel = null;
+			free.clear();
+			memorySize = 0;
+			size = 0;
+			if (file!=null) {
+				Files.deleteIfExists(file);
+				file = null;
+			}
+		}
+	}
+
+	private class SpooledVolume implements Volume {
+		private final long position;
+		private final int length;
+		// the contents, if kept in memory
+		private byte[] data;
+		private boolean released;
+
+		private SpooledVolume(byte[] data) {
+			this.position = -1;
+			this.length = data.length;
+			this.data = data;
+			this.released = false;
+		}
+
+		private SpooledVolume(long position, int length) {
+			this.position = position;
+			this.length = length;
+			this.data = null;
+			this.released = false;
+		}
+
+		private VolumeSpool getSpool() {
+			return VolumeSpool.this;
+		}
+
+		@Override
+		public Iterable<? extends Section> getSections() {
+			if (released) {
+				throw new IllegalStateException("The volume has been released.");
+			}
+			return (data!=null?read(data):read(position, length)).getSections();
+		}
+	}
+}
@@ -210,6 +210,27 @@ public abstract class Block {
 		return rdm;
 	}
 	
+	/**
+	 * Lays out the contents of this block ahead of pagination, so that time
+	 * consuming operations that do not depend on the pagination, such as
+	 * translation, are already done when the block is laid out on pages.
+	 * The resulting rows are discarded. Blocks that do not support this,
+	 * for example because the result depends on the pagination, do nothing.
+	 * Different blocks may be prerendered concurrently, provided that each
+	 * thread uses its own formatter context.
+	 * <p>A block may also be prerendered on another thread while blocks are
+	 * still being added to the sequence. Prerendering only reads the segments,
+	 * the row data properties, the identifier, the meta volume and page, and
+	 * whether or not the block is volatile. When the next block has been added,
+	 * the parser no longer changes these. The avoid volume break after priority
+	 * is changed later, but it isn't used by prerendering. The meta volume and page
+	 * are only set on copies of blocks, during the layout of volumes.</p>
+	 * @param context the block context
+	 */
+	void prerender(BlockContext context) {
+		// not supported by default
+	}
+
 	public void setMetaVolume(Integer metaVolume) {
 		this.metaVolume = metaVolume;
 	}
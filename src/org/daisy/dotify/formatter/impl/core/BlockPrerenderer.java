@@ -0,0 +1,202 @@
+package org.daisy.dotify.formatter.impl.core;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.daisy.dotify.formatter.impl.search.DefaultContext;
+
+/**
+ * <p>Lays out blocks ahead of pagination, using several threads. Only blocks whose
+ * contents do not depend on the pagination are laid out (see {@link Block#prerender(BlockContext)}).
+ * The rows are discarded, but the translations made in the process are stored
+ * with the segments, and are reused when the blocks are laid out during pagination.
+ * Since translating is the most time consuming part of laying out a block,
+ * the pagination, which is sequential, can proceed much faster afterwards.</p>
+ *
+ * <p>Translators are not required to be thread safe, therefore each thread uses
+ * its own {@link FormatterContext}, with its own translators. A formatter context
+ * has a single prerenderer (see {@link FormatterContext#getPrerenderer()}), so that
+ * the contexts of the threads are created once and are also used for other work
+ * that is done concurrently, such as rendering table cells. This work runs on a pool
+ * that belongs to the prerenderer, which is created when it's first needed. The contexts
+ * of the threads do all work on the calling thread, so that nested work, such as a table
+ * inside a table cell, doesn't create more pools.</p>
+ */
+public class BlockPrerenderer {
+	private static final Logger logger = Logger.getLogger(BlockPrerenderer.class.getCanonicalName());
+	private final Map<Block, Integer> blocks;
+	private final ThreadLocal<FormatterContext> contexts;
+	private final int parallelism;
+	private ForkJoinPool pool;
+
+	/**
+	 * Creates a new empty prerenderer.
+	 * @param context the formatter context to use as a model for the contexts
+	 * 			of the threads
+	 * @param parallelism the number of threads to use, or 0 if work shouldn't
+	 * 			be done concurrently
+	 */
+	public BlockPrerenderer(FormatterContext context, int parallelism) {
+		// the order is not important
+		this.blocks = new IdentityHashMap<>();
+		this.contexts = ThreadLocal.withInitial(()->{
+			FormatterContext c = new FormatterContext(context.getTranslatorFactory(), context.getTextBorderFactoryMakerService(), context.getConfiguration(), context.getTranslationCache());
+			// work that is done on a thread of this prerenderer, such as rendering a
+			// table inside a table cell, must not start more threads
+			c.setParallelism(0);
+			return c;
+		});
+		this.parallelism = parallelism;
+		this.pool = null;
+	}
+
+	/**
+	 * Gets the number of threads to use on this machine.
+	 * @return the number of threads, or 0 if there is only one processor
+	 */
+	public static int getDefaultParallelism() {
+		int ret = Runtime.getRuntime().availableProcessors();
+		return ret>1?ret:0;
+	}
+
+	/**
+	 * Gets the number of threads that this prerenderer uses.
+	 * @return the number of threads, or 0 if work isn't done concurrently
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Adds blocks to prerender.
+	 * @param blocks the blocks
+	 * @param flowWidth the flow width of the blocks
+	 */
+	public synchronized void add(Iterable<Block> blocks, int flowWidth) {
+		for (Block b : blocks) {
+			if (!b.isVolatile()) {
+				this.blocks.putIfAbsent(b, flowWidth);
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of blocks to prerender.
+	 * @return the number of blocks
+	 */
+	public synchronized int size() {
+		return blocks.size();
+	}
+
+	/**
+	 * Removes the blocks that have been added.
+	 */
+	public synchronized void clear() {
+		blocks.clear();
+	}
+
+	/**
+	 * Prerenders the blocks that have been added and waits for the result. The
+	 * blocks are then removed. Failures are logged but otherwise ignored, since
+	 * the same blocks are laid out again during pagination. Nothing is done if the
+	 * parallelism is 0.
+	 */
+	public void run() {
+		List<Callable<Void>> tasks = new ArrayList<>();
+		synchronized (this) {
+			for (Map.Entry<Block, Integer> e : blocks.entrySet()) {
+				tasks.add(()->{
+					prerender(e.getKey(), e.getValue());
+					return null;
+				});
+			}
+			blocks.clear();
+		}
+		invokeAll(tasks);
+	}
+
+	/**
+	 * Runs tasks on the threads of this prerenderer and waits for them to finish.
+	 * Tasks can use {@link #getThreadContext()}. Failures are logged but otherwise
+	 * ignored, so the tasks must only do work that is done again if needed.
+	 * Nothing is done if the parallelism is 0.
+	 * @param tasks the tasks
+	 */
+	void invokeAll(List<Callable<Void>> tasks) {
+		if (parallelism<1 || tasks.isEmpty()) {
+			return;
+		}
+		try {
+			for (Future<Void> f : getPool().invokeAll(tasks)) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					logger.log(Level.FINE, "Failed to prerender.", e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private synchronized ForkJoinPool getPool() {
+		if (pool==null) {
+			// the threads of the pool are daemon threads and end when they have been idle for a while
+			pool = new ForkJoinPool(parallelism);
+		}
+		return pool;
+	}
+
+	/**
+	 * Gets the formatter context of the current thread.
+	 * @return the formatter context
+	 */
+	FormatterContext getThreadContext() {
+		return contexts.get();
+	}
+
+	/**
+	 * Prerenders a single block on the current thread, using the formatter
+	 * context of the thread. This is used when the blocks are distributed
+	 * to the threads by the caller. Volatile blocks are ignored.
+	 * @param b the block
+	 * @param flowWidth the flow width of the block
+	 */
+	public void prerender(Block b, int flowWidth) {
+		if (!b.isVolatile()) {
+			b.prerender(BlockContext.from(new DefaultContext.Builder(null).build())
+					.flowWidth(flowWidth)
+					.formatterContext(getThreadContext())
+					.build());
+		}
+	}
+
+	/**
+	 * Returns true if the threads of this prerenderer have been started and
+	 * haven't been shut down.
+	 * @return true if the threads are started, false otherwise
+	 */
+	public synchronized boolean isStarted() {
+		return pool!=null;
+	}
+
+	/**
+	 * Stops the threads of this prerenderer. Tasks that are running are
+	 * allowed to finish.
+	 */
+	public synchronized void shutdown() {
+		if (pool!=null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+
+}
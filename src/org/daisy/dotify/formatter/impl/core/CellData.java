@@ -22,6 +22,15 @@ class CellData {
 		this.rowsIterator = rows.iterator();
 	}
 	
+	/**
+	 * Creates a new instance with the same rows as the template and
+	 * a new row iterator.
+	 * @param template the template
+	 */
+	CellData(CellData template) {
+		this(template.rows, template.cellWidth, template.info, template.minWidth, template.forceCount);
+	}
+	
 	List<RowImpl> getRows() {
 		return rows;
 	}
@@ -1,19 +1,31 @@
 package org.daisy.dotify.formatter.impl.core;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.Stack;
 
 import org.daisy.dotify.api.formatter.BlockProperties;
 import org.daisy.dotify.api.formatter.ContentCollection;
 import org.daisy.dotify.formatter.impl.common.FormatterCoreContext;
+import org.daisy.dotify.formatter.impl.row.AbstractBlockContentManager;
+import org.daisy.dotify.formatter.impl.row.RowImpl;
+import org.daisy.dotify.formatter.impl.search.SequenceId;
 
 
 /**
- * Provides a content collection to be used when placing e.g. footnotes.
+ * <p>Provides a content collection to be used when placing e.g. footnotes.</p>
+ * 
+ * <p>The rows of an item are kept once they have been rendered, since the same
+ * item is typically requested many times while the page breaks are searched for,
+ * and again in every iteration. The rows are rendered again if the item is requested
+ * in a different context, or if the item contains volatile blocks, for example blocks
+ * with references.</p>
  * 
  * @author Joel Håkansson
  */
@@ -24,11 +36,17 @@ public class ContentCollectionImpl extends FormatterCoreImpl implements ContentC
 	private static final long serialVersionUID = -2198713822437968076L;
 	private final Map<String, Item> items;
 	private final Stack<Item> open;
+	private final Set<SequenceId> placedIn;
+	private long hits;
+	private long misses;
 	
 	public ContentCollectionImpl(FormatterCoreContext fc) {
 		super(fc, true);
 		this.items = new LinkedHashMap<>();
 		this.open = new Stack<>();
+		this.placedIn = new HashSet<>();
+		this.hits = 0;
+		this.misses = 0;
 	}
 	
 	public boolean containsItemID(String id) {
@@ -52,6 +70,78 @@ public class ContentCollectionImpl extends FormatterCoreImpl implements ContentC
 		}
 	}
 
+	/**
+	 * Gets the rows of the item with the specified identifier.
+	 * @param id the identifier
+	 * @param context the context to render the rows in
+	 * @return an unmodifiable list of rows, empty if the item doesn't exist
+	 */
+	public List<RowImpl> getRows(String id, BlockContext context) {
+		Item i = items.get(id);
+		if (i==null) {
+			return Collections.emptyList();
+		}
+		if (i.rows!=null && context.equals(i.context)) {
+			hits++;
+			return i.rows;
+		}
+		misses++;
+		List<RowImpl> rows = new ArrayList<>();
+		boolean isVolatile = false;
+		for (Block g : subList(i.from, i.to)) {
+			AbstractBlockContentManager bcm = g.getBlockContentManager(context);
+			rows.addAll(bcm.getCollapsiblePreContentRows());
+			rows.addAll(bcm.getInnerPreContentRows());
+			Optional<RowImpl> r;
+			while ((r=bcm.getNext()).isPresent()) {
+				rows.add(r.get());
+			}
+			rows.addAll(bcm.getPostContentRows());
+			rows.addAll(bcm.getSkippablePostContentRows());
+			isVolatile |= g.isVolatile();
+		}
+		rows = Collections.unmodifiableList(rows);
+		i.context = isVolatile?null:context;
+		i.rows = isVolatile?null:rows;
+		return rows;
+	}
+
+	/**
+	 * Gets the number of times that the rows of an item could be reused.
+	 * @return the number of hits
+	 */
+	public long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of times that the rows of an item had to be rendered.
+	 * @return the number of misses
+	 */
+	public long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * Records that items of this collection have been placed on a page
+	 * in the specified sequence.
+	 * @param seqId the sequence
+	 */
+	public void addPlacement(SequenceId seqId) {
+		placedIn.add(seqId);
+	}
+
+	/**
+	 * Returns true if items of this collection have not been placed on any page,
+	 * in any iteration, except on pages in the specified sequence. Pages outside
+	 * of the sequence are then unaffected if the collection is reassigned.
+	 * @param seqId the sequence
+	 * @return true if items have only been placed in the specified sequence, false otherwise
+	 */
+	public boolean isPlacedOnlyIn(SequenceId seqId) {
+		return placedIn.isEmpty() || (placedIn.size()==1 && placedIn.contains(seqId));
+	}
+
 	@Override
 	public void startItem(BlockProperties props) {
 		String id = props.getTextBlockProperties().getIdentifier();
@@ -81,6 +171,14 @@ public class ContentCollectionImpl extends FormatterCoreImpl implements ContentC
 		 * toIndex, exclusive
 		 */
 		private int to;
+		/**
+		 * The context of the rendered rows
+		 */
+		private BlockContext context;
+		/**
+		 * The rendered rows, or null if not available
+		 */
+		private List<RowImpl> rows;
 		
 		Item(String id, int start) {
 			this.id = id;
@@ -9,6 +9,7 @@ import org.daisy.dotify.api.formatter.LayoutMasterProperties;
 import org.daisy.dotify.api.translator.BrailleTranslatorFactoryMakerService;
 import org.daisy.dotify.api.translator.TextBorderFactoryMakerService;
 import org.daisy.dotify.formatter.impl.common.FormatterCoreContext;
+import org.daisy.dotify.formatter.impl.common.TranslationCache;
 
 /**
  * Provides formatter context data.
@@ -20,14 +21,30 @@ public class FormatterContext extends FormatterCoreContext {
 	private final Map<String, ContentCollectionImpl> collections;
 	private final HashMap<String, TableOfContentsImpl> tocs;
 	private final TransitionBuilderImpl transitionBuilder;
+	// the number of threads for concurrent work, or -1 for the default
+	private int parallelism;
+	private BlockPrerenderer prerenderer;
 	
 
 	public FormatterContext(BrailleTranslatorFactoryMakerService translatorFactory, TextBorderFactoryMakerService tbf, FormatterConfiguration config) {
-		super(translatorFactory, tbf, config);
+		this(translatorFactory, tbf, config, TranslationCache.getDefaultInstance());
+	}
+
+	/**
+	 * Creates a new formatter context with the specified translation cache.
+	 * @param translatorFactory a braille translator factory maker service
+	 * @param tbf a text border factory maker service
+	 * @param config the configuration
+	 * @param translationCache the translation cache, or null to translate without a cache
+	 */
+	public FormatterContext(BrailleTranslatorFactoryMakerService translatorFactory, TextBorderFactoryMakerService tbf, FormatterConfiguration config, TranslationCache translationCache) {
+		super(translatorFactory, tbf, config, translationCache);
 		this.masters = new HashMap<>();
 		this.collections = new HashMap<>();
 		this.tocs = new HashMap<>();
 		this.transitionBuilder = new TransitionBuilderImpl(this);
+		this.parallelism = -1;
+		this.prerenderer = null;
 	}
 	
 	public LayoutMasterBuilder newLayoutMaster(String name, LayoutMasterProperties properties) {
@@ -63,5 +80,41 @@ public class FormatterContext extends FormatterCoreContext {
 	public TransitionBuilderImpl getTransitionBuilder() {
 		return transitionBuilder;
 	}
+
+	/**
+	 * Sets the number of threads to use for work that is done concurrently,
+	 * such as prerendering blocks and rendering table cells. By default, this
+	 * is the number of available processors, or 0 if there is only one.
+	 * @param parallelism the number of threads, 0 if work shouldn't be done
+	 * 			concurrently, or -1 for the default
+	 */
+	public synchronized void setParallelism(int parallelism) {
+		if (parallelism!=this.parallelism && prerenderer!=null) {
+			prerenderer.shutdown();
+			prerenderer = null;
+		}
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Gets the number of threads to use for work that is done concurrently.
+	 * @return the number of threads, 0 if work isn't done concurrently, or -1
+	 * 			for the default
+	 */
+	public synchronized int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Gets the prerenderer of this context. The prerenderer keeps a formatter
+	 * context for each of its threads.
+	 * @return the prerenderer
+	 */
+	public synchronized BlockPrerenderer getPrerenderer() {
+		if (prerenderer==null) {
+			prerenderer = new BlockPrerenderer(this, parallelism<0?BlockPrerenderer.getDefaultParallelism():parallelism);
+		}
+		return prerenderer;
+	}
 	
 }
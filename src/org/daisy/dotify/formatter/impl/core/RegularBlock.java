@@ -70,4 +70,14 @@ class RegularBlock extends Block {
 				context.getFcontext());
 	}
 
+	@Override
+	void prerender(BlockContext context) {
+		if (!isVolatile()) {
+			AbstractBlockContentManager bcm = newBlockContentManager(context);
+			while (bcm.getNext().isPresent()) {
+				// the rows are not needed
+			}
+		}
+	}
+
 }
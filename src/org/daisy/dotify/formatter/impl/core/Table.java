@@ -3,8 +3,10 @@ package org.daisy.dotify.formatter.impl.core;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 
 import org.daisy.dotify.api.formatter.FormatterCore;
@@ -26,12 +28,26 @@ import org.daisy.dotify.formatter.impl.row.RowImpl;
 import org.daisy.dotify.formatter.impl.search.DefaultContext;
 import org.daisy.dotify.formatter.impl.segment.Segment;
 
+/**
+ * <p>Provides a table block. The column widths are determined by minimizing the cost
+ * of the table, see {@link TableCost}.</p>
+ *
+ * <p>The rendered cells and tables are cached by width. If the table doesn't contain
+ * any volatile content, the caches are kept when the table is laid out again with the
+ * same flow width, for example in the next iteration. Cells that need to be rendered
+ * at a new width are rendered concurrently when possible.</p>
+ */
 class Table extends Block {
 	private static final Logger logger = Logger.getLogger(Table.class.getCanonicalName());
+	// the minimum number of cells to render concurrently
+	private static final int MIN_PARALLEL_CELLS = 8;
 	private int headerRows;
 	private final TableData td;
 	private final TableProperties tableProps;
-	private Map<String, Result> resultCache;
+	private Map<Widths, Result> resultCache;
+	private Map<TableCell, Map<Integer, CellData>> cellCache;
+	private FormatterContext cacheContext;
+	private int cacheFlowWidth;
 	private final TableBorderHandler tbh;
 
 	Table(FormatterCoreContext fc, TableProperties tableProps, RowDataProperties rdp, TextBorderFactoryMakerService tbf, String mode, RenderingScenario rs) {
@@ -51,6 +67,9 @@ class Table extends Block {
 		this.td = template.td;
 		this.tableProps = template.tableProps;
 		this.resultCache = template.resultCache;
+		this.cellCache = template.cellCache;
+		this.cacheContext = template.cacheContext;
+		this.cacheFlowWidth = template.cacheFlowWidth;
 		this.tbh = template.tbh;
 	}
 	
@@ -118,12 +137,19 @@ class Table extends Block {
 		int[] currentColumnWidth = new int[columnCount];
 		Arrays.fill(currentColumnWidth, columnWidth);
 		DefaultContext dc = DefaultContext.from(context).metaVolume(metaVolume).metaPage(metaPage).build();
-		resultCache = new HashMap<>();
-		Result r = minimizeCost(maxWidth, currentColumnWidth, colSpace, tableProps.getPreferredEmtpySpace(), context, dc, leftMargin, rightMargin);
+		boolean hasVolatileContent = hasVolatileContent();
+		if (resultCache==null || hasVolatileContent
+				|| cacheContext!=context.getFcontext() || cacheFlowWidth!=context.getFlowWidth()) {
+			resultCache = new HashMap<>();
+			cellCache = new IdentityHashMap<>();
+			cacheContext = context.getFcontext();
+			cacheFlowWidth = context.getFlowWidth();
+		}
+		Result r = minimizeCost(maxWidth, currentColumnWidth, colSpace, tableProps.getPreferredEmtpySpace(), context, dc, leftMargin, rightMargin, !hasVolatileContent);
 		return new TableBlockContentManager(context.getFlowWidth(), r.minWidth, r.forceCount, r.rows, rdp, context.getFcontext());
 	}
 	
-	private Result minimizeCost(int maxTableWidth, int[] columnWidth, int[] colSpacing, int spacePreferred, BlockContext context, DefaultContext dc, MarginProperties leftMargin, MarginProperties rightMargin) {
+	private Result minimizeCost(int maxTableWidth, int[] columnWidth, int[] colSpacing, int spacePreferred, BlockContext context, DefaultContext dc, MarginProperties leftMargin, MarginProperties rightMargin, boolean concurrent) {
 		int columnCount = columnWidth.length;
 		int[] currentColumnWidth = Arrays.copyOf(columnWidth, columnWidth.length);
 		Result[] results = new Result[columnCount];
@@ -131,6 +157,9 @@ class Table extends Block {
 		Result currentResult = renderTableWithCache(tableProps.getPreferredEmtpySpace(), currentColumnWidth, colSpacing, context, dc, leftMargin, rightMargin);
 		int x = 0;
 		while (true) {
+			if (concurrent) {
+				prerenderCells(currentColumnWidth, colSpacing);
+			}
 			// render all possibilities
 			for (int i=0; i<columnCount; i++) {
 				if (currentColumnWidth[i]>=1) {
@@ -189,6 +218,115 @@ class Table extends Block {
 		int forceCount;
 	}
 	
+	private static class Widths {
+		private final int[] values;
+		private final int hash;
+		
+		private Widths(int[] values) {
+			this.values = Arrays.copyOf(values, values.length);
+			this.hash = Arrays.hashCode(values);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (obj == null || getClass() != obj.getClass()) {
+				return false;
+			}
+			return Arrays.equals(values, ((Widths)obj).values);
+		}
+
+		@Override
+		public String toString() {
+			return Arrays.toString(values);
+		}
+	}
+	
+	/**
+	 * Returns true if the contents of this table, including the contents of
+	 * its cells, depends on the context.
+	 * @return true if the table has volatile content, false otherwise
+	 */
+	boolean hasVolatileContent() {
+		if (isVolatile()) {
+			return true;
+		}
+		for (TableRow row : td) {
+			for (TableCell cell : row) {
+				for (Block b : cell) {
+					if (b.isVolatile() || (b instanceof Table && ((Table)b).hasVolatileContent())) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+	
+	private int getFlowWidth(TableCell cell, int[] columnWidth, int[] colSpacing) {
+		int flowWidth = 0;
+		int ci = cell.getInfo().getStartingPoint().getCol();
+		for (int j=0; j<cell.getInfo().getColSpan(); j++) {
+			if (j>0) {
+				flowWidth += colSpacing[ci-1+j];
+			}
+			flowWidth += columnWidth[ci+j];
+		}
+		return flowWidth;
+	}
+	
+	private CellData renderCell(TableCell cell, int flowWidth, BlockContext context, DefaultContext dc) {
+		Map<Integer, CellData> rendered = cellCache.computeIfAbsent(cell, k->new HashMap<>());
+		CellData ret = rendered.get(flowWidth);
+		if (ret==null) {
+			ret = cell.render(context.getFcontext(), dc, context.getRefs(), flowWidth);
+			rendered.put(flowWidth, ret);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Renders the cells that are needed for the next step of the cost minimization
+	 * concurrently, and stores the result in the cell cache. A single column that is made
+	 * narrower makes every cell that it is part of one position narrower, therefore each
+	 * cell is rendered at most once here. This must not be used if the table has volatile
+	 * content, since the context cannot be accessed concurrently. Failures are ignored,
+	 * because the same cells are rendered again afterwards. The cells are rendered on
+	 * the threads of the prerenderer of the formatter context.
+	 * @param columnWidth the current column widths
+	 * @param colSpacing the column spacing
+	 */
+	private void prerenderCells(int[] columnWidth, int[] colSpacing) {
+		BlockPrerenderer prerenderer = cacheContext.getPrerenderer();
+		if (prerenderer.getParallelism()<1) {
+			return;
+		}
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (TableRow row : td) {
+			for (TableCell cell : row) {
+				int flowWidth = getFlowWidth(cell, columnWidth, colSpacing) - 1;
+				Map<Integer, CellData> rendered = cellCache.computeIfAbsent(cell, k->new HashMap<>());
+				if (flowWidth>0 && !rendered.containsKey(flowWidth)) {
+					tasks.add(()->{
+						// each cell is only accessed by one task
+						rendered.put(flowWidth, cell.render(prerenderer.getThreadContext(), new DefaultContext.Builder(null).build(), null, flowWidth));
+						return null;
+					});
+				}
+			}
+		}
+		if (tasks.size()>=MIN_PARALLEL_CELLS) {
+			prerenderer.invokeAll(tasks);
+		}
+	}
+	
 	private static Result min(Result v, Result ... values) {
 		if (values.length<1) {
 			throw new IllegalArgumentException("No values");
@@ -206,7 +344,7 @@ class Table extends Block {
 	}
 	
 	private Result renderTableWithCache(int spacePreferred, int[] columnWidth, int[] colSpacing, BlockContext context, DefaultContext dc, MarginProperties leftMargin, MarginProperties rightMargin) {
-		String key = toKey(columnWidth);
+		Widths key = new Widths(columnWidth);
 		Result r = null;
 		if (resultCache.containsKey(key)) {
 			// r may be null afterwards
@@ -219,28 +357,21 @@ class Table extends Block {
 				logger.finest("Cost for solution: " + r.cost.getCost());
 			} finally {
 				// Also put failing results in the resultCache to prevent them from being attempted again (this is why finally is used)
-				resultCache.put(toKey(columnWidth), r);
+				resultCache.put(key, r);
 			}			
 		}
 		return r;
 	}
 	
-	private String toKey(int...values) {
-		StringBuilder ret = new StringBuilder();
-		for (int v : values) {
-			ret.append(v).append(",");
-		}
-		return ret.toString();
-	}
-	
 	private Result renderTable(int[] columnWidth, int[] colSpacing, BlockContext context, DefaultContext dc, MarginProperties leftMargin, MarginProperties rightMargin, int spacePreferred) {
 		List<RowImpl> result = new ArrayList<RowImpl>();
-		Result ret = updateRendering(columnWidth, colSpacing, new TableCostImpl(spacePreferred), context, dc);
+		Map<TableCell, CellData> rendered = new IdentityHashMap<>();
+		Result ret = updateRendering(rendered, columnWidth, colSpacing, new TableCostImpl(spacePreferred), context, dc);
 		for (int r=0; r<td.getGridHeight(); r++) {
 			// render into rows
 			boolean tableRowHasData = false;
-			while (hasMoreContent(r)) { //while content
-				RowImpl row = getResultRow(r, context, columnWidth, colSpacing, leftMargin, rightMargin, FillStyle.EMPTY, false);
+			while (hasMoreContent(rendered, r)) { //while content
+				RowImpl row = getResultRow(rendered, r, context, columnWidth, colSpacing, leftMargin, rightMargin, FillStyle.EMPTY, false);
 				//TODO: this will keep the whole table row together (if possible), but it could be more advanced
 				result.add(row);
 				tableRowHasData = true;
@@ -251,16 +382,16 @@ class Table extends Block {
 				if (tableProps.getTableRowSpacing()>0) {
 					{
 						// separate, do this border
-						RowImpl row = getResultRow(r, context, columnWidth, colSpacing, leftMargin, rightMargin, FillStyle.THIS_BORDER, true);
+						RowImpl row = getResultRow(rendered, r, context, columnWidth, colSpacing, leftMargin, rightMargin, FillStyle.THIS_BORDER, true);
 						if (row!=null) { result.add(row); }
 					}{
 						// space
-						RowImpl row = getResultRow(r, context, columnWidth, colSpacing, leftMargin, rightMargin, FillStyle.EMPTY, true);
+						RowImpl row = getResultRow(rendered, r, context, columnWidth, colSpacing, leftMargin, rightMargin, FillStyle.EMPTY, true);
 						if (row!=null) { result.add(row); }
 					}
 				} else {
 					// merged
-					RowImpl row = getResultRow(r, context, columnWidth, colSpacing, leftMargin, rightMargin, FillStyle.MERGE, true);
+					RowImpl row = getResultRow(rendered, r, context, columnWidth, colSpacing, leftMargin, rightMargin, FillStyle.MERGE, true);
 					//row.setAllowsBreakAfter(false);
 					if (row!=null) { result.add(row); }
 				}
@@ -271,7 +402,7 @@ class Table extends Block {
 			}
 			if (addBorder && r<td.getGridHeight()-1 && tableProps.getTableRowSpacing()>0) {
 				// separate, do next border
-				RowImpl row = getResultRow(r, context, columnWidth, colSpacing, leftMargin, rightMargin, FillStyle.NEXT_BORDER, true);
+				RowImpl row = getResultRow(rendered, r, context, columnWidth, colSpacing, leftMargin, rightMargin, FillStyle.NEXT_BORDER, true);
 				if (row!=null) { result.add(row); }
 			}
 		}
@@ -281,22 +412,17 @@ class Table extends Block {
 		return ret;
 	}
 	
-	private Result updateRendering(int[] columnWidth, int[] colSpacing, TableCost costFunc, BlockContext context, DefaultContext dc) {
+	private Result updateRendering(Map<TableCell, CellData> rendered, int[] columnWidth, int[] colSpacing, TableCost costFunc, BlockContext context, DefaultContext dc) {
 		Result ret = new Result();
 		ret.cost = costFunc;
 		int minWidth = context.getFlowWidth();
 		int forceCount = 0;
 		for (TableRow row : td) {
 			for (TableCell cell : row) {
-				int flowWidth = 0;
-				int ci = cell.getInfo().getStartingPoint().getCol();
-				for (int j=0; j<cell.getInfo().getColSpan(); j++) {
-					if (j>0) {
-						flowWidth += colSpacing[ci-1+j];
-					}
-					flowWidth += columnWidth[ci+j];
-				}
-				CellData cd = cell.render(context.getFcontext(), dc, context.getRefs(), flowWidth);
+				int flowWidth = getFlowWidth(cell, columnWidth, colSpacing);
+				// the cached cell data is copied, since its row iterator is consumed below
+				CellData cd = new CellData(renderCell(cell, flowWidth, context, dc));
+				rendered.put(cell, cd);
 				minWidth = Math.min(cd.getMinWidth(), minWidth);
 				forceCount += cd.getForceCount();
 				costFunc.addCell(cd.getRows(), flowWidth, cd.getForceCount());
@@ -307,12 +433,12 @@ class Table extends Block {
 		return ret;
 	}
 	
-	private boolean hasMoreContent(int r) {
+	private boolean hasMoreContent(Map<TableCell, CellData> rendered, int r) {
 		CellData cr;
 		//This seems redundant, but the row iterator is different each time we're here
 		//and we need to know beforehand if there is any content left
 		for (int x=0; x<td.getGridWidth(); x++) {
-			cr = td.cellForGrid(r, x).getRendered();
+			cr = rendered.get(td.cellForGrid(r, x));
 			// allow row change if the cell ends in another grid row
 			if (cr.getInfo().getEndPoint().getRow()<=r && cr.getRowIterator().hasNext()) {
 				return true;
@@ -348,14 +474,14 @@ class Table extends Block {
 		MERGE
 	}
 	
-	private RowImpl getResultRow(int r, BlockContext context, int[] columnWidth, int[] colSpacing, MarginProperties leftMargin, MarginProperties rightMargin, FillStyle f, boolean allowsBreakAfter) {
+	private RowImpl getResultRow(Map<TableCell, CellData> rendered, int r, BlockContext context, int[] columnWidth, int[] colSpacing, MarginProperties leftMargin, MarginProperties rightMargin, FillStyle f, boolean allowsBreakAfter) {
 		CellData cr;
 		StringBuilder tableRow = new StringBuilder();
 		List<Marker> markers = new ArrayList<>();
 		List<String> anchors = new ArrayList<>();
 		List<String> identifiers = new ArrayList<>();
 		for (int j=0; j<td.getGridWidth(); j++) {
-			cr = td.cellForGrid(r, j).getRendered();
+			cr = rendered.get(td.cellForGrid(r, j));
 			String data = "";
 			if (cr.getRowIterator().hasNext()) {
 				RowImpl row = cr.getRowIterator().next();
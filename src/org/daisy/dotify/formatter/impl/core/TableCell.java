@@ -18,7 +18,6 @@ class TableCell extends FormatterCoreImpl {
 	 */
 	private static final long serialVersionUID = -673589204065659433L;
 	private final TableCellInfo info;
-	private CellData rendered;
 
 
 	TableCell(FormatterCoreContext fc, TableCellProperties props, GridPoint p) {
@@ -28,7 +27,6 @@ class TableCell extends FormatterCoreImpl {
 	TableCell(FormatterCoreContext fc, TableCellProperties props, boolean discardIdentifiers, GridPoint p) {
 		super(fc, discardIdentifiers);
 		this.info = new TableCellInfo(props, p);
-		this.rendered = null;
 	}
 
 	TableCellInfo getInfo() {
@@ -55,12 +53,7 @@ class TableCell extends FormatterCoreImpl {
 			rowData.addAll(bcm.getPostContentRows());
 			rowData.addAll(bcm.getSkippablePostContentRows());
 		}
-		rendered = new CellData(rowData, flowWidth, info, minWidth, forceCount);
-		return rendered;
-	}
-
-	CellData getRendered() {
-		return rendered;
+		return new CellData(rowData, flowWidth, info, minWidth, forceCount);
 	}
 
 }
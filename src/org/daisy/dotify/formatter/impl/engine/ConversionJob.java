@@ -0,0 +1,41 @@
+package org.daisy.dotify.formatter.impl.engine;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Objects;
+
+/**
+ * <p>Provides the input and output of a single conversion, for use with
+ * {@link LayoutEngineFactoryImpl#convertAll(org.daisy.dotify.api.formatter.FormatterConfiguration,
+ * java.util.function.Supplier, java.util.List, java.util.concurrent.ExecutorService)}.</p>
+ */
+public final class ConversionJob {
+	private final InputStream input;
+	private final OutputStream output;
+
+	/**
+	 * Creates a new conversion job.
+	 * @param input the OBFL input
+	 * @param output the output
+	 */
+	public ConversionJob(InputStream input, OutputStream output) {
+		this.input = Objects.requireNonNull(input);
+		this.output = Objects.requireNonNull(output);
+	}
+
+	/**
+	 * Gets the input of this job.
+	 * @return the input
+	 */
+	public InputStream getInput() {
+		return input;
+	}
+
+	/**
+	 * Gets the output of this job.
+	 * @return the output
+	 */
+	public OutputStream getOutput() {
+		return output;
+	}
+}
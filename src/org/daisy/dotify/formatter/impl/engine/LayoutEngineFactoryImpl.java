@@ -1,5 +1,12 @@
 package org.daisy.dotify.formatter.impl.engine;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.stream.XMLEventFactory;
 import javax.xml.stream.XMLInputFactory;
@@ -9,6 +16,7 @@ import javax.xml.xpath.XPathFactory;
 
 import org.daisy.dotify.api.engine.FormatterEngine;
 import org.daisy.dotify.api.engine.FormatterEngineFactoryService;
+import org.daisy.dotify.api.engine.LayoutEngineException;
 import org.daisy.dotify.api.formatter.FormatterConfiguration;
 import org.daisy.dotify.api.formatter.FormatterFactory;
 import org.daisy.dotify.api.formatter.FormatterFactoryMaker;
@@ -43,7 +51,7 @@ public class LayoutEngineFactoryImpl implements FormatterEngineFactoryService {
 		factoryManager = new FactoryManager();
 	}
 	
-	private void setupFactoryManager() {
+	private synchronized void setupFactoryManager() {
 		//FIXME: all calls to newInstance below are OSGi violations that should be fixed.
 		if (factoryManager.getTransformerFactory()==null) {
 			factoryManager.setTransformerFactory(new net.sf.saxon.TransformerFactoryImpl());
@@ -81,6 +89,43 @@ public class LayoutEngineFactoryImpl implements FormatterEngineFactoryService {
 		setupFactoryManager();
 		return new LayoutEngineImpl(config, writer, factoryManager, obflFactory);
 	}
+
+	/**
+	 * <p>Converts several inputs concurrently. Each job is submitted to the
+	 * executor and converted with a new engine, a new parser, a new formatter
+	 * and a new writer, so that no mutable state is shared between jobs. The
+	 * factories and the compiled stylesheets are shared.</p>
+	 *
+	 * <p>The streams of a job are used by the thread that converts the job.
+	 * The output stream is not closed.</p>
+	 *
+	 * <p>The jobs are the unit of concurrency: the formatter of a job does all
+	 * of its work on the thread that converts the job, and doesn't start a pool
+	 * of its own for laying out blocks and table cells. The number of threads that
+	 * are used is therefore decided by the executor alone.</p>
+	 *
+	 * @param config the formatter configuration
+	 * @param writers supplies a new writer for each job. The supplier is called
+	 * 			by the thread that converts the job.
+	 * @param jobs the jobs
+	 * @param executor the executor
+	 * @return returns a future for each job, in the same order as the jobs. If a job
+	 * 			fails, the future throws an {@link ExecutionException} with the
+	 * 			{@link LayoutEngineException} as its cause.
+	 */
+	public List<Future<Void>> convertAll(FormatterConfiguration config, Supplier<PagedMediaWriter> writers, List<ConversionJob> jobs, ExecutorService executor) {
+		setupFactoryManager();
+		List<Future<Void>> ret = new ArrayList<>(jobs.size());
+		for (ConversionJob job : jobs) {
+			ret.add(executor.submit(()->{
+				LayoutEngineImpl engine = new LayoutEngineImpl(config, writers.get(), factoryManager, obflFactory);
+				engine.setSequential(true);
+				engine.convert(job.getInput(), job.getOutput());
+				return null;
+			}));
+		}
+		return ret;
+	}
 	
 	/**
 	 * Sets a factory dependency.
@@ -22,7 +22,9 @@ import org.daisy.dotify.api.obfl.ObflParserFactoryService;
 import org.daisy.dotify.api.writer.MetaDataItem;
 import org.daisy.dotify.api.writer.PagedMediaWriter;
 import org.daisy.dotify.api.writer.PagedMediaWriterException;
+import org.daisy.dotify.formatter.impl.FormatterImpl;
 import org.daisy.dotify.formatter.impl.common.FactoryManager;
+import org.daisy.dotify.formatter.impl.obfl.ObflParserImpl;
 
 /**
  * <p>
@@ -45,6 +47,7 @@ class LayoutEngineImpl implements FormatterEngine {
 	private final ObflParserFactoryService obflFactory;
 	private final Logger logger;
 	private final FactoryManager fm;
+	private boolean sequential;
 	
 	/**
 	 * Creates a new instance of LayoutEngineTask.
@@ -71,19 +74,40 @@ class LayoutEngineImpl implements FormatterEngine {
 		this.obflFactory = obflFactory;
 		this.logger = Logger.getLogger(LayoutEngineImpl.class.getCanonicalName());
 		this.fm = fm;
+		this.sequential = false;
+	}
+
+	/**
+	 * Sets whether the formatter should do all work on the thread that
+	 * converts the input. By default, the formatter uses a pool of threads
+	 * to lay out blocks and table cells concurrently.
+	 * @param value true if the formatter shouldn't start any threads, false otherwise
+	 */
+	void setSequential(boolean value) {
+		this.sequential = value;
 	}
 
 	@Override
 	public void convert(InputStream input, OutputStream output) throws LayoutEngineException {
 		File f = null;
+		Formatter formatter = null;
 		try {
 			try {
 				logger.info("Parsing input...");
 
 				ObflParser obflParser = obflFactory.newObflParser();
-				Formatter formatter = fm.getFormatterFactory().newFormatter(config.getLocale(), config.getTranslationMode());
+				formatter = fm.getFormatterFactory().newFormatter(config.getLocale(), config.getTranslationMode());
 				formatter.setConfiguration(config);
-				obflParser.parse(fm.getXmlInputFactory().createXMLEventReader(input), formatter);
+				if (sequential && formatter instanceof FormatterImpl) {
+					((FormatterImpl)formatter).setParallelism(0);
+					((FormatterImpl)formatter).setPipelineThreads(0);
+				}
+				if (obflParser instanceof ObflParserImpl) {
+					// reads the input in the way that is configured for the parser
+					((ObflParserImpl)obflParser).parse(input, formatter);
+				} else {
+					obflParser.parse(fm.createXMLEventReader(input), formatter);
+				}
 
 				try {
 					input.close();
@@ -111,11 +135,23 @@ class LayoutEngineImpl implements FormatterEngine {
 				throw new LayoutEngineException("FormatterException while running task.", e);
 			}
 		} finally {
+			close(formatter);
 			if (f != null && !f.delete()) {
 				f.deleteOnExit();
 			}
 		}
 	}
 
+	private void close(Formatter formatter) {
+		// stops work that the formatter does in the background, if the conversion failed
+		if (formatter instanceof AutoCloseable) {
+			try {
+				((AutoCloseable)formatter).close();
+			} catch (Exception e) {
+				logger.log(Level.FINE, "Failed to close formatter.", e);
+			}
+		}
+	}
+
 }
  
\ No newline at end of file
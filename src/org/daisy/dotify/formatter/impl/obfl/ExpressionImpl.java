@@ -7,6 +7,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -51,16 +52,152 @@ import org.daisy.dotify.api.text.IntegerOutOfRange;
  * <p>
  * Quotes must surround arguments containing whitespace.
  * </p>
+ * <p>
+ * Expressions are compiled into a tree of operators and arguments the first time
+ * they are evaluated. The compiled form is cached by source string and is shared
+ * between instances, while variables are resolved each time the expression is evaluated.
+ * </p>
  * 
  * @author Joel Håkansson
  */
 class ExpressionImpl implements Expression {
 	private static final Logger logger = Logger.getLogger(ExpressionImpl.class.getCanonicalName());
 	private static final Map<String, Instant> CONFIGURATION_WARNING_ISSUED = Collections.synchronizedMap(new HashMap<>());
+	private static final int COMPILED_CACHE_SIZE = 1000;
+	/**
+	 * Compiled expressions, by source string. Since the compiled form is immutable, it can be
+	 * shared between instances. Note that expressions with resolved variables (see
+	 * {@link ExpressionTools}) produce many distinct strings, therefore the size is limited.
+	 */
+	private static final Map<String, Node[]> COMPILED = Collections.synchronizedMap(new LinkedHashMap<String, Node[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = -4476282963245917315L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Node[]> eldest) {
+			return size()>COMPILED_CACHE_SIZE;
+		}
+	});
+	// variables set while evaluating, created when needed
 	private HashMap<String, Object> localVars;
 	private Map<String, Object> globalVars;
 	private final Integer2TextFactoryMakerService integer2textFactoryMaker;
 
+	private enum Operator {
+		ADD("+"),
+		SUBTRACT("-"),
+		MULTIPLY("*"),
+		DIVIDE("/"),
+		MODULO("%"),
+		EQUALS("="),
+		SMALLER_THAN("<"),
+		SMALLER_THAN_OR_EQUAL_TO("<="),
+		GREATER_THAN(">"),
+		GREATER_THAN_OR_EQUAL_TO(">="),
+		AND("&"),
+		OR("|"),
+		IF("if"),
+		NOW("now"),
+		ROUND("round"),
+		SET("set"),
+		INT2TEXT("int2text"),
+		CONCAT("concat"),
+		FORMAT("format"),
+		NOT("!"),
+		NUMERAL_FORMAT("numeral-format");
+
+		private static final Map<String, Operator> SYMBOLS = new HashMap<>();
+		static {
+			for (Operator o : values()) {
+				SYMBOLS.put(o.symbol, o);
+			}
+		}
+		private final String symbol;
+
+		private Operator(String symbol) {
+			this.symbol = symbol;
+		}
+
+		private static Operator forSymbol(String symbol) {
+			return SYMBOLS.get(symbol);
+		}
+	}
+
+	/**
+	 * Provides a node in a compiled expression. Nodes are immutable.
+	 */
+	private abstract static class Node {
+		abstract Object evaluate(ExpressionImpl ctx);
+	}
+
+	private static final class Literal extends Node {
+		private final Object value;
+
+		private Literal(Object value) {
+			this.value = value;
+		}
+
+		@Override
+		Object evaluate(ExpressionImpl ctx) {
+			return value;
+		}
+	}
+
+	private static final class Variable extends Node {
+		private final String name;
+
+		private Variable(String name) {
+			this.name = name;
+		}
+
+		@Override
+		Object evaluate(ExpressionImpl ctx) {
+			return ctx.getVariable(name);
+		}
+	}
+
+	/**
+	 * An argument that cannot be evaluated. The error is reported when
+	 * the node is evaluated, in the same way as when the expression
+	 * isn't compiled.
+	 */
+	private static final class Invalid extends Node {
+		private final String expr;
+
+		private Invalid(String expr) {
+			this.expr = expr;
+		}
+
+		@Override
+		Object evaluate(ExpressionImpl ctx) {
+			return toLiteral(expr);
+		}
+	}
+
+	private static final class Call extends Node {
+		private final Operator operator;
+		private final String symbol;
+		private final Node[] args;
+
+		private Call(String symbol, Node[] args) {
+			this.operator = Operator.forSymbol(symbol);
+			this.symbol = symbol;
+			this.args = args;
+		}
+
+		@Override
+		Object evaluate(ExpressionImpl ctx) {
+			// all arguments are evaluated, regardless of the operator
+			Object[] input = new Object[args.length];
+			for (int i=0; i<input.length; i++) {
+				input[i] = args[i].evaluate(ctx);
+			}
+			if (operator==null) {
+				throw new IllegalArgumentException("Unknown operator: '" + symbol + "'");
+			}
+			return ctx.apply(operator, input);
+		}
+	}
+
 	public ExpressionImpl(Integer2TextFactoryMakerService integer2textFactoryMaker) {
 		// = Integer2TextFactoryMaker.newInstance();
 		this.integer2textFactoryMaker = integer2textFactoryMaker;
@@ -69,13 +206,31 @@ class ExpressionImpl implements Expression {
 	
 	@Override
 	public Object evaluate(String expr) {
-		localVars = new HashMap<>(globalVars);
-		// return value
-		String[] exprs = getArgs(expr);
-		for (int i=0; i<exprs.length-1; i++) {
-			doEvaluate(exprs[i]);
+		Node[] exprs = compile(expr);
+		localVars = null;
+		Object ret = null;
+		for (Node n : exprs) {
+			ret = n.evaluate(this);
 		}
-		return toReturnType(doEvaluate(exprs[exprs.length-1]));
+		return toReturnType(ret);
+	}
+
+	/**
+	 * Compiles the expression, or gets the compiled expression from the cache. 
+	 * @param expr the expression
+	 * @return the compiled expressions, one for each top level expression
+	 */
+	private static Node[] compile(String expr) {
+		Node[] ret = COMPILED.get(expr);
+		if (ret==null) {
+			String[] exprs = getArgs(expr);
+			ret = new Node[exprs.length];
+			for (int i=0; i<exprs.length; i++) {
+				ret[i] = doCompile(exprs[i]);
+			}
+			COMPILED.put(expr, ret);
+		}
+		return ret;
 	}
 	
 	private Object toReturnType(Object ret) {
@@ -105,13 +260,20 @@ class ExpressionImpl implements Expression {
 
 	private static final Pattern IDENT = Pattern.compile("[_a-zA-Z][_a-zA-Z0-9-]*");
 
-	private Object doEval1(String expr) {
+	private Object getVariable(String expr) {
+		if (localVars!=null && localVars.containsKey(expr)) {
+			return localVars.get(expr);
+		}
+		if (globalVars.containsKey(expr)) {
+			return globalVars.get(expr);
+		}
+		return toLiteral(expr);
+	}
+
+	private static Object toLiteral(String expr) {
 		if (expr.startsWith("\"") && expr.endsWith("\"")) {
 			return expr.substring(1, expr.length()-1);
 		}
-		if (localVars.containsKey(expr)) {
-			return localVars.get(expr);
-		}
 		if ("true".equals(expr)) {
 			return Boolean.TRUE;
 		}
@@ -127,71 +289,60 @@ class ExpressionImpl implements Expression {
 		}
 		throw new IllegalArgumentException("Can not evaluate: " + expr);
 	}
-	
-	private Object doEval2(String[] args1) {
-		String operator = args1[0].trim();
-		Object[] args = new Object[args1.length-1];
-		for (int i=0; i<args.length; i++) {
-			args[i] = doEvaluate(args1[i+1]);
-		}
-		//System.arraycopy(args1, 1, args, 0, args1.length-1);
-		if ("+".equals(operator)) {
-			return add(args);
-		} else if ("-".equals(operator)) {
-			return subtract(args);
-		} else if ("*".equals(operator)) {
-			return multiply(args);
-		} else if ("/".equals(operator)) {
-			return divide(args);
-		} else if ("%".equals(operator)) {
-			return modulo(args);
-		} else if ("=".equals(operator)) {
-			return equalsOp(args);
-		} else if ("<".equals(operator)) {
-			return smallerThan(args);
-		}  else if ("<=".equals(operator)) {
-			return smallerThanOrEqualTo(args);
-		} else if (">".equals(operator)) {
-			return greaterThan(args);
-		} else if (">=".equals(operator)) {
-			return greaterThanOrEqualTo(args);
-		} else if ("&".equals(operator)) {
-			return and(args);
-		} else if ("|".equals(operator)) {
-			return or(args);
-		} else if ("if".equals(operator)) {
-			return ifOp(args);
-		} else if ("now".equals(operator)) {
-			return now(args);
-		} else if ("round".equals(operator)) {
-			return round(args);
-		} else if ("set".equals(operator)) {
-			return set(args);
-		} else if ("int2text".equals(operator)) {
-			return int2text(args);
-		} else if ("concat".equals(operator)) {
-			return concat(args);
-		} else if ("format".equals(operator)) {
-			return message(args);
-		} else if ("!".equals(operator)) {
-			return not(args);
-		} else if ("numeral-format".equals(operator)) {
-			return numeralFormat(args);
-		}
-		else {
-			throw new IllegalArgumentException("Unknown operator: '" + operator + "'");
-		}
-	}
-
-	private Object doEvaluate(String expr) {
-		
+
+	private static Node compileArgument(String expr) {
+		// Variable names always start with $, since they are prefixed when set
+		if (expr.startsWith("$")) {
+			return new Variable(expr);
+		}
+		try {
+			return new Literal(toLiteral(expr));
+		} catch (RuntimeException e) {
+			return new Invalid(expr);
+		}
+	}
+
+	private Object apply(Operator operator, Object[] args) {
+		switch (operator) {
+			case ADD: return add(args);
+			case SUBTRACT: return subtract(args);
+			case MULTIPLY: return multiply(args);
+			case DIVIDE: return divide(args);
+			case MODULO: return modulo(args);
+			case EQUALS: return equalsOp(args);
+			case SMALLER_THAN: return smallerThan(args);
+			case SMALLER_THAN_OR_EQUAL_TO: return smallerThanOrEqualTo(args);
+			case GREATER_THAN: return greaterThan(args);
+			case GREATER_THAN_OR_EQUAL_TO: return greaterThanOrEqualTo(args);
+			case AND: return and(args);
+			case OR: return or(args);
+			case IF: return ifOp(args);
+			case NOW: return now(args);
+			case ROUND: return round(args);
+			case SET: return set(args);
+			case INT2TEXT: return int2text(args);
+			case CONCAT: return concat(args);
+			case FORMAT: return message(args);
+			case NOT: return not(args);
+			case NUMERAL_FORMAT: return numeralFormat(args);
+			default:
+				throw new IllegalArgumentException("Unknown operator: '" + operator.symbol + "'");
+		}
+	}
+
+	private static Node doCompile(String expr) {
 		expr = expr.trim();
 		int leftPar = expr.indexOf('(');
 		int rightPar = expr.lastIndexOf(')');
 		if (leftPar==-1 && rightPar==-1) {
-			return doEval1(expr);
+			return compileArgument(expr);
 		} else if (leftPar>-1 && rightPar>-1) {
-			return doEval2( getArgs(expr.substring(leftPar+1, rightPar)));
+			String[] args1 = getArgs(expr.substring(leftPar+1, rightPar));
+			Node[] args = new Node[args1.length-1];
+			for (int i=0; i<args.length; i++) {
+				args[i] = doCompile(args1[i+1]);
+			}
+			return new Call(args1[0].trim(), args);
 		} else {
 			throw new IllegalArgumentException("Unmatched parenthesis");
 		}
@@ -357,6 +508,9 @@ class ExpressionImpl implements Expression {
 		if (input.length>2) {
 			throw new IllegalArgumentException("Wrong number of arguments: (set key value)");
 		}
+		if (localVars==null) {
+			localVars = new HashMap<>();
+		}
 		localVars.put("$"+input[0].toString(), input[1]);
 		return input[1];
 	}
@@ -0,0 +1,454 @@
+package org.daisy.dotify.formatter.impl.obfl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * <p>Provides OBFL events from an {@link XMLStreamReader}, optionally with the whitespace
+ * normalized in the same way as {@link OBFLWsNormalizer}.</p>
+ *
+ * <p>The normalizer works on the events of an {@link javax.xml.stream.XMLEventReader}. It
+ * buffers the events of each block and creates new character events from the normalized
+ * text, using a regular expression for each text node. This class reads the input with a
+ * cursor instead. The text of a block is kept as strings until it is normalized, which is
+ * done in a single pass over the characters, so that a character event is only created for
+ * the text that is returned.</p>
+ *
+ * <p>The location is only set on start element events, since that is where it is
+ * used by the parser.</p>
+ */
+class OBFLStreamReader extends XMLParserBase implements XMLEventIterator {
+	private final XMLStreamReader input;
+	private final XMLEventFactory eventFactory;
+	private final boolean normalizeSpace;
+	private final Deque<XMLEvent> buffer;
+	// the namespace context of each open element
+	private final Deque<NamespaceContext> namespaces;
+	private final StringBuilder sb;
+	private boolean started;
+
+	/**
+	 * Creates a new OBFL stream reader.
+	 * @param input the input
+	 * @param eventFactory the xml event factory, which must not be used by
+	 * 			other readers at the same time, since the location is set on it
+	 * @param normalizeSpace true if the whitespace should be normalized, false otherwise
+	 */
+	OBFLStreamReader(XMLStreamReader input, XMLEventFactory eventFactory, boolean normalizeSpace) {
+		this.input = input;
+		this.eventFactory = eventFactory;
+		this.normalizeSpace = normalizeSpace;
+		this.buffer = new ArrayDeque<>();
+		this.namespaces = new ArrayDeque<>();
+		this.namespaces.push(Namespaces.EMPTY);
+		this.sb = new StringBuilder();
+		this.started = false;
+	}
+
+	@Override
+	public boolean hasNext() {
+		try {
+			return !started || !buffer.isEmpty() || input.hasNext();
+		} catch (XMLStreamException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public XMLEvent nextEvent() throws XMLStreamException {
+		if (!started) {
+			started = true;
+			String encoding = input.getCharacterEncodingScheme();
+			if (encoding==null) {
+				return eventFactory.createStartDocument();
+			}
+			String version = input.getVersion();
+			return eventFactory.createStartDocument(encoding, version!=null?version:"1.0");
+		}
+		while (buffer.isEmpty() && input.hasNext()) {
+			readNextChunk();
+		}
+		if (!buffer.isEmpty()) {
+			return buffer.removeFirst();
+		} else {
+			throw new XMLStreamException();
+		}
+	}
+
+	@Override
+	public void close() throws XMLStreamException {
+		buffer.clear();
+		input.close();
+	}
+
+	private void readNextChunk() throws XMLStreamException {
+		Object item = readItem();
+		if (item instanceof String) {
+			String chars = (String)item;
+			if (normalizeSpace) {
+				sb.setLength(0);
+				appendNormalized(sb, chars);
+				chars = sb.toString();
+			}
+			if (!"".equals(chars)) {
+				buffer.add(eventFactory.createCharacters(chars));
+			}
+		} else if (item!=null) {
+			XMLEvent event = (XMLEvent)item;
+			if (normalizeSpace && beginsMixedContent(event)) {
+				parseBlock(event);
+			} else {
+				buffer.add(event);
+			}
+		}
+	}
+
+	/**
+	 * Reads the next item from the input.
+	 * @return the text, if the input is at characters, otherwise
+	 * 		the event, or null if the input isn't supported
+	 * @throws XMLStreamException if the input cannot be read
+	 */
+	private Object readItem() throws XMLStreamException {
+		switch (input.next()) {
+			case XMLStreamConstants.CHARACTERS: case XMLStreamConstants.CDATA: case XMLStreamConstants.SPACE:
+				return input.getText();
+			case XMLStreamConstants.START_ELEMENT:
+				return createStartElement();
+			case XMLStreamConstants.END_ELEMENT:
+				namespaces.pop();
+				return eventFactory.createEndElement(input.getName(), null);
+			case XMLStreamConstants.COMMENT:
+				return eventFactory.createComment(input.getText());
+			case XMLStreamConstants.PROCESSING_INSTRUCTION:
+				return eventFactory.createProcessingInstruction(input.getPITarget(), input.getPIData());
+			case XMLStreamConstants.DTD:
+				return eventFactory.createDTD(input.getText());
+			case XMLStreamConstants.END_DOCUMENT:
+				return eventFactory.createEndDocument();
+			default:
+				return null;
+		}
+	}
+
+	private XMLEvent createStartElement() {
+		NamespaceContext nc = namespaces.peek();
+		Iterator<Namespace> ns;
+		int nsCount = input.getNamespaceCount();
+		if (nsCount>0) {
+			List<Namespace> declared = new ArrayList<>(nsCount);
+			String[] prefixes = new String[nsCount];
+			String[] uris = new String[nsCount];
+			for (int i=0; i<nsCount; i++) {
+				prefixes[i] = input.getNamespacePrefix(i)!=null?input.getNamespacePrefix(i):XMLConstants.DEFAULT_NS_PREFIX;
+				uris[i] = input.getNamespaceURI(i)!=null?input.getNamespaceURI(i):XMLConstants.NULL_NS_URI;
+				declared.add(eventFactory.createNamespace(prefixes[i], uris[i]));
+			}
+			nc = new Namespaces((Namespaces)nc, prefixes, uris);
+			ns = declared.iterator();
+		} else {
+			ns = Collections.emptyIterator();
+		}
+		namespaces.push(nc);
+		Iterator<Attribute> atts;
+		int attCount = input.getAttributeCount();
+		if (attCount>0) {
+			List<Attribute> list = new ArrayList<>(attCount);
+			for (int i=0; i<attCount; i++) {
+				list.add(eventFactory.createAttribute(input.getAttributeName(i), input.getAttributeValue(i)));
+			}
+			atts = list.iterator();
+		} else {
+			atts = Collections.emptyIterator();
+		}
+		QName name = input.getName();
+		eventFactory.setLocation(input.getLocation());
+		XMLEvent ret = eventFactory.createStartElement(name.getPrefix(), name.getNamespaceURI(), name.getLocalPart(), atts, ns, nc);
+		eventFactory.setLocation(null);
+		return ret;
+	}
+
+	private void parseBlock(XMLEvent event) throws XMLStreamException {
+		QName end = event.asStartElement().getName();
+		List<Object> items = new ArrayList<>();
+		items.add(event);
+		while (input.hasNext()) {
+			Object item = readItem();
+			if (item==null) {
+				continue;
+			}
+			if (item instanceof XMLEvent && beginsMixedContent((XMLEvent)item)) {
+				modifyWhitespace(items);
+				items.clear();
+				parseBlock((XMLEvent)item);
+			} else if (item instanceof XMLEvent && equalsEnd((XMLEvent)item, end)) {
+				items.add(item);
+				modifyWhitespace(items);
+				break;
+			} else {
+				items.add(item);
+			}
+		}
+	}
+
+	/**
+	 * Adds the items of a block to the buffer, with the whitespace modified in the same
+	 * way as in {@link OBFLWsNormalizer}. Text items are strings, other items are events.
+	 * @param items the items
+	 */
+	private void modifyWhitespace(List<Object> items) {
+		int size = items.size();
+		for (int i = 0; i < size; i++) {
+			Object item = items.get(i);
+			if (item instanceof String) {
+				final String data = (String)item;
+				boolean pre = false;
+				boolean post = false;
+				boolean beginWSMatch = beginWS(data);
+				boolean space = isSpace(data);
+
+				if (space && ((i == size - 2 && endsMixedContent(items.get(i + 1))) || i == size - 1)) {
+					// this is the last element in the block, ignore
+				} else if (i > 0) {
+					Object preceeding = items.get(i - 1);
+					if (isEnd(preceeding) && beginWSMatch && isPreserveElement(((XMLEvent)preceeding).asEndElement().getName())) {
+						pre = true;
+					} else if (isEnd(preceeding, ObflQName.SPAN, ObflQName.STYLE) && beginWSMatch) {
+						pre = true;
+					} else if (isEnd(preceeding, ObflQName.MARKER, ObflQName.ANCHOR)) {
+						if (beginWSMatch) {
+							pre = true;
+						} else {
+							pre = endsWithSpace(items, untilElementIsNotBackward(items, i - 1, ObflQName.MARKER, ObflQName.ANCHOR));
+						}
+					} else if (isEnd(preceeding)) {
+						pre = endsWithSpace(items, untilEventIsNotBackward(items, i - 1, XMLStreamConstants.END_ELEMENT));
+					}
+				}
+				if (i < size - 1) {
+					Object following = items.get(i + 1);
+					if (space) {
+						// don't output post
+						if (isStart(following, ObflQName.MARKER)) {
+							pre = false;
+						}
+					} else if (isStart(following) && endWS(data) && isPreserveElement(((XMLEvent)following).asStartElement().getName())) {
+						post = true;
+					} else if (isStart(following, ObflQName.SPAN, ObflQName.STYLE) && endWS(data)) {
+						post = true;
+					} else if (isStart(following)) {
+						post = beginsWithSpace(items, untilEventIsNotForward(items, i + 1, XMLStreamConstants.START_ELEMENT));
+					}
+				}
+				sb.setLength(0);
+				if (pre) {
+					sb.append(' ');
+				}
+				appendNormalized(sb, data);
+				if (post) {
+					sb.append(' ');
+				}
+				if (sb.length()>0) {
+					buffer.add(eventFactory.createCharacters(sb.toString()));
+				}
+			} else if (isStart(item, ObflQName.SPAN, ObflQName.STYLE)) {
+				if (i > 0) {
+					int j = untilElementIsNotBackward(items, i - 1, ObflQName.MARKER, ObflQName.ANCHOR);
+					if (!(j > -1 && j < i - 1)) {
+						j = untilEventIsNotBackward(items, i - 1, XMLStreamConstants.END_ELEMENT);
+					}
+					if (j > -1 && j < i - 1 && endsWithSpace(items, j)) {
+						buffer.add(eventFactory.createCharacters(" "));
+					}
+				}
+				buffer.add((XMLEvent)item);
+			} else if (isEnd(item, ObflQName.SPAN, ObflQName.STYLE)) {
+				buffer.add((XMLEvent)item);
+				if (i < size - 1) {
+					int j = untilEventIsNotForward(items, i + 1, XMLStreamConstants.START_ELEMENT);
+					if (j > -1 && j > i + 1 && beginsWithSpace(items, j)) {
+						buffer.add(eventFactory.createCharacters(" "));
+					}
+				}
+			} else {
+				buffer.add((XMLEvent)item);
+			}
+		}
+	}
+
+	/**
+	 * Appends the text with the whitespace normalized, like
+	 * {@link XMLParserBase#normalizeSpace(String)}.
+	 * @param sb the string builder
+	 * @param data the text
+	 */
+	static void appendNormalized(StringBuilder sb, String data) {
+		int start = sb.length();
+		boolean ws = false;
+		for (int i=0; i<data.length(); i++) {
+			char c = data.charAt(i);
+			// the same characters as \s
+			if (c==' ' || c=='\t' || c=='\n' || c=='\u000B' || c=='\f' || c=='\r') {
+				if (!ws) {
+					sb.append(' ');
+					ws = true;
+				}
+			} else {
+				sb.append(c);
+				ws = false;
+			}
+		}
+		// the same characters as String.trim()
+		int end = sb.length();
+		while (end>start && sb.charAt(end-1)<=' ') {
+			end--;
+		}
+		sb.setLength(end);
+		int first = start;
+		while (first<end && sb.charAt(first)<=' ') {
+			first++;
+		}
+		if (first>start) {
+			sb.delete(start, first);
+		}
+	}
+
+	private static boolean endsWithSpace(List<Object> items, int j) {
+		return j > -1 && items.get(j) instanceof String && endWS((String)items.get(j));
+	}
+
+	private static boolean beginsWithSpace(List<Object> items, int j) {
+		return j > -1 && items.get(j) instanceof String && beginWS((String)items.get(j));
+	}
+
+	private static int getEventType(Object item) {
+		return item instanceof String?XMLStreamConstants.CHARACTERS:((XMLEvent)item).getEventType();
+	}
+
+	private static boolean isStart(Object item, QName... name) {
+		return item instanceof XMLEvent && (name.length==0?((XMLEvent)item).isStartElement():equalsStart((XMLEvent)item, name));
+	}
+
+	private static boolean isEnd(Object item, QName... name) {
+		return item instanceof XMLEvent && (name.length==0?((XMLEvent)item).isEndElement():equalsEnd((XMLEvent)item, name));
+	}
+
+	private static boolean isPreserveElement(QName name) {
+		return name.equals(ObflQName.PAGE_NUMBER) || name.equals(ObflQName.LEADER) || name.equals(ObflQName.EVALUATE);
+	}
+
+	private static int untilEventIsNotForward(List<Object> items, final int i, final int eventType) {
+		for (int j = i; j < items.size(); j++) {
+			if (getEventType(items.get(j)) != eventType) {
+				return j;
+			}
+		}
+		return -1;
+	}
+
+	private static int untilEventIsNotBackward(List<Object> items, final int i, final int eventType) {
+		for (int j = 0; j < i; j++) {
+			if (getEventType(items.get(i - j)) != eventType) {
+				return i - j;
+			}
+		}
+		return -1;
+	}
+
+	private static int untilElementIsNotBackward(List<Object> items, final int i, QName... name) {
+		for (int j = 0; j < i; j++) {
+			Object item = items.get(i - j);
+			if (!(item instanceof XMLEvent && equalsElement((XMLEvent)item, name))) {
+				return i - j;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean beginsMixedContent(XMLEvent event) {
+		return equalsStart(event, ObflQName.BLOCK, ObflQName.TOC_ENTRY, ObflQName.ITEM, ObflQName.BEFORE, ObflQName.AFTER, ObflQName.TD);
+	}
+
+	private static boolean endsMixedContent(Object item) {
+		return isEnd(item, ObflQName.BLOCK, ObflQName.TOC_ENTRY, ObflQName.ITEM, ObflQName.BEFORE, ObflQName.AFTER, ObflQName.TD);
+	}
+
+	/**
+	 * Provides a namespace context that doesn't change when the reader moves on.
+	 */
+	private static class Namespaces implements NamespaceContext {
+		private static final Namespaces EMPTY = new Namespaces(null, new String[0], new String[0]);
+		private final Namespaces parent;
+		private final String[] prefixes;
+		private final String[] uris;
+
+		private Namespaces(Namespaces parent, String[] prefixes, String[] uris) {
+			this.parent = parent;
+			this.prefixes = prefixes;
+			this.uris = uris;
+		}
+
+		@Override
+		public String getNamespaceURI(String prefix) {
+			if (prefix==null) {
+				throw new IllegalArgumentException("Null prefix");
+			} else if (XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+				return XMLConstants.XML_NS_URI;
+			} else if (XMLConstants.XMLNS_ATTRIBUTE.equals(prefix)) {
+				return XMLConstants.XMLNS_ATTRIBUTE_NS_URI;
+			}
+			for (Namespaces n = this; n!=null; n = n.parent) {
+				for (int i=0; i<n.prefixes.length; i++) {
+					if (n.prefixes[i].equals(prefix)) {
+						return n.uris[i];
+					}
+				}
+			}
+			return XMLConstants.NULL_NS_URI;
+		}
+
+		@Override
+		public String getPrefix(String namespaceURI) {
+			Iterator<String> i = getPrefixes(namespaceURI);
+			return i.hasNext()?i.next():null;
+		}
+
+		@Override
+		public Iterator<String> getPrefixes(String namespaceURI) {
+			if (namespaceURI==null) {
+				throw new IllegalArgumentException("Null namespace URI");
+			} else if (XMLConstants.XML_NS_URI.equals(namespaceURI)) {
+				return Collections.singletonList(XMLConstants.XML_NS_PREFIX).iterator();
+			} else if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(namespaceURI)) {
+				return Collections.singletonList(XMLConstants.XMLNS_ATTRIBUTE).iterator();
+			}
+			List<String> ret = new ArrayList<>();
+			for (Namespaces n = this; n!=null; n = n.parent) {
+				for (int i=0; i<n.prefixes.length; i++) {
+					// a prefix that is declared again closer to the element is not in scope
+					if (n.uris[i].equals(namespaceURI) && !ret.contains(n.prefixes[i])
+							&& getNamespaceURI(n.prefixes[i]).equals(namespaceURI)) {
+						ret.add(n.prefixes[i]);
+					}
+				}
+			}
+			return ret.iterator();
+		}
+	}
+
+}
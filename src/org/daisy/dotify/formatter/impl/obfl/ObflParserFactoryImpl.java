@@ -25,20 +25,50 @@ import org.osgi.service.component.annotations.ReferenceCardinality;
  *
  * <p>Produces instances of {@link ObflParserImpl}.</p>
  *
+ * <p>By default, the parsers read the input with an event reader. A cursor based
+ * stream reader, which normalizes the whitespace while reading, is used instead if the
+ * system property {@value #STREAM_READER_PROPERTY} is set to "true", or if
+ * {@link #setUsingStreamReader(boolean)} is called.</p>
+ *
  * @author Joel Håkansson
  */
 @Component
 public class ObflParserFactoryImpl implements ObflParserFactoryService {
+	/**
+	 * The name of the system property that selects the stream reader for new parsers.
+	 */
+	public static final String STREAM_READER_PROPERTY = "org.daisy.dotify.formatter.impl.obfl.streamReader";
 	private FactoryManager factoryManager;
+	private final StylesheetCache stylesheets;
+	private boolean streamReader;
 
 	/**
 	 * Creates a new obfl parser factory instance.
 	 */
 	public ObflParserFactoryImpl() {
 		factoryManager = new FactoryManager();
+		stylesheets = new StylesheetCache(factoryManager);
+		streamReader = Boolean.getBoolean(STREAM_READER_PROPERTY);
+	}
+
+	/**
+	 * Sets whether or not new parsers should read the input with a stream reader.
+	 * @param value true if a stream reader should be used, false otherwise
+	 * @see ObflParserImpl#setUsingStreamReader(boolean)
+	 */
+	public void setUsingStreamReader(boolean value) {
+		this.streamReader = value;
+	}
+
+	/**
+	 * Returns true if new parsers read the input with a stream reader.
+	 * @return true if a stream reader is used, false otherwise
+	 */
+	public boolean isUsingStreamReader() {
+		return streamReader;
 	}
 	
-	private void setupFactoryManager() {
+	private synchronized void setupFactoryManager() {
 		//FIXME: all calls to newInstance below are OSGi violations that should be fixed.
 		if (factoryManager.getTransformerFactory()==null) {
 			factoryManager.setTransformerFactory(new net.sf.saxon.TransformerFactoryImpl());
@@ -68,7 +98,9 @@ public class ObflParserFactoryImpl implements ObflParserFactoryService {
 	@Override
 	public ObflParser newObflParser() {
 		setupFactoryManager();
-		return new ObflParserImpl(factoryManager);
+		ObflParserImpl ret = new ObflParserImpl(factoryManager, stylesheets);
+		ret.setUsingStreamReader(streamReader);
+		return ret;
 	}
 
 	/**
@@ -1,5 +1,6 @@
 package org.daisy.dotify.formatter.impl.obfl;
 
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -17,14 +18,15 @@ import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLEventWriter;
 import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.events.Attribute;
 import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.TransformerFactoryConfigurationError;
 import javax.xml.transform.URIResolver;
 import javax.xml.transform.dom.DOMResult;
@@ -113,18 +115,46 @@ public class ObflParserImpl extends XMLParserBase implements ObflParser {
 	private final Logger logger;
 	private final FactoryManager fm;
 	private boolean normalizeSpace = true;
+	private boolean streamReader = false;
 
 	Map<String, Node> xslts = new HashMap<>();
 	Map<String, Node> fileRefs = new HashMap<>();
 	Map<String, List<RendererInfo>> renderers = new HashMap<>();
+	// compiled stylesheets, one for each rendering scenario
+	private final Map<RendererInfo, Templates> templates = new HashMap<>();
+	private final StylesheetCache stylesheets;
+	private final URIResolver uriResolver;
 
 	/**
 	 * Creates a new obfl parser with the specified factory manager.
 	 * @param fm the factory manager
 	 */
 	public ObflParserImpl(FactoryManager fm) {
+		this(fm, new StylesheetCache(fm));
+	}
+
+	/**
+	 * Creates a new obfl parser with the specified factory manager and stylesheet
+	 * cache. The stylesheet cache can be shared with other parsers.
+	 * @param fm the factory manager
+	 * @param stylesheets the stylesheet cache
+	 */
+	ObflParserImpl(FactoryManager fm, StylesheetCache stylesheets) {
 		this.fm = fm;
+		this.stylesheets = stylesheets;
 		this.logger = Logger.getLogger(this.getClass().getCanonicalName());
+		this.uriResolver = new URIResolver() {
+			@Override
+			public Source resolve(String href, String base) throws TransformerException {
+				if ("".equals(base)) {
+					Node d = fileRefs.get(href);
+					if (d!=null) {
+						return new DOMSource(d);
+					}
+				}
+				return null;
+			}
+		};
 	}
 
 	public void setNormalizeSpace(boolean value) {
@@ -134,9 +164,68 @@ public class ObflParserImpl extends XMLParserBase implements ObflParser {
 	public boolean isNormalizingSpace() {
 		return normalizeSpace;
 	}
-	
+
+	/**
+	 * Sets whether or not {@link #parse(InputStream, Formatter)} should read
+	 * the input with an {@link XMLStreamReader}.
+	 * @param value true if a stream reader should be used, false otherwise
+	 */
+	public void setUsingStreamReader(boolean value) {
+		this.streamReader = value;
+	}
+
+	/**
+	 * Returns true if {@link #parse(InputStream, Formatter)} reads the input
+	 * with an {@link XMLStreamReader}.
+	 * @return true if a stream reader is used, false otherwise
+	 */
+	public boolean isUsingStreamReader() {
+		return streamReader;
+	}
+
+	/**
+	 * Parses the input using the xml input factory of this parser. Depending on
+	 * {@link #isUsingStreamReader()}, the input is read with an {@link XMLStreamReader}
+	 * or an {@link XMLEventReader}. The result is the same.
+	 * @param in the input stream
+	 * @param formatter the formatter
+	 * @throws ObflParserException if the input cannot be parsed
+	 */
+	public void parse(InputStream in, Formatter formatter) throws ObflParserException {
+		try {
+			if (streamReader) {
+				parse(fm.createXMLStreamReader(in), formatter);
+			} else {
+				parse(fm.createXMLEventReader(in), formatter);
+			}
+		} catch (XMLStreamException e) {
+			throw new ObflParserException(e);
+		}
+	}
+
 	@Override
 	public void parse(XMLEventReader inputER, Formatter formatter) throws ObflParserException {
+		XMLEventIterator input;
+		if (normalizeSpace) {
+			input = new OBFLWsNormalizer(inputER, fm.newXMLEventFactory());
+		} else {
+			input = new XMLEventReaderAdapter(inputER);
+		}
+		parse(input, formatter);
+	}
+
+	/**
+	 * Parses the input from a stream reader. The whitespace is normalized while
+	 * reading, if {@link #isNormalizingSpace()} is true.
+	 * @param inputSR the input
+	 * @param formatter the formatter
+	 * @throws ObflParserException if the input cannot be parsed
+	 */
+	public void parse(XMLStreamReader inputSR, Formatter formatter) throws ObflParserException {
+		parse(new OBFLStreamReader(inputSR, fm.newXMLEventFactory(), normalizeSpace), formatter);
+	}
+
+	private void parse(XMLEventIterator input, Formatter formatter) throws ObflParserException {
 		this.formatter = formatter;
 		FormatterConfiguration config = formatter.getConfiguration();
 		this.locale = FilterLocale.parse(config.getLocale());
@@ -145,12 +234,6 @@ public class ObflParserImpl extends XMLParserBase implements ObflParser {
 		this.meta = new ArrayList<>();
 		XMLEvent event;
 		TextProperties tp = new TextProperties.Builder(this.locale.toString()).translationMode(mode).hyphenate(hyphGlobal).build();
-		XMLEventIterator input;
-		if (normalizeSpace) {
-			input = new OBFLWsNormalizer(inputER, fm.getXmlEventFactory()); 
-		} else {
-			input = new XMLEventReaderAdapter(inputER);
-		}
 		try {
 			while (input.hasNext()) {
 				event = input.nextEvent();
@@ -608,9 +691,9 @@ public class ObflParserImpl extends XMLParserBase implements ObflParser {
 		String renderer = getAttr(event, "renderer");
 		DOMResult dr;
 		try {
-			Document d = fm.getDocumentBuilderFactory().newDocumentBuilder().newDocument();
+			Document d = fm.newDocumentBuilder().newDocument();
 			dr = new DOMResult(d);
-	        XMLEventWriter ew = fm.getXmlOutputFactory().createXMLEventWriter(dr);
+	        XMLEventWriter ew = fm.createXMLEventWriter(dr);
 			while (input.hasNext()) {
 				event=input.nextEvent();
 				if (equalsEnd(event, ObflQName.XML_DATA)) {
@@ -639,7 +722,7 @@ public class ObflParserImpl extends XMLParserBase implements ObflParser {
 	private XMLDataRenderer filterRenderers(List<RendererInfo> tdl, Node node, TextProperties tp) throws ParserConfigurationException {
 		List<RenderingScenario> qtd = new ArrayList<>();
 		{
-			XPath x = fm.getXpathFactory().newXPath();
+			XPath x = fm.newXPath();
 			for (RendererInfo td : tdl) {
 				if (td.getQualifier()!=null) {
 					x.setNamespaceContext(td.getNamespaceContext());
@@ -658,22 +741,21 @@ public class ObflParserImpl extends XMLParserBase implements ObflParser {
 		return new XMLDataRenderer(qtd);
 	}
 	
+	/**
+	 * Creates a new transformer for the specified rendering scenario. The
+	 * processor of the scenario is only compiled the first time.
+	 * @param n the rendering scenario
+	 * @return returns a new transformer
+	 */
 	private Transformer configureTransformer(RendererInfo n) {
 		try {
-			TransformerFactory tf = fm.getTransformerFactory();
-			tf.setURIResolver(new URIResolver() {
-				@Override
-				public Source resolve(String href, String base) throws TransformerException {
-					if ("".equals(base)) {
-						Node d = fileRefs.get(href);
-						if (d!=null) {
-							return new DOMSource(d);
-						}
-					}
-					return null;
-				}
-			});
-			Transformer ret = tf.newTransformer(new DOMSource(n.getProcessor()));
+			Templates t = templates.get(n);
+			if (t==null) {
+				t = stylesheets.getTemplates(n.getProcessor(), uriResolver);
+				templates.put(n, t);
+			}
+			Transformer ret = t.newTransformer();
+			ret.setURIResolver(uriResolver);
 			for (String name : n.getParams().keySet()) {
 				ret.setParameter(name, n.getParams().get(name));
 			}
@@ -688,9 +770,9 @@ public class ObflParserImpl extends XMLParserBase implements ObflParser {
 		String uri = getAttr(event, ObflQName.ATTR_URI);
 		DOMResult dr;
 		try {
-			Document d = fm.getDocumentBuilderFactory().newDocumentBuilder().newDocument();
+			Document d = fm.newDocumentBuilder().newDocument();
 			dr = new DOMResult(d);
-	        XMLEventWriter ew = fm.getXmlOutputFactory().createXMLEventWriter(dr);
+	        XMLEventWriter ew = fm.createXMLEventWriter(dr);
 			while (input.hasNext()) {
 				event=input.nextEvent();
 				if (equalsEnd(event, ObflQName.FILE_REFERENCE)) {
@@ -711,9 +793,9 @@ public class ObflParserImpl extends XMLParserBase implements ObflParser {
 		String name = getAttr(event, ObflQName.ATTR_NAME);
 		DOMResult dr;
 		try {
-			Document d = fm.getDocumentBuilderFactory().newDocumentBuilder().newDocument();
+			Document d = fm.newDocumentBuilder().newDocument();
 			dr = new DOMResult(d);
-	        XMLEventWriter ew = fm.getXmlOutputFactory().createXMLEventWriter(dr);
+	        XMLEventWriter ew = fm.createXMLEventWriter(dr);
 			while (input.hasNext()) {
 				event=input.nextEvent();
 				if (equalsEnd(event, ObflQName.XML_PROCESSOR)) {
@@ -0,0 +1,80 @@
+package org.daisy.dotify.formatter.impl.obfl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.dom.DOMSource;
+
+import org.daisy.dotify.formatter.impl.common.FactoryManager;
+import org.w3c.dom.DOMException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSException;
+
+/**
+ * <p>Provides compiled stylesheets that can be shared between parsers,
+ * also when the parsers are used by different threads. {@link Templates}
+ * are thread safe, so a stylesheet that occurs in many documents only
+ * has to be compiled once.</p>
+ *
+ * <p>A compiled stylesheet is only kept if the {@link URIResolver} wasn't
+ * used while compiling it, since the resources that it resolves belong to
+ * the document that contained the stylesheet.</p>
+ */
+class StylesheetCache {
+	private static final Logger logger = Logger.getLogger(StylesheetCache.class.getCanonicalName());
+	private static final int MAX_SIZE = 100;
+	private final FactoryManager fm;
+	private final Map<String, Templates> templates;
+
+	/**
+	 * Creates a new empty stylesheet cache.
+	 * @param fm the factory manager
+	 */
+	StylesheetCache(FactoryManager fm) {
+		this.fm = fm;
+		this.templates = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Gets a compiled version of the specified stylesheet.
+	 * @param processor the stylesheet
+	 * @param resolver the uri resolver to use when compiling the stylesheet
+	 * @return the compiled stylesheet
+	 * @throws TransformerConfigurationException if the stylesheet cannot be compiled
+	 */
+	Templates getTemplates(Node processor, URIResolver resolver) throws TransformerConfigurationException {
+		String key = toString(processor);
+		Templates ret = key!=null?templates.get(key):null;
+		if (ret==null) {
+			boolean[] resolved = new boolean[]{false};
+			ret = fm.newTemplates(new DOMSource(processor), (href, base)->{
+				resolved[0] = true;
+				return resolver.resolve(href, base);
+			});
+			if (key!=null && !resolved[0] && templates.size()<MAX_SIZE) {
+				templates.putIfAbsent(key, ret);
+			}
+		}
+		return ret;
+	}
+
+	private static String toString(Node processor) {
+		Document d = processor.getNodeType()==Node.DOCUMENT_NODE?(Document)processor:processor.getOwnerDocument();
+		if (d==null || !d.getImplementation().hasFeature("LS", "3.0")) {
+			return null;
+		}
+		try {
+			return ((DOMImplementationLS)d.getImplementation()).createLSSerializer().writeToString(processor);
+		} catch (DOMException | LSException e) {
+			logger.log(Level.FINE, "Failed to serialize stylesheet.", e);
+			return null;
+		}
+	}
+}
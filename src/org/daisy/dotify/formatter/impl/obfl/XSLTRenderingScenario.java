@@ -7,9 +7,7 @@ import java.io.InputStream;
 import java.util.Map;
 
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.events.XMLEvent;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.dom.DOMSource;
@@ -20,6 +18,7 @@ import org.daisy.dotify.api.formatter.FormatterException;
 import org.daisy.dotify.api.formatter.RenderingScenario;
 import org.daisy.dotify.api.formatter.TextProperties;
 import org.daisy.dotify.api.obfl.Expression;
+import org.daisy.dotify.formatter.impl.common.FactoryManager;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.xml.sax.InputSource;
@@ -49,11 +48,10 @@ public class XSLTRenderingScenario implements RenderingScenario {
 			t.transform(new DOMSource(node), new StreamResult(os));
 			
 			//TODO: could event reader report the errors reported by the dom parser? Specifically, more than one root node.
-			newDocumentFromInputStream(new ByteArrayInputStream(os.toByteArray()), parser.getFactoryManager().getDocumentBuilderFactory());
+			newDocumentFromInputStream(new ByteArrayInputStream(os.toByteArray()), parser.getFactoryManager());
 
 			//render
-			XMLInputFactory factory =  parser.getFactoryManager().getXmlInputFactory();
-			XMLEventIterator input = new XMLEventReaderAdapter(factory.createXMLEventReader(new ByteArrayInputStream(os.toByteArray())));
+			XMLEventIterator input = new XMLEventReaderAdapter(parser.getFactoryManager().createXMLEventReader(new ByteArrayInputStream(os.toByteArray())));
 			XMLEvent event;
 			while (input.hasNext()) {
 				event = input.nextEvent();
@@ -81,10 +79,10 @@ public class XSLTRenderingScenario implements RenderingScenario {
 		}
 	}
 	
-	private static Document newDocumentFromInputStream(InputStream in, DocumentBuilderFactory factory) throws FormatterException {
+	private static Document newDocumentFromInputStream(InputStream in, FactoryManager fm) throws FormatterException {
 		Document ret = null;
 		try {
-			DocumentBuilder builder = factory.newDocumentBuilder();
+			DocumentBuilder builder = fm.newDocumentBuilder();
 			ret = builder.parse(new InputSource(in));
 		} catch (ParserConfigurationException | SAXException | IOException e) {
 			throw new FormatterException(e);
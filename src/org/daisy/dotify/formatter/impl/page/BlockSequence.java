@@ -1,13 +1,16 @@
 package org.daisy.dotify.formatter.impl.page;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 import org.daisy.dotify.api.formatter.FormatterSequence;
 import org.daisy.dotify.api.formatter.SequenceProperties;
+import org.daisy.dotify.formatter.impl.core.Block;
 import org.daisy.dotify.formatter.impl.core.BlockContext;
 import org.daisy.dotify.formatter.impl.core.FormatterContext;
 import org.daisy.dotify.formatter.impl.core.FormatterCoreImpl;
 import org.daisy.dotify.formatter.impl.core.LayoutMaster;
+import org.daisy.dotify.formatter.impl.row.RowDataProperties;
 
 /**
  * Provides an interface for a sequence of block contents.
@@ -22,6 +25,7 @@ public class BlockSequence extends FormatterCoreImpl implements FormatterSequenc
 	private final LayoutMaster master;
 	private final SequenceProperties props;
 	private List<RowGroupSequence> cache;
+	private transient Consumer<BlockSequence> blockListener;
 	
 	public BlockSequence(FormatterContext fc, SequenceProperties props, LayoutMaster master) {
 		super(fc);
@@ -48,6 +52,25 @@ public class BlockSequence extends FormatterCoreImpl implements FormatterSequenc
 	public SequenceProperties getSequenceProperties() {
 		return props;
 	}
+
+	/**
+	 * Sets a listener that is notified each time a new block has been added to
+	 * this sequence with {@link #newBlock(String, RowDataProperties)}. At that point,
+	 * the contents of the preceding blocks are complete.
+	 * @param listener the listener, or null
+	 */
+	public void setBlockListener(Consumer<BlockSequence> listener) {
+		this.blockListener = listener;
+	}
+
+	@Override
+	public Block newBlock(String blockId, RowDataProperties rdp) {
+		Block ret = super.newBlock(blockId, rdp);
+		if (blockListener!=null) {
+			blockListener.accept(this);
+		}
+		return ret;
+	}
 	
 	/**
 	 * Removes additional scenarios from the block list.
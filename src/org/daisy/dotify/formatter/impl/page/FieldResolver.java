@@ -1,7 +1,11 @@
 package org.daisy.dotify.formatter.impl.page;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -27,18 +31,35 @@ import org.daisy.dotify.formatter.impl.row.RowImpl;
 import org.daisy.dotify.formatter.impl.search.CrossReferenceHandler;
 import org.daisy.dotify.formatter.impl.search.PageDetails;
 
+/**
+ * <p>Resolves and renders header and footer fields.</p>
+ *
+ * <p>Fields that don't contain marker references only depend on the page number.
+ * Their translations are cached by page number, and so are the available widths on
+ * the rows of pages where no header or footer field contains a marker reference.
+ * Marker references are always resolved, because the result depends on the
+ * cross-reference information, and because the lookup must be registered
+ * with the cross-reference handler.</p>
+ */
 class FieldResolver {
 	private static final Pattern softHyphen = Pattern.compile("\u00ad");
+	private static final int UNKNOWN_WIDTH = Integer.MIN_VALUE;
 	private final LayoutMaster master;
 	private final FormatterContext fcontext;
 	private final CrossReferenceHandler crh;
 	private final PageDetails detailsTemplate;
+	private final Map<FieldKey, String> translatedFields;
+	private final Map<PageTemplate, Boolean> constantTemplates;
+	private final Map<Integer, int[]> widths;
 
 	FieldResolver(LayoutMaster master, FormatterContext fcontext, CrossReferenceHandler crh, PageDetails detailsTemplate) {
 		this.master = master;
 		this.fcontext = fcontext;
 		this.crh = crh;
 		this.detailsTemplate = detailsTemplate;
+		this.translatedFields = new HashMap<>();
+		this.constantTemplates = new IdentityHashMap<>();
+		this.widths = new HashMap<>();
 	}
 	
 	RowImpl renderField(PageDetails p, FieldList field, BrailleTranslator translator, Optional<RowImpl> r) throws PaginatorException {
@@ -104,21 +125,95 @@ class FieldResolver {
 	private List<String> resolveField(PageDetails p, FieldList chunks, int width, String padding, BrailleTranslator translator, Optional<String> noField) {
 		ArrayList<String> chunkF = new ArrayList<>();
 		for (Field f : chunks.getFields()) {
-			DefaultTextAttribute.Builder b = new DefaultTextAttribute.Builder(null);
-			String resolved = softHyphen.matcher(resolveField(f, p, b, noField)).replaceAll("");
-			Translatable.Builder tr = Translatable.text(fcontext.getConfiguration().isMarkingCapitalLetters()?resolved:resolved.toLowerCase()).
-										hyphenate(false);
-			if (resolved.length()>0) {
-				tr.attributes(b.build(resolved.length()));
-			}
-			try {
-				chunkF.add(translator.translate(tr.build()).getTranslatedRemainder());
-			} catch (TranslationException e) {
-				throw new PaginatorException(e);
+			if (isConstant(f)) {
+				chunkF.add(translatedFields.computeIfAbsent(new FieldKey(f, p.getPageNumber(), translator), k->translateField(f, p, translator, noField)));
+			} else {
+				chunkF.add(translateField(f, p, translator, noField));
 			}
 		}
 		return chunkF;
 	}
+	
+	private String translateField(Field f, PageDetails p, BrailleTranslator translator, Optional<String> noField) {
+		DefaultTextAttribute.Builder b = new DefaultTextAttribute.Builder(null);
+		String resolved = softHyphen.matcher(resolveField(f, p, b, noField)).replaceAll("");
+		Translatable.Builder tr = Translatable.text(fcontext.getConfiguration().isMarkingCapitalLetters()?resolved:resolved.toLowerCase()).
+									hyphenate(false);
+		if (resolved.length()>0) {
+			tr.attributes(b.build(resolved.length()));
+		}
+		try {
+			return translator.translate(tr.build()).getTranslatedRemainder();
+		} catch (TranslationException e) {
+			throw new PaginatorException(e);
+		}
+	}
+	
+	/**
+	 * Returns true if the resolved value of the field only depends on the page number.
+	 * @param f the field
+	 * @return true if the field is constant for a given page number, false otherwise
+	 */
+	private static boolean isConstant(Field f) {
+		if (f instanceof NoField || f instanceof MarkerReferenceField) {
+			return false;
+		} else if (f instanceof CompoundField) {
+			return ((CompoundField)f).stream().allMatch(FieldResolver::isConstant);
+		} else {
+			return true;
+		}
+	}
+	
+	/**
+	 * Returns true if the header and footer of the template only contain fields that are
+	 * constant for a given page number, not counting the fields that are replaced by the
+	 * contents of a row.
+	 * @param p the template
+	 * @return true if the template is constant for a given page number, false otherwise
+	 */
+	private boolean isConstant(PageTemplate p) {
+		return constantTemplates.computeIfAbsent(p, k->{
+			List<FieldList> rows = new ArrayList<>(p.getHeader());
+			rows.addAll(p.getFooter());
+			return rows.stream()
+					.flatMap(v->v.getFields().stream())
+					.allMatch(f->f instanceof NoField || isConstant(f));
+		});
+	}
+	
+	private static class FieldKey {
+		private final Field field;
+		private final int pageNumber;
+		private final BrailleTranslator translator;
+		
+		private FieldKey(Field field, int pageNumber, BrailleTranslator translator) {
+			this.field = field;
+			this.pageNumber = pageNumber;
+			this.translator = translator;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + System.identityHashCode(field);
+			result = prime * result + pageNumber;
+			result = prime * result + System.identityHashCode(translator);
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (obj == null || getClass() != obj.getClass()) {
+				return false;
+			}
+			FieldKey other = (FieldKey) obj;
+			return field == other.field && pageNumber == other.pageNumber && translator == other.translator;
+		}
+	}
 
 	private String distribute(PageDetails p, FieldList chunks, int width, String padding, BrailleTranslator translator, Optional<String> noField) throws PaginatorToolsException {
 		List<String> chunkF = resolveField(p, chunks, width, padding, translator, noField);
@@ -194,6 +289,24 @@ class FieldResolver {
 
 	private int getWidth(PageDetails details, int rowOffset) {
 		PageTemplate p = master.getTemplate(details.getPageNumber());
+		if (rowOffset<0 || !isConstant(p)) {
+			return getWidth(details, p, rowOffset);
+		}
+		int[] profile = widths.computeIfAbsent(details.getPageNumber(), k->{
+			int[] ret = new int[master.getFlowHeight(p)+1];
+			Arrays.fill(ret, UNKNOWN_WIDTH);
+			return ret;
+		});
+		if (rowOffset>=profile.length) {
+			return getWidth(details, p, rowOffset);
+		}
+		if (profile[rowOffset]==UNKNOWN_WIDTH) {
+			profile[rowOffset] = getWidth(details, p, rowOffset);
+		}
+		return profile[rowOffset];
+	}
+
+	private int getWidth(PageDetails details, PageTemplate p, int rowOffset) {
 		int flowHeader = p.validateAndAnalyzeHeader();
 		int flowFooter = p.validateAndAnalyzeFooter();
 		if (flowHeader+flowFooter>0) {
@@ -202,13 +202,13 @@ public class PageImpl implements Page {
 	}
 	
 	private void addRowDetails(RowImpl r) {
-		getDetails().getMarkers().addAll(r.getMarkers());
+		getDetails().addMarkers(r.getMarkers());
 		anchors.addAll(r.getAnchors());
 		identifiers.addAll(r.getIdentifiers());
 	}
 	
 	void addMarkers(List<Marker> m) {
-		getDetails().getMarkers().addAll(m);
+		getDetails().addMarkers(m);
 	}
 	
 	public List<String> getAnchors() {
@@ -2,8 +2,10 @@ package org.daisy.dotify.formatter.impl.page;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Function;
 
@@ -20,7 +22,6 @@ import org.daisy.dotify.common.splitter.SplitPointHandler;
 import org.daisy.dotify.common.splitter.SplitPointSpecification;
 import org.daisy.dotify.common.splitter.StandardSplitOption;
 import org.daisy.dotify.common.splitter.Supplements;
-import org.daisy.dotify.formatter.impl.core.Block;
 import org.daisy.dotify.formatter.impl.core.BlockContext;
 import org.daisy.dotify.formatter.impl.core.ContentCollectionImpl;
 import org.daisy.dotify.formatter.impl.core.FormatterContext;
@@ -28,7 +29,6 @@ import org.daisy.dotify.formatter.impl.core.LayoutMaster;
 import org.daisy.dotify.formatter.impl.core.PaginatorException;
 import org.daisy.dotify.formatter.impl.core.TransitionContent;
 import org.daisy.dotify.formatter.impl.core.TransitionContent.Type;
-import org.daisy.dotify.formatter.impl.row.AbstractBlockContentManager;
 import org.daisy.dotify.formatter.impl.row.RowImpl;
 import org.daisy.dotify.formatter.impl.search.BlockLineLocation;
 import org.daisy.dotify.formatter.impl.search.DefaultContext;
@@ -428,6 +428,9 @@ public class PageSequenceBuilder2 {
 				for (RowGroup rg : res.getSupplements()) {
 					current.addToPageArea(rg.getRows());
 				}
+				if (collection!=null && !res.getSupplements().isEmpty()) {
+					collection.addPlacement(seqId);
+				}
 				force = res.getHead().size()==0;
 				data = res.getTail();
 				List<RowGroup> head;
@@ -490,7 +493,8 @@ public class PageSequenceBuilder2 {
 				}
 				// If the space needed for the footnotes exceeds max-height, we need to use the
 				// fallback. This will result in a RestartPaginationException, i.e. the pagination
-				// should be restarted from the beginning (start of current iteration).
+				// should be restarted from the beginning (start of current iteration), or from
+				// the start of this sequence if it is restartable (see isRestartable).
 				if (hasPageAreaCollection() && current.pageAreaSpaceNeeded() > master.getPageArea().getMaxHeight()) {
 					reassignCollection();
 				}
@@ -628,6 +632,28 @@ public class PageSequenceBuilder2 {
 		p.setKeepWithPreviousSheets(rg.getKeepWithPreviousSheets());
 	}
 	
+	/**
+	 * Returns true if this sequence can be laid out again from the start, instead of
+	 * restarting the pagination from the beginning, after a fallback rule has been
+	 * applied. This is the case if the items of the reassigned collections haven't
+	 * been placed on pages outside of this sequence, since such pages would
+	 * then be different.
+	 * @return true if the sequence can be restarted, false otherwise
+	 */
+	public boolean isRestartable() {
+		if (areaProps!=null) {
+			for (FallbackRule r : areaProps.getFallbackRules()) {
+				if (r instanceof RenameFallbackRule) {
+					ContentCollectionImpl c = context.getCollections().get(((RenameFallbackRule)r).getToCollection());
+					if (c!=null && !c.isPlacedOnlyIn(seqId)) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
 	private void reassignCollection() throws PaginatorException {
 		//reassign collection
 		if (areaProps!=null) {
@@ -656,6 +682,9 @@ public class PageSequenceBuilder2 {
 		private final LayoutMaster master;
 		private final ContentCollectionImpl collection;
 		private double extraOverhead = 0;
+		// the supplements that have been built, and the rows they were built from
+		private final Map<String, RowGroup> groups = new HashMap<>();
+		private final Map<String, List<RowImpl>> groupRows = new HashMap<>();
 		
 		private CollectionData(PageAreaContent staticAreaContent, BlockContext c, LayoutMaster master, ContentCollectionImpl collection) {
 			this.c = c;
@@ -678,19 +707,15 @@ public class PageSequenceBuilder2 {
 		@Override
 		public RowGroup get(String id) {
 			if (collection!=null) {
-				RowGroup.Builder b = new RowGroup.Builder(master.getRowSpacing()).mergeable(false);
-				for (Block g : collection.getBlocks(id)) {
-					AbstractBlockContentManager bcm = g.getBlockContentManager(c);
-					b.addAll(bcm.getCollapsiblePreContentRows());
-					b.addAll(bcm.getInnerPreContentRows());
-					Optional<RowImpl> r;
-					while ((r=bcm.getNext()).isPresent()) {
-						b.add(r.get());
-					}
-					b.addAll(bcm.getPostContentRows());
-					b.addAll(bcm.getSkippablePostContentRows());
+				List<RowImpl> rows = collection.getRows(id, c);
+				RowGroup ret = groups.get(id);
+				// the rows are the same instance as long as the collection hasn't rendered them again
+				if (ret==null || groupRows.get(id)!=rows) {
+					ret = new RowGroup.Builder(master.getRowSpacing()).mergeable(false).addAll(rows).build();
+					groups.put(id, ret);
+					groupRows.put(id, rows);
 				}
-				return b.build();
+				return ret;
 			} else {
 				return null;
 			}
@@ -53,6 +53,9 @@ class RowGroupDataSource implements SplitPointDataSource<RowGroup, RowGroupDataS
 	private int blockIndex;
 	private boolean allowHyphenateLastLine;
 	private int offsetInBlock;
+	// the number of rows in the first countedGroups groups
+	private int rowCount;
+	private int countedGroups;
 
 	RowGroupDataSource(LayoutMaster master, BlockContext bc, List<Block> blocks, BreakBefore breakBefore, VerticalSpacing vs, Supplements<RowGroup> supplements) {
 		super();
@@ -64,6 +67,8 @@ class RowGroupDataSource implements SplitPointDataSource<RowGroup, RowGroupDataS
 		this.blockIndex = 0;
 		this.allowHyphenateLastLine = true;
 		this.offsetInBlock = 0;
+		this.rowCount = 0;
+		this.countedGroups = 0;
 	}
 
 	RowGroupDataSource(RowGroupDataSource template) {
@@ -80,6 +85,13 @@ class RowGroupDataSource implements SplitPointDataSource<RowGroup, RowGroupDataS
 		this.blockIndex = template.blockIndex;
 		this.allowHyphenateLastLine = template.allowHyphenateLastLine;
 		this.reservedWidths = template.reservedWidths;
+		if (offset==0) {
+			this.rowCount = template.rowCount;
+			this.countedGroups = template.countedGroups;
+		} else {
+			this.rowCount = 0;
+			this.countedGroups = 0;
+		}
 	}
 	
 	static RowGroupDataSource copyUnlessNull(RowGroupDataSource template) {
@@ -244,7 +256,23 @@ class RowGroupDataSource implements SplitPointDataSource<RowGroup, RowGroupDataS
 		return data.getGroup()==null?0:data.getGroup().size();
 	}
 	
+	/**
+	 * Counts the rows in the buffer. Since row groups are only added to the end
+	 * of the buffer, only the groups added since the last call are counted.
+	 * @return the number of rows
+	 */
 	private int countRows() {
-		return data.getGroup()==null?0:data.getGroup().stream().mapToInt(v->v.getRows().size()).sum();
+		List<RowGroup> group = data.getGroup();
+		if (group==null) {
+			return 0;
+		}
+		if (countedGroups>group.size()) {
+			rowCount = 0;
+			countedGroups = 0;
+		}
+		for (; countedGroups<group.size(); countedGroups++) {
+			rowCount += group.get(countedGroups).getRows().size();
+		}
+		return rowCount;
 	}
 }
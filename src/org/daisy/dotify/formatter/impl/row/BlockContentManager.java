@@ -1,12 +1,16 @@
 package org.daisy.dotify.formatter.impl.row;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.daisy.dotify.api.formatter.Context;
 import org.daisy.dotify.api.formatter.Marker;
 import org.daisy.dotify.formatter.impl.common.FormatterCoreContext;
+import org.daisy.dotify.formatter.impl.common.LayoutCache;
 import org.daisy.dotify.formatter.impl.search.CrossReferenceHandler;
 import org.daisy.dotify.formatter.impl.search.DefaultContext;
 import org.daisy.dotify.formatter.impl.segment.Segment;
@@ -17,17 +21,56 @@ import org.daisy.dotify.formatter.impl.segment.Segment;
  * text is filtered using the supplied StringFilter before breaking into rows, since
  * the length of the text could change.
  * 
+ * <p>If a {@link LayoutCache} is used, the rows of blocks with static contents are
+ * kept in the cache, see {@link CachedLayout}. If the rows of the block are in the
+ * cache, they are used for as long as the rows are requested with line properties
+ * that break like the default line properties. Otherwise, the rows that have been
+ * used are produced again from the segments before proceeding.</p>
+ * 
  * @author Joel Håkansson
  */
 public class BlockContentManager extends AbstractBlockContentManager {
+	private static final Logger logger = Logger.getLogger(BlockContentManager.class.getCanonicalName());
 	private final List<RowImpl> rows;
-	private final SegmentProcessor sp;
+	private SegmentProcessor sp;
 	private int rowIndex;
+	// the state of the segment processor after the next row has been produced
+	// with the default line properties, or null if not available
+	private SegmentProcessor lookahead;
+	private Optional<RowImpl> lookaheadRow;
+	// the marker segments of the block, or null if the layout cache isn't used
+	private final List<Marker> markers;
+	// the rows from the layout cache, or null if not available
+	private final CachedLayout cached;
+	// true while the rows are taken from the cached layout
+	private boolean useCached;
+	// the key to store the rows with when they are complete, or null if they shouldn't be stored
+	private String cacheKey;
+	// true if all rows have been produced with the default line properties
+	private boolean defaultRows;
 	
 	public BlockContentManager(String blockId, int flowWidth, List<Segment> segments, RowDataProperties rdp, CrossReferenceHandler refs, Context context, FormatterCoreContext fcontext) {
 		super(flowWidth, rdp, fcontext);
 		this.rows = new ArrayList<>();
 		this.sp = new SegmentProcessor(blockId, segments, flowWidth, refs, context, flowWidth - margins.getRightMargin().getContent().length(), margins, fcontext, rdp);
+		LayoutCache layoutCache = fcontext.getLayoutCache();
+		String key = layoutCache!=null?CachedLayout.newKey(blockId, flowWidth, segments, rdp, fcontext):null;
+		CachedLayout c = null;
+		if (key!=null) {
+			this.markers = CachedLayout.getMarkers(segments);
+			byte[] data = layoutCache.get(key);
+			if (data!=null) {
+				try {
+					c = CachedLayout.fromBytes(data, markers);
+				} catch (IOException e) {
+					logger.log(Level.FINE, "Failed to read cached layout.", e);
+				}
+			}
+		} else {
+			this.markers = null;
+		}
+		this.cached = c;
+		this.cacheKey = c==null?key:null;
 		initFields();
 	}
 	
@@ -36,15 +79,28 @@ public class BlockContentManager extends AbstractBlockContentManager {
 		this.rows = new ArrayList<>(template.rows);
 		this.sp = new SegmentProcessor(template.sp);
 		this.rowIndex = template.rowIndex;
+		this.lookahead = null;
+		this.lookaheadRow = null;
+		this.markers = template.markers;
+		this.cached = template.cached;
+		this.useCached = template.useCached;
+		this.cacheKey = template.cacheKey;
+		this.defaultRows = template.defaultRows;
 	}
 	
     private void initFields() {
 		rowIndex = 0;
+		lookahead = null;
+		lookaheadRow = null;
+		useCached = cached!=null;
+		defaultRows = true;
     }
 	
     @Override
 	public void setContext(DefaultContext context) {
 		this.sp.setContext(context);
+		// the row may depend on the context
+		discardLookahead();
 	}
 
 	@Override
@@ -63,14 +119,86 @@ public class BlockContentManager extends AbstractBlockContentManager {
 	 */
 	private boolean ensureBuffer(int index, LineProperties lineProps) {
 		while (index<0 || rows.size()<index) {
+			if (useCached) {
+				if (breaksLike(lineProps, LineProperties.DEFAULT)) {
+					if (rows.size()>=cached.getRows().size()) {
+						return false;
+					}
+					rows.add(cached.getRows().get(rows.size()));
+					continue;
+				}
+				restoreProcessor();
+			}
+			if (lookahead!=null && breaksLike(lineProps, LineProperties.DEFAULT)) {
+				// the row has already been produced
+				sp = lookahead;
+				lookaheadRow.ifPresent(v->rows.add(v));
+				discardLookahead();
+				continue;
+			}
+			discardLookahead();
 			if (!sp.hasMoreData()) {
+				store();
 				return false;
 			}
+			if (!breaksLike(lineProps, LineProperties.DEFAULT)) {
+				defaultRows = false;
+			}
 			sp.getNext(lineProps).ifPresent(v->rows.add(v));
 		}
 		return rows.size()>=index;
 	}
 	
+	private void discardLookahead() {
+		lookahead = null;
+		lookaheadRow = null;
+	}
+
+	/**
+	 * Stops using the cached layout. The segment processor isn't used while
+	 * the rows are taken from the cache, so the same rows are produced again
+	 * to bring it to the current position.
+	 */
+	private void restoreProcessor() {
+		if (useCached) {
+			int count = 0;
+			while (count<rows.size() && sp.hasMoreData()) {
+				if (sp.getNext(LineProperties.DEFAULT).isPresent()) {
+					count++;
+				}
+			}
+			useCached = false;
+		}
+	}
+
+	/**
+	 * Stores the rows in the layout cache, if all rows have been produced
+	 * with the default line properties. This is done at most once.
+	 */
+	private void store() {
+		if (cacheKey!=null && defaultRows) {
+			LayoutCache layoutCache = fcontext.getLayoutCache();
+			if (!layoutCache.containsKey(cacheKey)) {
+				byte[] data = new CachedLayout(rows, sp.getGroupMarkers(), sp.getGroupAnchors(), sp.getGroupIdentifiers(), sp.getForceCount())
+						.toBytes(markers);
+				if (data!=null) {
+					layoutCache.put(cacheKey, data);
+				}
+			}
+		}
+		cacheKey = null;
+	}
+	
+	/**
+	 * Returns true if a row produced with the specified line properties is identical to a
+	 * row produced with the other line properties. The block line location isn't used when
+	 * rows are produced.
+	 */
+	private static boolean breaksLike(LineProperties lp1, LineProperties lp2) {
+		return lp1.suppressHyphenation()==lp2.suppressHyphenation()
+				&& lp1.getReservedWidth()==lp2.getReservedWidth();
+	}
+	
 	@Override
 	public int getRowCount() {
 		if (hasNext()) {
@@ -99,10 +227,21 @@ public class BlockContentManager extends AbstractBlockContentManager {
 	public boolean hasNext() {
 		int diff = rows.size()-rowIndex;
 		if (diff==0) {
-			if (!sp.hasMoreData()) {
+			if (useCached) {
+				return rows.size()<cached.getRows().size();
+			} else if (lookahead!=null) {
+				return lookaheadRow.isPresent();
+			} else if (!sp.hasMoreData()) {
+				store();
 				return false;
+			} else if (sp.hasPendingRow()) {
+				return true;
 			} else {
-				return new SegmentProcessor(sp).getNext(LineProperties.DEFAULT).isPresent();
+				// Produce the next row on a copy and keep the result, so that the row
+				// doesn't have to be produced again if the line properties match.
+				lookahead = new SegmentProcessor(sp);
+				lookaheadRow = lookahead.getNext(LineProperties.DEFAULT);
+				return lookaheadRow.isPresent();
 			}
 		} else if (diff<0) {
 			// The next value should always follow the size of the last produced result.
@@ -129,22 +268,34 @@ public class BlockContentManager extends AbstractBlockContentManager {
 		if (hasNext()) {
 			throw new IllegalStateException();
 		}
-		return sp.getForceCount();
+		return useCached?cached.getForceCount():sp.getForceCount();
+	}
+
+	/**
+	 * Returns true if the group markers, anchors and identifiers should be taken
+	 * from the cached layout, in other words if all rows have been taken from the
+	 * cache. Otherwise, the segment processor is restored if needed.
+	 */
+	private boolean useCachedGroups() {
+		if (useCached && rows.size()<cached.getRows().size()) {
+			restoreProcessor();
+		}
+		return useCached;
 	}
 
 	@Override
 	public List<Marker> getGroupMarkers() {
-		return sp.getGroupMarkers();
+		return useCachedGroups()?cached.getGroupMarkers():sp.getGroupMarkers();
 	}
-	
+
 	@Override
 	public List<String> getGroupAnchors() {
-		return sp.getGroupAnchors();
+		return useCachedGroups()?cached.getGroupAnchors():sp.getGroupAnchors();
 	}
 
 	@Override
 	public List<String> getGroupIdentifiers() {
-		return sp.getGroupIdentifiers();
+		return useCachedGroups()?cached.getGroupIdentifiers():sp.getGroupIdentifiers();
 	}
 
 	@Override
@@ -0,0 +1,468 @@
+package org.daisy.dotify.formatter.impl.row;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.daisy.dotify.api.formatter.FormatterConfiguration;
+import org.daisy.dotify.api.formatter.FormattingTypes;
+import org.daisy.dotify.api.formatter.Marker;
+import org.daisy.dotify.api.formatter.TextProperties;
+import org.daisy.dotify.api.hyphenator.HyphenatorFactoryService;
+import org.daisy.dotify.formatter.impl.common.FormatterCoreContext;
+import org.daisy.dotify.formatter.impl.common.LayoutCache;
+import org.daisy.dotify.formatter.impl.segment.AnchorSegment;
+import org.daisy.dotify.formatter.impl.segment.IdentifierSegment;
+import org.daisy.dotify.formatter.impl.segment.LeaderSegment;
+import org.daisy.dotify.formatter.impl.segment.MarkerSegment;
+import org.daisy.dotify.formatter.impl.segment.Segment;
+import org.daisy.dotify.formatter.impl.segment.Style;
+import org.daisy.dotify.formatter.impl.segment.TextSegment;
+
+/**
+ * <p>Provides the result of breaking the contents of a block into rows, in a form
+ * that can be kept in a {@link LayoutCache}. Besides the rows, the result contains
+ * the group markers, anchors and identifiers that are left when all rows have been
+ * produced, and the number of forced breaks.</p>
+ *
+ * <p>Only blocks where all segments are static can be cached, and only the rows
+ * produced with the default line properties are kept. The key is a hash of
+ * everything that the rows depend on: the segments, the row data properties,
+ * the flow width, the block identifier, the translators and the formatter
+ * configuration. The translator factory, the translator of every translation mode
+ * that is used and the available hyphenators are identified by their class, the
+ * implementation version of their package and the location that they were loaded
+ * from, so that entries made with other versions of those implementations are
+ * not used.</p>
+ *
+ * <p>Markers are kept as references to the marker segments of the block, so that
+ * the markers of rows that are read from the cache are the same objects as the
+ * markers of rows that are produced from the segments.</p>
+ */
+final class CachedLayout {
+	// change this when the format or the layout changes, so that old entries are not used
+	private static final int VERSION = 2;
+	private static final Map<Class<?>, String> IMPLEMENTATIONS = new ConcurrentHashMap<>();
+	private static String hyphenators = null;
+	private final List<RowImpl> rows;
+	private final List<Marker> groupMarkers;
+	private final List<String> groupAnchors;
+	private final List<String> groupIdentifiers;
+	private final int forceCount;
+
+	CachedLayout(List<RowImpl> rows, List<Marker> groupMarkers, List<String> groupAnchors, List<String> groupIdentifiers, int forceCount) {
+		this.rows = Collections.unmodifiableList(new ArrayList<>(rows));
+		this.groupMarkers = Collections.unmodifiableList(new ArrayList<>(groupMarkers));
+		this.groupAnchors = Collections.unmodifiableList(new ArrayList<>(groupAnchors));
+		this.groupIdentifiers = Collections.unmodifiableList(new ArrayList<>(groupIdentifiers));
+		this.forceCount = forceCount;
+	}
+
+	List<RowImpl> getRows() {
+		return rows;
+	}
+
+	List<Marker> getGroupMarkers() {
+		return groupMarkers;
+	}
+
+	List<String> getGroupAnchors() {
+		return groupAnchors;
+	}
+
+	List<String> getGroupIdentifiers() {
+		return groupIdentifiers;
+	}
+
+	int getForceCount() {
+		return forceCount;
+	}
+
+	/**
+	 * Gets the marker segments of a block, in document order.
+	 * @param segments the segments of the block
+	 * @return the marker segments
+	 */
+	static List<Marker> getMarkers(List<Segment> segments) {
+		List<Marker> ret = new ArrayList<>();
+		addMarkers(segments, ret);
+		return ret;
+	}
+
+	private static void addMarkers(List<Segment> segments, List<Marker> ret) {
+		for (Segment s : segments) {
+			switch (s.getSegmentType()) {
+				case Marker:
+					ret.add((MarkerSegment)s);
+					break;
+				case Style:
+					addMarkers(((Style)s).getSegments(), ret);
+					break;
+				default:
+			}
+		}
+	}
+
+	/**
+	 * Creates a new key for the layout of a block.
+	 * @param blockId the block identifier
+	 * @param flowWidth the flow width
+	 * @param segments the segments
+	 * @param rdp the row data properties
+	 * @param fcontext the formatter context
+	 * @return the key, or null if the layout of the block cannot be cached
+	 */
+	static String newKey(String blockId, int flowWidth, List<Segment> segments, RowDataProperties rdp, FormatterCoreContext fcontext) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(VERSION);
+			writeContext(out, fcontext);
+			writeString(out, blockId);
+			out.writeInt(flowWidth);
+			writeProperties(out, rdp);
+			if (!writeSegments(out, segments, fcontext)) {
+				return null;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(bytes.toByteArray());
+			StringBuilder sb = new StringBuilder();
+			for (byte b : hash) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void writeContext(DataOutputStream out, FormatterCoreContext fcontext) throws IOException {
+		FormatterConfiguration config = fcontext.getConfiguration();
+		writeString(out, getImplementation(fcontext.getTranslatorFactory().getClass()));
+		writeString(out, getImplementation(fcontext.getDefaultTranslator().getClass()));
+		writeString(out, getHyphenators());
+		writeString(out, config.getLocale());
+		writeString(out, config.getTranslationMode());
+		out.writeBoolean(config.isHyphenating());
+		out.writeBoolean(config.isMarkingCapitalLetters());
+		out.writeBoolean(config.isAllowingTextOverflowTrimming());
+		out.writeBoolean(config.allowsEndingVolumeOnHyphen());
+		TreeSet<String> ignored = new TreeSet<>(config.getIgnoredStyles());
+		out.writeInt(ignored.size());
+		for (String s : ignored) {
+			writeString(out, s);
+		}
+		out.writeChar(fcontext.getSpaceCharacter());
+	}
+
+	/**
+	 * Gets a string that identifies the implementation of a class.
+	 * @param c the class
+	 * @return the class name, the implementation version and the location of the class
+	 */
+	static String getImplementation(Class<?> c) {
+		return IMPLEMENTATIONS.computeIfAbsent(c, k->{
+			Package p = k.getPackage();
+			String location = null;
+			try {
+				CodeSource cs = k.getProtectionDomain().getCodeSource();
+				if (cs!=null && cs.getLocation()!=null) {
+					location = cs.getLocation().toString();
+				}
+			} catch (SecurityException e) {
+				// the location is unknown
+			}
+			return k.getName() + " " + (p!=null?p.getImplementationVersion():null) + " " + location;
+		});
+	}
+
+	/**
+	 * Gets a string that identifies the hyphenators that are available. The translators
+	 * don't expose their hyphenators, so the hyphenator implementations that can be
+	 * found on the class path are used.
+	 * @return the implementations of the hyphenator factories
+	 */
+	private static synchronized String getHyphenators() {
+		if (hyphenators==null) {
+			TreeSet<String> ret = new TreeSet<>();
+			try {
+				for (HyphenatorFactoryService s : ServiceLoader.load(HyphenatorFactoryService.class)) {
+					ret.add(getImplementation(s.getClass()));
+				}
+			} catch (ServiceConfigurationError e) {
+				// the hyphenators are unknown
+			}
+			hyphenators = String.join(";", ret);
+		}
+		return hyphenators;
+	}
+
+	private static void writeProperties(DataOutputStream out, RowDataProperties rdp) throws IOException {
+		out.writeInt(rdp.getBlockIndent());
+		out.writeInt(rdp.getBlockIndentParent());
+		BlockMargin margins = rdp.getMargins();
+		writeMargin(out, margins.getLeftParent());
+		writeMargin(out, margins.getRightParent());
+		writeMargin(out, margins.getLeftMargin());
+		writeMargin(out, margins.getRightMargin());
+		ListItem item = rdp.getListItem();
+		out.writeBoolean(item!=null);
+		if (item!=null) {
+			writeString(out, item.getLabel());
+			writeString(out, item.getType()!=null?item.getType().name():null);
+		}
+		out.writeInt(rdp.getTextIndent());
+		out.writeInt(rdp.getFirstLineIndent());
+		writeString(out, rdp.getAlignment().name());
+		writeFloat(out, rdp.getRowSpacing());
+		out.writeInt(rdp.getOuterSpaceBefore());
+		out.writeInt(rdp.getOuterSpaceAfter());
+		out.writeInt(rdp.getInnerSpaceBefore());
+		out.writeInt(rdp.getInnerSpaceAfter());
+		out.writeInt(rdp.getOrphans());
+		out.writeInt(rdp.getWidows());
+		writeDecoration(out, rdp.getLeadingDecoration());
+		writeDecoration(out, rdp.getTrailingDecoration());
+		writeString(out, rdp.getUnderlineStyle());
+	}
+
+	private static void writeDecoration(DataOutputStream out, SingleLineDecoration d) throws IOException {
+		out.writeBoolean(d!=null);
+		if (d!=null) {
+			writeString(out, d.getLeftCorner());
+			writeString(out, d.getLinePattern());
+			writeString(out, d.getRightCorner());
+		}
+	}
+
+	/**
+	 * Writes the segments to the key.
+	 * @return false if a segment isn't static, true otherwise
+	 */
+	private static boolean writeSegments(DataOutputStream out, List<Segment> segments, FormatterCoreContext fcontext) throws IOException {
+		out.writeInt(segments.size());
+		for (Segment s : segments) {
+			writeString(out, s.getSegmentType().name());
+			switch (s.getSegmentType()) {
+				case Text:
+					TextSegment ts = (TextSegment)s;
+					TextProperties tp = ts.getTextProperties();
+					writeString(out, ts.getText());
+					writeString(out, tp.getLocale());
+					writeString(out, tp.getTranslationMode());
+					writeString(out, getImplementation(fcontext.getTranslator(tp.getTranslationMode()).getClass()));
+					out.writeBoolean(tp.isHyphenating());
+					out.writeBoolean(ts.shouldMarkCapitalLetters());
+					break;
+				case NewLine:
+					break;
+				case Leader:
+					LeaderSegment ls = (LeaderSegment)s;
+					writeString(out, ls.getPattern());
+					out.writeDouble(ls.getPosition().getValue());
+					out.writeBoolean(ls.getPosition().isRelative());
+					writeString(out, ls.getAlignment().name());
+					break;
+				case Marker:
+					MarkerSegment ms = (MarkerSegment)s;
+					writeString(out, ms.getName());
+					writeString(out, ms.getValue());
+					break;
+				case Anchor:
+					writeString(out, ((AnchorSegment)s).getReferenceID());
+					break;
+				case Identifier:
+					writeString(out, ((IdentifierSegment)s).getName());
+					break;
+				case Style:
+					Style st = (Style)s;
+					writeString(out, st.getName());
+					if (!writeSegments(out, st.getSegments(), fcontext)) {
+						return false;
+					}
+					break;
+				case Reference:
+				case Evaluate:
+				default:
+					// the result depends on the pagination
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Converts this layout to bytes.
+	 * @param markers the marker segments of the block
+	 * @return the bytes, or null if a marker isn't one of the marker segments
+	 */
+	byte[] toBytes(List<Marker> markers) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(rows.size());
+			for (RowImpl r : rows) {
+				writeString(out, r.getChars());
+				if (!writeMarkers(out, r.getMarkers(), markers)) {
+					return null;
+				}
+				writeStrings(out, r.getAnchors());
+				writeStrings(out, r.getIdentifiers());
+				writeMargin(out, r.getLeftMargin());
+				writeMargin(out, r.getRightMargin());
+				writeString(out, r.getAlignment().name());
+				writeFloat(out, r.getRowSpacing());
+				out.writeBoolean(r.shouldAdjustForMargin());
+				out.writeBoolean(r.allowsBreakAfter());
+				out.writeInt(r.getLeaderSpace());
+			}
+			if (!writeMarkers(out, groupMarkers, markers)) {
+				return null;
+			}
+			writeStrings(out, groupAnchors);
+			writeStrings(out, groupIdentifiers);
+			out.writeInt(forceCount);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Reads a layout from bytes.
+	 * @param data the bytes
+	 * @param markers the marker segments of the block
+	 * @return a new layout
+	 * @throws IOException if the data cannot be read
+	 */
+	static CachedLayout fromBytes(byte[] data, List<Marker> markers) throws IOException {
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+			int size = in.readInt();
+			List<RowImpl> rows = new ArrayList<>(size);
+			for (int i=0; i<size; i++) {
+				RowImpl.Builder b = new RowImpl.Builder(readString(in))
+						.addMarkers(readMarkers(in, markers))
+						.addAnchors(readStrings(in))
+						.addIdentifiers(readStrings(in))
+						.leftMargin(readMargin(in))
+						.rightMargin(readMargin(in))
+						.alignment(FormattingTypes.Alignment.valueOf(readString(in)))
+						.rowSpacing(readFloat(in))
+						.adjustedForMargin(in.readBoolean())
+						.allowsBreakAfter(in.readBoolean());
+				b.leaderSpace(in.readInt());
+				rows.add(b.build());
+			}
+			List<Marker> groupMarkers = readMarkers(in, markers);
+			List<String> groupAnchors = readStrings(in);
+			List<String> groupIdentifiers = readStrings(in);
+			return new CachedLayout(rows, groupMarkers, groupAnchors, groupIdentifiers, in.readInt());
+		} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+			throw new IOException("Invalid data.", e);
+		}
+	}
+
+	private static boolean writeMarkers(DataOutputStream out, List<Marker> list, List<Marker> markers) throws IOException {
+		out.writeInt(list.size());
+		for (Marker m : list) {
+			int index = indexOf(markers, m);
+			if (index<0) {
+				return false;
+			}
+			out.writeInt(index);
+		}
+		return true;
+	}
+
+	private static List<Marker> readMarkers(DataInputStream in, List<Marker> markers) throws IOException {
+		int size = in.readInt();
+		List<Marker> ret = new ArrayList<>(size);
+		for (int i=0; i<size; i++) {
+			ret.add(markers.get(in.readInt()));
+		}
+		return ret;
+	}
+
+	// markers don't implement equals, so they are compared by identity
+	private static int indexOf(List<Marker> markers, Marker m) {
+		for (int i=0; i<markers.size(); i++) {
+			if (markers.get(i)==m) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void writeMargin(DataOutputStream out, MarginProperties m) throws IOException {
+		writeString(out, m.getContent());
+		out.writeBoolean(m.isSpaceOnly());
+	}
+
+	private static MarginProperties readMargin(DataInputStream in) throws IOException {
+		return new MarginProperties(readString(in), in.readBoolean());
+	}
+
+	private static void writeFloat(DataOutputStream out, Float value) throws IOException {
+		out.writeBoolean(value!=null);
+		if (value!=null) {
+			out.writeFloat(value);
+		}
+	}
+
+	private static Float readFloat(DataInputStream in) throws IOException {
+		return in.readBoolean()?in.readFloat():null;
+	}
+
+	private static void writeStrings(DataOutputStream out, List<String> list) throws IOException {
+		out.writeInt(list.size());
+		for (String s : list) {
+			writeString(out, s);
+		}
+	}
+
+	private static List<String> readStrings(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		List<String> ret = new ArrayList<>(size);
+		for (int i=0; i<size; i++) {
+			ret.add(readString(in));
+		}
+		return ret;
+	}
+
+	// writeUTF is limited to 64 KB, which isn't enough for the text of a block
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s==null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(s.length());
+			out.writeChars(s);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length<0) {
+			return null;
+		}
+		char[] chars = new char[length];
+		for (int i=0; i<length; i++) {
+			chars[i] = in.readChar();
+		}
+		return new String(chars);
+	}
+}
@@ -1,6 +1,7 @@
 package org.daisy.dotify.formatter.impl.row;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.function.Function;
 import java.util.List;
@@ -36,6 +37,8 @@ class SegmentProcessor implements SegmentProcessing {
 	private final List<Segment> segments;
 	private final CrossReferenceHandler refs;
 	private final AttributeWithContext attr;
+	// identifies the content of the block when translating, or null if the content is dynamic
+	private final ContextKey contextKey;
 
 	private Context context;
 	private final boolean significantContent;
@@ -65,6 +68,7 @@ class SegmentProcessor implements SegmentProcessing {
 		this.refs = refs;
 		this.segments = Collections.unmodifiableList(removeStyles(segments).collect(Collectors.toList()));
 		this.attr = buildAttributeWithContext(null, segments);
+		this.contextKey = ContextKey.newInstance(this.segments, attr);
 		this.context = context;
 		this.groupMarkers = new ArrayList<>();
 		this.groupAnchors = new ArrayList<>();
@@ -108,6 +112,7 @@ class SegmentProcessor implements SegmentProcessing {
 		this.empty  = template.empty;
 		this.segments = template.segments;
 		this.attr = template.attr;
+		this.contextKey = template.contextKey;
 		this.segmentIndex = template.segmentIndex;
 		this.cr = template.cr!=null?template.cr.copy():null;
 		this.closed = template.closed;
@@ -118,6 +123,87 @@ class SegmentProcessor implements SegmentProcessing {
 		this.expressionResolver = (e)->e.getExpression().render(getContext());
 	}
 	
+	/**
+	 * Provides a key for the content of a block that only contains static segments. 
+	 * Since the content is the context of each translation within the block, it is
+	 * part of the key of each translation result that is cached.
+	 */
+	private static final class ContextKey {
+		private final List<Object> parts;
+		private final int hash;
+		// the number of characters and attributes in the key
+		private final int weight;
+
+		private ContextKey(List<Object> parts, int weight) {
+			this.parts = parts;
+			this.hash = parts.hashCode();
+			this.weight = weight;
+		}
+
+		/**
+		 * Creates a new key for the segments.
+		 * @param segments the segments, without styles
+		 * @param attr the attributes of the segments
+		 * @return a new key, or null if a segment isn't static
+		 */
+		private static ContextKey newInstance(List<Segment> segments, AttributeWithContext attr) {
+			List<Object> parts = new ArrayList<>();
+			int weight = 0;
+			for (Segment s : segments) {
+				if (!s.isStatic()) {
+					return null;
+				}
+				parts.add(Arrays.asList(s.getSegmentType(), s.peek(), s.getLocale(), s.shouldHyphenate(), s.shouldMarkCapitalLetters()));
+				weight += s.peek().length();
+			}
+			parts.add(toKey(attr));
+			return new ContextKey(parts, weight + countAttributes(attr));
+		}
+
+		private static List<Object> toKey(AttributeWithContext attr) {
+			if (attr==null) {
+				return null;
+			}
+			List<Object> children = new ArrayList<>();
+			if (attr.hasChildren()) {
+				for (AttributeWithContext a : attr) {
+					children.add(toKey(a));
+				}
+			}
+			return Arrays.asList(attr.getName(), attr.getWidth(), children);
+		}
+
+		private static int countAttributes(AttributeWithContext attr) {
+			if (attr==null) {
+				return 0;
+			}
+			int ret = 1;
+			if (attr.hasChildren()) {
+				for (AttributeWithContext a : attr) {
+					ret += countAttributes(a);
+				}
+			}
+			return ret;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (obj == null || getClass() != obj.getClass()) {
+				return false;
+			}
+			ContextKey other = (ContextKey) obj;
+			return hash==other.hash && parts.equals(other.parts);
+		}
+	}
+
 	/**
 	 * Filters the input list to remove styles (if present). Segments inside styles are inserted
 	 * at the current location in the list.
@@ -343,6 +429,18 @@ class SegmentProcessor implements SegmentProcessing {
 		return cr!=null && cr.hasNext(this);
 	}
 	
+	/**
+	 * Returns true if it is known, without processing any data, that at least one
+	 * more row will be produced. This is the case if a row has been started, since
+	 * every row that is started is eventually flushed, or if the current result is
+	 * text that hasn't been consumed, since processing it starts a new row or flushes
+	 * the current one. A return value of false means that it is unknown.
+	 * @return true if at least one more row will be produced, false if unknown
+	 */
+	boolean hasPendingRow() {
+		return currentRow!=null || cr instanceof CurrentResultImpl && cr.hasNext(this);
+	}
+	
 	public boolean hasSignificantContent() {
 		return significantContent;
 	}
@@ -451,7 +549,11 @@ class SegmentProcessor implements SegmentProcessing {
 			TranslatableWithContext spec = TranslatableWithContext.from(segments, fromIndex, toIndex)
 			.attributes(attr)
 			.build();
-			btr = toResult(spec, mode);
+			if (contextKey!=null) {
+				btr = toResult(spec, mode, fromIndex, toIndex);
+			} else {
+				btr = toResult(spec, mode);
+			}
 			ts.storeResult(btr);
 		} else {
 			btr = ts.newResult();
@@ -630,6 +732,32 @@ class SegmentProcessor implements SegmentProcessing {
 		}		
 	}
 
+	/**
+	 * Translates using the translation cache. This requires that the block
+	 * only contains static segments.
+	 */
+	private BrailleTranslatorResult toResult(TranslatableWithContext spec, String mode, int fromIndex, int toIndex) {
+		FormatterCoreContext fc = spc.getFormatterContext();
+		if (fc.getTranslationCache()==null) {
+			return toResult(spec, mode);
+		}
+		int weight = 0;
+		for (int i=fromIndex; i<toIndex; i++) {
+			weight += segments.get(i).peek().length();
+		}
+		try {
+			// the context key is shared by the translations of all parts of the block
+			return fc.getTranslationCache().translate(
+					Arrays.asList(fc.getTranslatorKey(mode), contextKey, fromIndex, toIndex),
+					weight,
+					contextKey,
+					contextKey.weight,
+					()->fc.getTranslator(mode).translate(spec));
+		} catch (TranslationException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	void reset() {
 		groupAnchors.clear();
 		groupMarkers.clear();
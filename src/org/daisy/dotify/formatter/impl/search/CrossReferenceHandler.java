@@ -4,8 +4,10 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 
@@ -34,7 +36,10 @@ public class CrossReferenceHandler {
 	private static final String PAGES_IN_DOCUMENT = "pages-in-document";
     private Set<String> pageIds;
 	private boolean overheadDirty = false;
-	private boolean readOnly = false;
+	private final Set<Integer> missingOverhead = new LinkedHashSet<>();
+	private CrossReferenceLog log = null;
+	private CrossReferenceJournal journal = null;
+	private int journaledVolumeChanges = 0;
 	
 	public CrossReferenceHandler() {
 		this.pageRefs = new LookupHandler<>();
@@ -54,12 +59,156 @@ public class CrossReferenceHandler {
         this.pageIds = new HashSet<>();
 	}
 	
-	public void setReadOnly() {
-		readOnly = true;
+	/**
+	 * Starts recording the information read from and written to this handler.
+	 * Any log that is being recorded is replaced.
+	 * @return returns the new log
+	 */
+	public CrossReferenceLog startLog() {
+		log = new CrossReferenceLog();
+		return log;
 	}
 	
-	public void setReadWrite() {
-		readOnly = false;
+	/**
+	 * Stops recording the information read from and written to this handler.
+	 */
+	public void stopLog() {
+		log = null;
+	}
+
+	/**
+	 * Starts recording a part of the current log in a separate log. The
+	 * entries are added to both logs. If no log is being recorded, this
+	 * is the same as {@link #startLog()}.
+	 * @return returns the new log
+	 */
+	public CrossReferenceLog startNestedLog() {
+		log = new CrossReferenceLog(log);
+		return log;
+	}
+
+	/**
+	 * Stops recording a nested log and resumes the log it was started from.
+	 * This has no effect if the specified log isn't being recorded.
+	 * @param nested the nested log
+	 */
+	public void stopNestedLog(CrossReferenceLog nested) {
+		if (log==nested) {
+			log = nested.getParent();
+		}
+	}
+
+	/**
+	 * Replays a log (see {@link CrossReferenceLog#replay()}). The entries of
+	 * the log are added to the log that is being recorded, if any.
+	 * @param other the log to replay
+	 * @throws IllegalStateException if the log cannot be reused
+	 */
+	public void replayLog(CrossReferenceLog other) {
+		other.replay();
+		if (log!=null) {
+			log.addAll(other);
+		}
+	}
+	
+	/**
+	 * Starts recording the information read from and written to this handler in a
+	 * journal, instead of applying it. Until the journal is stopped, this handler
+	 * is not modified. See {@link CrossReferenceJournal}.
+	 * @return returns the new journal
+	 * @throws IllegalStateException if a journal is already active
+	 */
+	public CrossReferenceJournal startJournal() {
+		if (journal!=null) {
+			throw new IllegalStateException("Journal is active.");
+		}
+		journal = new CrossReferenceJournal();
+		return journal;
+	}
+	
+	/**
+	 * Stops recording the information read from and written to this handler
+	 * in a journal.
+	 */
+	public void stopJournal() {
+		if (journal!=null) {
+			// the volumes written to the journal are no longer visible
+			for (Map.Entry<Object, Object> e : journal.getWritten(volumeRefs).entrySet()) {
+				if (!e.getValue().equals(volumeRefs.get((String)e.getKey(), null, true))) {
+					journaledVolumeChanges++;
+					break;
+				}
+			}
+			journal.close();
+			journal = null;
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private <K, V> V get(LookupHandler<K, V> handler, K key, V def) {
+		if (journal!=null) {
+			journal.add(()->get(handler, key, def));
+			if (journal.isWritten(handler, key)) {
+				return (V)journal.getWritten(handler, key);
+			}
+		}
+		// a read that is recorded in a journal is repeated when the journal is applied
+		boolean journaled = journal!=null;
+		V ret = handler.get(key, def, journaled);
+		if (log!=null) {
+			log.read(handler, key, ()->Objects.equals(handler.get(key, def, true), ret), ()->{
+				if (!journaled) {
+					handler.get(key, def, false);
+				}
+			});
+		}
+		return ret;
+	}
+	
+	private <K, V> void put(LookupHandler<K, V> handler, K key, V value) {
+		if (journal!=null) {
+			journal.write(handler, key, value, ()->put(handler, key, value));
+			return;
+		}
+		handler.put(key, value);
+		if (log!=null) {
+			log.write(handler, key, ()->handler.put(key, value));
+		}
+	}
+	
+	private <K, V> void keep(LookupHandler<K, V> handler, K key, V value) {
+		if (journal!=null) {
+			journal.add(()->keep(handler, key, value));
+			return;
+		}
+		handler.keep(key, value);
+		if (log!=null) {
+			// kept values cannot be read until committed, so the key isn't registered as written
+			log.write(handler, null, ()->handler.keep(key, value));
+		}
+	}
+	
+	private <K, V> void commit(LookupHandler<K, V> handler) {
+		if (journal!=null) {
+			journal.add(()->commit(handler));
+			return;
+		}
+		handler.commit();
+		if (log!=null) {
+			// the committed keys aren't known here, so later reads cannot be validated
+			log.setNotReusable();
+		}
+	}
+	
+	private void search(Runnable r) {
+		if (journal!=null) {
+			journal.add(()->search(r));
+			return;
+		}
+		r.run();
+		if (log!=null) {
+			log.write(searchInfo, null, r);
+		}
 	}
 	
 	/**
@@ -68,12 +217,29 @@ public class CrossReferenceHandler {
 	 * @return returns the volume number, one-based
 	 */
 	public Integer getVolumeNumber(String refid) {
-		return volumeRefs.get(refid, null, readOnly);
+		return get(volumeRefs, refid, null);
 	}
 	
 	public void setVolumeNumber(String refid, int volume) {
-		if (readOnly) { return; }
-		volumeRefs.put(refid, volume);
+		if (journal!=null) {
+			Object current = journal.isWritten(volumeRefs, refid)?journal.getWritten(volumeRefs, refid):volumeRefs.get(refid, null, true);
+			if (!Integer.valueOf(volume).equals(current)) {
+				journaledVolumeChanges++;
+			}
+		}
+		put(volumeRefs, refid, volume);
+	}
+
+	/**
+	 * Gets a number that changes whenever the volume of an identifier changes,
+	 * including changes that are recorded in a journal. This can be used to find
+	 * out if information that was derived from the volumes of many identifiers
+	 * is still current, without requesting all of them again. Calling this method
+	 * is not recorded in the log or in the journal.
+	 * @return the number of changes
+	 */
+	public int getVolumeNumberChanges() {
+		return volumeRefs.getChangeCount() + journaledVolumeChanges;
 	}
 	
 	/**
@@ -82,128 +248,155 @@ public class CrossReferenceHandler {
 	 * @return returns the page number, one-based
 	 */
 	public Integer getPageNumber(String refid) {
-		return pageRefs.get(refid, null, readOnly);
+		return get(pageRefs, refid, null);
 	}
 	
 	public void setPageNumber(String refid, int page) {
-		if (readOnly) { return; }
+		if (journal!=null) {
+			journal.write(pageRefs, refid, page, ()->setPageNumber(refid, page));
+			return;
+		}
         if (!pageIds.add(refid)) {
             throw new IllegalArgumentException("Identifier not unique: " + refid);
         }
 		pageRefs.put(refid, page);
+		if (log!=null) {
+			log.write(pageRefs, refid, ()->{
+				pageIds.add(refid);
+				pageRefs.put(refid, page);
+			});
+		}
 	}
 	
 	public Iterable<AnchorData> getAnchorData(int volume) {
-		return anchorRefs.get(volume, null, readOnly);
+		return get(anchorRefs, volume, null);
 	}
 	
 	public void setAnchorData(int volume, Iterable<AnchorData> data) {
-		if (readOnly) { return; }
-		anchorRefs.put(volume, data);
+		put(anchorRefs, volume, data);
 	}
 	
 	public void setVolumeCount(int volumes) {
-		if (readOnly) { return; }
-		variables.put(VOLUMES_KEY, volumes);
+		put(variables, VOLUMES_KEY, volumes);
 	}
 	
 	public void setSheetsInVolume(int volume, int value) {
-		if (readOnly) { return; }
-		variables.put(SHEETS_IN_VOLUME+volume, value);
+		put(variables, SHEETS_IN_VOLUME+volume, value);
 	}
 	
 	public void setSheetsInDocument(int value) {
-		if (readOnly) { return; }
-		variables.put(SHEETS_IN_DOCUMENT, value);
+		put(variables, SHEETS_IN_DOCUMENT, value);
 	}
 	
 	private void setPagesInVolume(int volume, int value) {
-		if (readOnly) { return; }
 		//TODO: use this method
-		variables.put(PAGES_IN_VOLUME+volume, value);
+		put(variables, PAGES_IN_VOLUME+volume, value);
 	}
 	
 	private void setPagesInDocument(int value) {
-		if (readOnly) { return; }
 		//TODO: use this method
-		variables.put(PAGES_IN_DOCUMENT, value);
+		put(variables, PAGES_IN_DOCUMENT, value);
 	}
 	
 	public void keepBreakable(SheetIdentity ident, boolean value) {
-		if (readOnly) { return; }
-		breakable.keep(ident, value);
+		keep(breakable, ident, value);
 	}
 	
 	public void commitBreakable() {
-		if (readOnly) { return; }
-		breakable.commit();
+		commit(breakable);
 	}
 	
 	public void keepTransitionProperties(BlockLineLocation id, TransitionProperties value) {
-		if (readOnly) { return; }
-		transitionProperties.keep(id, value);
+		keep(transitionProperties, id, value);
 	}
 	
 	public void commitTransitionProperties() {
-		if (readOnly) { return; }
-		transitionProperties.commit();
+		commit(transitionProperties);
 	}
 	
 	public void setRowCount(BlockAddress blockId, int value) {
-		if (readOnly) { return; }
-		rowCount.put(blockId, value);
+		put(rowCount, blockId, value);
 	}
 	
 	public void trimPageDetails() {
-		if (readOnly) { return; }
 		//FIXME: implement
 	}
 	
 	public void setGroupAnchors(BlockAddress blockId, List<String> anchors) {
-		if (readOnly) {
-			return;
-		}
-		groupAnchors.put(blockId, anchors.isEmpty() ? Collections.emptyList() : new ArrayList<>(anchors));
+		put(groupAnchors, blockId, anchors.isEmpty() ? Collections.emptyList() : new ArrayList<>(anchors));
 	}
 
 	public void setGroupMarkers(BlockAddress blockId, List<Marker> markers) {
-		if (readOnly) {
-			return;
-		}
-		groupMarkers.put(blockId, markers.isEmpty() ? Collections.emptyList() : new ArrayList<>(markers));
+		put(groupMarkers, blockId, markers.isEmpty() ? Collections.emptyList() : new ArrayList<>(markers));
 	}
 	
 	public void setGroupIdentifiers(BlockAddress blockId, List<String> identifiers) {
-		if (readOnly) {
-			return;
-		}
-		groupIdentifiers.put(blockId, identifiers.isEmpty() ? Collections.emptyList() : new ArrayList<>(identifiers));
+		put(groupIdentifiers, blockId, identifiers.isEmpty() ? Collections.emptyList() : new ArrayList<>(identifiers));
 	}
 	
 	public Overhead getOverhead(int volumeNumber) {
 		if (volumeNumber<1) {
 			throw new IndexOutOfBoundsException("Volume must be greater than or equal to 1");
 		}
+		if (journal!=null) {
+			journal.add(()->getOverhead(volumeNumber));
+			if (journal.isWritten(volumeOverhead, volumeNumber)) {
+				return (Overhead)journal.getWritten(volumeOverhead, volumeNumber);
+			}
+		}
+		// a read that is recorded in a journal is repeated when the journal is applied
+		boolean journaled = journal!=null;
+		Overhead ret = getOverhead(volumeNumber, journaled);
+		if (log!=null) {
+			log.read(volumeOverhead, volumeNumber, ()->ret.equals(volumeOverhead.getOrDefault(volumeNumber, new Overhead(0, 0))), ()->getOverhead(volumeNumber, journaled));
+		}
+		return ret;
+	}
+	
+	private Overhead getOverhead(int volumeNumber, boolean traceless) {
 		if (volumeOverhead.get(volumeNumber)==null) {
-			if (readOnly) { return new Overhead(0, 0); }
+			if (traceless) { return new Overhead(0, 0); }
 			volumeOverhead.put(volumeNumber, new Overhead(0, 0));
 			overheadDirty = true;
+			missingOverhead.add(volumeNumber);
 		}
 		return volumeOverhead.get(volumeNumber);
 	}
 	
 	public void setOverhead(int volumeNumber, Overhead overhead) {
-		if (readOnly) { return; }
+		if (journal!=null) {
+			journal.write(volumeOverhead, volumeNumber, overhead, ()->setOverhead(volumeNumber, overhead));
+			return;
+		}
 		volumeOverhead.put(volumeNumber, overhead);
+		if (log!=null) {
+			log.write(volumeOverhead, volumeNumber, ()->volumeOverhead.put(volumeNumber, overhead));
+		}
 	}
 	
 	public Integer getPageNumberOffset(String key) {
-		return counters.get(key);
+		if (journal!=null) {
+			journal.add(()->getPageNumberOffset(key));
+			if (journal.isWritten(counters, key)) {
+				return (Integer)journal.getWritten(counters, key);
+			}
+		}
+		Integer ret = counters.get(key);
+		if (log!=null) {
+			log.read(counters, key, ()->Objects.equals(counters.get(key), ret), ()->{});
+		}
+		return ret;
 	}
 
 	public void setPageNumberOffset(String key, Integer value) {
-		if (readOnly) { return; }
+		if (journal!=null) {
+			journal.write(counters, key, value, ()->setPageNumberOffset(key, value));
+			return;
+		}
 		counters.put(key, value);
+		if (log!=null) {
+			log.write(counters, key, ()->counters.put(key, value));
+		}
 	}
 
 	/**
@@ -211,57 +404,55 @@ public class CrossReferenceHandler {
 	 * @return returns the number of volumes
 	 */
 	public int getVolumeCount() {
-		return variables.get(VOLUMES_KEY, 1, readOnly);
+		return get(variables, VOLUMES_KEY, 1);
 	}
 	
 	public int getSheetsInVolume(int volume) {
-		return variables.get(SHEETS_IN_VOLUME+volume, 0, readOnly);
+		return get(variables, SHEETS_IN_VOLUME+volume, 0);
 	}
 
 	public int getSheetsInDocument() {
-		return variables.get(SHEETS_IN_DOCUMENT, 0, readOnly);
+		return get(variables, SHEETS_IN_DOCUMENT, 0);
 	}
 	
 	public int getPagesInVolume(int volume) {
-		return variables.get(PAGES_IN_VOLUME+volume, 0, readOnly);
+		return get(variables, PAGES_IN_VOLUME+volume, 0);
 	}
 
 	public int getPagesInDocument() {
-		return variables.get(PAGES_IN_DOCUMENT, 0, readOnly);
+		return get(variables, PAGES_IN_DOCUMENT, 0);
 	}
 	
 	public boolean getBreakable(SheetIdentity ident) {
-		return breakable.get(ident, true, readOnly);
+		return get(breakable, ident, true);
 	}
 	
 	public Optional<TransitionProperties> getTransitionProperties(BlockLineLocation id) {
-		return Optional.ofNullable(transitionProperties.get(id, null, readOnly));
+		return Optional.ofNullable(get(transitionProperties, id, null));
 	}
 
 	public List<String> getGroupAnchors(BlockAddress blockId) {
-		return groupAnchors.get(blockId, Collections.emptyList(), readOnly);
+		return get(groupAnchors, blockId, Collections.emptyList());
 	}
 
 	public List<Marker> getGroupMarkers(BlockAddress blockId) {
-		return groupMarkers.get(blockId, Collections.emptyList(), readOnly);
+		return get(groupMarkers, blockId, Collections.emptyList());
 	}
 	
 	public List<String> getGroupIdentifiers(BlockAddress blockId) {
-		return groupIdentifiers.get(blockId, Collections.emptyList(), readOnly);
+		return get(groupIdentifiers, blockId, Collections.emptyList());
 	}
 	
 	public int getRowCount(BlockAddress blockId) {
-		return rowCount.get(blockId, Integer.MAX_VALUE, readOnly);
+		return get(rowCount, blockId, Integer.MAX_VALUE);
 	}
 	
 	public void keepPageDetails(PageDetails value) {
-		if (readOnly) { return; }
-		searchInfo.keepPageDetails(value);
+		search(()->searchInfo.keepPageDetails(value));
 	}
 	
 	public void commitPageDetails() {
-		if (readOnly) { return; }
-		searchInfo.commitPageDetails();
+		search(()->searchInfo.commitPageDetails());
 	}
 	
 	/**
@@ -271,8 +462,7 @@ public class CrossReferenceHandler {
 	 * @param toIndex the end index
 	 */
 	public void setSequenceScope(SequenceId sequenceId, int fromIndex, int toIndex) {
-		if (readOnly) { return; }
-		searchInfo.setSequenceScope(sequenceId, fromIndex, toIndex);
+		search(()->searchInfo.setSequenceScope(sequenceId, fromIndex, toIndex));
 	}
 	
 	/**
@@ -282,8 +472,7 @@ public class CrossReferenceHandler {
 	 * @param toIndex the end index
 	 */
 	public void setVolumeScope(int volumeNumber, int fromIndex, int toIndex) {
-		if (readOnly) { return; }
-		searchInfo.setVolumeScope(volumeNumber, fromIndex, toIndex);
+		search(()->searchInfo.setVolumeScope(volumeNumber, fromIndex, toIndex));
 	}
 	
 	/**
@@ -302,16 +491,22 @@ public class CrossReferenceHandler {
 	 * @return returns the marker value, or an empty string if not found
 	 */
 	public String findMarker(PageId id, MarkerReferenceField spec) {
-		return searchInfo.findStartAndMarker(id, spec);
+		if (journal!=null) {
+			journal.add(()->findMarker(id, spec));
+		}
+		String ret = searchInfo.findStartAndMarker(id, spec);
+		if (log!=null) {
+			log.read(searchInfo, null, ()->searchInfo.findStartAndMarker(id, spec).equals(ret), ()->{});
+		}
+		return ret;
 	}
 
 	public Optional<PageDetails> getNextPageDetailsInSequence(BlockLineLocation id) {
-		return Optional.ofNullable(nextPageDetails.get(id, null, readOnly));
+		return Optional.ofNullable(get(nextPageDetails, id, null));
 	}
 	
 	public void setNextPageDetailsInSequence(BlockLineLocation id, PageDetails details) {
-		if (readOnly) { return; }
-		nextPageDetails.put(id, details);
+		put(nextPageDetails, id, details);
 	}
 	
 	/**
@@ -327,6 +522,31 @@ public class CrossReferenceHandler {
 		 //|| groupMarkers.isDirty() || rowCount.isDirty()
 	}
 	
+	/**
+	 * Gets a report of the information that has made this handler dirty
+	 * since the dirty flag was last reset. This is useful for finding out why
+	 * another iteration is needed. The report should be requested before
+	 * {@link #setDirty(boolean)} is called.
+	 * @return returns the report
+	 */
+	public IterationReport getIterationReport() {
+		IterationReport.Builder b = new IterationReport.Builder();
+		add(b, "page-refs", pageRefs);
+		add(b, "volume-refs", volumeRefs);
+		add(b, "anchor-refs", anchorRefs);
+		add(b, "variables", variables);
+		add(b, "breakable", breakable);
+		add(b, "transition-properties", transitionProperties);
+		b.add("overhead", missingOverhead, IterationReport.Cause.MISSING);
+		b.add("page-details", searchInfo.getChangedPages(), IterationReport.Cause.CHANGED);
+		return b.build();
+	}
+	
+	private static void add(IterationReport.Builder b, String category, LookupHandler<?, ?> handler) {
+		b.add(category, handler.getMissingKeys(), IterationReport.Cause.MISSING);
+		b.add(category, handler.getChangedKeys(), IterationReport.Cause.CHANGED);
+	}
+	
 	/**
 	 * Sets the dirty flag on all tracked data. This is typically used to reset 
 	 * the value of the flag when rendering another pass. However, by setting this
@@ -335,7 +555,10 @@ public class CrossReferenceHandler {
 	 * @param value the value
 	 */
 	public void setDirty(boolean value) {
-		if (readOnly) { return; }
+		if (journal!=null) {
+			journal.add(()->setDirty(value));
+			return;
+		}
 		pageRefs.setDirty(value);
 		volumeRefs.setDirty(value);
 		anchorRefs.setDirty(value);
@@ -348,11 +571,17 @@ public class CrossReferenceHandler {
 		//groupAnchors.setDirty(value);
 		//groupMarkers.setDirty(value);
 		overheadDirty = value;
+		if (!value) {
+			missingOverhead.clear();
+		}
 		counters.clear();
 	}
 
     public void resetUniqueChecks() {
-		if (readOnly) { return; }
+		if (journal!=null) {
+			journal.add(()->resetUniqueChecks());
+			return;
+		}
         pageIds = new HashSet<>();
     }
 
@@ -0,0 +1,114 @@
+package org.daisy.dotify.formatter.impl.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Provides a record of the reads and writes made to a {@link CrossReferenceHandler}
+ * during speculative work, for example when sheets are laid out in order to find
+ * the best volume break. While the journal is active, the writes are not applied to
+ * the handler, but they are visible to subsequent reads. Reads do not affect the
+ * dirty status of the handler.</p>
+ *
+ * <p>When it is known how much of the work is kept, the first entries of the journal
+ * can be replayed on the handler. This has the same effect on the handler as if
+ * that part of the work had been done again.</p>
+ *
+ * <p>Note that values that are kept and committed while the journal is active are
+ * not visible to subsequent reads.</p>
+ *
+ * <p>Instances are created with {@link CrossReferenceHandler#startJournal()}.</p>
+ */
+public final class CrossReferenceJournal {
+	private final List<Runnable> entries;
+	private final Map<Object, Map<Object, Object>> written;
+	private boolean active;
+
+	CrossReferenceJournal() {
+		this.entries = new ArrayList<>();
+		this.written = new IdentityHashMap<>();
+		this.active = true;
+	}
+
+	/**
+	 * Records a read or a write that is not visible to subsequent reads.
+	 * @param replay the operation to perform when the entry is replayed
+	 */
+	void add(Runnable replay) {
+		entries.add(replay);
+	}
+
+	/**
+	 * Records a write that is visible to subsequent reads.
+	 * @param target the object that was written to
+	 * @param key the key that was written
+	 * @param value the value
+	 * @param replay the write to perform when the entry is replayed
+	 */
+	void write(Object target, Object key, Object value, Runnable replay) {
+		written.computeIfAbsent(target, k->new HashMap<>()).put(key, value);
+		entries.add(replay);
+	}
+
+	/**
+	 * Returns true if a value has been written to the key in this journal.
+	 * @param target the object
+	 * @param key the key
+	 * @return true if the key has been written, false otherwise
+	 */
+	boolean isWritten(Object target, Object key) {
+		Map<Object, Object> values = written.get(target);
+		return values!=null && values.containsKey(key);
+	}
+
+	/**
+	 * Gets the last value written to the key in this journal.
+	 * @param target the object
+	 * @param key the key
+	 * @return the value
+	 */
+	Object getWritten(Object target, Object key) {
+		return written.get(target).get(key);
+	}
+
+	/**
+	 * Gets the last values written to the target in this journal.
+	 * @param target the object
+	 * @return the values of the keys that have been written
+	 */
+	Map<Object, Object> getWritten(Object target) {
+		return written.getOrDefault(target, Collections.emptyMap());
+	}
+
+	void close() {
+		active = false;
+	}
+
+	/**
+	 * Gets the number of entries in this journal.
+	 * @return the number of entries
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Repeats the first reads and writes in this journal on the {@link CrossReferenceHandler},
+	 * in the order they were made. This should be done at most once for each journal.
+	 * @param count the number of entries to replay
+	 * @throws IllegalStateException if the journal is active
+	 * @throws IndexOutOfBoundsException if count is greater than the size of the journal
+	 */
+	public void replay(int count) {
+		if (active) {
+			throw new IllegalStateException("Journal is active.");
+		}
+		for (Runnable r : entries.subList(0, count)) {
+			r.run();
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package org.daisy.dotify.formatter.impl.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+/**
+ * <p>Provides a record of the interactions with a {@link CrossReferenceHandler}
+ * during a unit of work, for example the layout of a volume. The record
+ * can be used in a later iteration to determine if the information that the
+ * unit of work depended on is unchanged and, if so, to reproduce the effects
+ * that the unit of work had on the {@link CrossReferenceHandler} without
+ * doing the work again.</p>
+ *
+ * <p>The entries are kept in the order they were made. A read of a value that was
+ * written earlier in the same log is not validated, since the value is determined
+ * by the log itself.</p>
+ *
+ * <p>Instances are created with {@link CrossReferenceHandler#startLog()}. A part of the
+ * work can be recorded in a separate log with {@link CrossReferenceHandler#startNestedLog()}.
+ * The entries of a nested log are also added to the log it was started from.</p>
+ */
+public final class CrossReferenceLog {
+	private final CrossReferenceLog parent;
+	private final List<Entry> entries;
+	private final Map<Object, Set<Object>> written;
+	private boolean reusable;
+
+	private static class Entry {
+		private final BooleanSupplier unchanged;
+		private final Runnable replay;
+
+		private Entry(BooleanSupplier unchanged, Runnable replay) {
+			this.unchanged = unchanged;
+			this.replay = replay;
+		}
+	}
+
+	CrossReferenceLog() {
+		this(null);
+	}
+
+	CrossReferenceLog(CrossReferenceLog parent) {
+		this.parent = parent;
+		this.entries = new ArrayList<>();
+		this.written = new IdentityHashMap<>();
+		this.reusable = true;
+	}
+
+	/**
+	 * Records a read.
+	 * @param source the object that was read
+	 * @param key the key that was read, or null if not applicable
+	 * @param unchanged a supplier that returns true if the current value is the same as the value that was read
+	 * @param replay the side effects of the read, if any
+	 */
+	void read(Object source, Object key, BooleanSupplier unchanged, Runnable replay) {
+		if (key!=null && written.getOrDefault(source, Collections.emptySet()).contains(key)) {
+			entries.add(new Entry(()->true, replay));
+		} else {
+			entries.add(new Entry(unchanged, replay));
+		}
+		if (parent!=null) {
+			parent.read(source, key, unchanged, replay);
+		}
+	}
+
+	/**
+	 * Records a write.
+	 * @param target the object that was written to
+	 * @param key the key that was written, or null if not applicable
+	 * @param replay the write
+	 */
+	void write(Object target, Object key, Runnable replay) {
+		if (key!=null) {
+			written.computeIfAbsent(target, k->new HashSet<>()).add(key);
+		}
+		entries.add(new Entry(()->true, replay));
+		if (parent!=null) {
+			parent.write(target, key, replay);
+		}
+	}
+
+	/**
+	 * Adds the entries of another log to this log, as if the interactions
+	 * had been recorded here.
+	 * @param other the other log
+	 */
+	void addAll(CrossReferenceLog other) {
+		entries.addAll(other.entries);
+		for (Map.Entry<Object, Set<Object>> e : other.written.entrySet()) {
+			written.computeIfAbsent(e.getKey(), k->new HashSet<>()).addAll(e.getValue());
+		}
+		if (!other.reusable) {
+			reusable = false;
+		}
+		if (parent!=null) {
+			parent.addAll(other);
+		}
+	}
+
+	/**
+	 * Gets the log that this log was started from.
+	 * @return the parent log, or null if this log isn't nested
+	 */
+	CrossReferenceLog getParent() {
+		return parent;
+	}
+
+	/**
+	 * Marks this log as impossible to reuse. This is used when the effects of an
+	 * operation cannot be validated.
+	 */
+	void setNotReusable() {
+		reusable = false;
+		if (parent!=null) {
+			parent.setNotReusable();
+		}
+	}
+
+	/**
+	 * Returns true if this log can be reused, in other words if it
+	 * may become valid.
+	 * @return true if the log can be reused, false otherwise
+	 */
+	public boolean isReusable() {
+		return reusable;
+	}
+
+	/**
+	 * Returns true if the information read while this log was recorded
+	 * is unchanged in the {@link CrossReferenceHandler}.
+	 * @return true if the information is unchanged, false otherwise
+	 */
+	public boolean isValid() {
+		return reusable && entries.stream().allMatch(e->e.unchanged.getAsBoolean());
+	}
+
+	/**
+	 * Repeats the reads and writes in this log, in the order they were made. Reads are
+	 * repeated so that subsequent changes are detected by the {@link CrossReferenceHandler}
+	 * in the same way as if the work had been done again.
+	 * @throws IllegalStateException if the log cannot be reused
+	 */
+	public void replay() {
+		if (!reusable) {
+			throw new IllegalStateException("Log cannot be replayed.");
+		}
+		for (Entry e : entries) {
+			e.replay.run();
+		}
+	}
+
+	/**
+	 * Gets the number of entries in this log.
+	 * @return the number of entries
+	 */
+	public int size() {
+		return entries.size();
+	}
+}
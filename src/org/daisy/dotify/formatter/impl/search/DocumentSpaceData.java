@@ -1,12 +1,23 @@
 package org.daisy.dotify.formatter.impl.search;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.daisy.dotify.api.formatter.Marker;
 
 /**
- * Provides the data needed for searching a document space.  
+ * <p>Provides the data needed for searching a document space.</p>
+ *
+ * <p>The committed page details are indexed by marker name, so that the nearest
+ * page with a marker of a given name can be found without visiting the pages in
+ * between. The index is updated when page details are committed.</p>
  * @author Joel Håkansson
  */
 class DocumentSpaceData {
@@ -14,10 +25,126 @@ class DocumentSpaceData {
 		final List<PageDetails> pageDetails;
 		final Map<Integer, View<PageDetails>> volumeViews;
 		final Map<SequenceId, View<PageDetails>> sequenceViews;
+		// kept page details, by page index
+		private PageDetails[] uncommitted;
+		private int uncommittedFrom;
+		private int uncommittedTo;
+		// the indices of the committed pages that have a marker with a given name, by name
+		private final Map<String, NavigableSet<Integer>> markerPages;
+		// the indices of the pages that haven't been committed, below the size of pageDetails
+		private final NavigableSet<Integer> missingPages;
 		
 		DocumentSpaceData() {
 			this.pageDetails = new ArrayList<>();
 			this.volumeViews = new HashMap<>();
 			this.sequenceViews = new HashMap<>();		
+			this.uncommitted = new PageDetails[0];
+			this.uncommittedFrom = 0;
+			this.uncommittedTo = 0;
+			this.markerPages = new HashMap<>();
+			this.missingPages = new TreeSet<>();
+		}
+		
+		/**
+		 * Returns true if there are kept page details that haven't been committed.
+		 * @return true if there are uncommitted page details, false otherwise
+		 */
+		boolean hasUncommitted() {
+			return uncommittedFrom<uncommittedTo;
+		}
+		
+		/**
+		 * Keeps the page details until the next call to {@link #commit(Set)}. If page details
+		 * with the same page index has already been kept, they are replaced.
+		 * @param value the page details
+		 */
+		void keep(PageDetails value) {
+			int index = value.getPageId().getPageIndex();
+			if (index>=uncommitted.length) {
+				uncommitted = Arrays.copyOf(uncommitted, Math.max(index+1, uncommitted.length*2));
+			}
+			uncommitted[index] = value;
+			if (!hasUncommitted()) {
+				uncommittedFrom = index;
+				uncommittedTo = index+1;
+			} else {
+				uncommittedFrom = Math.min(uncommittedFrom, index);
+				uncommittedTo = Math.max(uncommittedTo, index+1);
+			}
+		}
+		
+		/**
+		 * Commits the kept page details. Page details keep the hash code of their markers
+		 * up to date as markers are added, and compare it before the markers themselves.
+		 * The markers of a page are therefore only compared in full when the page is
+		 * likely to be unchanged.
+		 * @param changedPages the set to add the ids of changed pages to
+		 * @return true if any page details changed, false otherwise
+		 */
+		boolean commit(Set<PageId> changedPages) {
+			boolean changed = false;
+			if (uncommittedTo>pageDetails.size()) {
+				for (int i=pageDetails.size(); i<uncommittedTo; i++) {
+					missingPages.add(i);
+				}
+				pageDetails.addAll(Collections.nCopies(uncommittedTo-pageDetails.size(), null));
+			}
+			for (int i=uncommittedFrom; i<uncommittedTo; i++) {
+				PageDetails value = uncommitted[i];
+				if (value==null) {
+					continue;
+				}
+				uncommitted[i] = null;
+				value.compact();
+				PageDetails old = pageDetails.set(i, value);
+				if (old==null || !value.equals(old)) {
+					changed = true;
+					changedPages.add(value.getPageId());
+					if (old==null) {
+						missingPages.remove(i);
+					} else {
+						for (Marker m : old.getMarkers()) {
+							NavigableSet<Integer> pages = markerPages.get(m.getName());
+							if (pages!=null) {
+								pages.remove(i);
+							}
+						}
+					}
+					for (Marker m : value.getMarkers()) {
+						markerPages.computeIfAbsent(m.getName(), k->new TreeSet<>()).add(i);
+					}
+				}
+			}
+			uncommittedFrom = 0;
+			uncommittedTo = 0;
+			return changed;
+		}
+	
+		/**
+		 * Finds the nearest committed page with a marker with the specified name, starting
+		 * with the page after (or before) the specified page and moving away from it.
+		 * The search ends at the specified limit or at the first page that hasn't been
+		 * committed, whichever comes first.
+		 * @param name the marker name
+		 * @param pageIndex the index of the page to start from, exclusive
+		 * @param forward true if the search should move forward, false otherwise
+		 * @param limit the index where the search ends, exclusive when searching forward,
+		 * 			inclusive when searching backward
+		 * @return the page index, or -1 if no such page is found
+		 */
+		int findPageWithMarker(String name, int pageIndex, boolean forward, int limit) {
+			NavigableSet<Integer> pages = markerPages.get(name);
+			if (pages==null) {
+				return -1;
+			}
+			Integer found = forward?pages.higher(pageIndex):pages.lower(pageIndex);
+			if (found==null || (forward?found>=limit:found<limit)) {
+				return -1;
+			}
+			Integer missing = forward?missingPages.higher(pageIndex):missingPages.lower(pageIndex);
+			if (missing!=null && (forward?missing<found:missing>found)) {
+				return -1;
+			}
+			return found;
 		}
-	}
\ No newline at end of file
+	}
@@ -0,0 +1,154 @@
+package org.daisy.dotify.formatter.impl.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * <p>Provides a report of the information that made a {@link CrossReferenceHandler}
+ * dirty during an iteration. In other words, it lists the keys that were requested
+ * before they had a value, and the keys that changed value after they had been
+ * requested.</p>
+ *
+ * <p>Instances are created with {@link CrossReferenceHandler#getIterationReport()}.</p>
+ */
+public final class IterationReport {
+	/**
+	 * Defines the reasons why a key is included in the report.
+	 */
+	public enum Cause {
+		/**
+		 * The key was requested before a value was available.
+		 */
+		MISSING,
+		/**
+		 * The value of the key changed after it was requested.
+		 */
+		CHANGED
+	}
+
+	/**
+	 * Provides an entry in the report.
+	 */
+	public static final class Entry {
+		private final String category;
+		private final Object key;
+		private final Cause cause;
+
+		private Entry(String category, Object key, Cause cause) {
+			this.category = category;
+			this.key = key;
+			this.cause = cause;
+		}
+
+		/**
+		 * Gets the category of the information, for example "page-refs".
+		 * @return the category
+		 */
+		public String getCategory() {
+			return category;
+		}
+
+		/**
+		 * Gets the key.
+		 * @return the key
+		 */
+		public Object getKey() {
+			return key;
+		}
+
+		/**
+		 * Gets the cause.
+		 * @return the cause
+		 */
+		public Cause getCause() {
+			return cause;
+		}
+
+		@Override
+		public String toString() {
+			return category + " " + cause + " " + key;
+		}
+	}
+
+	private final List<Entry> entries;
+
+	private IterationReport(List<Entry> entries) {
+		this.entries = Collections.unmodifiableList(entries);
+	}
+
+	static class Builder {
+		private final List<Entry> entries = new ArrayList<>();
+
+		Builder add(String category, Set<?> keys, Cause cause) {
+			for (Object key : keys) {
+				entries.add(new Entry(category, key, cause));
+			}
+			return this;
+		}
+
+		IterationReport build() {
+			return new IterationReport(new ArrayList<>(entries));
+		}
+	}
+
+	/**
+	 * Gets the entries in this report.
+	 * @return the entries
+	 */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Returns true if this report has no entries.
+	 * @return true if the report is empty, false otherwise
+	 */
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	/**
+	 * Gets a short summary of this report, with the number of entries for each
+	 * category and cause, followed by a few sample keys.
+	 * @param samples the maximum number of keys to list for each category and cause
+	 * @return returns the summary
+	 */
+	public String getSummary(int samples) {
+		Map<String, Map<Cause, List<Object>>> grouped = new TreeMap<>();
+		for (Entry e : entries) {
+			grouped.computeIfAbsent(e.category, k->new EnumMap<>(Cause.class))
+				.computeIfAbsent(e.cause, k->new ArrayList<>())
+				.add(e.key);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Map<Cause, List<Object>>> c : grouped.entrySet()) {
+			for (Map.Entry<Cause, List<Object>> k : c.getValue().entrySet()) {
+				if (sb.length()>0) {
+					sb.append("; ");
+				}
+				List<Object> keys = k.getValue();
+				sb.append(c.getKey()).append(' ').append(k.getKey().name().toLowerCase())
+					.append(": ").append(keys.size());
+				if (samples>0) {
+					sb.append(' ').append(keys.subList(0, Math.min(samples, keys.size())));
+					if (keys.size()>samples) {
+						sb.setLength(sb.length()-1);
+						sb.append(", ...]");
+					}
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return getSummary(Integer.MAX_VALUE);
+	}
+
+}
@@ -1,7 +1,9 @@
 package org.daisy.dotify.formatter.impl.search;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -47,6 +49,10 @@ do {
  * important to make sure that requested information is added to 
  * the map at some point.</p>
  * 
+ * <p>The keys that made the {@link LookupHandler} dirty since the
+ * last call to {@link #setDirty(boolean)} are available through
+ * {@link #getMissingKeys()} and {@link #getChangedKeys()}.</p>
+ * 
  * <p><strong>Note that this implementation is not synchronized.</strong>
  * If multiple threads access a hash map concurrently, and at least one of
  * the threads modifies the map structurally, it <i>must</i> be
@@ -61,7 +67,10 @@ class LookupHandler<K, V> {
 	private final Map<K, V> keyValueMap;
 	private final Map<K, V> uncommitted;
 	private final Set<K> requestedKeys;
+	private final Set<K> missingKeys;
+	private final Set<K> changedKeys;
 	private boolean dirty;
+	private int changes;
 	
 	/**
 	 * Creates a new empty lookup handler.
@@ -70,7 +79,10 @@ class LookupHandler<K, V> {
 		this.keyValueMap = new HashMap<>();
 		this.uncommitted = new HashMap<>();
 		this.requestedKeys = new HashSet<>();
+		this.missingKeys = new LinkedHashSet<>();
+		this.changedKeys = new LinkedHashSet<>();
 		this.dirty = false;
+		this.changes = 0;
 	}
 
 	/**
@@ -116,6 +128,7 @@ class LookupHandler<K, V> {
 		if (ret==null) {
 			if (!traceless) {
 				dirty = true;
+				missingKeys.add(key);
 			}
 			//ret is null here, so if def is also null, either variable can be returned
 			return def;
@@ -166,9 +179,23 @@ class LookupHandler<K, V> {
 		V prv = keyValueMap.put(key, value);
 		if (requestedKeys.contains(key) && prv!=null && !prv.equals(value)) {
 			dirty = true;
+			changedKeys.add(key);
+		}
+		if (prv==null || !prv.equals(value)) {
+			changes++;
 		}
 	}
 
+	/**
+	 * Gets the number of times that a value has been added or changed. Unlike
+	 * {@link #isDirty()}, this includes keys that haven't been requested, and
+	 * it isn't reset by {@link #setDirty(boolean)}.
+	 * @return the number of changes
+	 */
+	int getChangeCount() {
+		return changes;
+	}
+
 	/**
 	 * Returns true if the value for any requested key was not present,
 	 * or if the value for any requested key changed after it was last requested.
@@ -189,7 +216,27 @@ class LookupHandler<K, V> {
 		}
 		if (!value) {
 			requestedKeys.clear();
+			missingKeys.clear();
+			changedKeys.clear();
 		}
 		dirty = value;
 	}
+	
+	/**
+	 * Gets the keys that were requested when they were not in the map, in the
+	 * order they were first requested.
+	 * @return the keys
+	 */
+	Set<K> getMissingKeys() {
+		return Collections.unmodifiableSet(missingKeys);
+	}
+	
+	/**
+	 * Gets the keys whose values changed after they had been requested, in the
+	 * order they were first changed.
+	 * @return the keys
+	 */
+	Set<K> getChangedKeys() {
+		return Collections.unmodifiableSet(changedKeys);
+	}
 }
@@ -62,6 +62,35 @@ public final class Overhead {
 	public int total() {
 		return preContentSize + postContentSize;
 	}
-	
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + postContentSize;
+		result = prime * result + preContentSize;
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (obj == null) {
+			return false;
+		}
+		if (getClass() != obj.getClass()) {
+			return false;
+		}
+		Overhead other = (Overhead) obj;
+		if (postContentSize != other.postContentSize) {
+			return false;
+		}
+		if (preContentSize != other.preContentSize) {
+			return false;
+		}
+		return true;
+	}
 
 }
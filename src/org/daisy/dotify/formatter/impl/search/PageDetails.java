@@ -1,6 +1,7 @@
 package org.daisy.dotify.formatter.impl.search;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.daisy.dotify.api.formatter.Marker;
@@ -14,6 +15,9 @@ public class PageDetails {
 	private int contentMarkersBegin;
 	
 	private final ArrayList<Marker> markers;
+	private final List<Marker> markersView;
+	// the hash code of the markers list, updated as markers are added
+	private int markersHash;
 	
 	public PageDetails(boolean duplex, PageId pageId, BlockLineLocation loc, int pageNumberOffset) {
 		this.duplex = duplex;
@@ -21,6 +25,8 @@ public class PageDetails {
 		this.loc = loc;
 		this.pageNumberOffset = pageNumberOffset;
 		this.markers = new ArrayList<>();
+		this.markersView = Collections.unmodifiableList(markers);
+		this.markersHash = 1;
 		this.contentMarkersBegin = 0;
 		this.volumeNumber = 0;
 	}
@@ -98,10 +104,29 @@ public class PageDetails {
 	
 	/**
 	 * Get all markers for this page
-	 * @return returns a list of all markers on a page
+	 * @return returns an unmodifiable list of all markers on a page
 	 */
 	public List<Marker> getMarkers() {
-		return markers;
+		return markersView;
+	}
+
+	/**
+	 * Adds markers to this page.
+	 * @param m the markers
+	 */
+	public void addMarkers(List<Marker> m) {
+		for (Marker marker : m) {
+			markers.add(marker);
+			// same as List.hashCode
+			markersHash = 31 * markersHash + (marker==null ? 0 : marker.hashCode());
+		}
+	}
+	
+	/**
+	 * Releases unused marker capacity. This is done when the page is complete.
+	 */
+	void compact() {
+		markers.trimToSize();
 	}
 	
 	/**
@@ -147,7 +172,7 @@ public class PageDetails {
 		int result = 1;
 		result = prime * result + contentMarkersBegin;
 		result = prime * result + (duplex ? 1231 : 1237);
-		result = prime * result + ((markers == null) ? 0 : markers.hashCode());
+		result = prime * result + markersHash;
 		result = prime * result + ((pageId == null) ? 0 : pageId.hashCode());
 		return result;
 	}
@@ -170,11 +195,8 @@ public class PageDetails {
 		if (duplex != other.duplex) {
 			return false;
 		}
-		if (markers == null) {
-			if (other.markers != null) {
-				return false;
-			}
-		} else if (!markers.equals(other.markers)) {
+		// compare the hash codes first, since comparing the markers is expensive
+		if (markersHash != other.markersHash || !markers.equals(other.markers)) {
 			return false;
 		}
 		if (pageId == null) {
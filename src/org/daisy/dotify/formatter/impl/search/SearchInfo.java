@@ -1,10 +1,13 @@
 package org.daisy.dotify.formatter.impl.search;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.Set;
 
 import org.daisy.dotify.api.formatter.Marker;
 import org.daisy.dotify.api.formatter.MarkerReferenceField;
@@ -14,36 +17,31 @@ import org.daisy.dotify.api.formatter.MarkerReferenceField.MarkerSearchScope;
 class SearchInfo {
 
 	private final Map<DocumentSpace, DocumentSpaceData> spaces;
-	private final Map<String, PageDetails> uncommitted;
+	private final List<DocumentSpaceData> uncommitted;
+	private final Set<PageId> changedPages;
 	private boolean dirty;
 	
 	SearchInfo() {
 		this.spaces = new HashMap<>();
-		this.uncommitted = new HashMap<>();
+		this.uncommitted = new ArrayList<>();
+		this.changedPages = new LinkedHashSet<>();
 		this.dirty = false;
 	}
 	
-	private static String toKey(PageDetails value) {
-		return value.getSequenceId().getSpace() + "-" + value.getPageId();
-	}
-	
 	void keepPageDetails(PageDetails value) {
 		if (value.getPageId().getPageIndex()<0) {
 			throw new IllegalArgumentException("Negative page id not allowed.");
 		}
-		uncommitted.put(toKey(value), value);
+		DocumentSpaceData data = getViewForSpace(value.getSequenceId().getSpace());
+		if (!data.hasUncommitted()) {
+			uncommitted.add(data);
+		}
+		data.keep(value);
 	}
 	
 	void commitPageDetails() {
-		for (Entry<String, PageDetails> entry : uncommitted.entrySet()) {
-			PageDetails value = entry.getValue();
-			DocumentSpaceData data = getViewForSpace(value.getSequenceId().getSpace());
-			while (value.getPageId().getPageIndex()>=data.pageDetails.size()) {
-				data.pageDetails.add(null);
-			}
-			PageDetails old = data.pageDetails.set(value.getPageId().getPageIndex(), value);
-			// Only check the previous value if dirty isn't already true
-			if (!dirty && !value.equals(old)) {
+		for (DocumentSpaceData data : uncommitted) {
+			if (data.commit(changedPages)) {
 				dirty = true;
 			}
 		}
@@ -156,14 +154,15 @@ class SearchInfo {
 	}
 	
 	String findMarker(final PageDetails page, final MarkerReferenceField markerRef) {
+		if (page!=null && markerRef.getSearchScope()==MarkerSearchScope.SEQUENCE) {
+			return findMarkerInSequence(page, markerRef);
+		}
 		PageDetails currentPage = page;
 		while (currentPage!=null) {
 			if (markerRef.getSearchScope()==MarkerSearchScope.VOLUME || markerRef.getSearchScope()==MarkerSearchScope.DOCUMENT) {
 				throw new RuntimeException("Marker reference scope not implemented: " + markerRef.getSearchScope());
 			}
 			int dir = 1;
-			int index = 0;
-			int count = 0;
 			List<Marker> m;
 			boolean skipLeading = false;
 			if (markerRef.getSearchScope() == MarkerReferenceField.MarkerSearchScope.PAGE_CONTENT) {
@@ -181,15 +180,10 @@ class SearchInfo {
 			}
 			if (markerRef.getSearchDirection() == MarkerReferenceField.MarkerSearchDirection.BACKWARD) {
 				dir = -1;
-				index = m.size()-1;
 			}
-			while (count < m.size()) {
-				Marker m2 = m.get(index);
-				if (m2.getName().equals(markerRef.getName())) {
-					return m2.getValue();
-				}
-				index += dir; 
-				count++;
+			Marker found = findMarker(m, markerRef.getName(), dir==1);
+			if (found!=null) {
+				return found.getValue();
 			}
 			if (markerRef.getSearchScope() == MarkerReferenceField.MarkerSearchScope.SEQUENCE ||
 				markerRef.getSearchScope() == MarkerSearchScope.SHEET && currentPage.isWithinSheetScope(dir) //||
@@ -208,6 +202,53 @@ class SearchInfo {
 		return "";
 	}
 	
+	/**
+	 * Finds a marker in the sequence scope. This gives the same result as moving
+	 * page by page through the sequence, but the pages without a marker with the
+	 * specified name are skipped using the marker index of the document space.
+	 */
+	private String findMarkerInSequence(PageDetails page, MarkerReferenceField markerRef) {
+		boolean forward = markerRef.getSearchDirection()!=MarkerSearchDirection.BACKWARD;
+		Marker found = findMarker(page.getMarkers(), markerRef.getName(), forward);
+		if (found!=null) {
+			return found.getValue();
+		}
+		View<PageDetails> view = getContentsInSequence(page.getSequenceId());
+		if (view==null) {
+			return "";
+		}
+		int index = page.getPageId().getPageIndex();
+		DocumentSpaceData data = getViewForSpace(page.getSequenceId().getSpace());
+		int pageIndex;
+		if (forward) {
+			pageIndex = index+1>=view.getGlobalStartIndex()?data.findPageWithMarker(markerRef.getName(), index, true, view.getToIndex()):-1;
+		} else {
+			pageIndex = index-1<view.getToIndex()?data.findPageWithMarker(markerRef.getName(), index, false, view.getGlobalStartIndex()):-1;
+		}
+		if (pageIndex<0) {
+			return "";
+		}
+		return findMarker(data.pageDetails.get(pageIndex).getMarkers(), markerRef.getName(), forward).getValue();
+	}
+
+	/**
+	 * Finds the first or the last marker with the specified name in a list.
+	 * @param markers the markers
+	 * @param name the name
+	 * @param first true to find the first marker, false to find the last marker
+	 * @return the marker, or null if not found
+	 */
+	private static Marker findMarker(List<Marker> markers, String name, boolean first) {
+		int size = markers.size();
+		for (int i=0; i<size; i++) {
+			Marker m = markers.get(first?i:size-1-i);
+			if (m.getName().equals(name)) {
+				return m;
+			}
+		}
+		return null;
+	}
+	
 	private Optional<PageDetails> getPageDetails(PageId p) {
 		DocumentSpaceData data = getViewForSpace(p.getSequenceId().getSpace());
 		if (p.getPageIndex()<data.pageDetails.size()) {
@@ -238,6 +279,17 @@ class SearchInfo {
 	}
 	
 	void setDirty(boolean value) {
+		if (!value) {
+			changedPages.clear();
+		}
 		this.dirty = value;
 	}
+	
+	/**
+	 * Gets the ids of the pages whose details changed since the dirty flag was reset.
+	 * @return the page ids, in the order they were changed
+	 */
+	Set<PageId> getChangedPages() {
+		return Collections.unmodifiableSet(changedPages);
+	}
 }
@@ -0,0 +1,225 @@
+package org.daisy.dotify.formatter.impl.sheet;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * <p>{@link VolumeSplitter} implementation that computes all volume breaks of a
+ * {@link SheetGroup volume group} at once.</p>
+ *
+ * <p>The sheets of the group, as they were in the latest iteration, are available
+ * through a {@link VolumeBreakRecord}. The volume count is the smallest number of volumes
+ * that can accommodate the sheets and the overhead of every volume. The volume breaks are
+ * then chosen using dynamic programming over the sheets, so that the sum of the costs of
+ * all breaks is minimized. The cost of a break uses the same terms as the cost that is used
+ * when a volume is broken in {@link org.daisy.dotify.formatter.impl.VolumeProvider}: the
+ * distance from an even distribution of the sheets, the <code>volume-break-priority</code>
+ * of the last sheet and whether the last sheet is breakable.</p>
+ *
+ * <p>If the sheets cannot be distributed, for example because the overhead of a volume
+ * doesn't leave any room for the body, or before any sheets have been recorded, the
+ * volumes are computed by an {@link EvenSizeVolumeSplitter} instead.</p>
+ *
+ * <p>If the sheets didn't fit in the volumes, for example because a volume couldn't
+ * be broken where it was supposed to, and the same volumes would be used again, a
+ * volume is added.</p>
+ *
+ * <p>Since the sheets may change when the volume breaks change, for example because of
+ * references to volume numbers, the computed volumes could alternate between a few
+ * configurations. To avoid this, the volume sizes are kept if all sheets fit and the
+ * new configuration has already been tried, unless the new configuration is preferred
+ * (see {@link #compareVolumeSizes(int[], int[])}).</p>
+ */
+class OptimalVolumeSplitter implements VolumeSplitter {
+	private static final Logger logger = Logger.getLogger(OptimalVolumeSplitter.class.getCanonicalName());
+	private static final double UNBREAKABLE_PENALTY = 100;
+	private static final double EPSILON = 1e-9;
+	private final SplitterLimit splitterMax;
+	private final VolumeBreakRecord record;
+	private EvenSizeVolumeSplitter fallback;
+	// the number of sheets in each volume, including overhead, or null if the fallback is used
+	private int[] volumeSize;
+	private final Set<List<Integer>> previouslyTried;
+	// the smallest number of volumes to use, increased when the sheets didn't fit
+	private int minVolumes;
+
+	/**
+	 * Creates a new optimal volume splitter.
+	 * @param splitterMax the maximum number of sheets in each volume
+	 * @param record the record of the sheets in the group
+	 */
+	OptimalVolumeSplitter(SplitterLimit splitterMax, VolumeBreakRecord record) {
+		this.splitterMax = splitterMax;
+		this.record = record;
+		this.fallback = new EvenSizeVolumeSplitter(splitterMax);
+		this.volumeSize = null;
+		this.previouslyTried = new HashSet<>();
+		this.minVolumes = 0;
+	}
+
+	@Override
+	public void updateSheetCount(int sheets, int sheetsRemaining) {
+		if (volumeSize!=null) {
+			// the fallback only understands the results of its own volumes, start over
+			fallback = new EvenSizeVolumeSplitter(splitterMax);
+		}
+		fallback.updateSheetCount(sheets, sheetsRemaining);
+		int[] sizes = record.getSheetCount()>0?computeVolumeSizes():null;
+		if (sizes!=null && sheetsRemaining>0 && Arrays.equals(sizes, volumeSize)) {
+			// the same volumes would leave sheets again
+			minVolumes = sizes.length + 1;
+			sizes = computeVolumeSizes();
+		}
+		if (sizes!=null && volumeSize!=null && sheetsRemaining==0 && !Arrays.equals(sizes, volumeSize)
+				&& previouslyTried.contains(toList(sizes)) && compareVolumeSizes(volumeSize, sizes)<0) {
+			// Everything fits and both configurations have been tried, so changing the volumes
+			// could start a loop. The preferred configuration is kept, so that the result is the
+			// same regardless of which configuration was tried first.
+			sizes = volumeSize;
+		}
+		volumeSize = sizes;
+		if (volumeSize!=null) {
+			previouslyTried.add(toList(volumeSize));
+		}
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("Volume sizes: " + (volumeSize!=null?Arrays.toString(volumeSize):"using even size splitter"));
+		}
+	}
+
+	/**
+	 * Computes the number of sheets in each volume.
+	 * @return the number of sheets in each volume, including overhead, or null
+	 * 		if the sheets cannot be distributed
+	 */
+	private int[] computeVolumeSizes() {
+		int sheets = record.getSheetCount();
+		int volumes = 0;
+		int capacity = 0;
+		while (capacity<sheets || volumes<minVolumes) {
+			int c = getCapacity(volumes);
+			if (c<1) {
+				return null;
+			}
+			capacity += c;
+			volumes++;
+		}
+		int[] limit = new int[volumes];
+		int[] cap = new int[volumes];
+		double[] target = new double[volumes];
+		for (int v=0; v<volumes; v++) {
+			limit[v] = splitterMax.getSplitterLimit(v+1);
+			cap[v] = getCapacity(v);
+			// leaves the same headroom in every volume, like in EvenSizeVolumeSplitter
+			target[v] = cap[v] - (capacity - sheets) / (double)volumes;
+		}
+		// The volumes are computed from the last to the first, so that the volumes can be chosen
+		// from the first to the last afterwards. When the cost is the same, the larger volume is
+		// chosen, so that larger volumes come first, like in EvenSizeVolumeSplitter.
+		// cost[s] is the minimum cost of the remaining volumes, when they start after s sheets
+		double[] cost = new double[sheets+1];
+		double[] next = new double[sheets+1];
+		int[][] count = new int[volumes][sheets+1];
+		Arrays.fill(cost, Double.POSITIVE_INFINITY);
+		cost[sheets] = 0;
+		for (int v=volumes-1; v>=0; v--) {
+			Arrays.fill(next, Double.POSITIVE_INFINITY);
+			boolean last = v==volumes-1;
+			for (int s=v; s<sheets; s++) {
+				for (int n=Math.min(cap[v], sheets-s); n>=1; n--) {
+					int e = s + n;
+					if (cost[e]==Double.POSITIVE_INFINITY) {
+						continue;
+					}
+					double c = cost[e] + Math.abs(target[v] - n) + (last?0:getBreakPenalty(e-1, limit[v]));
+					if (c<next[s]-EPSILON) {
+						next[s] = c;
+						count[v][s] = n;
+					}
+				}
+			}
+			double[] t = cost;
+			cost = next;
+			next = t;
+		}
+		if (cost[0]==Double.POSITIVE_INFINITY) {
+			return null;
+		}
+		int[] ret = new int[volumes];
+		int s = 0;
+		for (int v=0; v<volumes; v++) {
+			ret[v] = count[v][s] + record.getOverhead(v);
+			s += count[v][s];
+		}
+		return ret;
+	}
+
+	/**
+	 * Compares two volume configurations in the order that they are preferred
+	 * when they are equally good, in other words with larger volumes first.
+	 * @param a the first configuration
+	 * @param b the second configuration
+	 * @return a negative integer, zero, or a positive integer as the first
+	 * 		configuration is preferred to, equal to, or less preferred than the second
+	 */
+	static int compareVolumeSizes(int[] a, int[] b) {
+		for (int i=0; i<Math.min(a.length, b.length); i++) {
+			if (a[i]!=b[i]) {
+				return Integer.compare(b[i], a[i]);
+			}
+		}
+		return Integer.compare(a.length, b.length);
+	}
+
+	/**
+	 * Gets the number of body sheets that fit in a volume.
+	 * @param volumeIndex the index of the volume, zero-based
+	 * @return the number of sheets
+	 */
+	private int getCapacity(int volumeIndex) {
+		return splitterMax.getSplitterLimit(volumeIndex+1) - record.getOverhead(volumeIndex);
+	}
+
+	/**
+	 * Gets the penalty of breaking the volume after the specified sheet.
+	 * @param index the index of the sheet
+	 * @param limit the maximum number of sheets in the volume
+	 * @return the penalty
+	 */
+	private double getBreakPenalty(int index, int limit) {
+		double ret = 0;
+		int priority = record.getPriority(index);
+		if (priority>0) {
+			// Reverses 1-9 to 9-1 and normalizes that to [1/9, 1], like in VolumeProvider
+			ret += limit * 0.4 * ((10 - priority)/9d);
+		}
+		if (!record.isBreakable(index)) {
+			ret += UNBREAKABLE_PENALTY;
+		}
+		return ret;
+	}
+
+	private static List<Integer> toList(int[] values) {
+		return Arrays.stream(values).boxed().collect(Collectors.toList());
+	}
+
+	@Override
+	public int sheetsInVolume(int volIndex) {
+		if (volumeSize==null) {
+			return fallback.sheetsInVolume(volIndex);
+		}
+		return volumeSize[volIndex-1];
+	}
+
+	@Override
+	public int getVolumeCount() {
+		if (volumeSize==null) {
+			return fallback.getVolumeCount();
+		}
+		return volumeSize.length;
+	}
+}
@@ -23,6 +23,15 @@ public class PageCounter {
 		pageOffset = value;
 	}
 
+	/**
+	 * Sets the values of this counter to the values of another counter.
+	 * @param template the counter to get the values from
+	 */
+	void setValues(PageCounter template) {
+		this.pageOffset = template.pageOffset;
+		this.pageCount = template.pageCount;
+	}
+
 	/**
 	 * Page number counter. Represents the current value of the default "<a
 	 * href="http://braillespecs.github.io/obfl/obfl-specification.html#pagenumbercounter"
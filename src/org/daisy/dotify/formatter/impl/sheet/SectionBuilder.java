@@ -29,7 +29,26 @@ public class SectionBuilder {
         }
     }
     
-    List<Section> getSections() {
+    /**
+     * Adds sections that have already been laid out, such as the sections of a
+     * frozen volume. The sections are never merged with the sections that have
+     * been added before.
+     * @param sections the sections
+     * @param sheetCount the number of sheets in the sections
+     */
+    public void addSections(Iterable<? extends Section> sections, int sheetCount) {
+        for (Section s : sections) {
+            ret.add(s);
+        }
+        currentProps = null;
+        sheets += sheetCount;
+    }
+
+    /**
+     * Gets the sections that have been added.
+     * @return the sections
+     */
+    public List<Section> getSections() {
         return ret;
     }
     
@@ -4,6 +4,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.daisy.dotify.api.formatter.TransitionBuilderProperties.ApplicationRange;
 import org.daisy.dotify.api.writer.SectionProperties;
@@ -19,6 +21,7 @@ import org.daisy.dotify.formatter.impl.page.PageSequenceBuilder2;
 import org.daisy.dotify.formatter.impl.page.RestartPaginationException;
 import org.daisy.dotify.formatter.impl.search.BlockAddress;
 import org.daisy.dotify.formatter.impl.search.BlockLineLocation;
+import org.daisy.dotify.formatter.impl.search.CrossReferenceJournal;
 import org.daisy.dotify.formatter.impl.search.DefaultContext;
 import org.daisy.dotify.formatter.impl.search.DocumentSpace;
 import org.daisy.dotify.formatter.impl.search.PageDetails;
@@ -44,9 +47,22 @@ import org.daisy.dotify.formatter.impl.search.VolumeKeepPriority;
  * the priority of the front side page if that value is higher (lower priority) and if
  * <code>&lt;volume-transition range="sheet"/&gt;</code>.</p>
  *
+ * <p>A copy of a data source can be used as a preview of the original, see
+ * {@link #startPreview(CrossReferenceJournal)} and {@link #usePreview(SheetDataSource)}.
+ * When the original is split, the sheets that the preview has already produced
+ * are reused instead of being produced again, as far as possible.</p>
+ *
+ * <p>The state before each sequence is kept, so that the sequence can be laid out again
+ * if a fallback rule is applied while its pages are produced, for example when the items
+ * of a page area don't fit. Only the current sequence is restarted, as long as its sheets
+ * haven't been handed over to a volume and the reassigned collection hasn't been used by
+ * other sequences, see {@link PageSequenceBuilder2#isRestartable()}. Otherwise, the
+ * pagination is restarted from the beginning.</p>
+ *
  * @author Joel Håkansson
  */
 public class SheetDataSource implements SplitPointDataSource<Sheet, SheetDataSource> {
+	private static final Logger logger = Logger.getLogger(SheetDataSource.class.getCanonicalName());
 	//Global state
 	private final PageCounter pageCounter;
 	private final FormatterContext context;
@@ -71,8 +87,15 @@ public class SheetDataSource implements SplitPointDataSource<Sheet, SheetDataSou
 	private boolean isFirst;
 	private boolean wasSplitInsideSequence;
 	private boolean volumeEnded;
+	// the state before the current sequence was started, or null
+	private State sequenceStart;
+	// the index of the first sheet of the current sequence, including the sheet offset
+	private int sequenceStartSheet;
 	//Output buffer
 	private List<Sheet> sheetBuffer;
+	//Preview
+	private Preview recording;
+	private Preview preview;
 
 	public SheetDataSource(PageCounter pageCounter, FormatterContext context, DefaultContext rcontext, Integer volumeGroup, List<BlockSequence> seqsIterator) {
 		this.pageCounter = pageCounter;
@@ -97,11 +120,24 @@ public class SheetDataSource implements SplitPointDataSource<Sheet, SheetDataSou
 		this.isFirst = true;
 		this.wasSplitInsideSequence = false;
 		this.volumeEnded = false;
+		this.sequenceStart = null;
+		this.sequenceStartSheet = 0;
 	}
 	
 	public SheetDataSource(SheetDataSource template) {
 		this(template, 0, false);
 	}
+	
+	/**
+	 * Creates a new instance with the specified data source as template and
+	 * the specified page counter. This is useful when a copy is made of several
+	 * data sources that share a page counter.
+	 * @param template the template
+	 * @param pageCounter the page counter to use in the new instance
+	 */
+	SheetDataSource(SheetDataSource template, PageCounter pageCounter) {
+		this(template, pageCounter, 0, false);
+	}
 
 	/**
 	 * Creates a new instance with the specified data source as template
@@ -113,7 +149,11 @@ public class SheetDataSource implements SplitPointDataSource<Sheet, SheetDataSou
 	 * 		cases.
 	 */
 	private SheetDataSource(SheetDataSource template, int offset, boolean tail) {
-		this.pageCounter = tail?template.pageCounter:new PageCounter(template.pageCounter);
+		this(template, tail?template.pageCounter:new PageCounter(template.pageCounter), offset, tail);
+	}
+	
+	private SheetDataSource(SheetDataSource template, PageCounter pageCounter, int offset, boolean tail) {
+		this.pageCounter = pageCounter;
 		this.context = template.context;
 		this.rcontext = template.rcontext;
 		this.volumeGroup = template.volumeGroup;
@@ -139,6 +179,8 @@ public class SheetDataSource implements SplitPointDataSource<Sheet, SheetDataSou
 		this.isFirst = template.isFirst;
 		this.wasSplitInsideSequence = template.wasSplitInsideSequence;
 		this.volumeEnded = false;
+		this.sequenceStart = template.sequenceStart;
+		this.sequenceStartSheet = template.sequenceStartSheet;
 	}
 	
 	@Override
@@ -180,6 +222,10 @@ public class SheetDataSource implements SplitPointDataSource<Sheet, SheetDataSou
 		return null;
 	}
 	
+	PageCounter getPageCounter() {
+		return pageCounter;
+	}
+	
 	public void setCurrentVolumeNumber(int volume) {
 		rcontext = DefaultContext.from(rcontext).currentVolume(volume).build();
 		if (psb != null) {
@@ -187,6 +233,126 @@ public class SheetDataSource implements SplitPointDataSource<Sheet, SheetDataSou
 		}
 	}
 	
+	/**
+	 * Starts recording the state of this data source after each produced sheet, so that
+	 * this instance can be used as a preview of the data source it was copied from.
+	 * This must be called before any sheets are produced by this instance.
+	 * @param journal the journal that records the changes made to the cross-reference
+	 * 		handler while this instance produces sheets
+	 */
+	public void startPreview(CrossReferenceJournal journal) {
+		recording = new Preview(journal, sheetBuffer);
+	}
+	
+	/**
+	 * Sets the preview to use when more sheets are needed by this instance. The preview
+	 * must be a copy of this instance that has recorded its sheets using
+	 * {@link #startPreview(CrossReferenceJournal)}, and the journal must have been
+	 * stopped. The sheets are reused the next time more sheets are needed, after which
+	 * the preview is discarded.
+	 * @param preview the preview, or null to discard the current preview
+	 */
+	public void usePreview(SheetDataSource preview) {
+		this.preview = preview!=null?preview.recording:null;
+	}
+	
+	private void addSheet(Sheet sheet, boolean reusable) {
+		sheetBuffer.add(sheet);
+		if (recording!=null) {
+			recording.record(this, reusable);
+		}
+	}
+	
+	/**
+	 * Reuses the sheets produced by the preview, up to the first sheet that cannot be reused
+	 * or the specified limit, whichever comes first. The changes made to the cross-reference
+	 * handler while producing the reused sheets are replayed and the state after the last
+	 * reused sheet is restored, so that the following sheets are produced as if the reused
+	 * sheets had been produced by this instance.
+	 * @param limit the maximum size of the sheet buffer
+	 */
+	private void resumePreview(int limit) {
+		Preview p = preview;
+		preview = null;
+		if (sheetBuffer.size()!=p.first) {
+			// this instance has changed since the preview was made
+			return;
+		}
+		int k = 0;
+		while (k<p.states.size() && p.first+k<limit && p.states.get(k).reusable) {
+			k++;
+		}
+		if (k==0) {
+			return;
+		}
+		State st = p.states.get(k-1);
+		p.journal.replay(st.journalSize);
+		restore(st);
+		sheetBuffer.addAll(p.sheets.subList(p.first, p.first+k));
+	}
+
+	private void restore(State st) {
+		pageCounter.setValues(st.pageCounter);
+		seqsIndex = st.seqsIndex;
+		seqId = st.seqId;
+		psb = st.psb;
+		psbCurStartIndex = st.psbCurStartIndex;
+		sectionProperties = st.sectionProperties;
+		sheetIndex = st.sheetIndex;
+		pageIndex = st.pageIndex;
+		counter = st.counter;
+		initialPageOffset = st.initialPageOffset;
+		volBreakAllowed = st.volBreakAllowed;
+		updateCounter = st.updateCounter;
+		isFirst = st.isFirst;
+		wasSplitInsideSequence = st.wasSplitInsideSequence;
+		volumeEnded = false;
+	}
+
+	/**
+	 * Starts the next sequence.
+	 */
+	private void startSequence() {
+		sequenceStart = new State(this, 0, true);
+		sequenceStartSheet = sheetOffset + sheetBuffer.size();
+		BlockSequence bs = seqsIterator.get(seqsIndex);
+		seqsIndex++;
+		counter = bs.getSequenceProperties().getPageCounterName().orElse(null);
+		if (bs.getInitialPageNumber()!=null) {
+			 initialPageOffset = bs.getInitialPageNumber() - 1;
+		} else if (counter!=null) {
+			initialPageOffset = Optional.ofNullable(rcontext.getRefs().getPageNumberOffset(counter)).orElse(0);
+		} else {
+			 initialPageOffset = pageCounter.getDefaultPageOffset();
+		}
+		seqId = new SequenceId(seqsIndex, new DocumentSpace(rcontext.getSpace(), rcontext.getCurrentVolume()), volumeGroup);
+		BlockLineLocation cbl = psb!=null?psb.currentBlockLineLocation():new BlockLineLocation(new BlockAddress(-1, -1), -1);
+		psbCurStartIndex = pageCounter.getPageCount();
+		psb = new PageSequenceBuilder2(psbCurStartIndex, bs.getLayoutMaster(), initialPageOffset, bs, context, rcontext, seqId, cbl);
+		sectionProperties = bs.getLayoutMaster().newSectionProperties();
+		sheetIndex = 0;
+		pageIndex = 0;
+	}
+
+	/**
+	 * Restores the state before the current sequence was started and starts it again,
+	 * if possible. The sheets of the sequence that have been produced are discarded.
+	 * @return true if the sequence was restarted, false otherwise
+	 */
+	private boolean restartSequence() {
+		// the recorded states of a preview would include the discarded sheets
+		if (sequenceStart==null || recording!=null || sequenceStartSheet<sheetOffset || !psb.isRestartable()) {
+			return false;
+		}
+		restore(sequenceStart);
+		sheetBuffer.subList(sequenceStartSheet-sheetOffset, sheetBuffer.size()).clear();
+		startSequence();
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("Restarting sequence " + seqsIndex + " after a fallback rule was applied.");
+		}
+		return true;
+	}
+	
 	/**
 	 * Ensures that there are at least index elements in the buffer.
 	 * When index is -1 this method always returns false.
@@ -194,8 +360,13 @@ public class SheetDataSource implements SplitPointDataSource<Sheet, SheetDataSou
 	 * @return returns true if the index element was available, false otherwise
 	 */
 	private boolean ensureBuffer(int index) {
+		if (preview!=null) {
+			// the last sheet is produced differently, see hyphenateLastLine below
+			resumePreview(index<0?Integer.MAX_VALUE:index-1);
+		}
 		Sheet.Builder s = null;
 		SheetIdentity si = null;
+		boolean reusable = true;
 		while (index<0 || sheetBuffer.size()<index) {
 			// this happens when a new volume is started
 			if (updateCounter) { 
@@ -211,7 +382,7 @@ public class SheetDataSource implements SplitPointDataSource<Sheet, SheetDataSou
 			if (psb==null || !psb.hasNext()) {
 				if (s!=null) {
 					//Last page in the sequence doesn't need volume keep priority
-					sheetBuffer.add(s.build());
+					addSheet(s.build(), reusable);
 					s=null;
 					continue;
 				}
@@ -220,42 +391,27 @@ public class SheetDataSource implements SplitPointDataSource<Sheet, SheetDataSou
 					return false;
 				}
 				// init new sequence
-				BlockSequence bs = seqsIterator.get(seqsIndex);
-				seqsIndex++;
-				counter = bs.getSequenceProperties().getPageCounterName().orElse(null);
-				if (bs.getInitialPageNumber()!=null) {
-					 initialPageOffset = bs.getInitialPageNumber() - 1;
-				} else if (counter!=null) {
-					initialPageOffset = Optional.ofNullable(rcontext.getRefs().getPageNumberOffset(counter)).orElse(0);
-				} else {
-					 initialPageOffset = pageCounter.getDefaultPageOffset();
-				}
-				seqId = new SequenceId(seqsIndex, new DocumentSpace(rcontext.getSpace(), rcontext.getCurrentVolume()), volumeGroup);
-				BlockLineLocation cbl = psb!=null?psb.currentBlockLineLocation():new BlockLineLocation(new BlockAddress(-1, -1), -1);
-				psbCurStartIndex = pageCounter.getPageCount();
-				psb = new PageSequenceBuilder2(psbCurStartIndex, bs.getLayoutMaster(), initialPageOffset, bs, context, rcontext, seqId, cbl);
-				sectionProperties = bs.getLayoutMaster().newSectionProperties();
+				startSequence();
 				s = null;
 				si = null;
-				sheetIndex = 0;
-				pageIndex = 0;
 			}
 			int currentSize = sheetBuffer.size();
 			while (psb.hasNext() && currentSize == sheetBuffer.size()) {
 				if (!sectionProperties.duplex() || pageIndex % 2 == 0 || volumeEnded || s==null) {
 					if (s!=null) {
 						Sheet r = s.build();
-						sheetBuffer.add(r);
 						s = null;
 						if (volumeEnded) {
 							pageIndex += pageIndex%2==1?1:0;
 						}
+						addSheet(r, reusable);
 						continue;
 					} else if (volumeEnded) {
 						throw new AssertionError("Error in code.");
 					}
 					volBreakAllowed = true;
 					s = new Sheet.Builder(sectionProperties);
+					reusable = true;
 					si = new SheetIdentity(rcontext.getSpace(), rcontext.getCurrentVolume(), volumeGroup, sheetBuffer.size()+sheetOffset);
 					sheetIndex++;
 				}
@@ -303,7 +459,21 @@ public class SheetDataSource implements SplitPointDataSource<Sheet, SheetDataSou
 					|| sheetBuffer.size() != index-1
 					|| (sectionProperties.duplex() && pageIndex % 2 == 0);
 				
-				PageImpl p = psb.nextPage(initialPageOffset, hyphenateLastLine, Optional.ofNullable(transition), wasSplitInsideSequence, isFirst);
+				// A sheet can only be reused if it is produced in the same way as if it wasn't the last sheet of the volume
+				reusable &= hyphenateLastLine;
+				PageImpl p;
+				try {
+					p = psb.nextPage(initialPageOffset, hyphenateLastLine, Optional.ofNullable(transition), wasSplitInsideSequence, isFirst);
+				} catch (RestartPaginationException e) {
+					if (!restartSequence()) {
+						throw e;
+					}
+					// continues with the restarted sequence
+					s = null;
+					si = null;
+					reusable = true;
+					continue;
+				}
 				pageCounter.increasePageCount();
 				VolumeKeepPriority vpx = p.getAvoidVolumeBreakAfter();
 				if (context.getTransitionBuilder().getProperties().getApplicationRange()==ApplicationRange.SHEET) {
@@ -406,5 +576,67 @@ public class SheetDataSource implements SplitPointDataSource<Sheet, SheetDataSou
 	public SheetDataSource getDataSource() {
 		return this;
 	}
+	
+	/**
+	 * Provides the states recorded by a preview, one for each sheet.
+	 */
+	private static class Preview {
+		private final CrossReferenceJournal journal;
+		private final List<Sheet> sheets;
+		private final int first;
+		private final List<State> states;
+		
+		private Preview(CrossReferenceJournal journal, List<Sheet> sheets) {
+			this.journal = journal;
+			this.sheets = sheets;
+			this.first = sheets.size();
+			this.states = new ArrayList<>();
+		}
+		
+		private void record(SheetDataSource source, boolean reusable) {
+			states.add(new State(source, journal.size(), reusable));
+		}
+	}
+	
+	/**
+	 * Provides the local state of a data source after a sheet.
+	 */
+	private static class State {
+		private final int journalSize;
+		private final boolean reusable; // true if the sheet can be reused
+		private final PageCounter pageCounter;
+		private final int seqsIndex;
+		private final SequenceId seqId;
+		private final PageSequenceBuilder2 psb;
+		private final int psbCurStartIndex;
+		private final SectionProperties sectionProperties;
+		private final int sheetIndex;
+		private final int pageIndex;
+		private final String counter;
+		private final int initialPageOffset;
+		private final boolean volBreakAllowed;
+		private final boolean updateCounter;
+		private final boolean isFirst;
+		private final boolean wasSplitInsideSequence;
+		
+		private State(SheetDataSource template, int journalSize, boolean reusable) {
+			this.journalSize = journalSize;
+			this.reusable = reusable;
+			this.pageCounter = new PageCounter(template.pageCounter);
+			this.seqsIndex = template.seqsIndex;
+			this.seqId = template.seqId;
+			this.psb = PageSequenceBuilder2.copyUnlessNull(template.psb);
+			this.psbCurStartIndex = template.psbCurStartIndex;
+			this.sectionProperties = template.sectionProperties;
+			this.sheetIndex = template.sheetIndex;
+			this.pageIndex = template.pageIndex;
+			this.counter = template.counter;
+			this.initialPageOffset = template.initialPageOffset;
+			this.volBreakAllowed = template.volBreakAllowed;
+			this.updateCounter = template.updateCounter;
+			this.isFirst = template.isFirst;
+			this.wasSplitInsideSequence = template.wasSplitInsideSequence;
+		}
+	}
 
 }
@@ -1,5 +1,7 @@
 package org.daisy.dotify.formatter.impl.sheet;
 
+import java.util.List;
+
 /**
  * <p>Provides a list of consecutive sheets without manual volume breaks
  * inside.</p>
@@ -9,6 +11,7 @@ package org.daisy.dotify.formatter.impl.sheet;
 public class SheetGroup {
 	private SheetDataSource units;
 	private VolumeSplitter splitter;
+	private final VolumeBreakRecord record;
 	private int overheadCount;
 	private int sheetCount;
 
@@ -16,6 +19,7 @@ public class SheetGroup {
 	 * Creates a new sheet group.
 	 */
 	SheetGroup() {
+		this.record = new VolumeBreakRecord();
 		reset();
 	}
 	
@@ -91,6 +95,24 @@ public class SheetGroup {
 		return splitter;
 	}
 	
+	/**
+	 * Gets the record of the sheets in this group.
+	 * @return returns the record
+	 */
+	VolumeBreakRecord getBreakRecord() {
+		return record;
+	}
+
+	/**
+	 * Updates the volume splitter with the sheets of this group, before any
+	 * volumes have been laid out.
+	 */
+	public void initSplitter() {
+		List<Sheet> sheets = getUnits().getRemaining();
+		record.setSheets(0, sheets);
+		splitter.updateSheetCount(sheets.size(), sheets.size());
+	}
+	
 	/**
 	 * Gets the total sheet count, including processed sheets, overhead sheets and remaining sheets.
 	 * <b>Note: only use after all volumes have been calculated.</b>
@@ -1,12 +1,18 @@
 package org.daisy.dotify.formatter.impl.sheet;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 /**
  * <p>Provides a manager for {@link SheetGroup}.</p>
  *
- * <p>An {@link EvenSizeVolumeSplitter} is associated with every <code>SheetGroup</code>.</p>
+ * <p>A {@link VolumeSplitter} is associated with every <code>SheetGroup</code>. By default,
+ * this is an {@link EvenSizeVolumeSplitter}. The type of splitter is specified with
+ * {@link VolumeSplitterType}.</p>
  *
  * <p>Used by {@link org.daisy.dotify.formatter.impl.VolumeProvider}.</p>
  *
@@ -14,6 +20,7 @@ import java.util.List;
  */
 public class SheetGroupManager {
 	private final SplitterLimit splitterLimit;
+	private final VolumeSplitterType splitterType;
 	private final List<SheetGroup> groups;
 	private int indexInGroup = 0;
 	private int index = 0;
@@ -23,8 +30,18 @@ public class SheetGroupManager {
 	 * @param splitterLimit the splitter limit
 	 */
 	public SheetGroupManager(SplitterLimit splitterLimit) {
+		this(splitterLimit, VolumeSplitterType.EVEN_SIZE);
+	}
+
+	/**
+	 * Creates a new sheet group manager
+	 * @param splitterLimit the splitter limit
+	 * @param splitterType the type of volume splitter to use for each group
+	 */
+	public SheetGroupManager(SplitterLimit splitterLimit, VolumeSplitterType splitterType) {
 		this.groups = new ArrayList<>();
 		this.splitterLimit = splitterLimit;
+		this.splitterType = splitterType;
 	}
 
 	
@@ -34,7 +51,7 @@ public class SheetGroupManager {
 	 */
 	public SheetGroup add() {
 		SheetGroup ret = new SheetGroup();
-		ret.setSplitter(new EvenSizeVolumeSplitter(new SplitterLimit() {
+		SplitterLimit limit = new SplitterLimit() {
 			private final int groupIndex = groups.size();
 			
 			@Override
@@ -45,7 +62,14 @@ public class SheetGroupManager {
 				}
 				return splitterLimit.getSplitterLimit(volume + offset);
 			}
-		}));
+		};
+		switch (splitterType) {
+			case OPTIMAL:
+				ret.setSplitter(new OptimalVolumeSplitter(limit, ret.getBreakRecord()));
+				break;
+			case EVEN_SIZE: default:
+				ret.setSplitter(new EvenSizeVolumeSplitter(limit));
+		}
 		groups.add(ret);
 		return ret;
 	}
@@ -113,6 +137,19 @@ public class SheetGroupManager {
 		return currentGroup().getSplitter().sheetsInVolume(1+indexInGroup);
 	}
 	
+	/**
+	 * Records the sheets and the overhead of the current volume, so that they are
+	 * available to the volume splitter of the current group. Must be called before
+	 * the sheet count of the group is updated.
+	 * @param overhead the number of overhead sheets in the volume
+	 * @param sheets the body sheets of the volume
+	 */
+	public void recordVolume(int overhead, List<Sheet> sheets) {
+		VolumeBreakRecord record = currentGroup().getBreakRecord();
+		record.setSheets(currentGroup().getSheetCount(), sheets);
+		record.setOverhead(indexInGroup, overhead);
+	}
+
 	/**
 	 * Resets the state of this manager.
 	 */
@@ -124,6 +161,86 @@ public class SheetGroupManager {
 		indexInGroup = 0;
 	}
 	
+	/**
+	 * Creates a checkpoint of the current state of this manager. The checkpoint
+	 * includes the position of the manager, and the sheet counts and remaining
+	 * sheets of every group. It does not include the state of the volume splitters.
+	 * @return returns a new checkpoint
+	 */
+	public Checkpoint newCheckpoint() {
+		return new Checkpoint(this);
+	}
+	
+	/**
+	 * Restores the position of this manager, and the sheet counts of every group,
+	 * to the state of the supplied checkpoint. The remaining sheets are restored
+	 * separately using {@link #restoreUnits(Checkpoint)}.
+	 * @param checkpoint the checkpoint
+	 * @throws IllegalArgumentException if the checkpoint doesn't match this manager
+	 */
+	public void restorePosition(Checkpoint checkpoint) {
+		checkSize(checkpoint);
+		index = checkpoint.index;
+		indexInGroup = checkpoint.indexInGroup;
+		for (int i=0; i<groups.size(); i++) {
+			groups.get(i).setOverheadCount(checkpoint.overheadCounts[i]);
+			groups.get(i).setSheetCount(checkpoint.sheetCounts[i]);
+		}
+	}
+	
+	/**
+	 * Restores the remaining sheets of every group to the state of the supplied checkpoint.
+	 * The checkpoint itself is not modified and can be restored again.
+	 * @param checkpoint the checkpoint
+	 * @throws IllegalArgumentException if the checkpoint doesn't match this manager
+	 */
+	public void restoreUnits(Checkpoint checkpoint) {
+		checkSize(checkpoint);
+		List<SheetDataSource> units = copyUnits(checkpoint.units);
+		for (int i=0; i<groups.size(); i++) {
+			groups.get(i).setUnits(units.get(i));
+		}
+	}
+	
+	private void checkSize(Checkpoint checkpoint) {
+		if (checkpoint.units.size()!=groups.size()) {
+			throw new IllegalArgumentException("Checkpoint doesn't match the groups.");
+		}
+	}
+	
+	/**
+	 * Copies the supplied data sources. Data sources that share a page
+	 * counter will also share the page counter in the copy.
+	 */
+	private static List<SheetDataSource> copyUnits(List<SheetDataSource> units) {
+		Map<PageCounter, PageCounter> counters = new IdentityHashMap<>();
+		List<SheetDataSource> ret = new ArrayList<>();
+		for (SheetDataSource u : units) {
+			PageCounter c = counters.computeIfAbsent(u.getPageCounter(), v->new PageCounter(v));
+			ret.add(new SheetDataSource(u, c));
+		}
+		return ret;
+	}
+	
+	/**
+	 * Provides a snapshot of the state of a {@link SheetGroupManager}.
+	 */
+	public static final class Checkpoint {
+		private final int index;
+		private final int indexInGroup;
+		private final int[] overheadCounts;
+		private final int[] sheetCounts;
+		private final List<SheetDataSource> units;
+		
+		private Checkpoint(SheetGroupManager m) {
+			this.index = m.index;
+			this.indexInGroup = m.indexInGroup;
+			this.overheadCounts = m.groups.stream().mapToInt(g -> g.getOverheadCount()).toArray();
+			this.sheetCounts = m.groups.stream().mapToInt(g -> g.getSheetCount()).toArray();
+			this.units = copyUnits(m.groups.stream().map(g -> g.getUnits()).collect(Collectors.toList()));
+		}
+	}
+	
 	/**
 	 * Returns true if there is content left or left behind.
 	 * @return returns true if the manager has content, false otherwise
@@ -138,8 +255,11 @@ public class SheetGroupManager {
 	 */
 	public void updateAll() {
 		for (SheetGroup g : groups) {
-			int remaining = g.hasNext() ? g.getUnits().getRemaining().size() : 0;
-			g.getSplitter().updateSheetCount(g.countTotalSheets(), remaining);
+			List<Sheet> remaining = g.hasNext() ? g.getUnits().getRemaining() : Collections.emptyList();
+			VolumeBreakRecord record = g.getBreakRecord();
+			record.setSheets(g.getSheetCount(), remaining);
+			record.setVolumeCount(g.getSplitter().getVolumeCount());
+			g.getSplitter().updateSheetCount(g.countTotalSheets(), remaining.size());
 		}
 	}
 	
@@ -0,0 +1,128 @@
+package org.daisy.dotify.formatter.impl.sheet;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.daisy.dotify.formatter.impl.search.VolumeKeepPriority;
+
+/**
+ * <p>Records the properties of the sheets in a {@link SheetGroup} that matter when
+ * volume breaks are chosen, together with the number of overhead sheets in each volume.
+ * The record reflects the latest iteration and is used by {@link OptimalVolumeSplitter}
+ * to compute the volume breaks for the next iteration.</p>
+ *
+ * <p>Sheets are recorded by their index in the body of the group, and overhead by the
+ * index of the volume in the group. A volume that is reused from a previous iteration
+ * isn't recorded again, but since it is only reused if it is unchanged, the record
+ * from that iteration is still correct.</p>
+ */
+class VolumeBreakRecord {
+	// the avoid volume break after priority of each sheet, 0 if not set
+	private byte[] priority;
+	private boolean[] breakable;
+	private int sheets;
+	private int[] overhead;
+	private int volumes;
+
+	/**
+	 * Creates a new empty record.
+	 */
+	VolumeBreakRecord() {
+		this.priority = new byte[0];
+		this.breakable = new boolean[0];
+		this.sheets = 0;
+		this.overhead = new int[0];
+		this.volumes = 0;
+	}
+
+	/**
+	 * Records the specified sheets, starting at the specified index. Any sheets
+	 * after the last of these sheets are no longer part of the record.
+	 * @param fromIndex the index of the first sheet in the body of the group
+	 * @param list the sheets
+	 */
+	void setSheets(int fromIndex, List<Sheet> list) {
+		int size = fromIndex + list.size();
+		if (size>breakable.length) {
+			int capacity = Math.max(size, breakable.length*2);
+			priority = Arrays.copyOf(priority, capacity);
+			breakable = Arrays.copyOf(breakable, capacity);
+		}
+		int i = fromIndex;
+		for (Sheet s : list) {
+			VolumeKeepPriority p = s.getAvoidVolumeBreakAfterPriority();
+			priority[i] = (byte)(p.hasValue()?p.getValue():0);
+			breakable[i] = s.isBreakable();
+			i++;
+		}
+		sheets = size;
+	}
+
+	/**
+	 * Records the number of overhead sheets in the specified volume.
+	 * @param volumeIndex the index of the volume in the group, zero-based
+	 * @param value the number of overhead sheets
+	 */
+	void setOverhead(int volumeIndex, int value) {
+		if (volumeIndex>=overhead.length) {
+			overhead = Arrays.copyOf(overhead, Math.max(volumeIndex+1, overhead.length*2));
+		}
+		overhead[volumeIndex] = value;
+		volumes = Math.max(volumes, volumeIndex+1);
+	}
+
+	/**
+	 * Sets the number of volumes in the latest iteration. Overhead recorded
+	 * for volumes after these is no longer part of the record.
+	 * @param value the number of volumes
+	 */
+	void setVolumeCount(int value) {
+		volumes = Math.min(value, overhead.length);
+	}
+
+	/**
+	 * Gets the number of recorded sheets.
+	 * @return the number of sheets
+	 */
+	int getSheetCount() {
+		return sheets;
+	}
+
+	/**
+	 * Gets the avoid volume break after priority of a sheet.
+	 * @param index the index of the sheet
+	 * @return the priority, or 0 if not set
+	 */
+	int getPriority(int index) {
+		return priority[index];
+	}
+
+	/**
+	 * Returns true if the volume can be broken after the specified sheet.
+	 * @param index the index of the sheet
+	 * @return true if the sheet is breakable, false otherwise
+	 */
+	boolean isBreakable(int index) {
+		return breakable[index];
+	}
+
+	/**
+	 * Gets the number of overhead sheets in a volume. For volumes that weren't part
+	 * of the latest iteration, the average of the recorded volumes is returned.
+	 * @param volumeIndex the index of the volume in the group, zero-based
+	 * @return the number of overhead sheets
+	 */
+	int getOverhead(int volumeIndex) {
+		if (volumeIndex<volumes) {
+			return overhead[volumeIndex];
+		} else if (volumes==0) {
+			return 0;
+		} else {
+			int total = 0;
+			for (int i=0; i<volumes; i++) {
+				total += overhead[i];
+			}
+			return (int)Math.round(total / (double)volumes);
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package org.daisy.dotify.formatter.impl.sheet;
+
+/**
+ * Provides the types of {@link VolumeSplitter} that can be used by a {@link SheetGroupManager}.
+ */
+public enum VolumeSplitterType {
+	/**
+	 * Gives preference to even sized volumes. The volume count and the target size
+	 * of each volume are adjusted based on the results of the previous iteration.
+	 */
+	EVEN_SIZE,
+	/**
+	 * Computes all volume breaks of a group at once, based on the sheets of the
+	 * previous iteration.
+	 */
+	OPTIMAL;
+}
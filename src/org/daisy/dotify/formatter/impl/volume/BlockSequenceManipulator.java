@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Stack;
 
 import org.daisy.dotify.api.formatter.SequenceProperties;
@@ -74,6 +75,32 @@ class BlockSequenceManipulator {
 		taggedEntries = tagSequence(sequence);
 	}
 
+	/**
+	 * Inserts several groups in one pass. Each group is inserted
+	 * before the block with the identifier that it is mapped to.
+	 * @param groups the groups, by identifier
+	 */
+	void insertGroups(Map<String, ? extends Collection<Block>> groups) {
+		int size = sequence.size();
+		for (Map.Entry<String, ? extends Collection<Block>> e : groups.entrySet()) {
+			if (!taggedEntries.containsKey(e.getKey())) {
+				throw new IllegalArgumentException("Cannot find identifier " + e.getKey());
+			}
+			size += e.getValue().size();
+		}
+		List<Block> ret = new ArrayList<>(size);
+		for (Block b : sequence) {
+			Collection<Block> g = b.getBlockIdentifier()!=null?groups.get(b.getBlockIdentifier()):null;
+			if (g!=null) {
+				ret.addAll(g);
+			}
+			ret.add(b);
+		}
+		sequence.clear();
+		sequence.addAll(ret);
+		taggedEntries = tagSequence(sequence);
+	}
+
 	void removeGroup(String id) {
 		Integer index = taggedEntries.get(id);
 		if (index==null) {
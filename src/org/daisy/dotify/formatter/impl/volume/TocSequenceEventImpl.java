@@ -3,6 +3,7 @@ package org.daisy.dotify.formatter.impl.volume;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,6 +32,7 @@ class TocSequenceEventImpl implements VolumeSequence {
 	private final FormatterCoreContext fc;
 	private final long groupNumber;
 	private BlockAddress currentBlockAddress;
+	private TocVolumeIndex index;
 	
 	TocSequenceEventImpl(FormatterCoreContext fc, TocProperties props) {
 		this.fc = fc;
@@ -40,6 +42,7 @@ class TocSequenceEventImpl implements VolumeSequence {
 		this.volumeEndEvents = new ArrayList<>();
 		this.tocEndEvents = new ArrayList<>();
 		this.groupNumber = BlockAddress.getNextGroupNumber();
+		this.index = null;
 	}
 
 	FormatterCore addTocStart(Condition condition) {
@@ -119,53 +122,26 @@ class TocSequenceEventImpl implements VolumeSequence {
 					context.getMasters().get(getSequenceProperties().getMasterName()), 
 					getSequenceProperties());
 
-			fsm.appendGroup(getTocStart(vars));
-
-			fsm.appendGroup(data);
-			
-			if (getRange()==TocProperties.TocRange.DOCUMENT) {
-				fsm.appendGroup(getVolumeEnd(vars));
-			}
-
-			fsm.appendGroup(getTocEnd(vars));
-
 			if (getRange()==TocProperties.TocRange.VOLUME) {
-
-				String start = null;
-				String stop = null;
-				//assumes toc is in sequential order
-				for (String id : data.getTocIdList()) {
-					String ref = data.getRefForID(id);
-					Integer volNo = crh.getVolumeNumber(ref);
-					
-					int vol = (volNo!=null?volNo:1);
-					if (vol<vars.getCurrentVolume()) {
-						
-					} else if (vol==vars.getCurrentVolume()) {
-						if (start==null) {
-							start = id;
-						}
-						stop = id;
-					} else {
-						break;
-					}
+				if (index==null || !index.isIndexOf(data)) {
+					index = new TocVolumeIndex(data);
 				}
-				// start/stop can be null if no entries are in that volume
-				if (start!=null && stop!=null) {
-					try {
-						fsm.removeRange(data.getTocIdList().iterator().next(), start);
-						fsm.removeTail(stop);
-						fsm.appendGroup(getTocEnd(vars));
-						return fsm.newSequence();
-					} catch (Exception e) {
-						Logger.getLogger(this.getClass().getCanonicalName()).
-							log(Level.SEVERE, "TOC failed for: volume " + vars.getCurrentVolume() + " of " + vars.getVolumeCount(), e);
-					}
+				List<Block> entries = index.getBlocks(crh, vars.getCurrentVolume());
+				// entries can be null if no entries are in that volume
+				if (entries!=null) {
+					fsm.appendGroup(getTocStart(vars));
+					fsm.appendGroup(entries);
+					fsm.appendGroup(getTocEnd(vars));
+					return fsm.newSequence();
 				}
 			} else if (getRange()==TocProperties.TocRange.DOCUMENT) {
+				fsm.appendGroup(getTocStart(vars));
+				fsm.appendGroup(data);
+				fsm.appendGroup(getVolumeEnd(vars));
+				fsm.appendGroup(getTocEnd(vars));
 
 				int nv=0;
-				HashMap<String, Iterable<Block>> statics = new HashMap<>();
+				HashMap<String, List<Block>> statics = new HashMap<>();
 				for (Block b : fsm.getBlocks()) {
 					if (b.getBlockIdentifier()!=null) {
 						String ref = data.getRefForID(b.getBlockIdentifier());
@@ -191,9 +167,7 @@ class TocSequenceEventImpl implements VolumeSequence {
 						}
 					}
 				}
-				for (String key : statics.keySet()) {
-					fsm.insertGroup(statics.get(key), key);
-				}
+				fsm.insertGroups(statics);
 				return fsm.newSequence();
 			} else {
 				throw new RuntimeException("Coding error");
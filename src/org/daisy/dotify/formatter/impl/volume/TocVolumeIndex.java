@@ -0,0 +1,204 @@
+package org.daisy.dotify.formatter.impl.volume;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.daisy.dotify.formatter.impl.core.Block;
+import org.daisy.dotify.formatter.impl.core.TableOfContentsImpl;
+import org.daisy.dotify.formatter.impl.search.CrossReferenceHandler;
+
+/**
+ * <p>Provides an index from volume number to the entries of a table of contents
+ * that refer to that volume. The index is used when a table of contents with
+ * a volume range is assembled, so that the entries of a volume can be found
+ * without requesting the volume of every entry in the table of contents.</p>
+ *
+ * <p>The volume of every entry is requested once and kept in the index. As
+ * long as no volume has changed in the cross reference handler since then, and the
+ * entries were in sequential order, the entries of a volume are found in the index.
+ * The volumes of those entries and of the entries immediately before and after them
+ * are still requested, so that the reads are recorded in the same way as before.
+ * If any volume has changed, for example because this is a new iteration, the index
+ * is updated.</p>
+ *
+ * <p>Like before, the entries are assumed to be in sequential order. If they
+ * aren't, the entries are searched in order until an entry with a greater
+ * volume is found, and the entries of the volume are the entries from the
+ * first to the last entry in the volume that were found, regardless of the
+ * volumes of the entries in between. Either way, the result is the same as
+ * if the volume of every entry had been requested.</p>
+ */
+class TocVolumeIndex {
+	private static final Logger logger = Logger.getLogger(TocVolumeIndex.class.getCanonicalName());
+	private final TableOfContentsImpl data;
+	private final List<Block> blocks;
+	private final String[] refs;
+	// the index in blocks of the first block of each entry
+	private final int[] blockIndex;
+	// the volume of each entry, or null if the index has not been updated
+	private int[] volumes;
+	private boolean sequential;
+	// the volume changes of the cross reference handler when the index was updated
+	private int volumeChanges;
+
+	/**
+	 * Creates a new index for the specified table of contents.
+	 * @param data the table of contents
+	 * @throws IllegalArgumentException if an entry of the table of contents
+	 * 			doesn't have a block
+	 */
+	TocVolumeIndex(TableOfContentsImpl data) {
+		this.data = data;
+		this.blocks = new ArrayList<>(data);
+		Map<String, Integer> positions = new HashMap<>();
+		for (int i=0; i<blocks.size(); i++) {
+			String id = blocks.get(i).getBlockIdentifier();
+			if (id!=null) {
+				positions.putIfAbsent(id, i);
+			}
+		}
+		int size = data.getTocIdList().size();
+		this.refs = new String[size];
+		this.blockIndex = new int[size];
+		int i = 0;
+		for (String id : data.getTocIdList()) {
+			Integer pos = positions.get(id);
+			if (pos==null) {
+				throw new IllegalArgumentException("Cannot find identifier " + id);
+			}
+			refs[i] = data.getRefForID(id);
+			blockIndex[i] = pos;
+			i++;
+		}
+		this.volumes = null;
+		this.sequential = false;
+		this.volumeChanges = 0;
+	}
+
+	/**
+	 * Returns true if this is the index of the specified table of contents.
+	 * @param data the table of contents
+	 * @return true if this is the index of the table of contents, false otherwise
+	 */
+	boolean isIndexOf(TableOfContentsImpl data) {
+		return this.data==data;
+	}
+
+	/**
+	 * Gets the blocks of the table of contents that should be used for the
+	 * specified volume, in other words the blocks preceding the first entry
+	 * followed by the blocks from the first entry in the volume up to and
+	 * including the first block of the last entry in the volume.
+	 * @param crh the cross reference handler
+	 * @param volume the volume
+	 * @return the blocks, or null if there are no entries in the volume
+	 */
+	List<Block> getBlocks(CrossReferenceHandler crh, int volume) {
+		int start;
+		int end = 0;
+		if (volumes!=null && sequential && crh.getVolumeNumberChanges()==volumeChanges) {
+			start = firstIndexOf(volume);
+			end = firstIndexOf(volume+1);
+			if (!isCurrent(crh, Math.max(0, start-1), Math.min(volumes.length, end+1))) {
+				update(crh);
+				start = -1;
+			}
+		} else {
+			update(crh);
+			start = -1;
+		}
+		if (start<0) {
+			for (int i=0; i<volumes.length && volumes[i]<=volume; i++) {
+				if (volumes[i]==volume) {
+					if (start<0) {
+						start = i;
+					}
+					end = i + 1;
+				}
+			}
+		}
+		if (start<0 || start>=end) {
+			return null;
+		}
+		List<Block> ret = new ArrayList<>(blockIndex[0] + blockIndex[end-1] - blockIndex[start] + 1);
+		ret.addAll(blocks.subList(0, blockIndex[0]));
+		ret.addAll(blocks.subList(blockIndex[start], blockIndex[end-1] + 1));
+		return ret;
+	}
+
+	/**
+	 * Requests the volume of every entry and updates the index.
+	 * @param crh the cross reference handler
+	 */
+	private void update(CrossReferenceHandler crh) {
+		if (volumes==null) {
+			volumes = new int[refs.length];
+		}
+		volumeChanges = crh.getVolumeNumberChanges();
+		sequential = true;
+		for (int i=0; i<refs.length; i++) {
+			volumes[i] = getVolume(crh, i);
+			if (i>0 && volumes[i]<volumes[i-1]) {
+				sequential = false;
+			}
+		}
+		if (!sequential && logger.isLoggable(Level.FINE)) {
+			logger.fine("The entries of the table of contents are not in sequential order.");
+		}
+	}
+
+	/**
+	 * Returns true if the entries were in sequential order when the index
+	 * was last updated.
+	 * @return true if the entries are in sequential order, false otherwise
+	 */
+	boolean isSequential() {
+		return sequential;
+	}
+
+	/**
+	 * Returns true if the volumes of the entries in the specified range
+	 * are the same as in the index.
+	 * @param crh the cross reference handler
+	 * @param fromIndex the first entry, inclusive
+	 * @param toIndex the last entry, exclusive
+	 * @return true if the volumes are the same, false otherwise
+	 */
+	private boolean isCurrent(CrossReferenceHandler crh, int fromIndex, int toIndex) {
+		for (int i=fromIndex; i<toIndex; i++) {
+			if (getVolume(crh, i)!=volumes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int getVolume(CrossReferenceHandler crh, int index) {
+		Integer volNo = crh.getVolumeNumber(refs[index]);
+		return volNo!=null?volNo:1;
+	}
+
+	/**
+	 * Gets the index of the first entry with a volume that is
+	 * greater than or equal to the specified volume.
+	 * @param volume the volume
+	 * @return the index of the entry, or the number of entries
+	 */
+	private int firstIndexOf(int volume) {
+		int low = 0;
+		int high = volumes.length;
+		while (low<high) {
+			int mid = (low + high) >>> 1;
+			if (volumes[mid]<volume) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
@@ -1,8 +1,11 @@
 package org.daisy.dotify.formatter.impl.writer;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintStream;
-import java.io.UnsupportedEncodingException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -13,6 +16,7 @@ import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
 import javax.xml.namespace.QName;
 
@@ -26,14 +30,32 @@ import org.daisy.dotify.common.io.StateObject;
 
 
 /**
- * PagedMediaWriter implementation that outputs PEF 2008-1.
+ * <p>PagedMediaWriter implementation that outputs PEF 2008-1.</p>
+ * 
+ * <p>The output is buffered and is not flushed until the writer is closed.
+ * The following configuration properties are supported:</p>
+ * <ul>
+ * <li>{@value #GZIP_PROPERTY}: if <code>true</code>, the output is compressed with gzip</li>
+ * <li>{@value #BUFFER_SIZE_PROPERTY}: the size of the output buffer, in characters</li>
+ * </ul>
  * @author Joel Håkansson
  *
  */
 class PEFMediaWriter implements PagedMediaWriter {
+	/**
+	 * Property key for enabling gzip compression of the output.
+	 */
+	static final String GZIP_PROPERTY = "gzip";
+	/**
+	 * Property key for the size of the output buffer.
+	 */
+	static final String BUFFER_SIZE_PROPERTY = "buffer-size";
+	private static final int DEFAULT_BUFFER_SIZE = 64*1024;
 	private static final String DC_NAMESPACE_URI = "http://purl.org/dc/elements/1.1/";
 	private static final Logger logger = Logger.getLogger(PEFMediaWriter.class.getCanonicalName());
-	private PrintStream pst;
+	private final boolean gzip;
+	private final int bufferSize;
+	private PrintWriter pst;
 	private boolean hasOpenVolume;
 	private boolean hasOpenSection;
 	private boolean hasOpenPage;
@@ -59,6 +81,9 @@ class PEFMediaWriter implements PagedMediaWriter {
 		cDuplex = true;
 		state = new StateObject("Writer");
 		this.metadata = new ArrayList<>();
+		this.gzip = Boolean.parseBoolean(String.valueOf(p.get(GZIP_PROPERTY)));
+		Object size = p.get(BUFFER_SIZE_PROPERTY);
+		this.bufferSize = size!=null?Integer.parseInt(size.toString()):DEFAULT_BUFFER_SIZE;
 	}
 
 	@Override
@@ -79,10 +104,10 @@ class PEFMediaWriter implements PagedMediaWriter {
 		state.assertUnopened();
 		state.open();
 		try {
-			pst = new PrintStream(os, true, "UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			// should never happen
-			throw new PagedMediaWriterException("Cannot open PrintStream with UTF-8.", e);
+			OutputStream out = gzip?new GZIPOutputStream(os, 8192):os;
+			pst = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), bufferSize), false);
+		} catch (IOException e) {
+			throw new PagedMediaWriterException("Cannot open output.", e);
 		}
 		hasOpenVolume = false;		
 		hasOpenSection = false;
@@ -222,10 +247,20 @@ class PEFMediaWriter implements PagedMediaWriter {
 					);
 			errorCount++;
 		}
-		pst.println("<row" +
-		(row.getRowSpacing()!=null?" rowgap=\""+(int)Math.floor((row.getRowSpacing()-1)*4)+"\"":"") +
-		(row.getChars().length()>0?">"+row.getChars()+"</row>":"/>")
-		);
+		pst.write("<row");
+		if (row.getRowSpacing()!=null) {
+			pst.write(" rowgap=\"");
+			pst.print((int)Math.floor((row.getRowSpacing()-1)*4));
+			pst.write('"');
+		}
+		String chars = row.getChars();
+		if (chars.length()>0) {
+			pst.write('>');
+			pst.write(chars);
+			pst.println("</row>");
+		} else {
+			pst.println("/>");
+		}
 	}
 	
 	@Override
@@ -335,6 +370,9 @@ class PEFMediaWriter implements PagedMediaWriter {
 		pst.println("</body>");
 		pst.println("</pef>");
 		pst.close();
+		if (pst.checkError()) {
+			logger.warning("An error occurred while writing the output.");
+		}
 		state.close();
 	}
 
@@ -22,13 +22,28 @@ class PEFMediaWriterFactory implements PagedMediaWriterFactory {
 
 	@Override
 	public Object getFeature(String key) {
-		return null;
+		return p.get(key);
 	}
 
 	@Override
 	public void setFeature(String key, Object value)
 			throws PagedMediaWriterConfigurationException {
-		throw new PEFMediaWriterConfigurationException("Unknown feature: " + key);
+		switch (key) {
+			case PEFMediaWriter.GZIP_PROPERTY:
+				if (!(value instanceof Boolean)) {
+					throw new PEFMediaWriterConfigurationException("Value must be a boolean: " + key);
+				}
+				p.put(key, value);
+				break;
+			case PEFMediaWriter.BUFFER_SIZE_PROPERTY:
+				if (!(value instanceof Integer) || (Integer)value<1) {
+					throw new PEFMediaWriterConfigurationException("Value must be a positive integer: " + key);
+				}
+				p.put(key, value);
+				break;
+			default:
+				throw new PEFMediaWriterConfigurationException("Unknown feature: " + key);
+		}
 	}
 	
 	private class PEFMediaWriterConfigurationException extends PagedMediaWriterConfigurationException {
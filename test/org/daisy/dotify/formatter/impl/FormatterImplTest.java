@@ -1,19 +1,26 @@
 package org.daisy.dotify.formatter.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import org.daisy.dotify.api.formatter.BlockProperties;
 import org.daisy.dotify.api.formatter.Context;
 import org.daisy.dotify.api.formatter.DynamicContent;
 import org.daisy.dotify.api.formatter.Formatter;
 import org.daisy.dotify.api.formatter.FormatterConfiguration;
+import org.daisy.dotify.api.formatter.FormatterCore;
 import org.daisy.dotify.api.formatter.FormatterSequence;
 import org.daisy.dotify.api.formatter.LayoutMasterProperties;
 import org.daisy.dotify.api.formatter.SequenceProperties;
+import org.daisy.dotify.api.formatter.TableCellProperties;
+import org.daisy.dotify.api.formatter.TableProperties;
 import org.daisy.dotify.api.formatter.TextProperties;
 import org.daisy.dotify.api.translator.BrailleTranslatorFactoryMakerService;
 import org.daisy.dotify.api.translator.TextAttribute;
@@ -24,6 +31,7 @@ import org.daisy.dotify.api.writer.PagedMediaWriterException;
 import org.daisy.dotify.api.writer.Row;
 import org.daisy.dotify.api.writer.SectionProperties;
 import org.daisy.dotify.common.text.IdentityFilter;
+import org.daisy.dotify.formatter.impl.core.BlockPrerenderer;
 import org.daisy.dotify.translator.DefaultBrailleFilter;
 import org.daisy.dotify.translator.DefaultMarkerProcessor;
 import org.daisy.dotify.translator.Marker;
@@ -110,5 +118,208 @@ public class FormatterImplTest {
 		});
 		assertEquals("1>a2>b<2c<1", sb.toString());
 	}
-	
+
+	private static BrailleTranslatorFactoryMakerService newTranslatorFactory(String loc, String mode) throws TranslatorConfigurationException {
+		BrailleTranslatorFactoryMakerService sr = Mockito.mock(BrailleTranslatorFactoryMakerService.class);
+		// each thread gets its own translator
+		Mockito.when(sr.newTranslator(loc, mode)).thenAnswer(inv->new SimpleBrailleTranslator(
+				new DefaultBrailleFilter(new IdentityFilter(), loc, new DefaultMarkerProcessor.Builder().build(), null),
+				new DefaultBrailleFinalizer(), mode));
+		return sr;
+	}
+
+	private static String formatBlocks(Consumer<FormatterImpl> setup) throws TranslatorConfigurationException {
+		String loc = "und";
+		String mode = "bypass";
+		TextProperties tp = new TextProperties.Builder(loc).hyphenate(false).build();
+		FormatterImpl f1 = new FormatterImpl(
+				newTranslatorFactory(loc, mode),
+				null,
+				new FormatterConfiguration.Builder(loc, mode).hyphenate(false).build());
+		setup.accept(f1);
+		f1.newLayoutMaster("main", new LayoutMasterProperties.Builder(20, 10).build());
+		// a block that depends on the pagination
+		DynamicContent page = new DynamicContent() {
+			@Override
+			public String render(Context context) {
+				return "page " + context.getCurrentPage();
+			}
+
+			@Override
+			public String render() {
+				return render(new Context() {});
+			}
+		};
+		for (int s=0; s<2; s++) {
+			FormatterSequence f = f1.newSequence(new SequenceProperties.Builder("main").build());
+			for (int i=0; i<150; i++) {
+				f.startBlock(new BlockProperties.Builder().build());
+				f.addChars("Block " + i + " of sequence " + s + " with some words to break", tp);
+				if (i%10==0) {
+					f.insertEvaluate(page, tp);
+				}
+				f.endBlock();
+			}
+		}
+		return write(f1);
+	}
+
+	private static String formatTable(BrailleTranslatorFactoryMakerService sr, int parallelism) {
+		return formatTable(sr, parallelism, false);
+	}
+
+	private static String formatTable(BrailleTranslatorFactoryMakerService sr, int parallelism, boolean nested) {
+		String loc = "und";
+		String mode = "bypass";
+		TextProperties tp = new TextProperties.Builder(loc).hyphenate(false).build();
+		FormatterImpl f1 = new FormatterImpl(
+				sr,
+				null,
+				new FormatterConfiguration.Builder(loc, mode).hyphenate(false).build());
+		f1.setParallelism(parallelism);
+		f1.setPipelined(false);
+		f1.newLayoutMaster("main", new LayoutMasterProperties.Builder(30, 20).build());
+		FormatterSequence f = f1.newSequence(new SequenceProperties.Builder("main").build());
+		f.startTable(new TableProperties.Builder().tableColSpacing(1).build());
+		f.beginsTableBody();
+		for (int r=0; r<4; r++) {
+			f.beginsTableRow();
+			for (int c=0; c<4; c++) {
+				FormatterCore cell = f.beginsTableCell(new TableCellProperties.Builder().build());
+				cell.startBlock(new BlockProperties.Builder().build());
+				cell.addChars(c==r?"Cell " + r + " with a longer text":"Cell " + r + c, tp);
+				cell.endBlock();
+				if (nested) {
+					cell.startTable(new TableProperties.Builder().tableColSpacing(1).build());
+					cell.beginsTableBody();
+					for (int nr=0; nr<3; nr++) {
+						cell.beginsTableRow();
+						for (int nc=0; nc<3; nc++) {
+							FormatterCore inner = cell.beginsTableCell(new TableCellProperties.Builder().build());
+							inner.startBlock(new BlockProperties.Builder().build());
+							inner.addChars("" + nr + nc, tp);
+							inner.endBlock();
+						}
+					}
+					cell.endTable();
+				}
+			}
+		}
+		f.endTable();
+		return write(f1);
+	}
+
+	private static String write(Formatter f1) {
+		StringBuilder sb = new StringBuilder();
+		f1.write(new PagedMediaWriter() {
+			@Override
+			public void close() throws IOException { }
+
+			@Override
+			public void prepare(List<MetaDataItem> meta) { }
+
+			@Override
+			public void open(OutputStream os) throws PagedMediaWriterException { }
+
+			@Override
+			public void newVolume(SectionProperties props) { }
+
+			@Override
+			public void newSection(SectionProperties props) { }
+
+			@Override
+			public void newRow(Row row) {
+				sb.append(row.getChars()).append('\n');
+			}
+
+			@Override
+			public void newRow() { }
+
+			@Override
+			public void newPage() { }
+		});
+		return sb.toString();
+	}
+
+	@Test
+	public void testPipelined() throws TranslatorConfigurationException {
+		AtomicReference<FormatterImpl> formatter = new AtomicReference<>();
+		String pipelined = formatBlocks(f->{
+			f.setPipelined(true);
+			f.setPipelineThreads(2);
+			formatter.set(f);
+		});
+		assertEquals(formatBlocks(f->{}), pipelined);
+		PrerenderPipeline pipeline = formatter.get().getPipeline();
+		assertTrue(pipeline.isStarted());
+		assertTrue(pipeline.getCount()>0);
+		assertTrue(pipeline.isTerminated());
+	}
+
+	@Test
+	public void testPipelineClosed() throws TranslatorConfigurationException {
+		TextProperties tp = new TextProperties.Builder("und").hyphenate(false).build();
+		FormatterImpl f1 = new FormatterImpl(
+				newTranslatorFactory("und", "bypass"),
+				null,
+				new FormatterConfiguration.Builder("und", "bypass").hyphenate(false).build());
+		f1.setPipelined(true);
+		f1.setPipelineThreads(2);
+		f1.newLayoutMaster("main", new LayoutMasterProperties.Builder(20, 10).build());
+		FormatterSequence f = f1.newSequence(new SequenceProperties.Builder("main").build());
+		for (int i=0; i<200; i++) {
+			f.startBlock(new BlockProperties.Builder().build());
+			f.addChars("Block " + i, tp);
+			f.endBlock();
+		}
+		// the input is abandoned, for example because it could not be parsed
+		f1.close();
+		PrerenderPipeline pipeline = f1.getPipeline();
+		assertTrue(pipeline.isStarted());
+		assertTrue(pipeline.isTerminated());
+	}
+
+	@Test
+	public void testPrerendered() throws TranslatorConfigurationException {
+		String expected = formatBlocks(f->f.setParallelism(0));
+		// the volatile blocks are laid out during pagination
+		assertTrue(expected.contains("page"));
+		assertEquals(expected, formatBlocks(f->f.setParallelism(1)));
+		assertEquals(expected, formatBlocks(f->f.setParallelism(4)));
+	}
+
+	@Test
+	public void testPrerendererShutDownAfterWrite() throws TranslatorConfigurationException {
+		AtomicReference<FormatterImpl> formatter = new AtomicReference<>();
+		formatBlocks(f->{
+			f.setParallelism(4);
+			formatter.set(f);
+		});
+		BlockPrerenderer prerenderer = formatter.get().getPrerenderer();
+		assertEquals(4, prerenderer.getParallelism());
+		assertFalse(prerenderer.isStarted());
+	}
+
+	@Test
+	public void testTableCellsRenderedConcurrently() throws TranslatorConfigurationException {
+		BrailleTranslatorFactoryMakerService sr = newTranslatorFactory("und", "bypass");
+		String expected = formatTable(sr, 0);
+		assertTrue(expected.contains("Cell"));
+		Mockito.verify(sr, Mockito.times(1)).newTranslator("und", "bypass");
+		assertEquals(expected, formatTable(sr, 4));
+		// the cells were rendered on other threads, with other translators
+		Mockito.verify(sr, Mockito.atLeast(3)).newTranslator("und", "bypass");
+	}
+
+	@Test
+	public void testNestedTablesRenderedConcurrently() throws TranslatorConfigurationException {
+		String expected = formatTable(newTranslatorFactory("und", "bypass"), 0, true);
+		assertTrue(expected.contains("Cell"));
+		BrailleTranslatorFactoryMakerService sr = newTranslatorFactory("und", "bypass");
+		assertEquals(expected, formatTable(sr, 4, true));
+		// the nested tables are rendered on the threads of the outer table, so no more
+		// than one translator is created for the formatter and one for each of its threads
+		Mockito.verify(sr, Mockito.atMost(5)).newTranslator("und", "bypass");
+	}
+
 }
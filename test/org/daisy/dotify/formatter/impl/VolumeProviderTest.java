@@ -0,0 +1,195 @@
+package org.daisy.dotify.formatter.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.daisy.dotify.api.formatter.BlockProperties;
+import org.daisy.dotify.api.formatter.CurrentPageField;
+import org.daisy.dotify.api.formatter.FieldList;
+import org.daisy.dotify.api.formatter.FormatterConfiguration;
+import org.daisy.dotify.api.formatter.FormatterSequence;
+import org.daisy.dotify.api.formatter.LayoutMasterProperties;
+import org.daisy.dotify.api.formatter.Marker;
+import org.daisy.dotify.api.formatter.MarkerReferenceField;
+import org.daisy.dotify.api.formatter.MarkerReferenceField.MarkerSearchDirection;
+import org.daisy.dotify.api.formatter.MarkerReferenceField.MarkerSearchScope;
+import org.daisy.dotify.api.formatter.NumeralStyle;
+import org.daisy.dotify.api.formatter.SequenceProperties;
+import org.daisy.dotify.api.formatter.TableOfContents;
+import org.daisy.dotify.api.formatter.TextProperties;
+import org.daisy.dotify.api.formatter.TocProperties;
+import org.daisy.dotify.api.formatter.VolumeContentBuilder;
+import org.daisy.dotify.api.formatter.VolumeTemplateProperties;
+import org.daisy.dotify.api.translator.BrailleTranslatorFactoryMaker;
+import org.daisy.dotify.api.writer.MetaDataItem;
+import org.daisy.dotify.api.writer.PagedMediaWriter;
+import org.daisy.dotify.api.writer.PagedMediaWriterException;
+import org.daisy.dotify.api.writer.Row;
+import org.daisy.dotify.api.writer.SectionProperties;
+import org.daisy.dotify.formatter.impl.sheet.VolumeSplitterType;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class VolumeProviderTest {
+	private static final Pattern TOC_ENTRY = Pattern.compile("Chapter (\\d+) (\\d+)");
+	private static final Pattern HEADING = Pattern.compile("Chapter (\\d+)");
+
+	/**
+	 * The pre-content of every volume is a table of contents with the page number of every
+	 * chapter. The page numbers and volume numbers change while the volumes are laid out,
+	 * so the pre-content must be laid out again whenever the numbers that it read have changed.
+	 * The header of the pre-content refers to a marker in the table of contents, so the rows
+	 * of reused pages depend on the cross-references too.
+	 */
+	@Test
+	public void testPreContentWithChangingReferences() {
+		FormatterImpl f1 = newFormatter(30);
+		List<List<List<String>>> volumes = write(f1);
+
+		assertEquals(2, volumes.size());
+		for (List<List<String>> volume : volumes) {
+			assertTocMatchesBody(volumes, volume);
+		}
+		VolumeProvider provider = f1.getVolumeProvider();
+		// the pre-content was laid out again in later iterations, when the numbers that it read had changed
+		assertTrue("Misses: " + provider.getContentMissCount(), provider.getContentMissCount()>volumes.size());
+		// the pre-content was reused when the numbers that it read were unchanged
+		assertTrue("Hits: " + provider.getContentHitCount(), provider.getContentHitCount()>0);
+	}
+
+	private static void assertTocMatchesBody(List<List<List<String>>> volumes, List<List<String>> volume) {
+		Map<Integer, Integer> headings = new HashMap<>();
+		for (List<List<String>> v : volumes) {
+			for (List<String> page : v) {
+				if (!isTocPage(page)) {
+					for (String row : page) {
+						Matcher m = HEADING.matcher(row);
+						if (m.matches()) {
+							// the header of a page in the body is the page number
+							headings.put(Integer.parseInt(m.group(1)), Integer.parseInt(page.get(0)));
+						}
+					}
+				}
+			}
+		}
+		int entries = 0;
+		for (List<String> page : volume) {
+			if (isTocPage(page)) {
+				String first = null;
+				for (String row : page) {
+					Matcher m = TOC_ENTRY.matcher(row);
+					if (m.matches()) {
+						if (first==null) {
+							first = m.group(1);
+						}
+						assertEquals(row, headings.get(Integer.parseInt(m.group(1))), Integer.valueOf(m.group(2)));
+						entries++;
+					}
+				}
+				assertEquals("C" + first, page.get(0));
+			}
+		}
+		assertEquals(headings.size(), entries);
+	}
+
+	private static boolean isTocPage(List<String> page) {
+		return !page.isEmpty() && page.get(0).startsWith("C");
+	}
+
+	/**
+	 * Creates a formatter with a document with a table of contents in the pre-content of every volume.
+	 * @param chapters the number of chapters
+	 * @return the formatter
+	 */
+	private static FormatterImpl newFormatter(int chapters) {
+		String loc = "und";
+		TextProperties tp = new TextProperties.Builder(loc).hyphenate(false).build();
+		FormatterImpl f1 = new FormatterImpl(
+				BrailleTranslatorFactoryMaker.newInstance(),
+				null,
+				new FormatterConfiguration.Builder(loc, "bypass").hyphenate(false).build());
+		// the iterations depend on the volume breaks
+		f1.setVolumeSplitterType(VolumeSplitterType.EVEN_SIZE);
+		f1.newLayoutMaster("main", new LayoutMasterProperties.Builder(20, 10).build())
+			.newTemplate(null)
+			.addToHeader(new FieldList.Builder(Collections.singletonList(new CurrentPageField(NumeralStyle.DEFAULT))).build());
+		f1.newLayoutMaster("front", new LayoutMasterProperties.Builder(20, 10).build())
+			.newTemplate(null)
+			.addToHeader(new FieldList.Builder(Collections.singletonList(
+					new MarkerReferenceField("entry", MarkerSearchDirection.FORWARD, MarkerSearchScope.PAGE))).build());
+		TableOfContents toc = f1.newToc("toc");
+		for (int i=1; i<=chapters; i++) {
+			toc.startEntry("ch" + i, new BlockProperties.Builder().build());
+			toc.insertMarker(new Marker("entry", "C" + i));
+			toc.addChars("Chapter " + i + " ", tp);
+			toc.insertReference("ch" + i, NumeralStyle.DEFAULT);
+			toc.endEntry();
+		}
+		VolumeContentBuilder pre = f1.newVolumeTemplate(new VolumeTemplateProperties.Builder(6).build()).getPreVolumeContentBuilder();
+		pre.newTocSequence(new TocProperties.Builder("front", "toc", TocProperties.TocRange.DOCUMENT).build());
+		FormatterSequence f = f1.newSequence(new SequenceProperties.Builder("main").build());
+		for (int i=1; i<=chapters; i++) {
+			f.startBlock(new BlockProperties.Builder().identifier("ch" + i).build());
+			f.addChars("Chapter " + i, tp);
+			f.endBlock();
+			for (int j=0; j<i%6; j++) {
+				f.startBlock(new BlockProperties.Builder().build());
+				f.addChars("Text " + i + " " + j, tp);
+				f.endBlock();
+			}
+		}
+		return f1;
+	}
+
+	/**
+	 * Lays out the document of a formatter.
+	 * @param f1 the formatter
+	 * @return the rows of each page of each volume
+	 */
+	private static List<List<List<String>>> write(FormatterImpl f1) {
+		List<List<List<String>>> volumes = new ArrayList<>();
+		f1.write(new PagedMediaWriter() {
+			@Override
+			public void close() throws IOException { }
+
+			@Override
+			public void prepare(List<MetaDataItem> meta) { }
+
+			@Override
+			public void open(OutputStream os) throws PagedMediaWriterException { }
+
+			@Override
+			public void newVolume(SectionProperties props) {
+				volumes.add(new ArrayList<>());
+			}
+
+			@Override
+			public void newSection(SectionProperties props) { }
+
+			@Override
+			public void newRow(Row row) {
+				List<List<String>> volume = volumes.get(volumes.size()-1);
+				volume.get(volume.size()-1).add(row.getChars());
+			}
+
+			@Override
+			public void newRow() { }
+
+			@Override
+			public void newPage() {
+				volumes.get(volumes.size()-1).add(new ArrayList<>());
+			}
+		});
+		return volumes;
+	}
+}
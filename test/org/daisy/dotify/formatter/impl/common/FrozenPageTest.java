@@ -0,0 +1,86 @@
+package org.daisy.dotify.formatter.impl.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.daisy.dotify.api.writer.Row;
+import org.daisy.dotify.formatter.impl.row.RowImpl;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class FrozenPageTest {
+
+	@Test
+	public void testRowsMatchSource() {
+		List<RowImpl> source = Arrays.asList(
+				new RowImpl.Builder("⠁⠃⠉").build(),
+				new RowImpl.Builder("").rowSpacing(2f).build(),
+				new RowImpl.Builder("⠙").build(),
+				new RowImpl.Builder("").build(),
+				new RowImpl.Builder("⠑⠋").rowSpacing(1.25f).build());
+		FrozenPage page = new FrozenPage(()->source);
+		assertRows(source, page.getRows());
+	}
+
+	@Test
+	public void testRowsWithoutRowSpacing() {
+		List<RowImpl> source = Arrays.asList(
+				new RowImpl.Builder("⠁").build(),
+				new RowImpl.Builder("⠃⠉").build());
+		FrozenPage page = new FrozenPage(()->source);
+		assertRows(source, page.getRows());
+		assertNull(page.getRows().get(1).getRowSpacing());
+	}
+
+	@Test
+	public void testEmptyPagesShareEmptyList() {
+		FrozenPage p1 = new FrozenPage(()->Collections.emptyList());
+		FrozenPage p2 = new FrozenPage(()->Collections.emptyList());
+		assertSame(Collections.emptyList(), p1.getRows());
+		assertSame(p1.getRows(), p2.getRows());
+	}
+
+	@Test
+	public void testReadWrite() throws IOException {
+		List<RowImpl> source = Arrays.asList(
+				new RowImpl.Builder("⠁⠃").build(),
+				new RowImpl.Builder("").rowSpacing(2f).build(),
+				new RowImpl.Builder("⠉").build());
+		assertRows(source, copy(new FrozenPage(()->source)).getRows());
+		assertSame(Collections.emptyList(), copy(new FrozenPage(()->Collections.emptyList())).getRows());
+	}
+
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void testRowIndexOutOfBounds() {
+		new FrozenPage(()->Collections.singletonList(new RowImpl.Builder("⠁").build())).getRows().get(1);
+	}
+
+	private static FrozenPage copy(FrozenPage page) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			page.write(out);
+		}
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			return FrozenPage.read(in);
+		}
+	}
+
+	private static void assertRows(List<? extends Row> expected, List<? extends Row> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i=0; i<expected.size(); i++) {
+			assertEquals(expected.get(i).getChars(), actual.get(i).getChars());
+			assertEquals(expected.get(i).getRowSpacing(), actual.get(i).getRowSpacing());
+		}
+	}
+
+}
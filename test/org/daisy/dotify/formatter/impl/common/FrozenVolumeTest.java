@@ -0,0 +1,111 @@
+package org.daisy.dotify.formatter.impl.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.daisy.dotify.api.writer.SectionProperties;
+import org.daisy.dotify.formatter.impl.row.RowImpl;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class FrozenVolumeTest {
+	private static final SectionProperties PROPS = new SectionProperties() {
+		@Override
+		public int getPageWidth() {
+			return 20;
+		}
+		@Override
+		public int getPageHeight() {
+			return 25;
+		}
+		@Override
+		public float getRowSpacing() {
+			return 1;
+		}
+		@Override
+		public boolean duplex() {
+			return false;
+		}
+	};
+
+	@Test
+	public void testSectionsMatchSource() {
+		Page p1 = ()->Arrays.asList(new RowImpl.Builder("⠁").build(), new RowImpl.Builder("⠃").rowSpacing(2f).build());
+		Page p2 = ()->Collections.emptyList();
+		Volume source = ()->Arrays.asList(newSection(p1, p2), newSection(p1));
+		List<Section> sections = sections(new FrozenVolume(source));
+		assertEquals(2, sections.size());
+		// the section properties are shared
+		assertSame(PROPS, sections.get(0).getSectionProperties());
+		assertEquals(2, sections.get(0).getPages().size());
+		assertEquals(1, sections.get(1).getPages().size());
+		for (Page p : sections.get(0).getPages()) {
+			assertTrue(p instanceof FrozenPage);
+		}
+		assertEquals("⠃", sections.get(0).getPages().get(0).getRows().get(1).getChars());
+		assertEquals(Float.valueOf(2f), sections.get(0).getPages().get(0).getRows().get(1).getRowSpacing());
+		assertEquals(0, sections.get(0).getPages().get(1).getRows().size());
+	}
+
+	@Test
+	public void testFrozenPagesAreKept() {
+		FrozenPage page = new FrozenPage(()->Collections.singletonList(new RowImpl.Builder("⠁").build()));
+		Volume source = ()->Collections.singletonList(newSection(page));
+		assertSame(page, sections(new FrozenVolume(source)).get(0).getPages().get(0));
+	}
+
+	@Test
+	public void testReadWrite() throws IOException {
+		Page p1 = ()->Arrays.asList(new RowImpl.Builder("⠁⠃").build(), new RowImpl.Builder("").build());
+		FrozenVolume volume = new FrozenVolume(()->Arrays.asList(newSection(p1), newSection(p1, p1)));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			volume.write(out);
+		}
+		FrozenVolume copy;
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			copy = FrozenVolume.read(in);
+		}
+		List<Section> sections = sections(copy);
+		assertEquals(2, sections.size());
+		SectionProperties props = sections.get(1).getSectionProperties();
+		assertEquals(20, props.getPageWidth());
+		assertEquals(25, props.getPageHeight());
+		assertEquals(1, props.getRowSpacing(), 0);
+		assertEquals(false, props.duplex());
+		assertEquals(2, sections.get(1).getPages().size());
+		assertEquals("⠁⠃", sections.get(1).getPages().get(1).getRows().get(0).getChars());
+		assertEquals("", sections.get(1).getPages().get(1).getRows().get(1).getChars());
+	}
+
+	private static List<Section> sections(Volume v) {
+		List<Section> ret = new ArrayList<>();
+		v.getSections().forEach(ret::add);
+		return ret;
+	}
+
+	private static Section newSection(Page ... pages) {
+		return new Section() {
+			@Override
+			public SectionProperties getSectionProperties() {
+				return PROPS;
+			}
+			@Override
+			public List<? extends Page> getPages() {
+				return Arrays.asList(pages);
+			}
+		};
+	}
+
+}
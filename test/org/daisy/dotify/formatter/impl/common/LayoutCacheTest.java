@@ -0,0 +1,64 @@
+package org.daisy.dotify.formatter.impl.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class LayoutCacheTest {
+	private Path dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("layout-cache");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		new LayoutCache(dir, 0).clear();
+		Files.deleteIfExists(dir);
+	}
+
+	@Test
+	public void testGetAndPut() throws IOException {
+		LayoutCache cache = new LayoutCache(dir, 100);
+		assertNull(cache.get("a"));
+		cache.put("a", new byte[]{1, 2, 3});
+		assertArrayEquals(new byte[]{1, 2, 3}, cache.get("a"));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(0.5, cache.getHitRate(), 0);
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() throws IOException {
+		LayoutCache cache = new LayoutCache(dir, 10);
+		cache.put("a", new byte[4]);
+		cache.put("b", new byte[4]);
+		cache.get("a");
+		cache.put("c", new byte[4]);
+		assertTrue(cache.containsKey("a"));
+		assertFalse(cache.containsKey("b"));
+		assertTrue(cache.containsKey("c"));
+		assertEquals(8, cache.getSize());
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	@Test
+	public void testEntriesAreKeptBetweenInstances() throws IOException {
+		new LayoutCache(dir, 100).put("a", new byte[]{4, 5});
+		LayoutCache cache = new LayoutCache(dir, 100);
+		assertEquals(1, cache.size());
+		assertArrayEquals(new byte[]{4, 5}, cache.get("a"));
+	}
+}
@@ -0,0 +1,56 @@
+package org.daisy.dotify.formatter.impl.common;
+
+import static org.junit.Assert.assertEquals;
+
+import org.daisy.dotify.api.translator.BrailleTranslatorResult;
+import org.daisy.dotify.api.translator.TranslationException;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+@SuppressWarnings("javadoc")
+public class TranslationCacheTest {
+
+	private static BrailleTranslatorResult newResult() {
+		BrailleTranslatorResult ret = Mockito.mock(BrailleTranslatorResult.class);
+		Mockito.when(ret.copy()).thenReturn(ret);
+		return ret;
+	}
+
+	@Test
+	public void testSharedPartIsCountedOnce() throws TranslationException {
+		TranslationCache cache = new TranslationCache(100);
+		cache.translate("a", 2, "context", 10, TranslationCacheTest::newResult);
+		assertEquals(12, cache.getWeight());
+		cache.translate("b", 3, "context", 10, TranslationCacheTest::newResult);
+		assertEquals(15, cache.getWeight());
+		cache.translate("c", 4, "other", 20, TranslationCacheTest::newResult);
+		assertEquals(39, cache.getWeight());
+		cache.translate("a", 2, "context", 10, TranslationCacheTest::newResult);
+		assertEquals(1, cache.getHitCount());
+		assertEquals(39, cache.getWeight());
+	}
+
+	@Test
+	public void testSharedPartIsRemovedWithLastEntry() throws TranslationException {
+		TranslationCache cache = new TranslationCache(40);
+		cache.translate("a", 2, "context", 10, TranslationCacheTest::newResult);
+		cache.translate("b", 3, "context", 10, TranslationCacheTest::newResult);
+		// the first entry is evicted, but the shared part is still used by the second
+		cache.translate("c", 22, "other", 5, TranslationCacheTest::newResult);
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(40, cache.getWeight());
+		// the second entry is evicted together with the shared part
+		cache.translate("d", 10, null, 0, TranslationCacheTest::newResult);
+		assertEquals(2, cache.getEvictionCount());
+		assertEquals(37, cache.getWeight());
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void testEntryHeavierThanCacheIsNotAdded() throws TranslationException {
+		TranslationCache cache = new TranslationCache(10);
+		cache.translate("a", 2, "context", 9, TranslationCacheTest::newResult);
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getWeight());
+	}
+}
@@ -0,0 +1,146 @@
+package org.daisy.dotify.formatter.impl.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.daisy.dotify.api.writer.Row;
+import org.daisy.dotify.api.writer.SectionProperties;
+import org.daisy.dotify.formatter.impl.row.RowImpl;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class VolumeSpoolTest {
+
+	@Test
+	public void testReadVolumes() throws IOException {
+		// a limit of 0 means that all volumes are written to the file
+		try (VolumeSpool spool = new VolumeSpool(0)) {
+			Volume v1 = spool.add(newVolume(10,
+					new RowImpl.Builder("⠁⠃").rowSpacing(2f).build(),
+					new RowImpl.Builder("").build()));
+			Volume v2 = spool.add(newVolume(20, new RowImpl.Builder("⠉").build()));
+
+			List<Section> sections = new ArrayList<>();
+			v2.getSections().forEach(sections::add);
+			assertEquals(1, sections.size());
+			assertEquals(20, sections.get(0).getSectionProperties().getPageWidth());
+			assertEquals(1, sections.get(0).getPages().size());
+			assertEquals("⠉", sections.get(0).getPages().get(0).getRows().get(0).getChars());
+
+			sections.clear();
+			v1.getSections().forEach(sections::add);
+			SectionProperties props = sections.get(0).getSectionProperties();
+			assertEquals(10, props.getPageWidth());
+			assertEquals(25, props.getPageHeight());
+			assertEquals(1.5f, props.getRowSpacing(), 0);
+			assertEquals(true, props.duplex());
+			List<? extends Row> rows = sections.get(0).getPages().get(0).getRows();
+			assertEquals(2, rows.size());
+			assertEquals("⠁⠃", rows.get(0).getChars());
+			assertEquals(Float.valueOf(2f), rows.get(0).getRowSpacing());
+			assertEquals("", rows.get(1).getChars());
+			assertNull(rows.get(1).getRowSpacing());
+			assertEquals(0, spool.getMemorySize());
+			assertTrue(spool.getFileSize()>0);
+		}
+	}
+
+	@Test
+	public void testVolumesBelowLimitAreKeptInMemory() throws IOException {
+		try (VolumeSpool spool = new VolumeSpool(1024)) {
+			Volume v = spool.add(newVolume(10, new RowImpl.Builder("⠁").build()));
+			assertTrue(spool.getMemorySize()>0);
+			assertEquals(0, spool.getFileSize());
+			assertEquals("⠁", firstRow(v).getChars());
+			spool.release(v);
+			assertEquals(0, spool.getMemorySize());
+		}
+	}
+
+	@Test
+	public void testReleasedSpaceIsReused() throws IOException {
+		try (VolumeSpool spool = new VolumeSpool(0)) {
+			Volume v1 = spool.add(newVolume(10, new RowImpl.Builder("⠁").build()));
+			Volume v2 = spool.add(newVolume(10, new RowImpl.Builder("⠃").build()));
+			long size = spool.getFileSize();
+			spool.release(v1);
+			// not at the end of the file, so the file keeps its size
+			assertEquals(size, spool.getFileSize());
+			Volume v3 = spool.add(newVolume(10, new RowImpl.Builder("⠉").build()));
+			assertEquals(size, spool.getFileSize());
+			assertEquals("⠃", firstRow(v2).getChars());
+			assertEquals("⠉", firstRow(v3).getChars());
+		}
+	}
+
+	@Test
+	public void testFileIsTruncated() throws IOException {
+		try (VolumeSpool spool = new VolumeSpool(0)) {
+			Volume v1 = spool.add(newVolume(10, new RowImpl.Builder("⠁").build()));
+			long size = spool.getFileSize();
+			Volume v2 = spool.add(newVolume(10, new RowImpl.Builder("⠃").build()));
+			Volume v3 = spool.add(newVolume(10, new RowImpl.Builder("⠉").build()));
+			spool.release(v2);
+			spool.release(v3);
+			// the released regions are merged and removed from the end of the file
+			assertEquals(size, spool.getFileSize());
+			spool.release(v1);
+			spool.release(v1);
+			assertEquals(0, spool.getFileSize());
+		}
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testReleasedVolumeCannotBeRead() throws IOException {
+		try (VolumeSpool spool = new VolumeSpool(0)) {
+			Volume v = spool.add(newVolume(10, new RowImpl.Builder("⠁").build()));
+			spool.release(v);
+			v.getSections();
+		}
+	}
+
+	private static Row firstRow(Volume v) {
+		return v.getSections().iterator().next().getPages().get(0).getRows().get(0);
+	}
+
+	private static Volume newVolume(int width, Row ... rows) {
+		SectionProperties props = new SectionProperties() {
+			@Override
+			public int getPageWidth() {
+				return width;
+			}
+			@Override
+			public int getPageHeight() {
+				return 25;
+			}
+			@Override
+			public float getRowSpacing() {
+				return 1.5f;
+			}
+			@Override
+			public boolean duplex() {
+				return true;
+			}
+		};
+		Page page = ()->Arrays.asList(rows);
+		Section section = new Section() {
+			@Override
+			public SectionProperties getSectionProperties() {
+				return props;
+			}
+			@Override
+			public List<? extends Page> getPages() {
+				return Collections.singletonList(page);
+			}
+		};
+		return ()->Collections.singletonList(section);
+	}
+
+}
@@ -0,0 +1,89 @@
+package org.daisy.dotify.formatter.impl.core;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.daisy.dotify.api.formatter.BlockProperties;
+import org.daisy.dotify.api.formatter.Context;
+import org.daisy.dotify.api.formatter.DynamicContent;
+import org.daisy.dotify.api.formatter.FormatterConfiguration;
+import org.daisy.dotify.api.formatter.TextProperties;
+import org.daisy.dotify.api.translator.BrailleTranslatorFactoryMaker;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class BlockPrerendererTest {
+
+	@Test
+	public void testVolatileBlocksAreSkipped() {
+		FormatterContext fc = new FormatterContext(
+				BrailleTranslatorFactoryMaker.newInstance(),
+				null,
+				new FormatterConfiguration.Builder("sv-SE", "bypass").build()
+		);
+		TextProperties tp = new TextProperties.Builder("sv-SE").hyphenate(false).build();
+		AtomicInteger renderCount = new AtomicInteger();
+		DynamicContent exp = new DynamicContent() {
+			@Override
+			public String render(Context context) {
+				renderCount.incrementAndGet();
+				return "b";
+			}
+
+			@Override
+			public String render() {
+				return render(new Context() {});
+			}
+		};
+		FormatterCoreImpl f = new FormatterCoreImpl(fc);
+		f.startBlock(new BlockProperties.Builder().build());
+		f.addChars("a", tp);
+		f.endBlock();
+		f.startBlock(new BlockProperties.Builder().build());
+		f.insertEvaluate(exp, tp);
+		f.endBlock();
+		f.startBlock(new BlockProperties.Builder().build());
+		f.addChars("c", tp);
+		f.endBlock();
+		List<Block> blocks = f.getBlocks(null, null, null);
+		assertEquals(3, blocks.size());
+
+		BlockPrerenderer p = new BlockPrerenderer(fc, 2);
+		p.add(blocks, 30);
+		assertEquals(2, p.size());
+		p.run();
+		assertEquals(0, p.size());
+		p.prerender(blocks.get(1), 30);
+		assertEquals(0, renderCount.get());
+	}
+
+	@Test
+	public void testThreadContextsDoNotStartThreads() {
+		FormatterContext fc = new FormatterContext(
+				BrailleTranslatorFactoryMaker.newInstance(),
+				null,
+				new FormatterConfiguration.Builder("sv-SE", "bypass").build()
+		);
+		BlockPrerenderer p = new BlockPrerenderer(fc, 2);
+		List<Integer> parallelism = Collections.synchronizedList(new ArrayList<>());
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (int i=0; i<4; i++) {
+			tasks.add(()->{
+				// a table inside a table cell uses the prerenderer of the thread context
+				parallelism.add(p.getThreadContext().getPrerenderer().getParallelism());
+				return null;
+			});
+		}
+		p.invokeAll(tasks);
+		p.shutdown();
+		assertEquals(Arrays.asList(0, 0, 0, 0), parallelism);
+		assertEquals(0, p.getThreadContext().getParallelism());
+	}
+
+}
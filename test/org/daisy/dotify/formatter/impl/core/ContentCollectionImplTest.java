@@ -0,0 +1,111 @@
+package org.daisy.dotify.formatter.impl.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.daisy.dotify.api.formatter.BlockProperties;
+import org.daisy.dotify.api.formatter.Context;
+import org.daisy.dotify.api.formatter.DynamicContent;
+import org.daisy.dotify.api.formatter.FormatterConfiguration;
+import org.daisy.dotify.api.formatter.TextProperties;
+import org.daisy.dotify.api.translator.BrailleTranslatorFactoryMaker;
+import org.daisy.dotify.formatter.impl.row.RowImpl;
+import org.daisy.dotify.formatter.impl.search.DefaultContext;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class ContentCollectionImplTest {
+	private final FormatterContext fc = new FormatterContext(
+			BrailleTranslatorFactoryMaker.newInstance(),
+			null,
+			new FormatterConfiguration.Builder("sv-SE", "bypass").build()
+	);
+	private final TextProperties tp = new TextProperties.Builder("sv-SE").hyphenate(false).build();
+
+	private BlockContext newContext(int page, int volume) {
+		return BlockContext.from(new DefaultContext.Builder(null).currentPage(page).currentVolume(volume).build())
+				.flowWidth(20)
+				.formatterContext(fc)
+				.build();
+	}
+
+	private ContentCollectionImpl newCollection(DynamicContent exp) {
+		ContentCollectionImpl c = new ContentCollectionImpl(fc);
+		c.startItem(new BlockProperties.Builder().identifier("static").build());
+		c.addChars("abc", tp);
+		c.endItem();
+		c.startItem(new BlockProperties.Builder().identifier("volatile").build());
+		c.addChars("def ", tp);
+		c.insertEvaluate(exp, tp);
+		c.endItem();
+		return c;
+	}
+
+	private static DynamicContent newPageCounter(AtomicInteger count) {
+		return new DynamicContent() {
+			@Override
+			public String render(Context context) {
+				count.incrementAndGet();
+				return "" + context.getCurrentPage();
+			}
+
+			@Override
+			public String render() {
+				return render(new Context() {});
+			}
+		};
+	}
+
+	@Test
+	public void testRowsAreReusedInEqualContext() {
+		ContentCollectionImpl c = newCollection(newPageCounter(new AtomicInteger()));
+		List<RowImpl> rows = c.getRows("static", newContext(1, 1));
+		assertEquals("abc", rows.get(0).getChars());
+		assertSame(rows, c.getRows("static", newContext(1, 1)));
+		assertEquals(1, c.getHitCount());
+		assertEquals(1, c.getMissCount());
+	}
+
+	@Test
+	public void testRowsAreRenderedAgainInOtherContext() {
+		ContentCollectionImpl c = newCollection(newPageCounter(new AtomicInteger()));
+		List<RowImpl> rows = c.getRows("static", newContext(1, 1));
+		List<RowImpl> otherPage = c.getRows("static", newContext(2, 1));
+		assertNotSame(rows, otherPage);
+		List<RowImpl> otherVolume = c.getRows("static", newContext(2, 2));
+		assertNotSame(otherPage, otherVolume);
+		assertEquals(rows, otherVolume);
+		assertEquals(0, c.getHitCount());
+		assertEquals(3, c.getMissCount());
+		// the latest context is kept
+		assertSame(otherVolume, c.getRows("static", newContext(2, 2)));
+		assertEquals(1, c.getHitCount());
+	}
+
+	@Test
+	public void testVolatileItemsAreNotCached() {
+		AtomicInteger count = new AtomicInteger();
+		ContentCollectionImpl c = newCollection(newPageCounter(count));
+		c.getRows("volatile", newContext(1, 1));
+		int rendered = count.get();
+		assertTrue(rendered>0);
+		List<RowImpl> rows = c.getRows("volatile", newContext(1, 1));
+		assertTrue(count.get()>rendered);
+		assertTrue(rows.get(0).getChars().startsWith("def"));
+		assertEquals(0, c.getHitCount());
+		assertEquals(2, c.getMissCount());
+	}
+
+	@Test
+	public void testMissingItem() {
+		ContentCollectionImpl c = newCollection(newPageCounter(new AtomicInteger()));
+		assertTrue(c.getRows("missing", newContext(1, 1)).isEmpty());
+		assertEquals(0, c.getMissCount());
+	}
+
+}
@@ -207,6 +207,27 @@ public class ExpressionTest {
 		assertEquals("c", e.evaluate("(numeral-format lower-alpha 3)"));
 	}
 
+	@Test
+	public void testExpression_variables_01() {
+		e.setVariable("page", 2);
+		assertEquals(3, e.evaluate("(+ $page 1)"));
+		e.setVariable("page", 5);
+		assertEquals(6, e.evaluate("(+ $page 1)"));
+	}
+
+	@Test
+	public void testExpression_variables_02() {
+		e.setVariable("var", 1);
+		assertEquals(2, e.evaluate("(set var 2) $var"));
+		assertEquals(1, e.evaluate("$var"));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testExpression_variables_03() {
+		e.evaluate("(set var 2) $var");
+		e.evaluate("(+ $var 1)");
+	}
+
 	/*
 		input + " -> " + ret + " (" +ret.getClass() + ")";
 	 */
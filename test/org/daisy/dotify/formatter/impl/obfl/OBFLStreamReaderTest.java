@@ -0,0 +1,99 @@
+package org.daisy.dotify.formatter.impl.obfl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class OBFLStreamReaderTest {
+	private static final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+	private static XMLInputFactory newInputFactory() {
+		XMLInputFactory inFactory = XMLInputFactory.newInstance();
+		inFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		inFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		inFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		inFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		return inFactory;
+	}
+
+	private static String write(XMLEventIterator input) throws XMLStreamException {
+		StringWriter out = new StringWriter();
+		XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(out);
+		while (input.hasNext()) {
+			XMLEvent event = input.nextEvent();
+			if (event.isStartDocument()) {
+				// the encoding declaration depends on the reader
+				continue;
+			}
+			writer.add(event);
+		}
+		input.close();
+		writer.close();
+		return out.toString();
+	}
+
+	private String readEvents(String resource, boolean normalize) throws XMLStreamException {
+		InputStream in = this.getClass().getResourceAsStream(resource);
+		XMLEventIterator input = normalize
+				?new OBFLWsNormalizer(newInputFactory().createXMLEventReader(in), eventFactory)
+				:new XMLEventReaderAdapter(newInputFactory().createXMLEventReader(in));
+		return write(input);
+	}
+
+	private String readStream(String resource, boolean normalize) throws XMLStreamException {
+		InputStream in = this.getClass().getResourceAsStream(resource);
+		return write(new OBFLStreamReader(newInputFactory().createXMLStreamReader(in), eventFactory, normalize));
+	}
+
+	@Test
+	public void testSameAsWsNormalizer() throws XMLStreamException {
+		for (int i=1; i<=16; i++) {
+			String resource = String.format("resource-files/ws-test-input-%02d.xml", i);
+			assertEquals(resource, readEvents(resource, true), readStream(resource, true));
+		}
+	}
+
+	@Test
+	public void testSameAsEventReader() throws XMLStreamException {
+		for (int i=1; i<=16; i++) {
+			String resource = String.format("resource-files/ws-test-input-%02d.xml", i);
+			assertEquals(resource, readEvents(resource, false), readStream(resource, false));
+		}
+	}
+
+	@Test
+	public void testNormalizeSpace() {
+		String[] input = new String[]{"", " ", " \t\r\n ", "a", " a ", "a  b", "\n a \u000B\f b\t", " a ", "\u0001a b\u0002"};
+		for (String s : input) {
+			StringBuilder sb = new StringBuilder("x");
+			OBFLStreamReader.appendNormalized(sb, s);
+			assertEquals("x" + XMLParserBase.normalizeSpace(s), sb.toString());
+		}
+	}
+
+	@Test
+	public void testNamespaceContext() throws XMLStreamException {
+		String xml = "<a xmlns='urn:a' xmlns:x='urn:x'><b xmlns:x='urn:y' xmlns:z='urn:x'/></a>";
+		OBFLStreamReader r = new OBFLStreamReader(newInputFactory().createXMLStreamReader(new StringReader(xml)), eventFactory, true);
+		r.nextEvent();
+		XMLEvent a = r.nextEvent();
+		XMLEvent b = r.nextEvent();
+		assertEquals("urn:a", a.asStartElement().getNamespaceContext().getNamespaceURI(""));
+		assertEquals("urn:x", a.asStartElement().getNamespaceContext().getNamespaceURI("x"));
+		assertEquals("urn:y", b.asStartElement().getNamespaceContext().getNamespaceURI("x"));
+		assertEquals("z", b.asStartElement().getNamespaceContext().getPrefix("urn:x"));
+		assertEquals("urn:a", b.asStartElement().getName().getNamespaceURI());
+	}
+}
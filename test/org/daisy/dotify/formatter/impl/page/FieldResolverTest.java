@@ -4,10 +4,12 @@ import static org.junit.Assert.assertEquals;
 
 import java.util.Arrays;
 
+import org.daisy.dotify.api.formatter.CurrentPageField;
 import org.daisy.dotify.api.formatter.FieldList;
 import org.daisy.dotify.api.formatter.FormatterConfiguration;
 import org.daisy.dotify.api.formatter.LayoutMasterProperties;
 import org.daisy.dotify.api.formatter.NoField;
+import org.daisy.dotify.api.formatter.NumeralStyle;
 import org.daisy.dotify.api.formatter.PageTemplateBuilder;
 import org.daisy.dotify.api.formatter.StringField;
 import org.daisy.dotify.api.translator.BrailleTranslatorFactoryMaker;
@@ -74,4 +76,26 @@ public class FieldResolverTest {
 		assertEquals(10, resolver.getWidth(1, 8));
 	}
 
+	@Test
+	public void testGetWidthWithPageNumber() throws TranslatorConfigurationException {
+		FormatterContext fcontext = new FormatterContext(
+			BrailleTranslatorFactoryMaker.newInstance(),
+			TextBorderFactoryMaker.newInstance(), 
+			new FormatterConfiguration.Builder("sv-SE", "bypass").build()
+		);
+		LayoutMaster master = new LayoutMaster(fcontext, 
+				new LayoutMasterProperties.Builder(10, 8).build());
+		PageTemplateBuilder p = master.newTemplate(null);
+		p.addToHeader(new FieldList.Builder(Arrays.asList(NoField.getInstance(), new CurrentPageField(NumeralStyle.DEFAULT))).build());
+		PageDetails details = new PageDetails(true, new PageId(0, 0, new SequenceId(0, new DocumentSpace(Space.BODY, null), 0)), null, 0);
+		FieldResolver resolver = new FieldResolver(master, fcontext, null, details);
+
+		// the width depends on the page number, also when requested repeatedly
+		assertEquals(9, resolver.getWidth(9, 0));
+		assertEquals(8, resolver.getWidth(10, 0));
+		assertEquals(9, resolver.getWidth(9, 0));
+		assertEquals(10, resolver.getWidth(9, 1));
+		assertEquals(8, resolver.getWidth(9, 16));
+	}
+
 }
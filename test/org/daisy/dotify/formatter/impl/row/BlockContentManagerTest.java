@@ -2,6 +2,7 @@ package org.daisy.dotify.formatter.impl.row;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 
 import java.util.Stack;
@@ -93,6 +94,40 @@ public class BlockContentManagerTest {
 		assertEquals("⠀⠀⠀⠄⠄⠄", r.getLeftMargin().getContent()+r.getChars());
 		assertFalse(m.hasNext());
 	}
+	
+	@Test
+	public void testHasNextBeforeEachRow() throws TranslatorConfigurationException {
+		//setup
+		FormatterContext c = new FormatterContext(BrailleTranslatorFactoryMaker.newInstance(), TextBorderFactoryMaker.newInstance(), FormatterConfiguration.with("sv-SE", TranslatorType.UNCONTRACTED.toString()).build());
+		Stack<Segment> segments = new Stack<>();
+		segments.push(new TextSegment("... ... ... ... ...", new TextProperties.Builder("sv-SE").build(), true));
+		RowDataProperties rdp = new RowDataProperties.Builder().build();
+		CrossReferenceHandler refs = mock(CrossReferenceHandler.class);
+		Context context = createContext();
+		AbstractBlockContentManager m1 = new BlockContentManager(null, 8, segments, rdp, refs, context, c);
+		AbstractBlockContentManager m2 = new BlockContentManager(null, 8, segments, rdp, refs, context, c);
+		LineProperties reserved = new LineProperties.Builder().reservedWidth(4).build();
+
+		//test
+		assertTrue(m1.hasNext());
+		assertEquals("⠄⠄⠄⠀⠄⠄⠄", m1.getNext().get().getChars());
+		assertTrue(m1.hasNext());
+		assertEquals("⠄⠄⠄", m1.getNext(reserved).get().getChars());
+		assertTrue(m1.hasNext());
+		assertEquals("⠄⠄⠄⠀⠄⠄⠄", m1.getNext().get().getChars());
+		assertFalse(m1.hasNext());
+		assertFalse(m1.getNext().isPresent());
+
+		assertTrue(m2.hasNext());
+		assertEquals("⠄⠄⠄", m2.getNext(reserved).get().getChars());
+		assertTrue(m2.hasNext());
+		assertEquals("⠄⠄⠄⠀⠄⠄⠄", m2.getNext().get().getChars());
+		assertTrue(m2.hasNext());
+		assertEquals("⠄⠄⠄", m2.getNext(reserved).get().getChars());
+		assertTrue(m2.hasNext());
+		assertEquals("⠄⠄⠄", m2.getNext().get().getChars());
+		assertFalse(m2.hasNext());
+	}
 
 	
 	private static Context createContext() {
@@ -0,0 +1,78 @@
+package org.daisy.dotify.formatter.impl.row;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.daisy.dotify.api.formatter.FormatterConfiguration;
+import org.daisy.dotify.api.formatter.TextProperties;
+import org.daisy.dotify.api.translator.BrailleTranslator;
+import org.daisy.dotify.api.translator.BrailleTranslatorFactoryMakerService;
+import org.daisy.dotify.api.translator.TranslatorConfigurationException;
+import org.daisy.dotify.common.text.IdentityFilter;
+import org.daisy.dotify.formatter.impl.core.FormatterContext;
+import org.daisy.dotify.formatter.impl.segment.Segment;
+import org.daisy.dotify.formatter.impl.segment.TextSegment;
+import org.daisy.dotify.translator.DefaultBrailleFilter;
+import org.daisy.dotify.translator.DefaultMarkerProcessor;
+import org.daisy.dotify.translator.SimpleBrailleTranslator;
+import org.daisy.dotify.translator.impl.DefaultBrailleFinalizer;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+@SuppressWarnings("javadoc")
+public class CachedLayoutTest {
+	private static final String LOC = "und";
+	private static final String MODE = "bypass";
+	private static final String OTHER_MODE = "other";
+
+	private static SimpleBrailleTranslator newTranslator(String mode) {
+		return new SimpleBrailleTranslator(
+				new DefaultBrailleFilter(new IdentityFilter(), LOC, new DefaultMarkerProcessor.Builder().build(), null),
+				new DefaultBrailleFinalizer(), mode);
+	}
+
+	/**
+	 * Creates a context where the other translation mode uses the specified translator.
+	 */
+	private static FormatterContext newContext(BrailleTranslator other) throws TranslatorConfigurationException {
+		BrailleTranslatorFactoryMakerService sr = Mockito.mock(BrailleTranslatorFactoryMakerService.class);
+		Mockito.when(sr.newTranslator(LOC, MODE)).thenReturn(newTranslator(MODE));
+		Mockito.when(sr.newTranslator(LOC, OTHER_MODE)).thenReturn(other);
+		return new FormatterContext(sr, null, new FormatterConfiguration.Builder(LOC, MODE).build());
+	}
+
+	private static String newKey(FormatterContext fc, String mode) {
+		TextProperties tp = new TextProperties.Builder(LOC).translationMode(mode).build();
+		List<Segment> segments = Collections.singletonList(new TextSegment("abc", tp, true));
+		RowDataProperties rdp = new RowDataProperties.Builder().build();
+		return CachedLayout.newKey("id", 20, segments, rdp, fc);
+	}
+
+	@Test
+	public void testKeyOfEqualContexts() throws TranslatorConfigurationException {
+		String key = newKey(newContext(newTranslator(OTHER_MODE)), OTHER_MODE);
+		assertNotNull(key);
+		assertEquals(key, newKey(newContext(newTranslator(OTHER_MODE)), OTHER_MODE));
+	}
+
+	@Test
+	public void testKeyDependsOnTranslatorOfMode() throws TranslatorConfigurationException {
+		BrailleTranslator other = Mockito.mock(BrailleTranslator.class);
+		// the default translators are the same, but the translator of the mode isn't
+		assertEquals(newKey(newContext(newTranslator(OTHER_MODE)), MODE), newKey(newContext(other), MODE));
+		assertNotEquals(newKey(newContext(newTranslator(OTHER_MODE)), OTHER_MODE), newKey(newContext(other), OTHER_MODE));
+	}
+
+	@Test
+	public void testImplementationIncludesLocation() {
+		String impl = CachedLayout.getImplementation(SimpleBrailleTranslator.class);
+		assertTrue(impl, impl.startsWith(SimpleBrailleTranslator.class.getName() + " "));
+		assertTrue(impl, impl.contains(SimpleBrailleTranslator.class.getProtectionDomain().getCodeSource().getLocation().toString()));
+	}
+
+}
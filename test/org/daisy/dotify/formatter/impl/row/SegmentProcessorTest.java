@@ -9,8 +9,11 @@ import org.daisy.dotify.api.formatter.FormatterConfiguration;
 import org.daisy.dotify.api.formatter.TextProperties;
 import org.daisy.dotify.api.translator.BrailleTranslatorFactoryMaker;
 import org.daisy.dotify.api.translator.BrailleTranslatorFactoryMakerService;
+import org.daisy.dotify.api.translator.TranslatableWithContext;
+import org.daisy.dotify.api.translator.TranslationException;
 import org.daisy.dotify.api.translator.TranslatorConfigurationException;
 import org.daisy.dotify.common.text.IdentityFilter;
+import org.daisy.dotify.formatter.impl.common.TranslationCache;
 import org.daisy.dotify.formatter.impl.core.FormatterContext;
 import org.daisy.dotify.formatter.impl.segment.AnchorSegment;
 import org.daisy.dotify.formatter.impl.segment.Segment;
@@ -107,6 +110,42 @@ public class SegmentProcessorTest {
 		SegmentProcessor sp = new SegmentProcessor("", segments, 100, null, null, 100, rdp.getMargins(), fc, rdp);
 		assertEquals("abcxdefy", sp.getNext(LineProperties.DEFAULT).get().getChars());
 	}
+
+	@Test
+	public void testTranslationCache() throws TranslatorConfigurationException, TranslationException {
+		TextProperties tp = new TextProperties.Builder("und").hyphenate(false).build();
+		SimpleBrailleTranslator spy = Mockito.spy(trr);
+		BrailleTranslatorFactoryMakerService sr = Mockito.mock(BrailleTranslatorFactoryMakerService.class);
+		Mockito.when(sr.newTranslator(loc, mode)).thenReturn(spy);
+		FormatterContext fc = new FormatterContext(sr, null, conf, new TranslationCache(TranslationCache.DEFAULT_MAX_WEIGHT));
+		for (int i=0; i<2; i++) {
+			List<Segment> segments = new ArrayList<>();
+			segments.add(new TextSegment("abc", tp, true));
+			Style s = new Style("em");
+			segments.add(s);
+			s.add(new TextSegment("def", tp, true));
+			SegmentProcessor sp = new SegmentProcessor("", segments, 100, null, null, 100, rdp.getMargins(), fc, rdp);
+			assertEquals("abcxdefy", sp.getNext(LineProperties.DEFAULT).get().getChars());
+		}
+		// identical blocks are translated once
+		Mockito.verify(spy, Mockito.times(1)).translate(Mockito.any(TranslatableWithContext.class));
+	}
+
+	@Test
+	public void testWithoutTranslationCache() throws TranslatorConfigurationException, TranslationException {
+		TextProperties tp = new TextProperties.Builder("und").hyphenate(false).build();
+		SimpleBrailleTranslator spy = Mockito.spy(trr);
+		BrailleTranslatorFactoryMakerService sr = Mockito.mock(BrailleTranslatorFactoryMakerService.class);
+		Mockito.when(sr.newTranslator(loc, mode)).thenReturn(spy);
+		FormatterContext fc = new FormatterContext(sr, null, conf, null);
+		for (int i=0; i<2; i++) {
+			List<Segment> segments = new ArrayList<>();
+			segments.add(new TextSegment("abc", tp, true));
+			SegmentProcessor sp = new SegmentProcessor("", segments, 100, null, null, 100, rdp.getMargins(), fc, rdp);
+			assertEquals("abc", sp.getNext(LineProperties.DEFAULT).get().getChars());
+		}
+		Mockito.verify(spy, Mockito.times(2)).translate(Mockito.any(TranslatableWithContext.class));
+	}
 	/*
 	@Test
 	public void testDynamicWithProcessor_01() {
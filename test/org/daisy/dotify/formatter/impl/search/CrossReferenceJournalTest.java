@@ -0,0 +1,87 @@
+package org.daisy.dotify.formatter.impl.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class CrossReferenceJournalTest {
+
+	@Test
+	public void testWritesAreVisibleButNotApplied() {
+		CrossReferenceHandler crh = new CrossReferenceHandler();
+		crh.startJournal();
+		crh.setPageNumber("id", 3);
+		crh.setPageNumberOffset("counter", 7);
+		assertEquals(Integer.valueOf(3), crh.getPageNumber("id"));
+		assertEquals(Integer.valueOf(7), crh.getPageNumberOffset("counter"));
+		crh.stopJournal();
+		assertNull(crh.getPageNumber("id"));
+		assertNull(crh.getPageNumberOffset("counter"));
+	}
+
+	@Test
+	public void testReadsDoNotMakeHandlerDirty() {
+		CrossReferenceHandler crh = new CrossReferenceHandler();
+		crh.setDirty(false);
+		crh.startJournal();
+		crh.getVolumeNumber("missing");
+		crh.stopJournal();
+		assertFalse(crh.isDirty());
+	}
+
+	@Test
+	public void testReplayAppliesFirstEntries() {
+		CrossReferenceHandler crh = new CrossReferenceHandler();
+		CrossReferenceJournal journal = crh.startJournal();
+		crh.setVolumeNumber("a", 1);
+		int size = journal.size();
+		crh.setVolumeNumber("b", 2);
+		crh.stopJournal();
+		journal.replay(size);
+		assertEquals(Integer.valueOf(1), crh.getVolumeNumber("a"));
+		assertNull(crh.getVolumeNumber("b"));
+	}
+
+	@Test
+	public void testReplayedReadIsRegistered() {
+		CrossReferenceHandler crh = new CrossReferenceHandler();
+		crh.setDirty(false);
+		CrossReferenceJournal journal = crh.startJournal();
+		crh.getVolumeNumber("missing");
+		crh.stopJournal();
+		journal.replay(journal.size());
+		assertTrue(crh.isDirty());
+	}
+
+	@Test
+	public void testVolumeNumberChanges() {
+		CrossReferenceHandler crh = new CrossReferenceHandler();
+		crh.setVolumeNumber("a", 1);
+		int changes = crh.getVolumeNumberChanges();
+		crh.resetUniqueChecks();
+		crh.setVolumeNumber("a", 1);
+		assertEquals(changes, crh.getVolumeNumberChanges());
+		CrossReferenceJournal journal = crh.startJournal();
+		crh.setVolumeNumber("a", 2);
+		int journaled = crh.getVolumeNumberChanges();
+		assertTrue(journaled>changes);
+		// the volume in the journal is no longer visible
+		crh.stopJournal();
+		int stopped = crh.getVolumeNumberChanges();
+		assertTrue(stopped>journaled);
+		journal.replay(journal.size());
+		assertTrue(crh.getVolumeNumberChanges()>stopped);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testReplayActiveJournal() {
+		CrossReferenceHandler crh = new CrossReferenceHandler();
+		CrossReferenceJournal journal = crh.startJournal();
+		journal.replay(0);
+	}
+
+}
@@ -0,0 +1,110 @@
+package org.daisy.dotify.formatter.impl.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class CrossReferenceLogTest {
+
+	@Test
+	public void testLogIsValidWhenUnchanged() {
+		CrossReferenceHandler crh = new CrossReferenceHandler();
+		crh.setPageNumber("id", 3);
+		CrossReferenceLog log = crh.startLog();
+		assertEquals(Integer.valueOf(3), crh.getPageNumber("id"));
+		crh.stopLog();
+		assertTrue(log.isValid());
+	}
+
+	@Test
+	public void testLogIsInvalidWhenChanged() {
+		CrossReferenceHandler crh = new CrossReferenceHandler();
+		crh.setPageNumber("id", 3);
+		CrossReferenceLog log = crh.startLog();
+		crh.getPageNumber("id");
+		crh.stopLog();
+		crh.resetUniqueChecks();
+		crh.setPageNumber("id", 4);
+		assertFalse(log.isValid());
+	}
+
+	@Test
+	public void testReadAfterWriteIsNotValidated() {
+		CrossReferenceHandler crh = new CrossReferenceHandler();
+		CrossReferenceLog log = crh.startLog();
+		crh.setVolumeNumber("id", 1);
+		crh.getVolumeNumber("id");
+		crh.stopLog();
+		crh.setVolumeNumber("id", 2);
+		assertTrue(log.isValid());
+	}
+
+	@Test
+	public void testReplayRestoresWritesAndReads() {
+		CrossReferenceHandler crh = new CrossReferenceHandler();
+		crh.setVolumeNumber("ref", 1);
+		CrossReferenceLog log = crh.startLog();
+		crh.getVolumeNumber("ref");
+		crh.setPageNumber("id", 5);
+		crh.stopLog();
+		crh.setDirty(false);
+		crh.resetUniqueChecks();
+		log.replay();
+		assertEquals(Integer.valueOf(5), crh.getPageNumber("id"));
+		assertFalse(crh.isDirty());
+		// the replayed read is registered, so a change is detected
+		crh.setVolumeNumber("ref", 2);
+		assertTrue(crh.isDirty());
+	}
+
+	@Test
+	public void testCommitMakesLogNotReusable() {
+		CrossReferenceHandler crh = new CrossReferenceHandler();
+		CrossReferenceLog log = crh.startLog();
+		crh.commitBreakable();
+		crh.stopLog();
+		assertFalse(log.isValid());
+	}
+
+	@Test
+	public void testNestedLogIsAddedToParent() {
+		CrossReferenceHandler crh = new CrossReferenceHandler();
+		crh.setVolumeNumber("a", 1);
+		crh.setVolumeNumber("b", 1);
+		CrossReferenceLog log = crh.startLog();
+		crh.getVolumeNumber("a");
+		CrossReferenceLog nested = crh.startNestedLog();
+		crh.getVolumeNumber("b");
+		crh.stopNestedLog(nested);
+		crh.stopLog();
+		assertEquals(2, log.size());
+		assertEquals(1, nested.size());
+		crh.setVolumeNumber("a", 2);
+		assertTrue(nested.isValid());
+		assertFalse(log.isValid());
+		crh.setVolumeNumber("b", 2);
+		assertFalse(nested.isValid());
+	}
+
+	@Test
+	public void testReplayedLogIsAddedToCurrentLog() {
+		CrossReferenceHandler crh = new CrossReferenceHandler();
+		crh.setVolumeNumber("ref", 1);
+		CrossReferenceLog nested = crh.startNestedLog();
+		crh.getVolumeNumber("ref");
+		crh.setPageNumber("id", 5);
+		crh.stopNestedLog(nested);
+		crh.resetUniqueChecks();
+		CrossReferenceLog log = crh.startLog();
+		crh.replayLog(nested);
+		crh.stopLog();
+		assertEquals(nested.size(), log.size());
+		assertTrue(log.isValid());
+		crh.setVolumeNumber("ref", 2);
+		assertFalse(log.isValid());
+	}
+
+}
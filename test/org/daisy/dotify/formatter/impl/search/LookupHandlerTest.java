@@ -4,6 +4,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Collections;
+
 import org.junit.Test;
 
 @SuppressWarnings("javadoc")
@@ -55,4 +57,27 @@ public class LookupHandlerTest {
 		assertEquals(34, message.length());
 	}
 
+	@Test
+	public void test_missing_and_changed_keys() {
+		LookupHandler<String, String> lh = new LookupHandler<>();
+		lh.put(key1, value1);
+		lh.get(key1);
+		lh.get("key2");
+		lh.put(key1, "other");
+		lh.put("key2", value1);
+		assertEquals(Collections.singleton("key2"), lh.getMissingKeys());
+		assertEquals(Collections.singleton(key1), lh.getChangedKeys());
+		lh.setDirty(false);
+		assertTrue(lh.getMissingKeys().isEmpty());
+		assertTrue(lh.getChangedKeys().isEmpty());
+	}
+
+	@Test
+	public void test_traceless_get_is_not_reported() {
+		LookupHandler<String, String> lh = new LookupHandler<>();
+		lh.get(key1, null, true);
+		lh.put(key1, value1);
+		assertTrue(lh.getMissingKeys().isEmpty());
+		assertFalse(lh.isDirty());
+	}
 }
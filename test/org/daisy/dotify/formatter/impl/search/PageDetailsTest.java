@@ -0,0 +1,50 @@
+package org.daisy.dotify.formatter.impl.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.daisy.dotify.api.formatter.Marker;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class PageDetailsTest {
+
+	private static PageDetails newPageDetails() {
+		return new PageDetails(true, new PageId(0, 0, new SequenceId(0, DocumentSpace.BODY, 0)), null, 0);
+	}
+
+	@Test
+	public void testMarkersAddedInDifferentSteps() {
+		Marker m1 = new Marker("m", "a");
+		Marker m2 = new Marker("n", "b");
+		PageDetails pd1 = newPageDetails();
+		pd1.addMarkers(Arrays.asList(m1, m2));
+		PageDetails pd2 = newPageDetails();
+		pd2.addMarkers(Collections.singletonList(m1));
+		pd2.addMarkers(Collections.emptyList());
+		pd2.addMarkers(Collections.singletonList(m2));
+		assertEquals(pd1, pd2);
+		assertEquals(pd1.hashCode(), pd2.hashCode());
+	}
+
+	@Test
+	public void testDifferentMarkers() {
+		Marker m1 = new Marker("m", "a");
+		Marker m2 = new Marker("n", "b");
+		PageDetails pd1 = newPageDetails();
+		pd1.addMarkers(Arrays.asList(m1, m2));
+		PageDetails pd2 = newPageDetails();
+		pd2.addMarkers(Arrays.asList(m2, m1));
+		assertNotEquals(pd1, pd2);
+		assertNotEquals(newPageDetails(), pd2);
+	}
+
+	@Test(expected=UnsupportedOperationException.class)
+	public void testMarkersAreUnmodifiable() {
+		newPageDetails().getMarkers().add(new Marker("m", "a"));
+	}
+
+}
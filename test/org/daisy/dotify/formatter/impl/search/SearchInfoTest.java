@@ -1,12 +1,19 @@
 package org.daisy.dotify.formatter.impl.search;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 
 import org.daisy.dotify.api.formatter.Marker;
+import org.daisy.dotify.api.formatter.MarkerReferenceField;
+import org.daisy.dotify.api.formatter.MarkerReferenceField.MarkerSearchDirection;
+import org.daisy.dotify.api.formatter.MarkerReferenceField.MarkerSearchScope;
 import org.junit.Test;
 
 @SuppressWarnings("javadoc")
@@ -33,6 +40,83 @@ public class SearchInfoTest {
 		assertEquals(6, seq.size());
 	}
 	
+	@Test
+	public void testCommitUnchangedPages() {
+		SearchInfo si = new SearchInfo();
+		addPages(si, 4, 0, true, 0, 0, DocumentSpace.BODY, 0);
+		assertTrue(si.isDirty());
+		si.setDirty(false);
+		addPages(si, 4, 0, true, 0, 0, DocumentSpace.BODY, 0);
+		assertFalse(si.isDirty());
+		assertTrue(si.getChangedPages().isEmpty());
+	}
+	
+	@Test
+	public void testCommitChangedMarkers() {
+		SearchInfo si = new SearchInfo();
+		addPages(si, 4, 0, true, 0, 0, DocumentSpace.BODY, 0);
+		si.setDirty(false);
+		addPages(si, 4, 0, true, 0, 0, DocumentSpace.BODY, 0,
+				Collections.singletonMap(2, new ArrayList<>(Arrays.asList(new Marker("m", "v")))));
+		assertTrue(si.isDirty());
+		assertEquals(1, si.getChangedPages().size());
+		assertEquals(2, si.getChangedPages().iterator().next().getPageIndex());
+	}
+	
+	@Test
+	public void testLastKeptPageIsCommitted() {
+		SearchInfo si = new SearchInfo();
+		SequenceId seq = new SequenceId(0, DocumentSpace.BODY, 0);
+		PageDetails first = new PageDetails(true, new PageId(0, 0, seq), null, 0);
+		PageDetails second = new PageDetails(true, new PageId(0, 0, seq), null, 0);
+		si.keepPageDetails(first);
+		si.keepPageDetails(second);
+		si.commitPageDetails();
+		View<PageDetails> view = si.getPageView(DocumentSpace.BODY);
+		assertEquals(1, view.size());
+		assertTrue(second==view.get(0));
+	}
+	
+	@Test
+	public void testFindMarkerInSequence() {
+		SearchInfo si = new SearchInfo();
+		Map<Integer, ArrayList<Marker>> markers = new HashMap<>();
+		markers.put(1, new ArrayList<>(Arrays.asList(new Marker("m", "a"), new Marker("n", "x"), new Marker("m", "b"))));
+		markers.put(4, new ArrayList<>(Arrays.asList(new Marker("m", "c"))));
+		addPages(si, 6, 0, true, 0, 0, DocumentSpace.BODY, 0, markers);
+		SequenceId seq = new SequenceId(0, DocumentSpace.BODY, 0);
+		si.setSequenceScope(seq, 0, 6);
+		View<PageDetails> pages = si.getPageView(DocumentSpace.BODY);
+		MarkerReferenceField backward = new MarkerReferenceField("m", MarkerSearchDirection.BACKWARD, MarkerSearchScope.SEQUENCE);
+		MarkerReferenceField forward = new MarkerReferenceField("m", MarkerSearchDirection.FORWARD, MarkerSearchScope.SEQUENCE);
+		assertEquals("", si.findMarker(pages.get(0), backward));
+		assertEquals("b", si.findMarker(pages.get(1), backward));
+		assertEquals("b", si.findMarker(pages.get(3), backward));
+		assertEquals("c", si.findMarker(pages.get(5), backward));
+		assertEquals("a", si.findMarker(pages.get(0), forward));
+		assertEquals("c", si.findMarker(pages.get(2), forward));
+		assertEquals("", si.findMarker(pages.get(5), forward));
+		assertEquals("x", si.findMarker(pages.get(3), new MarkerReferenceField("n", MarkerSearchDirection.BACKWARD, MarkerSearchScope.SEQUENCE)));
+		// outside of the sequence scope
+		si.setSequenceScope(seq, 2, 6);
+		assertEquals("", si.findMarker(pages.get(3), backward));
+		assertEquals("c", si.findMarker(pages.get(4), backward));
+	}
+	
+	@Test
+	public void testFindMarkerInSequenceAfterChange() {
+		SearchInfo si = new SearchInfo();
+		addPages(si, 4, 0, true, 0, 0, DocumentSpace.BODY, 0,
+				Collections.singletonMap(1, new ArrayList<>(Arrays.asList(new Marker("m", "a")))));
+		si.setSequenceScope(new SequenceId(0, DocumentSpace.BODY, 0), 0, 4);
+		MarkerReferenceField backward = new MarkerReferenceField("m", MarkerSearchDirection.BACKWARD, MarkerSearchScope.SEQUENCE);
+		assertEquals("a", si.findMarker(si.getPageView(DocumentSpace.BODY).get(3), backward));
+		addPages(si, 4, 0, true, 0, 0, DocumentSpace.BODY, 0,
+				Collections.singletonMap(2, new ArrayList<>(Arrays.asList(new Marker("m", "b")))));
+		assertEquals("b", si.findMarker(si.getPageView(DocumentSpace.BODY).get(3), backward));
+		assertEquals("", si.findMarker(si.getPageView(DocumentSpace.BODY).get(1), backward));
+	}
+	
 	private static void addPages(SearchInfo si, int count, int offset, boolean duplex, int globalStartIndex, int sequenceId, DocumentSpace space, Integer volumeGroup) {
 		addPages(si, count, offset, duplex, globalStartIndex, sequenceId, space, volumeGroup, Collections.emptyMap());
 	}
@@ -42,7 +126,7 @@ public class SearchInfoTest {
 			PageDetails pd = new PageDetails(true, new PageId(i+offset, globalStartIndex, new SequenceId(sequenceId, space, volumeGroup)), null, i+offset);
 			ArrayList<Marker> m = marker.get(i+offset);
 			if (m!=null) {
-				pd.getMarkers().addAll(m);
+				pd.addMarkers(m);
 			}
 			si.keepPageDetails(pd);
 		}
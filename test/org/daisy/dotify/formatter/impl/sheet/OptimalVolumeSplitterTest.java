@@ -0,0 +1,140 @@
+package org.daisy.dotify.formatter.impl.sheet;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.daisy.dotify.api.writer.SectionProperties;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class OptimalVolumeSplitterTest {
+
+	private static List<Sheet> sheets(int count, int... unbreakable) {
+		List<Sheet> ret = new ArrayList<>();
+		for (int i=0; i<count; i++) {
+			boolean breakable = true;
+			for (int u : unbreakable) {
+				if (u==i) {
+					breakable = false;
+				}
+			}
+			ret.add(new Sheet.Builder((SectionProperties)null).breakable(breakable).build());
+		}
+		return ret;
+	}
+
+	private static void assertVolumes(VolumeSplitter splitter, int... expected) {
+		assertEquals(expected.length, splitter.getVolumeCount());
+		for (int i=0; i<expected.length; i++) {
+			assertEquals("Volume " + (i+1), expected[i], splitter.sheetsInVolume(i+1));
+		}
+	}
+
+	@Test
+	public void testEvenVolumes() {
+		VolumeBreakRecord record = new VolumeBreakRecord();
+		record.setSheets(0, sheets(10));
+		OptimalVolumeSplitter splitter = new OptimalVolumeSplitter(v->4, record);
+		splitter.updateSheetCount(10, 10);
+		assertVolumes(splitter, 4, 3, 3);
+	}
+
+	@Test
+	public void testUnbreakableSheet() {
+		VolumeBreakRecord record = new VolumeBreakRecord();
+		record.setSheets(0, sheets(10, 3));
+		OptimalVolumeSplitter splitter = new OptimalVolumeSplitter(v->4, record);
+		splitter.updateSheetCount(10, 10);
+		assertVolumes(splitter, 3, 4, 3);
+	}
+
+	@Test
+	public void testOverhead() {
+		VolumeBreakRecord record = new VolumeBreakRecord();
+		record.setSheets(0, sheets(9));
+		for (int i=0; i<3; i++) {
+			record.setOverhead(i, 1);
+		}
+		OptimalVolumeSplitter splitter = new OptimalVolumeSplitter(v->4, record);
+		splitter.updateSheetCount(12, 0);
+		assertVolumes(splitter, 4, 4, 4);
+	}
+
+	@Test
+	public void testUnevenOverheadLikeEvenSizeSplitter() {
+		VolumeBreakRecord record = new VolumeBreakRecord();
+		record.setSheets(0, sheets(6));
+		record.setOverhead(0, 0);
+		record.setOverhead(1, 1);
+		record.setOverhead(2, 1);
+		OptimalVolumeSplitter splitter = new OptimalVolumeSplitter(v->3, record);
+		splitter.updateSheetCount(8, 0);
+		assertVolumes(splitter, 3, 3, 2);
+	}
+
+	@Test
+	public void testLargerVolumesFirstWhenCostIsEqual() {
+		VolumeBreakRecord record = new VolumeBreakRecord();
+		record.setSheets(0, sheets(10));
+		for (int i=0; i<4; i++) {
+			record.setOverhead(i, 2);
+		}
+		OptimalVolumeSplitter splitter = new OptimalVolumeSplitter(v->5, record);
+		splitter.updateSheetCount(18, 0);
+		assertVolumes(splitter, 5, 5, 4, 4);
+		EvenSizeVolumeSplitterCalculator even = new EvenSizeVolumeSplitterCalculator(18, 5);
+		for (int i=1; i<=4; i++) {
+			assertEquals(even.sheetsInVolume(i), splitter.sheetsInVolume(i));
+		}
+	}
+
+	@Test
+	public void testPreferredVolumesAreKeptWhenAlternating() {
+		VolumeBreakRecord record = new VolumeBreakRecord();
+		record.setSheets(0, sheets(10));
+		for (int i=0; i<4; i++) {
+			record.setOverhead(i, 2);
+		}
+		OptimalVolumeSplitter splitter = new OptimalVolumeSplitter(v->5, record);
+		splitter.updateSheetCount(18, 0);
+		assertVolumes(splitter, 5, 5, 4, 4);
+		// the overhead of the last volume depends on the volume breaks
+		record.setOverhead(3, 1);
+		splitter.updateSheetCount(18, 0);
+		assertVolumes(splitter, 5, 4, 4, 4);
+		record.setOverhead(3, 2);
+		splitter.updateSheetCount(17, 0);
+		assertVolumes(splitter, 5, 5, 4, 4);
+		// both have been tried, the preferred volumes are kept
+		record.setOverhead(3, 1);
+		splitter.updateSheetCount(18, 0);
+		assertVolumes(splitter, 5, 5, 4, 4);
+	}
+
+	@Test
+	public void testCompareVolumeSizes() {
+		assertEquals(true, OptimalVolumeSplitter.compareVolumeSizes(new int[]{5, 5, 4, 4}, new int[]{5, 4, 4, 5})<0);
+		assertEquals(true, OptimalVolumeSplitter.compareVolumeSizes(new int[]{4, 4, 4}, new int[]{5, 4, 3})>0);
+		assertEquals(0, OptimalVolumeSplitter.compareVolumeSizes(new int[]{4, 4}, new int[]{4, 4}));
+	}
+
+	@Test
+	public void testVolumeIsAddedWhenSheetsAreLeft() {
+		VolumeBreakRecord record = new VolumeBreakRecord();
+		record.setSheets(0, sheets(8));
+		OptimalVolumeSplitter splitter = new OptimalVolumeSplitter(v->4, record);
+		splitter.updateSheetCount(8, 8);
+		assertVolumes(splitter, 4, 4);
+		splitter.updateSheetCount(8, 1);
+		assertVolumes(splitter, 3, 3, 2);
+	}
+
+	@Test
+	public void testFallbackWithoutRecord() {
+		OptimalVolumeSplitter splitter = new OptimalVolumeSplitter(v->4, new VolumeBreakRecord());
+		splitter.updateSheetCount(10, 10);
+		assertEquals(new EvenSizeVolumeSplitterCalculator(10, 4).getVolumeCount(), splitter.getVolumeCount());
+	}
+}
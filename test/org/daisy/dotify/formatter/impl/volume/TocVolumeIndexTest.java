@@ -0,0 +1,196 @@
+package org.daisy.dotify.formatter.impl.volume;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.daisy.dotify.api.formatter.BlockProperties;
+import org.daisy.dotify.api.formatter.FormatterConfiguration;
+import org.daisy.dotify.api.formatter.TextProperties;
+import org.daisy.dotify.api.translator.BrailleTranslatorFactoryMaker;
+import org.daisy.dotify.formatter.impl.core.Block;
+import org.daisy.dotify.formatter.impl.core.FormatterContext;
+import org.daisy.dotify.formatter.impl.core.TableOfContentsImpl;
+import org.daisy.dotify.formatter.impl.search.CrossReferenceHandler;
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class TocVolumeIndexTest {
+
+	/**
+	 * Creates a table of contents with a heading followed by one entry for each reference.
+	 */
+	private static TableOfContentsImpl newToc(String ... refs) {
+		TableOfContentsImpl toc = new TableOfContentsImpl(new FormatterContext(
+				BrailleTranslatorFactoryMaker.newInstance(),
+				null,
+				new FormatterConfiguration.Builder("sv-SE", "bypass").build()
+		));
+		TextProperties tp = new TextProperties.Builder("sv-SE").build();
+		toc.startBlock(new BlockProperties.Builder().build());
+		toc.addChars("toc", tp);
+		toc.endBlock();
+		for (String ref : refs) {
+			toc.startEntry(ref, new BlockProperties.Builder().build());
+			toc.addChars(ref, tp);
+			toc.endEntry();
+		}
+		return toc;
+	}
+
+	private static CrossReferenceHandler newHandler(String[] refs, int ... volumes) {
+		CrossReferenceHandler crh = new CrossReferenceHandler();
+		setVolumes(crh, refs, volumes);
+		return crh;
+	}
+
+	private static void setVolumes(CrossReferenceHandler crh, String[] refs, int ... volumes) {
+		crh.resetUniqueChecks();
+		for (int i=0; i<refs.length; i++) {
+			crh.setVolumeNumber(refs[i], volumes[i]);
+		}
+	}
+
+	/**
+	 * Gets the blocks of the table of contents at the specified positions, where 0 is the heading
+	 * and 1 is the first entry.
+	 */
+	private static List<Block> blocks(TableOfContentsImpl toc, int ... positions) {
+		List<Block> ret = new ArrayList<>();
+		for (int i : positions) {
+			ret.add(toc.get(i));
+		}
+		return ret;
+	}
+
+	@Test
+	public void testVolumeWithoutEntries() {
+		String[] refs = {"a", "b"};
+		TableOfContentsImpl toc = newToc(refs);
+		CrossReferenceHandler crh = newHandler(refs, 1, 3);
+		TocVolumeIndex index = new TocVolumeIndex(toc);
+		assertNull(index.getBlocks(crh, 2));
+		assertNull(index.getBlocks(crh, 4));
+		assertEquals(blocks(toc, 0, 2), index.getBlocks(crh, 3));
+	}
+
+	@Test
+	public void testEmptyToc() {
+		TableOfContentsImpl toc = newToc();
+		TocVolumeIndex index = new TocVolumeIndex(toc);
+		assertNull(index.getBlocks(new CrossReferenceHandler(), 1));
+	}
+
+	@Test
+	public void testEntriesSpanningVolumes() {
+		String[] refs = {"a", "b", "c", "d", "e"};
+		TableOfContentsImpl toc = newToc(refs);
+		CrossReferenceHandler crh = newHandler(refs, 1, 1, 2, 2, 3);
+		TocVolumeIndex index = new TocVolumeIndex(toc);
+		assertEquals(blocks(toc, 0, 1, 2), index.getBlocks(crh, 1));
+		assertEquals(blocks(toc, 0, 3, 4), index.getBlocks(crh, 2));
+		assertEquals(blocks(toc, 0, 5), index.getBlocks(crh, 3));
+		assertTrue(index.isSequential());
+	}
+
+	@Test
+	public void testUnknownVolumeIsFirstVolume() {
+		String[] refs = {"a", "b"};
+		TableOfContentsImpl toc = newToc(refs);
+		CrossReferenceHandler crh = newHandler(new String[]{"b"}, 2);
+		TocVolumeIndex index = new TocVolumeIndex(toc);
+		assertEquals(blocks(toc, 0, 1), index.getBlocks(crh, 1));
+		assertEquals(blocks(toc, 0, 2), index.getBlocks(crh, 2));
+	}
+
+	@Test
+	public void testIndexIsUpdatedWhenVolumesChange() {
+		String[] refs = {"a", "b", "c", "d"};
+		TableOfContentsImpl toc = newToc(refs);
+		CrossReferenceHandler crh = newHandler(refs, 1, 1, 2, 2);
+		TocVolumeIndex index = new TocVolumeIndex(toc);
+		assertEquals(blocks(toc, 0, 1, 2), index.getBlocks(crh, 1));
+		assertEquals(blocks(toc, 0, 3, 4), index.getBlocks(crh, 2));
+		// the next iteration moves an entry to the next volume
+		setVolumes(crh, refs, 1, 2, 2, 2);
+		assertEquals(blocks(toc, 0, 1), index.getBlocks(crh, 1));
+		assertEquals(blocks(toc, 0, 2, 3, 4), index.getBlocks(crh, 2));
+		// a change outside of the entries that are checked is detected when that volume is requested
+		setVolumes(crh, refs, 1, 2, 2, 3);
+		assertEquals(blocks(toc, 0, 2, 3), index.getBlocks(crh, 2));
+		assertEquals(blocks(toc, 0, 4), index.getBlocks(crh, 3));
+	}
+
+	@Test
+	public void testOutOfOrderEntries() {
+		String[] refs = {"a", "b", "c", "d"};
+		TableOfContentsImpl toc = newToc(refs);
+		CrossReferenceHandler crh = newHandler(refs, 1, 2, 1, 2);
+		TocVolumeIndex index = new TocVolumeIndex(toc);
+		// the search stops at the first entry in a later volume
+		assertEquals(blocks(toc, 0, 1), index.getBlocks(crh, 1));
+		assertFalse(index.isSequential());
+		// the entries in between are included
+		assertEquals(blocks(toc, 0, 2, 3, 4), index.getBlocks(crh, 2));
+		// the index is used again once the entries are in order
+		setVolumes(crh, refs, 1, 1, 2, 2);
+		assertEquals(blocks(toc, 0, 1, 2), index.getBlocks(crh, 1));
+		assertTrue(index.isSequential());
+		assertEquals(blocks(toc, 0, 3, 4), index.getBlocks(crh, 2));
+	}
+
+	@Test
+	public void testOrderChangedOutsideOfCheckedEntries() {
+		String[] refs = {"a", "b", "c", "d", "e", "f"};
+		TableOfContentsImpl toc = newToc(refs);
+		CrossReferenceHandler crh = newHandler(refs, 1, 1, 2, 2, 3, 3);
+		TocVolumeIndex index = new TocVolumeIndex(toc);
+		assertEquals(blocks(toc, 0, 5, 6), index.getBlocks(crh, 3));
+		assertTrue(index.isSequential());
+		// an entry before the entries of the volume moves to a later volume
+		setVolumes(crh, refs, 1, 3, 2, 2, 3, 3);
+		assertEquals(blocks(toc, 0, 2, 3, 4, 5, 6), index.getBlocks(crh, 3));
+		assertFalse(index.isSequential());
+	}
+
+	@Test
+	public void testIsIndexOf() {
+		TableOfContentsImpl toc = newToc("a");
+		TocVolumeIndex index = new TocVolumeIndex(toc);
+		assertTrue(index.isIndexOf(toc));
+		assertFalse(index.isIndexOf(newToc("a")));
+	}
+
+	@Test
+	public void testInsertGroups() {
+		String[] refs = {"a", "b", "c"};
+		TableOfContentsImpl toc = newToc(refs);
+		List<String> ids = new ArrayList<>(toc.getTocIdList());
+		BlockSequenceManipulator fsm = new BlockSequenceManipulator(null, null);
+		fsm.appendGroup(toc);
+		TableOfContentsImpl statics = newToc();
+		statics.startBlock(new BlockProperties.Builder().build());
+		statics.endBlock();
+		Map<String, List<Block>> groups = new HashMap<>();
+		groups.put(ids.get(0), Arrays.asList(statics.get(0)));
+		groups.put(ids.get(2), Arrays.asList(statics.get(1), statics.get(0)));
+		fsm.insertGroups(groups);
+		assertEquals(Arrays.asList(toc.get(0), statics.get(0), toc.get(1), toc.get(2), statics.get(1), statics.get(0), toc.get(3)), fsm.getBlocks());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInsertGroupsWithUnknownIdentifier() {
+		BlockSequenceManipulator fsm = new BlockSequenceManipulator(null, null);
+		fsm.appendGroup(newToc("a"));
+		fsm.insertGroups(Collections.singletonMap("unknown", new ArrayList<Block>()));
+	}
+
+}
@@ -2,17 +2,25 @@ package org.daisy.dotify.formatter.impl.writer;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Properties;
+import java.util.zip.GZIPInputStream;
 
 import javax.xml.namespace.QName;
 
 import org.daisy.dotify.api.writer.AttributeItem;
 import org.daisy.dotify.api.writer.MetaDataItem;
+import org.daisy.dotify.api.writer.PagedMediaWriterConfigurationException;
 import org.daisy.dotify.api.writer.PagedMediaWriterException;
+import org.daisy.dotify.api.writer.SectionProperties;
+import org.daisy.dotify.formatter.impl.row.RowImpl;
 import org.junit.Test;
 
 @SuppressWarnings("javadoc")
@@ -51,4 +59,67 @@ public class PEFMediaWriterTest {
 				+ "</pef>";
 		assertEquals(exp, w.toString().replaceAll("[\\r\\n]+", ""));
 	}
+
+	@Test
+	public void testRowsWithGzip() throws PagedMediaWriterException, IOException {
+		Properties props = new Properties();
+		props.put(PEFMediaWriter.GZIP_PROPERTY, true);
+		props.put(PEFMediaWriter.BUFFER_SIZE_PROPERTY, 16);
+		PEFMediaWriter p = new PEFMediaWriter(props);
+		p.prepare(new ArrayList<>());
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		p.open(os);
+		p.newSection(new SectionProperties() {
+			@Override
+			public int getPageWidth() {
+				return 10;
+			}
+			@Override
+			public int getPageHeight() {
+				return 5;
+			}
+			@Override
+			public float getRowSpacing() {
+				return 1;
+			}
+			@Override
+			public boolean duplex() {
+				return false;
+			}});
+		p.newPage();
+		p.newRow(new RowImpl.Builder("\u2801\u2803").build());
+		p.newRow(new RowImpl.Builder("").rowSpacing(2f).build());
+		p.newRow();
+		p.close();
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(os.toByteArray()))) {
+			byte[] buf = new byte[1024];
+			int len;
+			while ((len = is.read(buf))>-1) {
+				result.write(buf, 0, len);
+			}
+		}
+		String actual = new String(result.toByteArray(), StandardCharsets.UTF_8).replaceAll("[\\r\\n]+", "");
+		String body = actual.substring(actual.indexOf("<body>"));
+		assertEquals("<body>"
+				+ "<volume cols=\"10\" rows=\"5\" rowgap=\"0\" duplex=\"false\">"
+				+ "<section><page>"
+				+ "<row>\u2801\u2803</row>"
+				+ "<row rowgap=\"4\"/>"
+				+ "<row/>"
+				+ "</page></section></volume>"
+				+ "</body></pef>", body);
+	}
+
+	@Test(expected=PagedMediaWriterConfigurationException.class)
+	public void testUnknownFeature() throws PagedMediaWriterConfigurationException {
+		new PEFMediaWriterFactory().setFeature("unknown", true);
+	}
+
+	@Test
+	public void testGzipFeature() throws PagedMediaWriterConfigurationException {
+		PEFMediaWriterFactory f = new PEFMediaWriterFactory();
+		f.setFeature(PEFMediaWriter.GZIP_PROPERTY, true);
+		assertEquals(true, f.getFeature(PEFMediaWriter.GZIP_PROPERTY));
+	}
 }